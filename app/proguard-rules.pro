@@ -18,4 +18,10 @@
 
 # If you keep the line number information, uncomment this to
 # hide the original source file name.
-#-renamesourcefileattribute SourceFile
\ No newline at end of file
+#-renamesourcefileattribute SourceFile
+# Release builds drop verbose and debug logging, arguments included, once
+# minification is enabled.
+-assumenosideeffects class com.marcuschiu.meet.client.util.Logger {
+    public static void v(...);
+    public static void d(...);
+}
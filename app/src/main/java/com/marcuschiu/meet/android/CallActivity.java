@@ -2,44 +2,89 @@ package com.marcuschiu.meet.android;
 
 import android.app.Activity;
 import android.app.AlertDialog;
+import android.content.Intent;
+import android.media.projection.MediaProjection;
+import android.media.projection.MediaProjectionManager;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ResultReceiver;
+import android.util.DisplayMetrics;
 import android.util.Log;
+import android.view.View;
 import android.widget.ImageButton;
 import android.widget.TextView;
 
 import com.marcuschiu.meet.client.AppRTCClient;
+import com.marcuschiu.meet.client.CallStateMachine;
 import com.marcuschiu.meet.client.WebSocketRTCClient;
+import com.marcuschiu.meet.client.cpu.ThreadCpuSampler;
+import com.marcuschiu.meet.client.ws.NioWebSocketTransport;
 import com.marcuschiu.meet.client.pc.PeerConnectionClient;
 import com.marcuschiu.meet.client.pc.PeerConnectionEvents;
+import com.marcuschiu.meet.client.pc.WebRtcTraceCapture;
+import com.marcuschiu.meet.client.trace.FlightRecorder;
+import com.marcuschiu.meet.client.trace.FlightRecording;
+import com.marcuschiu.meet.client.trace.SignalingTraceRecorder;
+import com.marcuschiu.meet.client.util.AsyncHttpURLConnection;
+import com.marcuschiu.meet.client.util.CallMetrics;
 import com.marcuschiu.meet.util.CameraUtil;
 import com.marcuschiu.meet.util.ProxyVideoRendererCallbacks;
 import com.marcuschiu.meet.util.ProxyVideoSink;
 
 import org.webrtc.IceCandidate;
 import org.webrtc.RendererCommon;
+import org.webrtc.ScreenCapturerAndroid;
 import org.webrtc.SessionDescription;
 import org.webrtc.StatsReport;
 import org.webrtc.SurfaceViewRenderer;
 import org.webrtc.VideoCapturer;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
 import java.util.Random;
+import java.util.Set;
 
 public class CallActivity extends Activity implements AppRTCClient.SignalingEvents, PeerConnectionEvents {
 
+    private static final int STAT_CALLBACK_PERIOD = 1000;
+    // Boolean extra, records the call's signaling to a trace in the external files directory.
+    public static final String EXTRA_SIGNALING_TRACE = "com.marcuschiu.meet.SIGNALING_TRACE";
+    // Boolean extra, captures WebRTC's internal trace events to the external files directory.
+    public static final String EXTRA_WEBRTC_TRACE = "com.marcuschiu.meet.WEBRTC_TRACE";
+    private static final int FLIGHT_RECORDINGS_KEPT = 10;
+    private static final int SCREEN_CAPTURE_REQUEST = 1;
+    // Stats values copied to the flight recorder, enough to tell bandwidth, loss and CPU problems apart.
+    private static final Set<String> RECORDED_STATS = new HashSet<>(Arrays.asList(
+            "bytesSent", "bytesReceived", "packetsSent", "packetsReceived", "packetsLost",
+            "googRtt", "googJitterReceived", "googAvailableSendBandwidth", "googAvailableReceiveBandwidth",
+            "googTargetEncBitrate", "googActualEncBitrate", "googRetransmitBitrate",
+            "googFrameWidthSent", "googFrameHeightSent", "googFrameRateSent", "googFrameRateReceived",
+            "googCpuLimitedResolution", "googBandwidthLimitedResolution"));
+
     ProxyVideoRendererCallbacks remoteVideo = new ProxyVideoRendererCallbacks();
     ProxyVideoSink localVideo = new ProxyVideoSink();
 
-    PeerConnectionClient pcClient = new PeerConnectionClient();
+    CallMetrics metrics = new CallMetrics();
+    PeerConnectionClient pcClient = new PeerConnectionClient(metrics);
     AppRTCClient appRtcClient;
+    SignalingTraceRecorder traceRecorder;
+    FlightRecorder flightRecorder;
+    WebRtcTraceCapture traceCapture;
+    ThreadCpuSampler cpuSampler = new ThreadCpuSampler(new File("/proc/self"), new ThreadCpuSampler.Config(), metrics);
+    CallStateMachine callState = new CallStateMachine(new CallStateMachine.Config(), new CallStateListener());
+    String roomID;
 
-    boolean isInitiator = false;
     boolean activityRunning;
-    boolean iceConnected = false;
-    boolean isError = false;
     boolean isSwappedFeeds = true;
+    boolean screenSharing;
 
     SurfaceViewRenderer svrSmall;
     SurfaceViewRenderer svrFull;
+    TextView remoteVideoPaused;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -53,6 +98,9 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
         ImageButton cameraSwitchButton = findViewById(R.id.button_call_switch_camera);
         cameraSwitchButton.setOnClickListener(view -> pcClient.switchCamera());
 
+        ImageButton screenShareButton = findViewById(R.id.button_call_screen_share);
+        screenShareButton.setOnClickListener(view -> toggleScreenShare());
+
         // Video Setup
         svrSmall = findViewById(R.id.pip_video_view);
         svrSmall.setOnClickListener(view -> setSwappedFeeds(!isSwappedFeeds)); // Swap feeds on pip view click.
@@ -66,18 +114,51 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
         svrFull.setScalingType(RendererCommon.ScalingType.SCALE_ASPECT_FILL);
         svrFull.setEnableHardwareScaler(true);
 
+        remoteVideoPaused = findViewById(R.id.remote_video_paused);
+
         setSwappedFeeds(true); // Start with local feed in fullscreen and swap it when call is connected
 
+        File externalDirectory = getExternalFilesDir(null);
+        if (getIntent().getBooleanExtra(EXTRA_WEBRTC_TRACE, false) && externalDirectory != null) {
+            traceCapture = new WebRtcTraceCapture(new File(externalDirectory, "webrtc-trace"), new WebRtcTraceCapture.Config());
+            pcClient.setTraceCapture(traceCapture);
+        }
         pcClient.createPeerConnectionFactory(getApplicationContext(), this);
 
-        String roomID = "JESUS-" + new Random().nextInt(1000);
+        roomID = "JESUS-" + new Random().nextInt(1000);
         ((TextView) findViewById(R.id.roomID)).setText("ROOM ID: " + roomID);
 
+        try {
+            flightRecorder = FlightRecorder.create(new File(getFilesDir(), "flight"), FLIGHT_RECORDINGS_KEPT, roomID);
+            metrics.setListener(flightRecorder);
+        } catch (IOException e) {
+            Log.w("CallActivity", "Cannot start flight recorder: " + e.getMessage());
+        }
+
+        cpuSampler.start();
+
         // connect to room
-        appRtcClient = new WebSocketRTCClient(this);
+        appRtcClient = createAppRtcClient();
+        callState.start();
         appRtcClient.connectToRoom(roomID);
     }
 
+    private AppRTCClient createAppRtcClient() {
+        File directory = getExternalFilesDir(null);
+        if (getIntent().getBooleanExtra(EXTRA_SIGNALING_TRACE, false) && directory != null) {
+            File file = new File(directory, "signaling-" + System.currentTimeMillis() + ".trace");
+            try {
+                traceRecorder = new SignalingTraceRecorder(file);
+                Log.d("CallActivity", "Recording signaling to " + file);
+                return new WebSocketRTCClient(this, metrics,
+                        traceRecorder.wrap(AsyncHttpURLConnection.DEFAULT_SENDER), traceRecorder.wrap(NioWebSocketTransport::new));
+            } catch (IOException e) {
+                Log.w("CallActivity", "Cannot record signaling: " + e.getMessage());
+            }
+        }
+        return new WebSocketRTCClient(this, metrics);
+    }
+
     private void setSwappedFeeds(boolean isSwappedFeeds) {
         this.isSwappedFeeds = isSwappedFeeds;
         localVideo.setTarget(isSwappedFeeds ? svrFull : svrSmall);
@@ -93,6 +174,9 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
 
     @Override
     public void onConnectedToRoom(final AppRTCClient.SignalingParameters sp) {
+        callState.onJoined(sp.initiator, sp.offerSdp != null);
+        // Start ICE gathering before the camera is opened on the UI thread.
+        pcClient.prewarm(sp.iceServers);
         runOnUiThread(() -> {
             VideoCapturer videoCapturer = CameraUtil.getVideoCapturer(this);
             if (videoCapturer == null) {
@@ -100,8 +184,7 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
             }
             pcClient.createPeerConnection(localVideo, remoteVideo, videoCapturer, sp);
 
-            isInitiator = sp.initiator;
-            if (isInitiator) {
+            if (sp.initiator) {
                 pcClient.createOffer(); // creates PeerConnectionEvents.onLocalDescription event
             } else {
                 if (sp.offerSdp != null) {
@@ -119,8 +202,9 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
 
     @Override
     public void onRemoteDescription(final SessionDescription sdp) {
+        callState.onRemoteDescription();
         pcClient.setRemoteDescription(sdp);
-        if (!isInitiator) {
+        if (!callState.isInitiator()) {
             pcClient.createAnswer(); // PeerConnectionEvents.onLocalDescription event
         }
     }
@@ -135,6 +219,24 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
         pcClient.removeRemoteIceCandidates(candidates);
     }
 
+    @Override
+    public void onRemoteVideoPaused(final boolean paused) {
+        // No frames arrive while paused, stop rendering the last one.
+        pcClient.setRemoteVideoPaused(paused);
+        runOnUiThread(() -> {
+            SurfaceViewRenderer renderer = isSwappedFeeds ? svrSmall : svrFull;
+            if (paused && renderer != null) {
+                renderer.clearImage();
+            }
+            remoteVideoPaused.setVisibility(paused ? View.VISIBLE : View.GONE);
+        });
+    }
+
+    @Override
+    public void onRemoteRenegotiationRequest() {
+        pcClient.onRemoteOfferNeeded();
+    }
+
     @Override
     public void onChannelClose() {
         disconnect();
@@ -159,6 +261,7 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
         } else {
             appRtcClient.sendAnswerSdp(sdp);
         }
+        callState.onLocalDescription();
         pcClient.setVideoMaxBitrate(1700);
     }
 
@@ -174,14 +277,15 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
 
     @Override
     public void onIceConnected() {
-        iceConnected = true;
+        callState.onIceConnected();
         setSwappedFeeds(false);
+        pcClient.enableStatsEvents(true, STAT_CALLBACK_PERIOD);
     }
 
     @Override
     public void onIceDisconnected() {
-        iceConnected = false;
-        disconnect();
+        // Media keeps flowing locally while PeerConnectionClient recovers ICE.
+        callState.onIceDisconnected();
     }
 
     @Override
@@ -190,6 +294,44 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
 
     @Override
     public void onPeerConnectionStatsReady(final StatsReport[] reports) {
+        FlightRecorder recorder = flightRecorder;
+        if (recorder == null) {
+            return;
+        }
+        for (StatsReport report : reports) {
+            for (StatsReport.Value value : report.values) {
+                if (!RECORDED_STATS.contains(value.name)) {
+                    continue;
+                }
+                long number;
+                if (value.value.equals("true") || value.value.equals("false")) {
+                    number = value.value.equals("true") ? 1 : 0;
+                } else {
+                    try {
+                        number = Long.parseLong(value.value);
+                    } catch (NumberFormatException e) {
+                        continue;
+                    }
+                }
+                recorder.record(FlightRecording.Kind.STATS, report.id, value.name, number);
+            }
+        }
+    }
+
+    @Override
+    public void onLocalVideoPaused(final boolean paused) {
+        AppRTCClient client = appRtcClient;
+        if (client != null) {
+            client.sendVideoPaused(paused);
+        }
+    }
+
+    @Override
+    public void onOfferNeeded() {
+        AppRTCClient client = appRtcClient;
+        if (client != null) {
+            client.sendRenegotiationRequest();
+        }
     }
 
     @Override
@@ -218,6 +360,40 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
         }
     }
 
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        if (requestCode != SCREEN_CAPTURE_REQUEST) {
+            super.onActivityResult(requestCode, resultCode, data);
+            return;
+        }
+        if (resultCode != RESULT_OK || pcClient == null) {
+            Log.w("CallActivity", "Screen capture was not permitted");
+            return;
+        }
+        DisplayMetrics display = new DisplayMetrics();
+        getWindowManager().getDefaultDisplay().getRealMetrics(display);
+        VideoCapturer capturer = new ScreenCapturerAndroid(data, new MediaProjection.Callback() {
+            @Override
+            public void onStop() {
+                // Also called when the user revokes capturing from the system UI.
+                runOnUiThread(() -> stopScreenShare());
+            }
+        });
+        // The projection may only be used once the service is in the foreground.
+        ResultReceiver ready = new ResultReceiver(new Handler(Looper.getMainLooper())) {
+            @Override
+            protected void onReceiveResult(int code, Bundle resultData) {
+                if (screenSharing && pcClient != null) {
+                    pcClient.startScreenShare(capturer, display.widthPixels, display.heightPixels);
+                } else {
+                    capturer.dispose();
+                }
+            }
+        };
+        screenSharing = true;
+        startForegroundService(new Intent(this, ScreenShareService.class).putExtra(ScreenShareService.EXTRA_READY, ready));
+    }
+
     @Override
     protected void onDestroy() {
         Thread.setDefaultUncaughtExceptionHandler(null);
@@ -231,12 +407,44 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
     // Helper Functions //
     //////////////////////
 
+    private void toggleScreenShare() {
+        if (screenSharing) {
+            stopScreenShare();
+            return;
+        }
+        MediaProjectionManager manager = getSystemService(MediaProjectionManager.class);
+        startActivityForResult(manager.createScreenCaptureIntent(), SCREEN_CAPTURE_REQUEST);
+    }
+
+    private void stopScreenShare() {
+        if (!screenSharing) {
+            return;
+        }
+        screenSharing = false;
+        if (pcClient != null) {
+            pcClient.stopScreenShare();
+        }
+        stopService(new Intent(this, ScreenShareService.class));
+    }
+
     private void disconnect() {
         activityRunning = false;
+        cpuSampler.stop();
+        metrics.log();
         remoteVideo.setTarget(null);
         localVideo.setTarget(null);
         if (appRtcClient != null) {
-            appRtcClient.disconnectFromRoom();
+            // Leaving the room finishes in the background, the activity does not wait for it.
+            final SignalingTraceRecorder recorder = traceRecorder;
+            appRtcClient.disconnectFromRoom().whenComplete((result, error) -> {
+                if (error != null) {
+                    Log.w("CallActivity", "Room cleanup: " + error.getMessage());
+                }
+                if (recorder != null) {
+                    recorder.close();
+                }
+            });
+            traceRecorder = null;
             appRtcClient = null;
         }
         if (svrSmall != null) {
@@ -247,15 +455,23 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
             svrFull.release();
             svrFull = null;
         }
+        if (screenSharing) {
+            // Closing the peer connection stops the capturer.
+            screenSharing = false;
+            stopService(new Intent(this, ScreenShareService.class));
+        }
         if (pcClient != null) {
             pcClient.close();
             pcClient = null;
         }
-        if (iceConnected && !isError) {
+        if (callState.hasConnected() && callState.getState() != CallStateMachine.State.FAILED) {
             setResult(RESULT_OK);
         } else {
             setResult(RESULT_CANCELED);
         }
+        callState.close();
+        metrics.setListener(null);
+        flightRecorder = null;
         finish();
     }
 
@@ -279,11 +495,49 @@ public class CallActivity extends Activity implements AppRTCClient.SignalingEven
     }
 
     private void reportError(final String description) {
-        runOnUiThread(() -> {
-            if (!isError) {
-                isError = true;
-                disconnectWithErrorMessage(description);
+        // Only the first error of a call is shown, see onCallFailed.
+        callState.fail(description);
+    }
+
+
+    /////////////////////////////////////////////////
+    // Implementation of CallStateMachine.Listener //
+    /////////////////////////////////////////////////
+
+    private class CallStateListener implements CallStateMachine.Listener {
+        @Override
+        public void onStateChange(CallStateMachine.State from, CallStateMachine.State to, long durationMs) {
+            if (flightRecorder != null) {
+                flightRecorder.record(FlightRecording.Kind.STATE, from.name(), to.name(), durationMs);
             }
-        });
+            if (traceCapture != null) {
+                traceCapture.markPhase(to.name());
+            }
+            if (from != CallStateMachine.State.IDLE) {
+                metrics.record("stage_" + from.name().toLowerCase(Locale.US) + "_ms", durationMs);
+            }
+        }
+
+        @Override
+        public void onStageRetry(CallStateMachine.State stage, int attempt) {
+            metrics.increment("stage_retries");
+            runOnUiThread(() -> {
+                if (stage == CallStateMachine.State.JOINING && appRtcClient != null) {
+                    appRtcClient.connectToRoom(roomID);
+                } else if (stage == CallStateMachine.State.CONNECTING && pcClient != null) {
+                    // Only the initiator can restart, the other side keeps waiting for it.
+                    pcClient.requestIceRestart();
+                }
+            });
+        }
+
+        @Override
+        public void onCallFailed(CallStateMachine.State stage, String reason) {
+            metrics.increment("call_failures");
+            if (flightRecorder != null) {
+                flightRecorder.record(FlightRecording.Kind.ERROR, "CallStateMachine", reason, 0);
+            }
+            runOnUiThread(() -> disconnectWithErrorMessage(reason));
+        }
     }
 }
\ No newline at end of file
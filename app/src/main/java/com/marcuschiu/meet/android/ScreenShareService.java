@@ -0,0 +1,49 @@
+package com.marcuschiu.meet.android;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.Service;
+import android.content.Intent;
+import android.content.pm.ServiceInfo;
+import android.os.Build;
+import android.os.IBinder;
+import android.os.ResultReceiver;
+
+/**
+ * Foreground service that must run while the screen is captured, apps
+ * targeting Android 10 cannot use a MediaProjection without one. Reports
+ * to the ResultReceiver in EXTRA_READY once it is in the foreground and
+ * capturing may start.
+ */
+public class ScreenShareService extends Service {
+    public static final String EXTRA_READY = "com.marcuschiu.meet.SCREEN_SHARE_READY";
+    private static final String CHANNEL_ID = "screen_share";
+    private static final int NOTIFICATION_ID = 1;
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        NotificationManager manager = getSystemService(NotificationManager.class);
+        manager.createNotificationChannel(new NotificationChannel(CHANNEL_ID, "Screen sharing", NotificationManager.IMPORTANCE_LOW));
+        Notification notification = new Notification.Builder(this, CHANNEL_ID)
+                .setSmallIcon(android.R.drawable.ic_menu_slideshow)
+                .setContentTitle("Sharing your screen")
+                .setOngoing(true)
+                .build();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            startForeground(NOTIFICATION_ID, notification, ServiceInfo.FOREGROUND_SERVICE_TYPE_MEDIA_PROJECTION);
+        } else {
+            startForeground(NOTIFICATION_ID, notification);
+        }
+        ResultReceiver ready = intent == null ? null : intent.getParcelableExtra(EXTRA_READY);
+        if (ready != null) {
+            ready.send(0, null);
+        }
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+}
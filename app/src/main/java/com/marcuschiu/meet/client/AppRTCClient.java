@@ -5,6 +5,7 @@ import org.webrtc.PeerConnection;
 import org.webrtc.SessionDescription;
 
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * AppRTCClient is the interface representing an AppRTC client.
@@ -13,7 +14,8 @@ public interface AppRTCClient {
     /**
      * Asynchronously connect to an AppRTC room URL using supplied connection
      * parameters. Once connection is established onConnectedToRoom()
-     * callback with room parameters is invoked.
+     * callback with room parameters is invoked. Calling it again while the
+     * join is pending retries it, the earlier response is then ignored.
      */
     void connectToRoom(String roomID);
 
@@ -38,9 +40,23 @@ public interface AppRTCClient {
     void sendLocalIceCandidateRemovals(final IceCandidate[] candidates);
 
     /**
-     * Disconnect from room.
+     * Tell the other participant that local video is paused or resumed.
+     * Dropped unless the participant advertised it understands this.
      */
-    void disconnectFromRoom();
+    void sendVideoPaused(final boolean paused);
+
+    /**
+     * Ask the other participant, the initiator, for a new offer. Dropped
+     * unless the participant advertised it understands this.
+     */
+    void sendRenegotiationRequest();
+
+    /**
+     * Disconnect from room without blocking. The returned future completes
+     * once leaving the room and closing the signaling channel finished, or
+     * exceptionally if that took too long.
+     */
+    CompletableFuture<Void> disconnectFromRoom();
 
     /**
      * Struct holding the signaling parameters of an AppRTC room.
@@ -52,15 +68,30 @@ public interface AppRTCClient {
         public final String wssUrl;
         public final String wssPostUrl;
         public final SessionDescription offerSdp;
+        /**
+         * Whether the sender of |offerSdp| accepts compressed SDP.
+         */
+        public final boolean offerSdpCompression;
+        /**
+         * Whether the sender of |offerSdp| understands video-paused messages.
+         */
+        public final boolean offerVideoPaused;
+        /**
+         * Whether the sender of |offerSdp| understands renegotiate messages.
+         */
+        public final boolean offerRenegotiate;
         public final List<IceCandidate> iceCandidates;
 
-        public SignalingParameters(List<PeerConnection.IceServer> iceServers, boolean initiator, String clientId, String wssUrl, String wssPostUrl, SessionDescription offerSdp, List<IceCandidate> iceCandidates) {
+        public SignalingParameters(List<PeerConnection.IceServer> iceServers, boolean initiator, String clientId, String wssUrl, String wssPostUrl, SessionDescription offerSdp, boolean offerSdpCompression, boolean offerVideoPaused, boolean offerRenegotiate, List<IceCandidate> iceCandidates) {
             this.iceServers = iceServers;
             this.initiator = initiator;
             this.clientId = clientId;
             this.wssUrl = wssUrl;
             this.wssPostUrl = wssPostUrl;
             this.offerSdp = offerSdp;
+            this.offerSdpCompression = offerSdpCompression;
+            this.offerVideoPaused = offerVideoPaused;
+            this.offerRenegotiate = offerRenegotiate;
             this.iceCandidates = iceCandidates;
         }
     }
@@ -92,6 +123,17 @@ public interface AppRTCClient {
          */
         void onRemoteIceCandidatesRemoved(final IceCandidate[] candidates);
 
+        /**
+         * Callback fired once the remote participant paused or resumed its
+         * video.
+         */
+        void onRemoteVideoPaused(final boolean paused);
+
+        /**
+         * Callback fired once the remote participant asked for a new offer.
+         */
+        void onRemoteRenegotiationRequest();
+
         /**
          * Callback fired once channel is closed.
          */
@@ -0,0 +1,271 @@
+package com.marcuschiu.meet.client;
+
+import android.util.Log;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stages of one call, from joining the room to hanging up. Every stage that
+ * waits on the network or the peer has a deadline; when it passes the stage
+ * is retried if the config allows it, otherwise the call fails instead of
+ * waiting forever.
+ *
+ * <p>Events may be reported from any thread. They are applied in order on a
+ * private thread, which Listener callbacks are invoked on as well.
+ */
+public class CallStateMachine {
+    private static final String TAG = "CallStateMachine";
+
+    public enum State {
+        IDLE,
+        // Room join request in flight.
+        JOINING,
+        // In the room, waiting for the other participant's description.
+        WAITING_FOR_PEER,
+        // Answerer only: remote offer received, local answer not yet sent.
+        NEGOTIATING,
+        // Descriptions exchanged, ICE checks running.
+        CONNECTING,
+        CONNECTED,
+        // Connectivity lost, PeerConnectionClient is recovering ICE.
+        RECONNECTING,
+        CLOSED,
+        FAILED;
+
+        public boolean isFinal() {
+            return this == CLOSED || this == FAILED;
+        }
+    }
+
+    public static class Config {
+        public long joinDeadlineMs = 10000;
+        public int joinRetries = 1;
+        public long peerDeadlineMs = 5 * 60 * 1000;
+        public long negotiationDeadlineMs = 10000;
+        public long connectDeadlineMs = 15000;
+        public int connectRetries = 1;
+        public long reconnectDeadlineMs = 20000;
+
+        // 0 for no deadline.
+        long deadlineMs(State state) {
+            switch (state) {
+                case JOINING:
+                    return joinDeadlineMs;
+                case WAITING_FOR_PEER:
+                    return peerDeadlineMs;
+                case NEGOTIATING:
+                    return negotiationDeadlineMs;
+                case CONNECTING:
+                    return connectDeadlineMs;
+                case RECONNECTING:
+                    return reconnectDeadlineMs;
+                default:
+                    return 0;
+            }
+        }
+
+        int retries(State state) {
+            switch (state) {
+                case JOINING:
+                    return joinRetries;
+                case CONNECTING:
+                    return connectRetries;
+                default:
+                    return 0;
+            }
+        }
+    }
+
+    public interface Listener {
+        /**
+         * Called on every transition with the time spent in |from|.
+         */
+        void onStateChange(State from, State to, long durationMs);
+
+        /**
+         * Called when the deadline of |stage| passed and it should be run
+         * again, |attempt| counting from 1 for the first retry. The deadline
+         * starts over.
+         */
+        void onStageRetry(State stage, int attempt);
+
+        /**
+         * Called once when the call failed during |stage|, either on its
+         * deadline or through fail().
+         */
+        void onCallFailed(State stage, String reason);
+    }
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "CallState");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Config config;
+    private final Listener listener;
+
+    // Read from any thread, state and connected are written on the executor only.
+    private volatile State state = State.IDLE;
+    private volatile boolean initiator;
+    private volatile boolean connected;
+    private long stateStartNanos = System.nanoTime();
+    private int attempts;
+    private ScheduledFuture<?> deadline;
+
+    public CallStateMachine(Config config, Listener listener) {
+        this.config = config;
+        this.listener = listener;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * Whether this side sends the offer, known once joined.
+     */
+    public boolean isInitiator() {
+        return initiator;
+    }
+
+    /**
+     * Whether the call reached CONNECTED at least once.
+     */
+    public boolean hasConnected() {
+        return connected;
+    }
+
+    public void start() {
+        post(() -> {
+            if (state == State.IDLE) {
+                transition(State.JOINING);
+            }
+        });
+    }
+
+    /**
+     * The room was joined. |hasOffer| if the join response carried the
+     * initiator's offer.
+     */
+    public void onJoined(final boolean initiator, final boolean hasOffer) {
+        this.initiator = initiator;
+        post(() -> {
+            if (state == State.JOINING) {
+                transition(!initiator && hasOffer ? State.NEGOTIATING : State.WAITING_FOR_PEER);
+            }
+        });
+    }
+
+    public void onRemoteDescription() {
+        post(() -> {
+            if (state == State.WAITING_FOR_PEER) {
+                transition(initiator ? State.CONNECTING : State.NEGOTIATING);
+            }
+        });
+    }
+
+    public void onLocalDescription() {
+        post(() -> {
+            // The initiator's offer is sent while still waiting for the peer.
+            if (state == State.NEGOTIATING && !initiator) {
+                transition(State.CONNECTING);
+            }
+        });
+    }
+
+    public void onIceConnected() {
+        post(() -> {
+            if (!state.isFinal() && state != State.IDLE && state != State.CONNECTED) {
+                connected = true;
+                transition(State.CONNECTED);
+            }
+        });
+    }
+
+    public void onIceDisconnected() {
+        post(() -> {
+            if (state == State.CONNECTED) {
+                transition(State.RECONNECTING);
+            }
+        });
+    }
+
+    /**
+     * Fails the call unless it already ended.
+     */
+    public void fail(final String reason) {
+        post(() -> failInternal(reason));
+    }
+
+    /**
+     * Ends the call unless it already ended and stops the private thread.
+     */
+    public void close() {
+        post(() -> {
+            if (!state.isFinal()) {
+                transition(State.CLOSED);
+            }
+            executor.shutdown();
+        });
+    }
+
+    // Events after close() are dropped.
+    private void post(Runnable runnable) {
+        try {
+            executor.execute(runnable);
+        } catch (RejectedExecutionException e) {
+            Log.d(TAG, "Ignoring event after close");
+        }
+    }
+
+    private void failInternal(String reason) {
+        if (state.isFinal()) {
+            return;
+        }
+        State stage = state;
+        transition(State.FAILED);
+        listener.onCallFailed(stage, reason);
+    }
+
+    private void transition(State to) {
+        if (deadline != null) {
+            deadline.cancel(false);
+            deadline = null;
+        }
+        State from = state;
+        long nowNanos = System.nanoTime();
+        long durationMs = TimeUnit.NANOSECONDS.toMillis(nowNanos - stateStartNanos);
+        state = to;
+        stateStartNanos = nowNanos;
+        attempts = 0;
+        scheduleDeadline();
+        Log.d(TAG, from + " -> " + to + " after " + durationMs + " ms");
+        listener.onStateChange(from, to, durationMs);
+    }
+
+    private void scheduleDeadline() {
+        final State stage = state;
+        final long deadlineMs = config.deadlineMs(stage);
+        if (deadlineMs <= 0) {
+            return;
+        }
+        deadline = executor.schedule(() -> {
+            if (state != stage) {
+                return;
+            }
+            deadline = null;
+            if (attempts < config.retries(stage)) {
+                attempts++;
+                Log.w(TAG, stage + " timed out, retry " + attempts);
+                scheduleDeadline();
+                listener.onStageRetry(stage, attempts);
+            } else {
+                failInternal(stage + " timed out after " + deadlineMs + " ms");
+            }
+        }, deadlineMs, TimeUnit.MILLISECONDS);
+    }
+}
@@ -1,8 +1,7 @@
 package com.marcuschiu.meet.client;
 
-import android.util.Log;
-
 import com.marcuschiu.meet.client.util.AsyncHttpURLConnection;
+import com.marcuschiu.meet.client.util.Logger;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -11,13 +10,8 @@ import org.webrtc.IceCandidate;
 import org.webrtc.PeerConnection;
 import org.webrtc.SessionDescription;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Scanner;
 
 /**
  * AsyncTask that converts an AppRTC room URL into the set of signaling
@@ -25,7 +19,7 @@ import java.util.Scanner;
  */
 public class RoomParametersFetcher {
     private static final String TAG = "RoomRTCClient";
-    private static final int TURN_HTTP_TIMEOUT_MS = 5000;
+    private final AsyncHttpURLConnection.Sender sender;
     private final RoomParametersFetcherEvents events;
     private final String roomUrl;
     private final String roomMessage;
@@ -40,14 +34,15 @@ public class RoomParametersFetcher {
         void onSignalingParametersError(final String description);
     }
 
-    public RoomParametersFetcher(String roomUrl, String roomMessage, final RoomParametersFetcherEvents events) {
+    public RoomParametersFetcher(AsyncHttpURLConnection.Sender sender, String roomUrl, String roomMessage, final RoomParametersFetcherEvents events) {
+        this.sender = sender;
         this.roomUrl = roomUrl;
         this.roomMessage = roomMessage;
         this.events = events;
     }
 
     public void makeRequest() {
-        AsyncHttpURLConnection httpConnection = new AsyncHttpURLConnection("POST", roomUrl, roomMessage, new AsyncHttpURLConnection.AsyncHttpEvents() {
+        sender.send("POST", roomUrl, roomMessage, new AsyncHttpURLConnection.AsyncHttpEvents() {
             @Override
             public void onHttpError(String errorMessage) {
                 events.onSignalingParametersError(errorMessage);
@@ -58,14 +53,16 @@ public class RoomParametersFetcher {
                 roomHttpResponseParse(response);
             }
         });
-        httpConnection.send();
     }
 
     private void roomHttpResponseParse(String response) {
-        Log.d(TAG, "Room response: " + response);
+        Logger.d(TAG, "Room response: {}", response);
         try {
             List<IceCandidate> iceCandidates = null;
             SessionDescription offerSdp = null;
+            boolean offerSdpCompression = false;
+            boolean offerVideoPaused = false;
+            boolean offerRenegotiate = false;
             JSONObject roomJson = new JSONObject(response);
 
             String result = roomJson.getString("result");
@@ -83,17 +80,21 @@ public class RoomParametersFetcher {
                 iceCandidates = new ArrayList<>();
                 String messagesString = roomJson.getString("messages");
                 JSONArray messages = new JSONArray(messagesString);
+                SignalingCodec codec = new SignalingCodec();
+                SignalingCodec.Message message = new SignalingCodec.Message();
                 for (int i = 0; i < messages.length(); ++i) {
                     String messageString = messages.getString(i);
-                    JSONObject message = new JSONObject(messageString);
-                    String messageType = message.getString("type");
-                    if (messageType.equals("offer")) {
-                        offerSdp = new SessionDescription(SessionDescription.Type.fromCanonicalForm(messageType), message.getString("sdp"));
-                    } else if (messageType.equals("candidate")) {
-                        IceCandidate candidate = new IceCandidate(message.getString("id"), message.getInt("label"), message.getString("candidate"));
-                        iceCandidates.add(candidate);
+                    codec.readMessage(messageString, message);
+                    String messageType = message.type;
+                    if (messageType.equals(SignalingCodec.TYPE_OFFER)) {
+                        offerSdp = new SessionDescription(SessionDescription.Type.fromCanonicalForm(messageType), message.sdp);
+                        offerSdpCompression = message.sdpCompression;
+                        offerVideoPaused = message.videoPaused;
+                        offerRenegotiate = message.renegotiate;
+                    } else if (messageType.equals(SignalingCodec.TYPE_CANDIDATE)) {
+                        iceCandidates.add(message.candidates.get(0));
                     } else {
-                        Log.e(TAG, "Unknown message: " + messageString);
+                        Logger.e(TAG, "Unknown message: {}", messageString);
                     }
                 }
             }
@@ -101,7 +102,7 @@ public class RoomParametersFetcher {
             List<PeerConnection.IceServer> iceServers = iceServersFromPCConfigJSON(roomJson.getString("pc_config"));
             boolean isTurnPresent = false;
             for (PeerConnection.IceServer server : iceServers) {
-                Log.d(TAG, "IceServer: " + server);
+                Logger.d(TAG, "IceServer: {}", server);
                 for (String uri : server.urls) {
                     if (uri.startsWith("turn:")) {
                         isTurnPresent = true;
@@ -109,44 +110,46 @@ public class RoomParametersFetcher {
                     }
                 }
             }
+            AppRTCClient.SignalingParameters params = new AppRTCClient.SignalingParameters(iceServers, initiator, clientId, wssUrl, wssPostUrl, offerSdp, offerSdpCompression, offerVideoPaused, offerRenegotiate, iceCandidates);
             // Request TURN servers.
             if (!isTurnPresent && !roomJson.optString("ice_server_url").isEmpty()) {
-                List<PeerConnection.IceServer> turnServers = requestTurnServers(roomJson.getString("ice_server_url"));
-                for (PeerConnection.IceServer turnServer : turnServers) {
-                    Log.d(TAG, "TurnServer: " + turnServer);
-                    iceServers.add(turnServer);
-                }
+                requestTurnServers(roomJson.getString("ice_server_url"), params);
+            } else {
+                events.onSignalingParametersReady(params);
             }
-
-            AppRTCClient.SignalingParameters params = new AppRTCClient.SignalingParameters(iceServers, initiator, clientId, wssUrl, wssPostUrl, offerSdp, iceCandidates);
-            events.onSignalingParametersReady(params);
         } catch (JSONException e) {
             events.onSignalingParametersError("Room JSON parsing error: " + e.toString());
-        } catch (IOException e) {
-            events.onSignalingParametersError("Room IO error: " + e.toString());
         }
     }
 
-    // Requests & returns a TURN ICE Server based on a request URL.  Must be run
-    // off the main thread!
-    private List<PeerConnection.IceServer> requestTurnServers(String url)
-            throws IOException, JSONException {
+    // Adds the TURN servers from |url| to |params| before handing them out.
+    private void requestTurnServers(String url, final AppRTCClient.SignalingParameters params) {
+        Logger.d(TAG, "Request TURN from: {}", url);
+        sender.send("POST", url, null, new AsyncHttpURLConnection.AsyncHttpEvents() {
+            @Override
+            public void onHttpError(String errorMessage) {
+                events.onSignalingParametersError("Room IO error: " + errorMessage);
+            }
+
+            @Override
+            public void onHttpComplete(String response) {
+                Logger.d(TAG, "TURN response: {}", response);
+                try {
+                    for (PeerConnection.IceServer turnServer : parseTurnServers(response)) {
+                        Logger.d(TAG, "TurnServer: {}", turnServer);
+                        params.iceServers.add(turnServer);
+                    }
+                } catch (JSONException e) {
+                    events.onSignalingParametersError("TURN JSON parsing error: " + e.toString());
+                    return;
+                }
+                events.onSignalingParametersReady(params);
+            }
+        });
+    }
+
+    private static List<PeerConnection.IceServer> parseTurnServers(String response) throws JSONException {
         List<PeerConnection.IceServer> turnServers = new ArrayList<>();
-        Log.d(TAG, "Request TURN from: " + url);
-        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
-        connection.setDoOutput(true);
-        connection.setRequestProperty("REFERER", "https://appr.tc");
-        connection.setConnectTimeout(TURN_HTTP_TIMEOUT_MS);
-        connection.setReadTimeout(TURN_HTTP_TIMEOUT_MS);
-        int responseCode = connection.getResponseCode();
-        if (responseCode != 200) {
-            throw new IOException("Non-200 response when requesting TURN server from " + url + " : "
-                    + connection.getHeaderField(null));
-        }
-        InputStream responseStream = connection.getInputStream();
-        String response = drainStream(responseStream);
-        connection.disconnect();
-        Log.d(TAG, "TURN response: " + response);
         JSONObject responseJSON = new JSONObject(response);
         JSONArray iceServers = responseJSON.getJSONArray("iceServers");
         for (int i = 0; i < iceServers.length(); ++i) {
@@ -185,10 +188,4 @@ public class RoomParametersFetcher {
         }
         return ret;
     }
-
-    // Return the contents of an InputStream as a String.
-    private static String drainStream(InputStream in) {
-        Scanner s = new Scanner(in, "UTF-8").useDelimiter("\\A");
-        return s.hasNext() ? s.next() : "";
-    }
 }
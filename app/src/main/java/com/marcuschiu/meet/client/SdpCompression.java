@@ -0,0 +1,163 @@
+package com.marcuschiu.meet.client;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compact encoding of session descriptions for signaling: raw deflate primed
+ * with a dictionary of lines every WebRTC SDP repeats, then base64 so it
+ * still fits in a JSON string. Only sent to peers that advertised ENCODING,
+ * which pins the dictionary; changing it needs a new ENCODING name.
+ */
+public final class SdpCompression {
+    public static final String ENCODING = "zsdp1";
+
+    private static final int MAX_SDP_SIZE = 256 * 1024;
+
+    // Most frequent text last, deflate reaches it with the shortest distances.
+    private static final byte[] DICTIONARY = (
+            "a=extmap:2 urn:ietf:params:rtp-hdrext:toffset\r\n"
+                    + "a=extmap:3 http://www.webrtc.org/experiments/rtp-hdrext/abs-send-time\r\n"
+                    + "a=extmap:4 urn:3gpp:video-orientation\r\n"
+                    + "a=extmap:5 http://www.ietf.org/id/draft-holmer-rmcat-transport-wide-cc-extensions-01\r\n"
+                    + "a=extmap:6 http://www.webrtc.org/experiments/rtp-hdrext/playout-delay\r\n"
+                    + "a=extmap:7 http://www.webrtc.org/experiments/rtp-hdrext/video-content-type\r\n"
+                    + "a=extmap:8 http://www.webrtc.org/experiments/rtp-hdrext/video-timing\r\n"
+                    + "a=extmap:1 urn:ietf:params:rtp-hdrext:ssrc-audio-level\r\n"
+                    + "a=rtpmap:111 opus/48000/2\r\n"
+                    + "a=rtcp-fb:111 transport-cc\r\n"
+                    + "a=fmtp:111 minptime=10;useinbandfec=1\r\n"
+                    + "a=rtpmap:103 ISAC/16000\r\n"
+                    + "a=rtpmap:104 ISAC/32000\r\n"
+                    + "a=rtpmap:9 G722/8000\r\n"
+                    + "a=rtpmap:102 ILBC/8000\r\n"
+                    + "a=rtpmap:0 PCMU/8000\r\n"
+                    + "a=rtpmap:8 PCMA/8000\r\n"
+                    + "a=rtpmap:106 CN/32000\r\n"
+                    + "a=rtpmap:105 CN/16000\r\n"
+                    + "a=rtpmap:13 CN/8000\r\n"
+                    + "a=rtpmap:110 telephone-event/48000\r\n"
+                    + "a=rtpmap:112 telephone-event/32000\r\n"
+                    + "a=rtpmap:113 telephone-event/16000\r\n"
+                    + "a=rtpmap:126 telephone-event/8000\r\n"
+                    + "a=rtpmap:96 VP8/90000\r\n"
+                    + "a=rtpmap:98 VP9/90000\r\n"
+                    + "a=rtpmap:100 H264/90000\r\n"
+                    + "a=fmtp:100 level-asymmetry-allowed=1;packetization-mode=1;profile-level-id=42e01f\r\n"
+                    + "a=fmtp:102 level-asymmetry-allowed=1;packetization-mode=1;profile-level-id=640c1f\r\n"
+                    + "a=rtpmap:97 rtx/90000\r\n"
+                    + "a=fmtp:97 apt=96\r\n"
+                    + "a=rtpmap:99 rtx/90000\r\n"
+                    + "a=fmtp:99 apt=98\r\n"
+                    + "a=rtpmap:101 rtx/90000\r\n"
+                    + "a=fmtp:101 apt=100\r\n"
+                    + "a=rtpmap:127 red/90000\r\n"
+                    + "a=rtpmap:125 ulpfec/90000\r\n"
+                    + "a=rtpmap:124 rtx/90000\r\n"
+                    + "a=fmtp:124 apt=127\r\n"
+                    + "a=rtcp-fb:96 goog-remb\r\n"
+                    + "a=rtcp-fb:96 transport-cc\r\n"
+                    + "a=rtcp-fb:96 ccm fir\r\n"
+                    + "a=rtcp-fb:96 nack\r\n"
+                    + "a=rtcp-fb:96 nack pli\r\n"
+                    + "v=0\r\n"
+                    + "o=- 0 2 IN IP4 127.0.0.1\r\n"
+                    + "s=-\r\n"
+                    + "t=0 0\r\n"
+                    + "a=group:BUNDLE audio video data\r\n"
+                    + "a=msid-semantic: WMS ARDAMS\r\n"
+                    + "m=audio 9 UDP/TLS/RTP/SAVPF 111 103 104 9 102 0 8 106 105 13 110 112 113 126\r\n"
+                    + "m=video 9 UDP/TLS/RTP/SAVPF 96 97 98 99 100 101 127 124 125\r\n"
+                    + "m=application 9 DTLS/SCTP 5000\r\n"
+                    + "a=sctpmap:5000 webrtc-datachannel 1024\r\n"
+                    + "c=IN IP4 0.0.0.0\r\n"
+                    + "a=rtcp:9 IN IP4 0.0.0.0\r\n"
+                    + "a=ice-ufrag:\r\n"
+                    + "a=ice-pwd:\r\n"
+                    + "a=ice-options:trickle renomination\r\n"
+                    + "a=fingerprint:sha-256 \r\n"
+                    + "a=setup:actpass\r\n"
+                    + "a=setup:active\r\n"
+                    + "a=mid:audio\r\n"
+                    + "a=mid:video\r\n"
+                    + "a=sendrecv\r\n"
+                    + "a=rtcp-mux\r\n"
+                    + "a=rtcp-rsize\r\n"
+                    + "a=ssrc-group:FID \r\n"
+                    + "a=msid:ARDAMS ARDAMSa0\r\n"
+                    + "a=msid:ARDAMS ARDAMSv0\r\n"
+                    + "a=ssrc: cname:\r\n"
+                    + "a=ssrc: msid:ARDAMS ARDAMSv0\r\n"
+                    + "a=ssrc: mslabel:ARDAMS\r\n"
+                    + "a=ssrc: label:ARDAMSv0\r\n"
+                    + "a=ssrc: msid:ARDAMS ARDAMSa0\r\n"
+                    + "a=ssrc: label:ARDAMSa0\r\n"
+    ).getBytes(StandardCharsets.US_ASCII);
+
+    private SdpCompression() {
+    }
+
+    /**
+     * Returns the encoded form of |sdp|, or null if it would not be smaller.
+     */
+    public static String compress(String sdp) {
+        byte[] plain = sdp.getBytes(StandardCharsets.UTF_8);
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        try {
+            deflater.setDictionary(DICTIONARY);
+            deflater.setInput(plain);
+            deflater.finish();
+            byte[] compressed = new byte[plain.length + 64];
+            int length = 0;
+            while (!deflater.finished() && length < compressed.length) {
+                length += deflater.deflate(compressed, length, compressed.length - length);
+            }
+            if (!deflater.finished()) {
+                return null;
+            }
+            String encoded = Base64.getEncoder().withoutPadding().encodeToString(Arrays.copyOf(compressed, length));
+            return encoded.length() < sdp.length() ? encoded : null;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Decodes what compress() produced.
+     */
+    public static String decompress(String encoded) throws DataFormatException {
+        byte[] compressed;
+        try {
+            compressed = Base64.getDecoder().decode(encoded);
+        } catch (IllegalArgumentException e) {
+            throw new DataFormatException("Bad base64: " + e.getMessage());
+        }
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setDictionary(DICTIONARY);
+            inflater.setInput(compressed);
+            byte[] plain = new byte[Math.max(1024, compressed.length * 8)];
+            int length = 0;
+            while (!inflater.finished()) {
+                if (length == plain.length) {
+                    if (plain.length >= MAX_SDP_SIZE) {
+                        throw new DataFormatException("SDP too large");
+                    }
+                    plain = Arrays.copyOf(plain, Math.min(plain.length * 2, MAX_SDP_SIZE));
+                }
+                int n = inflater.inflate(plain, length, plain.length - length);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new DataFormatException("Truncated SDP");
+                }
+                length += n;
+            }
+            return new String(plain, 0, length, StandardCharsets.UTF_8);
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,542 @@
+package com.marcuschiu.meet.client;
+
+import org.json.JSONException;
+import org.webrtc.IceCandidate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+
+/**
+ * Writes and reads the fixed JSON shapes of the signaling protocol without
+ * building org.json trees:
+ * <ul>
+ * <li>messages: offer/answer, candidate, remove-candidates, video-paused,
+ * video-resumed, renegotiate and bye;</li>
+ * <li>WebSocket commands: register and send;</li>
+ * <li>the {"msg": ..., "error": ...} envelope the WebSocket server delivers.</li>
+ * </ul>
+ * The nested message of an envelope is unescaped into a reused buffer and
+ * parsed from there, unknown keys are skipped.
+ *
+ * <p>Descriptions advertise SdpCompression under "sdpenc" and carry the SDP
+ * either as "sdp" or, for peers that advertised it too, compressed as
+ * "zsdp".
+ *
+ * <p>Descriptions also list the optional message types the sender
+ * understands under "caps", space separated: video-paused and
+ * renegotiate so far. Older peers treat these messages as errors and must
+ * not be sent them.
+ *
+ * <p>Not thread-safe, keep one per thread.
+ */
+public class SignalingCodec {
+    public static final String TYPE_OFFER = "offer";
+    public static final String TYPE_ANSWER = "answer";
+    public static final String TYPE_CANDIDATE = "candidate";
+    public static final String TYPE_REMOVE_CANDIDATES = "remove-candidates";
+    public static final String TYPE_VIDEO_PAUSED = "video-paused";
+    public static final String TYPE_VIDEO_RESUMED = "video-resumed";
+    public static final String TYPE_RENEGOTIATE = "renegotiate";
+    public static final String TYPE_BYE = "bye";
+
+    /**
+     * The capability of video-paused and video-resumed messages.
+     */
+    public static final String CAPABILITY_VIDEO_PAUSED = "video-paused";
+
+    /**
+     * The capability of renegotiate messages, which ask the initiator for a
+     * new offer.
+     */
+    public static final String CAPABILITY_RENEGOTIATE = "renegotiate";
+
+    /**
+     * A parsed message, reused from one read to the next. |candidates| holds
+     * the single candidate of a candidate message or the removed ones.
+     */
+    public static class Message {
+        public String type;
+        public String sdp;
+        /**
+         * Whether the sender accepts compressed SDP.
+         */
+        public boolean sdpCompression;
+        /**
+         * Whether the sender understands video-paused and video-resumed.
+         */
+        public boolean videoPaused;
+        /**
+         * Whether the sender understands renegotiate.
+         */
+        public boolean renegotiate;
+        public final List<IceCandidate> candidates = new ArrayList<>();
+
+        void reset() {
+            type = "";
+            sdp = null;
+            sdpCompression = false;
+            videoPaused = false;
+            renegotiate = false;
+            candidates.clear();
+        }
+    }
+
+    private final StringBuilder out = new StringBuilder(1024);
+    private final StringBuilder inner = new StringBuilder(1024);
+    private final StringBuilder token = new StringBuilder(256);
+    private CharSequence input;
+    private int pos;
+
+    ////////////
+    // Writer //
+    ////////////
+
+    /**
+     * Writes a description, compressing |sdp| if |compress| and it helps.
+     */
+    public String description(String type, String sdp, boolean compress) {
+        String compressed = compress ? SdpCompression.compress(sdp) : null;
+        out.setLength(0);
+        out.append("{\"type\":\"").append(type).append("\",\"sdpenc\":\"" + SdpCompression.ENCODING + "\",")
+                .append("\"caps\":\"" + CAPABILITY_VIDEO_PAUSED + " " + CAPABILITY_RENEGOTIATE + "\",");
+        if (compressed != null) {
+            // Base64 needs no escaping.
+            out.append("\"zsdp\":\"").append(compressed).append('"');
+        } else {
+            out.append("\"sdp\":");
+            appendString(out, sdp);
+        }
+        return out.append('}').toString();
+    }
+
+    public String candidate(IceCandidate candidate) {
+        out.setLength(0);
+        out.append("{\"type\":\"" + TYPE_CANDIDATE + "\",");
+        appendCandidateFields(candidate);
+        return out.append('}').toString();
+    }
+
+    public String removeCandidates(IceCandidate[] candidates) {
+        out.setLength(0);
+        out.append("{\"type\":\"" + TYPE_REMOVE_CANDIDATES + "\",\"candidates\":[");
+        for (int i = 0; i < candidates.length; i++) {
+            out.append(i == 0 ? "{" : ",{");
+            appendCandidateFields(candidates[i]);
+            out.append('}');
+        }
+        return out.append("]}").toString();
+    }
+
+    /**
+     * Only for peers whose description advertised CAPABILITY_VIDEO_PAUSED.
+     */
+    public String videoPaused(boolean paused) {
+        return "{\"type\":\"" + (paused ? TYPE_VIDEO_PAUSED : TYPE_VIDEO_RESUMED) + "\"}";
+    }
+
+    /**
+     * Only for peers whose description advertised CAPABILITY_RENEGOTIATE.
+     */
+    public String renegotiate() {
+        return "{\"type\":\"" + TYPE_RENEGOTIATE + "\"}";
+    }
+
+    public String bye() {
+        return "{\"type\":\"" + TYPE_BYE + "\"}";
+    }
+
+    public String register(String roomId, String clientId) {
+        out.setLength(0);
+        out.append("{\"cmd\":\"register\",\"roomid\":");
+        appendString(out, roomId);
+        out.append(",\"clientid\":");
+        appendString(out, clientId);
+        return out.append('}').toString();
+    }
+
+    /**
+     * Wraps the JSON |message| in a send command, escaping it in one pass.
+     */
+    public String send(String message) {
+        out.setLength(0);
+        out.append("{\"cmd\":\"send\",\"msg\":");
+        appendString(out, message);
+        return out.append('}').toString();
+    }
+
+    private void appendCandidateFields(IceCandidate candidate) {
+        out.append("\"label\":").append(candidate.sdpMLineIndex).append(",\"id\":");
+        appendString(out, candidate.sdpMid);
+        out.append(",\"candidate\":");
+        appendString(out, candidate.sdp);
+    }
+
+    private static void appendString(StringBuilder out, String value) {
+        if (value == null) {
+            out.append("null");
+            return;
+        }
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    out.append("\\\"");
+                    break;
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        out.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.append(c);
+                    }
+            }
+        }
+        out.append('"');
+    }
+
+    ////////////
+    // Reader //
+    ////////////
+
+    /**
+     * Reads a WebSocket server envelope into |message|.
+     */
+    public void readEnvelope(String text, Message message) throws JSONException {
+        begin(text);
+        boolean found = false;
+        expect('{');
+        if (!consume('}')) {
+            do {
+                String key = readKey();
+                if (key.equals("msg") && peek() == '"') {
+                    inner.setLength(0);
+                    readString(inner);
+                    found = true;
+                } else {
+                    skipValue();
+                }
+            } while (consume(','));
+            expect('}');
+        }
+        if (!found) {
+            throw new JSONException("No value for msg");
+        }
+        readMessage(inner, message);
+    }
+
+    /**
+     * Reads a signaling message into |message|.
+     */
+    public void readMessage(CharSequence text, Message message) throws JSONException {
+        begin(text);
+        message.reset();
+        String candidateMid = null;
+        int candidateLabel = -1;
+        String candidateSdp = null;
+        expect('{');
+        if (!consume('}')) {
+            do {
+                String key = readKey();
+                switch (key) {
+                    case "type":
+                        String type = readStringValue();
+                        message.type = type == null ? "" : type;
+                        break;
+                    case "sdp":
+                        message.sdp = readStringValue();
+                        break;
+                    case "zsdp":
+                        message.sdp = decompress(readStringValue());
+                        break;
+                    case "sdpenc":
+                        message.sdpCompression = SdpCompression.ENCODING.equals(readStringValue());
+                        break;
+                    case "caps":
+                        String caps = readStringValue();
+                        message.videoPaused = hasToken(caps, CAPABILITY_VIDEO_PAUSED);
+                        message.renegotiate = hasToken(caps, CAPABILITY_RENEGOTIATE);
+                        break;
+                    case "id":
+                        candidateMid = readStringValue();
+                        break;
+                    case "label":
+                        candidateLabel = readInt();
+                        break;
+                    case "candidate":
+                        candidateSdp = readStringValue();
+                        break;
+                    case "candidates":
+                        readCandidates(message.candidates);
+                        break;
+                    default:
+                        skipValue();
+                }
+            } while (consume(','));
+            expect('}');
+        }
+        if (message.type.equals(TYPE_CANDIDATE)) {
+            message.candidates.add(toCandidate(candidateMid, candidateLabel, candidateSdp));
+        } else if ((message.type.equals(TYPE_OFFER) || message.type.equals(TYPE_ANSWER)) && message.sdp == null) {
+            throw new JSONException("No value for sdp");
+        }
+    }
+
+    private static boolean hasToken(String list, String token) {
+        if (list == null) {
+            return false;
+        }
+        for (String item : list.split(" ")) {
+            if (item.equals(token)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void readCandidates(List<IceCandidate> candidates) throws JSONException {
+        expect('[');
+        if (consume(']')) {
+            return;
+        }
+        do {
+            String mid = null;
+            int label = -1;
+            String sdp = null;
+            expect('{');
+            if (!consume('}')) {
+                do {
+                    String key = readKey();
+                    switch (key) {
+                        case "id":
+                            mid = readStringValue();
+                            break;
+                        case "label":
+                            label = readInt();
+                            break;
+                        case "candidate":
+                            sdp = readStringValue();
+                            break;
+                        default:
+                            skipValue();
+                    }
+                } while (consume(','));
+                expect('}');
+            }
+            candidates.add(toCandidate(mid, label, sdp));
+        } while (consume(','));
+        expect(']');
+    }
+
+    private static String decompress(String encoded) throws JSONException {
+        if (encoded == null) {
+            return null;
+        }
+        try {
+            return SdpCompression.decompress(encoded);
+        } catch (DataFormatException e) {
+            throw new JSONException("Bad compressed SDP: " + e.getMessage());
+        }
+    }
+
+    private static IceCandidate toCandidate(String mid, int label, String sdp) throws JSONException {
+        if (mid == null || label < 0 || sdp == null) {
+            throw new JSONException("Incomplete candidate");
+        }
+        return new IceCandidate(mid, label, sdp);
+    }
+
+    private void begin(CharSequence text) {
+        input = text;
+        pos = 0;
+    }
+
+    private char peek() throws JSONException {
+        skipWhitespace();
+        if (pos >= input.length()) {
+            throw new JSONException("Unexpected end of input");
+        }
+        return input.charAt(pos);
+    }
+
+    private void skipWhitespace() {
+        while (pos < input.length()) {
+            char c = input.charAt(pos);
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+                break;
+            }
+            pos++;
+        }
+    }
+
+    private boolean consume(char c) throws JSONException {
+        if (peek() == c) {
+            pos++;
+            return true;
+        }
+        return false;
+    }
+
+    private void expect(char c) throws JSONException {
+        if (!consume(c)) {
+            throw new JSONException("Expected '" + c + "' at " + pos);
+        }
+    }
+
+    private String readKey() throws JSONException {
+        if (peek() != '"') {
+            throw new JSONException("Expected key at " + pos);
+        }
+        String key = readStringValue();
+        expect(':');
+        return key;
+    }
+
+    private String readStringValue() throws JSONException {
+        if (peek() == 'n') {
+            expectLiteral("null");
+            return null;
+        }
+        token.setLength(0);
+        readString(token);
+        return token.toString();
+    }
+
+    // Appends the unescaped string at |pos| to |target|.
+    private void readString(StringBuilder target) throws JSONException {
+        expect('"');
+        while (pos < input.length()) {
+            char c = input.charAt(pos++);
+            if (c == '"') {
+                return;
+            }
+            if (c != '\\') {
+                target.append(c);
+                continue;
+            }
+            if (pos >= input.length()) {
+                break;
+            }
+            char escaped = input.charAt(pos++);
+            switch (escaped) {
+                case 'b':
+                    target.append('\b');
+                    break;
+                case 'f':
+                    target.append('\f');
+                    break;
+                case 'n':
+                    target.append('\n');
+                    break;
+                case 'r':
+                    target.append('\r');
+                    break;
+                case 't':
+                    target.append('\t');
+                    break;
+                case 'u':
+                    if (pos + 4 > input.length()) {
+                        throw new JSONException("Truncated escape at " + pos);
+                    }
+                    int code = 0;
+                    for (int i = 0; i < 4; i++) {
+                        int digit = Character.digit(input.charAt(pos++), 16);
+                        if (digit < 0) {
+                            throw new JSONException("Bad escape at " + pos);
+                        }
+                        code = (code << 4) | digit;
+                    }
+                    target.append((char) code);
+                    break;
+                default:
+                    // \" \\ and \/
+                    target.append(escaped);
+            }
+        }
+        throw new JSONException("Unterminated string");
+    }
+
+    private int readInt() throws JSONException {
+        skipWhitespace();
+        int start = pos;
+        long value = 0;
+        boolean negative = pos < input.length() && input.charAt(pos) == '-';
+        if (negative) {
+            pos++;
+        }
+        while (pos < input.length() && Character.isDigit(input.charAt(pos)) && value <= Integer.MAX_VALUE) {
+            value = value * 10 + (input.charAt(pos++) - '0');
+        }
+        if (pos == start + (negative ? 1 : 0) || value > Integer.MAX_VALUE) {
+            throw new JSONException("Expected integer at " + start);
+        }
+        return (int) (negative ? -value : value);
+    }
+
+    private void expectLiteral(String literal) throws JSONException {
+        skipWhitespace();
+        for (int i = 0; i < literal.length(); i++) {
+            if (pos >= input.length() || input.charAt(pos++) != literal.charAt(i)) {
+                throw new JSONException("Expected " + literal);
+            }
+        }
+    }
+
+    private void skipValue() throws JSONException {
+        char c = peek();
+        switch (c) {
+            case '"':
+                token.setLength(0);
+                readString(token);
+                return;
+            case '{':
+                pos++;
+                if (!consume('}')) {
+                    do {
+                        readKey();
+                        skipValue();
+                    } while (consume(','));
+                    expect('}');
+                }
+                return;
+            case '[':
+                pos++;
+                if (!consume(']')) {
+                    do {
+                        skipValue();
+                    } while (consume(','));
+                    expect(']');
+                }
+                return;
+            case 't':
+                expectLiteral("true");
+                return;
+            case 'f':
+                expectLiteral("false");
+                return;
+            case 'n':
+                expectLiteral("null");
+                return;
+            default:
+                int start = pos;
+                while (pos < input.length() && "+-.eE0123456789".indexOf(input.charAt(pos)) >= 0) {
+                    pos++;
+                }
+                if (pos == start) {
+                    throw new JSONException("Unexpected '" + c + "' at " + pos);
+                }
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package com.marcuschiu.meet.client;
+
+import android.util.Log;
+
+import com.marcuschiu.meet.client.util.CallMetrics;
+
+import org.json.JSONException;
+import org.webrtc.IceCandidate;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Bounded queue for signaling messages sent before the WebSocket is
+ * registered. Superseded messages are collapsed on the way in:
+ * <ul>
+ * <li>a newer offer/answer replaces a queued one, together with the
+ * candidates queued for it;</li>
+ * <li>a candidate removal cancels the queued candidates it removes;</li>
+ * <li>bye drops everything else.</li>
+ * </ul>
+ * Once the limits are reached candidates are refused, while a description
+ * evicts the oldest candidates to make room. Both count in |metrics|, as
+ * ws_queue_dropped and ws_queue_evicted_candidates.
+ *
+ * <p>Not thread-safe, owned by WebSocketChannelClient's executor thread.
+ */
+public class SignalingSendQueue {
+    private static final String TAG = "SignalingSendQueue";
+
+    private static class Entry {
+        final String message;
+        final String type;
+        final String candidate;
+
+        Entry(String message, String type, String candidate) {
+            this.message = message;
+            this.type = type;
+            this.candidate = candidate;
+        }
+
+        boolean isDescription() {
+            return type.equals("offer") || type.equals("answer");
+        }
+
+        // Queued strings are UTF-16 on the heap.
+        long bytes() {
+            return 2L * message.length();
+        }
+    }
+
+    private final int maxMessages;
+    private final long maxBytes;
+    private final CallMetrics metrics;
+    private final LinkedList<Entry> entries = new LinkedList<>();
+    private final SignalingCodec codec = new SignalingCodec();
+    private final SignalingCodec.Message parsed = new SignalingCodec.Message();
+    private long queuedBytes;
+    private int dropped;
+    private int coalesced;
+
+    public SignalingSendQueue(int maxMessages, long maxBytes, CallMetrics metrics) {
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Queues |message|. Returns false if it was dropped because the queue is
+     * full.
+     */
+    public boolean offer(String message) {
+        Entry entry = parse(message);
+        switch (entry.type) {
+            case "offer":
+            case "answer":
+                removeDescriptionAndCandidates();
+                break;
+            case "remove-candidates":
+                if (cancelCandidates()) {
+                    return true;
+                }
+                break;
+            case "bye":
+                coalesced += entries.size();
+                entries.clear();
+                queuedBytes = 0;
+                break;
+        }
+
+        while (isFull(entry) && entry.isDescription() && evictOldestCandidate()) {
+            dropped++;
+            metrics.increment("ws_queue_evicted_candidates");
+        }
+        if (isFull(entry)) {
+            dropped++;
+            metrics.increment("ws_queue_dropped");
+            Log.w(TAG, "Queue full (" + entries.size() + " messages, " + queuedBytes + " bytes), dropping " + entry.type);
+            return false;
+        }
+        entries.add(entry);
+        queuedBytes += entry.bytes();
+        return true;
+    }
+
+    /**
+     * Returns all queued messages in order and empties the queue.
+     */
+    public List<String> drain() {
+        List<String> messages = new ArrayList<>(entries.size());
+        for (Entry entry : entries) {
+            messages.add(entry.message);
+        }
+        if (coalesced > 0 || dropped > 0) {
+            Log.d(TAG, "Flushing " + messages.size() + " messages, " + coalesced + " coalesced, " + dropped + " dropped");
+        }
+        entries.clear();
+        queuedBytes = 0;
+        coalesced = 0;
+        dropped = 0;
+        return messages;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long getQueuedBytes() {
+        return queuedBytes;
+    }
+
+    private boolean isFull(Entry next) {
+        return entries.size() >= maxMessages || queuedBytes + next.bytes() > maxBytes;
+    }
+
+    private void removeDescriptionAndCandidates() {
+        Iterator<Entry> it = entries.iterator();
+        boolean afterDescription = false;
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (entry.isDescription()) {
+                afterDescription = true;
+            }
+            if (afterDescription && (entry.isDescription() || entry.candidate != null)) {
+                it.remove();
+                queuedBytes -= entry.bytes();
+                coalesced++;
+            }
+        }
+    }
+
+    // Returns true if every candidate of the removal just parsed was still
+    // queued, so the removal itself need not be sent.
+    private boolean cancelCandidates() {
+        List<IceCandidate> removed = parsed.candidates;
+        int cancelled = 0;
+        for (IceCandidate removedCandidate : removed) {
+            String candidate = removedCandidate.sdp;
+            Iterator<Entry> it = entries.iterator();
+            while (it.hasNext()) {
+                Entry entry = it.next();
+                if (entry.candidate != null && entry.candidate.equals(candidate)) {
+                    it.remove();
+                    queuedBytes -= entry.bytes();
+                    coalesced++;
+                    cancelled++;
+                    break;
+                }
+            }
+        }
+        return cancelled == removed.size();
+    }
+
+    private boolean evictOldestCandidate() {
+        Iterator<Entry> it = entries.iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (entry.candidate != null) {
+                it.remove();
+                queuedBytes -= entry.bytes();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Entry parse(String message) {
+        try {
+            codec.readMessage(message, parsed);
+            String candidate = parsed.type.equals(SignalingCodec.TYPE_CANDIDATE) ? parsed.candidates.get(0).sdp : null;
+            return new Entry(message, parsed.type, candidate);
+        } catch (JSONException e) {
+            parsed.candidates.clear();
+            return new Entry(message, "", null);
+        }
+    }
+}
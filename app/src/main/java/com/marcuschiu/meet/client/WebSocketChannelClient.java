@@ -1,43 +1,89 @@
 package com.marcuschiu.meet.client;
 
-import android.os.Handler;
-import android.util.Log;
-
 import com.marcuschiu.meet.client.util.AsyncHttpURLConnection;
+import com.marcuschiu.meet.client.util.CallMetrics;
+import com.marcuschiu.meet.client.util.Logger;
+import com.marcuschiu.meet.client.ws.NioWebSocketTransport;
 
-import de.tavendo.autobahn.WebSocket.WebSocketConnectionObserver;
-import de.tavendo.autobahn.WebSocketConnection;
-import de.tavendo.autobahn.WebSocketException;
-
+import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
-import org.json.JSONException;
-import org.json.JSONObject;
-
+/**
+ * Signaling over a WebSocket that survives dropped connections. After a
+ * drop it reconnects with backoff and registers again with the same room
+ * and client IDs.
+ *
+ * <p>Every batch of sent messages is followed by a ping. The server answers
+ * it after reading the messages, so messages without a pong are the ones
+ * that may have been lost. They go back into the send queue, where they are
+ * coalesced with and bounded like anything sent while reconnecting. A
+ * message the server read just before the drop can therefore reach the
+ * peer twice: a repeated description carries an o= version the peer has
+ * already applied and is ignored, a repeated candidate is harmless.
+ *
+ * <p>All methods must be called on |executor|, which also runs the
+ * callbacks.
+ */
 public class WebSocketChannelClient {
     private static final String TAG = "WSChannelRTCClient";
-    private static final int CLOSE_TIMEOUT = 1000;
+
+    public static class Config {
+        public int maxQueuedMessages = 128;
+        public long maxQueuedBytes = 256 * 1024;
+        // Reconnect backoff: base * 2^attempt capped at max, with jitter.
+        public long reconnectBaseDelayMs = 500;
+        public long reconnectMaxDelayMs = 16000;
+        public int reconnectMaxAttempts = 8;
+    }
+
     private final WebSocketChannelEvents events;
-    private final Handler handler;
-    private WebSocketConnection ws;
+    private final ScheduledExecutorService executor;
+    private final Config config;
+    private final WebSocketTransport.Factory transportFactory;
+    private final AsyncHttpURLConnection.Sender httpSender;
+    private final CallMetrics metrics;
+    private final Random random = new Random();
+    private WebSocketTransport ws;
     private String wsServerUrl;
     private String postServerUrl;
     private String roomID;
     private String clientID;
     WebSocketConnectionState state;
-    // Do not remove this member variable. If this is removed, the observer gets garbage collected and
-    // this causes test breakages.
     private WebSocketObserver wsObserver;
-    private final Object closeEventLock = new Object();
-    private boolean closeEvent;
     // WebSocket send queue. Messages are added to the queue when WebSocket
     // client is not registered and are consumed in register() call.
-    private final List<String> wsSendQueue = new ArrayList<>();
+    private final SignalingCodec codec = new SignalingCodec();
+    private final SignalingSendQueue wsSendQueue;
+    // Sent messages the server has not acknowledged with a pong yet, oldest first.
+    private final ArrayDeque<SentMessage> unacked = new ArrayDeque<>();
+    private long sentCount;
+    private boolean pingPending;
+    private int reconnectAttempts;
+    private long connectionLostMs;
+    private volatile Thread executorThread;
+
+    public enum WebSocketConnectionState {NEW, CONNECTED, REGISTERED, RECONNECTING, CLOSED, ERROR}
+
+    private static class SentMessage {
+        // Number of messages sent up to and including this one.
+        final long sequence;
+        final String message;
 
-    public enum WebSocketConnectionState {NEW, CONNECTED, REGISTERED, CLOSED, ERROR}
+        SentMessage(long sequence, String message) {
+            this.sequence = sequence;
+            this.message = message;
+        }
+    }
 
     public interface WebSocketChannelEvents {
         void onWebSocketMessage(final String message);
@@ -47,33 +93,108 @@ public class WebSocketChannelClient {
         void onWebSocketError(final String description);
     }
 
-    public WebSocketChannelClient(Handler handler, WebSocketChannelEvents events) {
-        this.handler = handler;
+    public WebSocketChannelClient(ScheduledExecutorService executor, WebSocketChannelEvents events, CallMetrics metrics) {
+        this(executor, new Config(), events, metrics, NioWebSocketTransport::new, AsyncHttpURLConnection.DEFAULT_SENDER);
+    }
+
+    /**
+     * |executor| must run tasks one at a time, in order.
+     */
+    public WebSocketChannelClient(ScheduledExecutorService executor, Config config, WebSocketChannelEvents events, CallMetrics metrics, WebSocketTransport.Factory transportFactory, AsyncHttpURLConnection.Sender httpSender) {
+        this.executor = executor;
+        this.config = config;
         this.events = events;
+        this.metrics = metrics;
+        this.transportFactory = transportFactory;
+        this.httpSender = httpSender;
+        wsSendQueue = new SignalingSendQueue(config.maxQueuedMessages, config.maxQueuedBytes, metrics);
         roomID = null;
         clientID = null;
         state = WebSocketConnectionState.NEW;
+        executor.execute(() -> executorThread = Thread.currentThread());
     }
 
     public void connect(final String wsUrl, final String postUrl) {
         checkIfCalledOnValidThread();
         if (state != WebSocketConnectionState.NEW) {
-            Log.e(TAG, "WebSocket is already connected.");
+            Logger.e(TAG, "WebSocket is already connected.");
             return;
         }
         wsServerUrl = wsUrl;
         postServerUrl = postUrl;
-        closeEvent = false;
 
-        Log.d(TAG, "Connecting WebSocket to: " + wsUrl + ". Post URL: " + postUrl);
-        ws = new WebSocketConnection();
-        wsObserver = new WebSocketObserver();
+        Logger.d(TAG, "Connecting WebSocket to: {}. Post URL: {}", wsUrl, postUrl);
+        openTransport();
+    }
+
+    private void openTransport() {
+        ws = transportFactory.create();
+        wsObserver = new WebSocketObserver(ws);
         try {
             ws.connect(new URI(wsServerUrl), wsObserver);
         } catch (URISyntaxException e) {
             reportError("URI error: " + e.getMessage());
-        } catch (WebSocketException e) {
-            reportError("WebSocket connection error: " + e.getMessage());
+        } catch (IOException e) {
+            // Never opened, so there is no close to wait for.
+            wsObserver.closed.complete(null);
+            if (state == WebSocketConnectionState.RECONNECTING) {
+                Logger.w(TAG, "WebSocket reconnect error: {}", e.getMessage());
+                scheduleReconnect();
+            } else {
+                reportError("WebSocket connection error: " + e.getMessage());
+            }
+        }
+    }
+
+    // Called when the connection dropped without disconnect() being called.
+    // Media keeps flowing peer-to-peer meanwhile, so the call is only told
+    // about the close once reconnecting gave up.
+    private void onConnectionLost(String reason) {
+        if (roomID == null || clientID == null) {
+            state = WebSocketConnectionState.CLOSED;
+            events.onWebSocketClose();
+            return;
+        }
+        Logger.w(TAG, "WebSocket connection lost: {}. Reconnecting.", reason);
+        state = WebSocketConnectionState.RECONNECTING;
+        connectionLostMs = System.currentTimeMillis();
+        reconnectAttempts = 0;
+        // The queue is empty while registered, so unacknowledged messages
+        // go out again ahead of those sent while reconnecting.
+        if (!unacked.isEmpty()) {
+            metrics.record("ws_resent_messages", unacked.size());
+        }
+        for (SentMessage sent : unacked) {
+            if (!wsSendQueue.offer(sent.message)) {
+                Logger.w(TAG, "WebSocket send queue full, dropped unacknowledged message.");
+            }
+        }
+        unacked.clear();
+        scheduleReconnect();
+    }
+
+    private void scheduleReconnect() {
+        if (reconnectAttempts >= config.reconnectMaxAttempts) {
+            Logger.e(TAG, "WebSocket reconnect gave up after {} attempts.", reconnectAttempts);
+            metrics.increment("ws_reconnect_failures");
+            state = WebSocketConnectionState.CLOSED;
+            events.onWebSocketClose();
+            return;
+        }
+        long delayMs = Math.min(config.reconnectMaxDelayMs, config.reconnectBaseDelayMs << Math.min(reconnectAttempts, 30));
+        // Jitter between half and the full delay so clients do not reconnect in lockstep.
+        delayMs = delayMs / 2 + (long) (random.nextDouble() * delayMs / 2);
+        reconnectAttempts++;
+        metrics.increment("ws_reconnect_attempts");
+        try {
+            executor.schedule(() -> {
+                if (state == WebSocketConnectionState.RECONNECTING) {
+                    Logger.d(TAG, "WebSocket reconnect attempt {}", reconnectAttempts);
+                    openTransport();
+                }
+            }, delayMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            Logger.d(TAG, "Not reconnecting after shutdown");
         }
     }
 
@@ -82,25 +203,24 @@ public class WebSocketChannelClient {
         this.roomID = roomID;
         this.clientID = clientID;
         if (state != WebSocketConnectionState.CONNECTED) {
-            Log.w(TAG, "WebSocket register() in state " + state);
+            Logger.w(TAG, "WebSocket register() in state {}", state);
             return;
         }
-        Log.d(TAG, "Registering WebSocket for room " + roomID + ". ClientID: " + clientID);
-        JSONObject json = new JSONObject();
-        try {
-            json.put("cmd", "register");
-            json.put("roomid", roomID);
-            json.put("clientid", clientID);
-            Log.d(TAG, "C->WSS: " + json.toString());
-            ws.sendTextMessage(json.toString());
-            state = WebSocketConnectionState.REGISTERED;
-            // Send any previously accumulated messages.
-            for (String sendMessage : wsSendQueue) {
-                send(sendMessage);
-            }
-            wsSendQueue.clear();
-        } catch (JSONException e) {
-            reportError("WebSocket register JSON error: " + e.getMessage());
+        Logger.d(TAG, "Registering WebSocket for room {}. ClientID: {}", roomID, clientID);
+        String json = codec.register(roomID, clientID);
+        Logger.d(TAG, "C->WSS: {}", json);
+        ws.sendTextMessage(json);
+        state = WebSocketConnectionState.REGISTERED;
+        if (connectionLostMs != 0) {
+            metrics.increment("ws_reconnects");
+            metrics.record("ws_downtime_ms", System.currentTimeMillis() - connectionLostMs);
+            connectionLostMs = 0;
+            reconnectAttempts = 0;
+        }
+        // Send any previously accumulated messages in one go, including
+        // those possibly lost with the previous connection.
+        for (String sendMessage : wsSendQueue.drain()) {
+            sendRegistered(sendMessage);
         }
     }
 
@@ -109,64 +229,96 @@ public class WebSocketChannelClient {
         switch (state) {
             case NEW:
             case CONNECTED:
+            case RECONNECTING:
                 // Store outgoing messages and send them after websocket client
                 // is registered.
-                Log.d(TAG, "WS ACC: " + message);
-                wsSendQueue.add(message);
+                Logger.d(TAG, "WS ACC: {}", message);
+                if (!wsSendQueue.offer(message)) {
+                    Logger.w(TAG, "WebSocket send queue full, dropped message.");
+                }
                 return;
             case ERROR:
             case CLOSED:
-                Log.e(TAG, "WebSocket send() in error or closed state : " + message);
+                Logger.e(TAG, "WebSocket send() in error or closed state : {}", message);
                 return;
             case REGISTERED:
-                JSONObject json = new JSONObject();
-                try {
-                    json.put("cmd", "send");
-                    json.put("msg", message);
-                    message = json.toString();
-                    Log.d(TAG, "C->WSS: " + message);
-                    ws.sendTextMessage(message);
-                } catch (JSONException e) {
-                    reportError("WebSocket send JSON error: " + e.getMessage());
-                }
+                Logger.d(TAG, "C->WSS: {}", message);
+                sendRegistered(message);
                 break;
         }
     }
 
-    public void disconnect(boolean waitForComplete) {
+    private void sendRegistered(String message) {
+        ws.sendTextMessage(codec.send(message));
+        unacked.addLast(new SentMessage(++sentCount, message));
+        if (unacked.size() > config.maxQueuedMessages) {
+            // Could not be queued again anyway.
+            unacked.pollFirst();
+        }
+        if (!pingPending) {
+            // One ping after everything sent in this task.
+            pingPending = true;
+            post(this::sendPing);
+        }
+    }
+
+    private void sendPing() {
+        pingPending = false;
+        if (state == WebSocketConnectionState.REGISTERED && !unacked.isEmpty()) {
+            ws.sendPing(ByteBuffer.allocate(8).putLong(sentCount).array());
+        }
+    }
+
+    // The server read every message up to |sequence|.
+    private void onAcknowledged(long sequence) {
+        while (!unacked.isEmpty() && unacked.peekFirst().sequence <= sequence) {
+            unacked.pollFirst();
+        }
+    }
+
+    // Messages sent but not acknowledged yet, for tests.
+    int getUnackedCount() {
+        return unacked.size();
+    }
+
+    /**
+     * Says bye, deletes the registration and closes the WebSocket without
+     * blocking. The returned future completes once the DELETE finished and the
+     * WebSocket reported its close.
+     */
+    public CompletableFuture<Void> disconnect() {
         checkIfCalledOnValidThread();
+        List<CompletableFuture<Void>> pending = new ArrayList<>();
+        if (state == WebSocketConnectionState.RECONNECTING) {
+            // No live connection to say bye on; a scheduled attempt sees the
+            // state change, one in flight is closed.
+            state = WebSocketConnectionState.CLOSED;
+            pending.add(sendWSSMessage("DELETE", ""));
+            if (ws != null) {
+                ws.disconnect();
+                pending.add(wsObserver.closed);
+            }
+        }
         if (state == WebSocketConnectionState.REGISTERED) {
             // Send "bye" to WebSocket server.
-            send("{\"type\": \"bye\"}");
+            send(codec.bye());
             state = WebSocketConnectionState.CONNECTED;
             // Send http DELETE to http WebSocket server.
-            sendWSSMessage("DELETE", "");
+            pending.add(sendWSSMessage("DELETE", ""));
         }
         // Close WebSocket in CONNECTED or ERROR states only.
-        if (state == WebSocketConnectionState.CONNECTED || state == WebSocketConnectionState.ERROR) {
+        if ((state == WebSocketConnectionState.CONNECTED || state == WebSocketConnectionState.ERROR) && ws != null) {
             ws.disconnect();
             state = WebSocketConnectionState.CLOSED;
-
-            // Wait for websocket close event to prevent websocket library from
-            // sending any pending messages to deleted looper thread.
-            if (waitForComplete) {
-                synchronized (closeEventLock) {
-                    while (!closeEvent) {
-                        try {
-                            closeEventLock.wait(CLOSE_TIMEOUT);
-                            break;
-                        } catch (InterruptedException e) {
-                            Log.e(TAG, "Wait error: " + e.toString());
-                        }
-                    }
-                }
-            }
+            pending.add(wsObserver.closed);
         }
+        return CompletableFuture.allOf(pending.toArray(new CompletableFuture[0]));
     }
 
     private void reportError(final String errorMessage) {
-        Log.e(TAG, errorMessage);
-        handler.post(new Runnable() {
+        Logger.e(TAG, errorMessage);
+        metrics.recordError(TAG, errorMessage);
+        post(new Runnable() {
             @Override
             public void run() {
                 if (state != WebSocketConnectionState.ERROR) {
@@ -177,39 +329,63 @@ public class WebSocketChannelClient {
         });
     }
 
-    // Asynchronously send POST/DELETE to WebSocket server.
-    private void sendWSSMessage(final String method, final String message) {
+    // Callbacks after the owner shut the executor down are dropped.
+    private void post(Runnable runnable) {
+        try {
+            executor.execute(runnable);
+        } catch (RejectedExecutionException e) {
+            Logger.d(TAG, "Ignoring WebSocket event after shutdown");
+        }
+    }
+
+    // Asynchronously send POST/DELETE to WebSocket server. Only used while
+    // shutting down, so errors are logged rather than reported.
+    private CompletableFuture<Void> sendWSSMessage(final String method, final String message) {
+        final CompletableFuture<Void> done = new CompletableFuture<>();
         String postUrl = postServerUrl + "/" + roomID + "/" + clientID;
-        Log.d(TAG, "WS " + method + " : " + postUrl + " : " + message);
-        AsyncHttpURLConnection httpConnection =
-                new AsyncHttpURLConnection(method, postUrl, message, new AsyncHttpURLConnection.AsyncHttpEvents() {
-                    @Override
-                    public void onHttpError(String errorMessage) {
-                        reportError("WS " + method + " error: " + errorMessage);
-                    }
+        Logger.d(TAG, "WS {} : {} : {}", method, postUrl, message);
+        httpSender.send(method, postUrl, message, new AsyncHttpURLConnection.AsyncHttpEvents() {
+            @Override
+            public void onHttpError(String errorMessage) {
+                Logger.e(TAG, "WS {} error: {}", method, errorMessage);
+                done.complete(null);
+            }
 
-                    @Override
-                    public void onHttpComplete(String response) {
-                    }
-                });
-        httpConnection.send();
+            @Override
+            public void onHttpComplete(String response) {
+                done.complete(null);
+            }
+        });
+        return done;
     }
 
     // Helper method for debugging purposes. Ensures that WebSocket method is
-    // called on a looper thread.
+    // called on the executor thread.
     private void checkIfCalledOnValidThread() {
-        if (Thread.currentThread() != handler.getLooper().getThread()) {
+        if (Thread.currentThread() != executorThread) {
             throw new IllegalStateException("WebSocket method is not called on valid thread");
         }
     }
 
-    private class WebSocketObserver implements WebSocketConnectionObserver {
+    // Observes one transport. Events from a transport that has since been
+    // replaced by a reconnect are ignored.
+    private class WebSocketObserver implements WebSocketTransport.Observer {
+        private final WebSocketTransport transport;
+        private final CompletableFuture<Void> closed = new CompletableFuture<>();
+
+        WebSocketObserver(WebSocketTransport transport) {
+            this.transport = transport;
+        }
+
         @Override
         public void onOpen() {
-            Log.d(TAG, "WebSocket connection opened to: " + wsServerUrl);
-            handler.post(new Runnable() {
+            Logger.d(TAG, "WebSocket connection opened to: {}", wsServerUrl);
+            post(new Runnable() {
                 @Override
                 public void run() {
+                    if (transport != ws || state == WebSocketConnectionState.CLOSED) {
+                        return;
+                    }
                     state = WebSocketConnectionState.CONNECTED;
                     // Check if we have pending register request.
                     if (roomID != null && clientID != null) {
@@ -220,17 +396,20 @@ public class WebSocketChannelClient {
         }
 
         @Override
-        public void onClose(WebSocketCloseNotification code, String reason) {
-            Log.d(TAG, "WebSocket connection closed. Code: " + code + ". Reason: " + reason + ". State: "
-                    + state);
-            synchronized (closeEventLock) {
-                closeEvent = true;
-                closeEventLock.notify();
-            }
-            handler.post(new Runnable() {
+        public void onClose(final String reason) {
+            Logger.d(TAG, "WebSocket connection closed. Reason: {}. State: {}", reason, state);
+            closed.complete(null);
+            post(new Runnable() {
                 @Override
                 public void run() {
-                    if (state != WebSocketConnectionState.CLOSED) {
+                    if (transport != ws) {
+                        return;
+                    }
+                    if (state == WebSocketConnectionState.RECONNECTING) {
+                        scheduleReconnect();
+                    } else if (state == WebSocketConnectionState.CONNECTED || state == WebSocketConnectionState.REGISTERED) {
+                        onConnectionLost(reason);
+                    } else if (state != WebSocketConnectionState.CLOSED) {
                         state = WebSocketConnectionState.CLOSED;
                         events.onWebSocketClose();
                     }
@@ -240,13 +419,13 @@ public class WebSocketChannelClient {
 
         @Override
         public void onTextMessage(String payload) {
-            Log.d(TAG, "WSS->C: " + payload);
+            Logger.d(TAG, "WSS->C: {}", payload);
             final String message = payload;
-            handler.post(new Runnable() {
+            post(new Runnable() {
                 @Override
                 public void run() {
-                    if (state == WebSocketConnectionState.CONNECTED
-                            || state == WebSocketConnectionState.REGISTERED) {
+                    if (transport == ws && (state == WebSocketConnectionState.CONNECTED
+                            || state == WebSocketConnectionState.REGISTERED)) {
                         events.onWebSocketMessage(message);
                     }
                 }
@@ -254,11 +433,16 @@ public class WebSocketChannelClient {
         }
 
         @Override
-        public void onRawTextMessage(byte[] payload) {
-        }
-
-        @Override
-        public void onBinaryMessage(byte[] payload) {
+        public void onPong(byte[] payload) {
+            if (payload.length != 8) {
+                return;
+            }
+            final long sequence = ByteBuffer.wrap(payload).getLong();
+            post(() -> {
+                if (transport == ws) {
+                    onAcknowledged(sequence);
+                }
+            });
         }
     }
 }
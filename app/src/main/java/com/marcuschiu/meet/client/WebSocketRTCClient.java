@@ -1,53 +1,98 @@
 package com.marcuschiu.meet.client;
 
-import android.os.Handler;
-import android.os.HandlerThread;
 import android.util.Log;
 
 import com.marcuschiu.meet.client.util.AsyncHttpURLConnection;
-import com.marcuschiu.meet.client.util.Util;
+import com.marcuschiu.meet.client.util.CallMetrics;
+import com.marcuschiu.meet.client.util.FutureUtil;
+import com.marcuschiu.meet.client.ws.NioWebSocketTransport;
 
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.webrtc.IceCandidate;
 import org.webrtc.SessionDescription;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+
 public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelClient.WebSocketChannelEvents {
 
     private enum ConnectionState {NEW, CONNECTED, CLOSED, ERROR}
 
     private enum MessageType {MESSAGE, LEAVE}
 
-    private final Handler handler;
+    private static final long DISCONNECT_DEADLINE_MS = 3000;
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "WSRTCClient");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Used on the executor thread only.
+    private final SignalingCodec codec = new SignalingCodec();
+    private final SignalingCodec.Message message = new SignalingCodec.Message();
+    private final CallMetrics metrics;
+    private final AsyncHttpURLConnection.Sender httpSender;
     private boolean initiator;
     private SignalingEvents events;
     private WebSocketChannelClient wsClient;
     private ConnectionState roomState;
+    // Join requests sent, responses to all but the latest are stale.
+    private int joinAttempts;
+    // Whether the remote peer advertised SdpCompression.
+    private boolean remoteSdpCompression;
+    // Whether the remote peer advertised video-paused messages.
+    private boolean remoteVideoPaused;
+    // Whether the remote peer advertised renegotiate messages.
+    private boolean remoteRenegotiate;
 
     private String messageUrl;
     private String leaveUrl;
 
-    public WebSocketRTCClient(SignalingEvents events) {
+    public WebSocketRTCClient(SignalingEvents events, CallMetrics metrics) {
+        this(events, metrics, AsyncHttpURLConnection.DEFAULT_SENDER, NioWebSocketTransport::new);
+    }
+
+    /**
+     * Sends all HTTP requests through |httpSender| and opens WebSockets from
+     * |transportFactory|, e.g. to record or replay a SignalingTrace.
+     */
+    public WebSocketRTCClient(SignalingEvents events, CallMetrics metrics, AsyncHttpURLConnection.Sender httpSender, WebSocketTransport.Factory transportFactory) {
         this.events = events;
-        final HandlerThread handlerThread = new HandlerThread("WSRTCClient");
-        handlerThread.start();
-        this.handler = new Handler(handlerThread.getLooper());
-        this.wsClient = new WebSocketChannelClient(handler, this);
+        this.metrics = metrics;
+        this.httpSender = httpSender;
+        this.wsClient = new WebSocketChannelClient(executor, new WebSocketChannelClient.Config(), this, metrics, transportFactory, httpSender);
     }
 
     @Override
     public void connectToRoom(String roomID) {
-        handler.post(() -> {
+        post(() -> {
+            if (roomState == ConnectionState.CONNECTED || roomState == ConnectionState.CLOSED) {
+                return;
+            }
             roomState = ConnectionState.NEW;
+            final int attempt = ++joinAttempts;
 
             RoomParametersFetcher.RoomParametersFetcherEvents callbacks = new RoomParametersFetcher.RoomParametersFetcherEvents() {
                 @Override
                 public void onSignalingParametersReady(final SignalingParameters params) {
-                    WebSocketRTCClient.this.handler.post(() -> {
+                    post(() -> {
+                        if (attempt != joinAttempts || roomState != ConnectionState.NEW) {
+                            // A retry superseded this request, leave with the client it created.
+                            Log.w("WSRTCClient", "Leaving room joined by stale request " + attempt);
+                            sendPostMessage(MessageType.LEAVE, "https://appr.tc/leave/" + roomID + "/" + params.clientId, null);
+                            return;
+                        }
                         roomState = ConnectionState.CONNECTED;
 
                         initiator = params.initiator;
+                        remoteSdpCompression = params.offerSdpCompression;
+                        remoteVideoPaused = params.offerVideoPaused;
+                        remoteRenegotiate = params.offerRenegotiate;
                         messageUrl = "https://appr.tc/message/" + roomID + "/" + params.clientId;
                         leaveUrl = "https://appr.tc/leave/" + roomID + "/" + params.clientId;
 
@@ -60,102 +105,151 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelClient.
 
                 @Override
                 public void onSignalingParametersError(String description) {
-                    WebSocketRTCClient.this.reportError(description);
+                    post(() -> {
+                        if (attempt == joinAttempts) {
+                            reportError(description);
+                        }
+                    });
                 }
             };
 
-            new RoomParametersFetcher("https://appr.tc/join/" + roomID, null, callbacks).makeRequest();
+            new RoomParametersFetcher(httpSender, "https://appr.tc/join/" + roomID, null, callbacks).makeRequest();
         });
     }
 
     @Override
-    public void disconnectFromRoom() {
-        handler.post(() -> {
-            disconnectFromRoomInternal();
-            handler.getLooper().quit();
-        });
+    public CompletableFuture<Void> disconnectFromRoom() {
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        post(() -> FutureUtil.withDeadline(disconnectFromRoomInternal(), DISCONNECT_DEADLINE_MS)
+                .whenComplete((result, error) -> {
+                    // Keep the executor until cleanup is over so late WebSocket events land somewhere.
+                    executor.shutdown();
+                    if (error != null) {
+                        Log.w("WSRTCClient", "Disconnect cleanup incomplete: " + error.getMessage());
+                        done.completeExceptionally(error);
+                    } else {
+                        done.complete(null);
+                    }
+                }));
+        return done;
     }
 
-    private void disconnectFromRoomInternal() {
+    // Calls after disconnectFromRoom() finished are dropped.
+    private void post(Runnable runnable) {
+        try {
+            executor.execute(runnable);
+        } catch (RejectedExecutionException e) {
+            Log.d("WSRTCClient", "Ignoring call after disconnect");
+        }
+    }
+
+    // Leave, DELETE and WebSocket close run in parallel.
+    private CompletableFuture<Void> disconnectFromRoomInternal() {
+        List<CompletableFuture<Void>> pending = new ArrayList<>();
         if (roomState == ConnectionState.CONNECTED) {
-            sendPostMessage(MessageType.LEAVE, leaveUrl, null);
+            pending.add(sendPostMessage(MessageType.LEAVE, leaveUrl, null));
         }
         roomState = ConnectionState.CLOSED;
         if (wsClient != null) {
-            wsClient.disconnect(true);
+            pending.add(wsClient.disconnect());
         }
+        return CompletableFuture.allOf(pending.toArray(new CompletableFuture[0]));
     }
 
     @Override
     public void sendOfferSdp(final SessionDescription sdp) {
-        handler.post(() -> {
-            JSONObject json = new JSONObject();
-            Util.jsonPut(json, "sdp", sdp.description);
-            Util.jsonPut(json, "type", "offer");
-            sendPostMessage(MessageType.MESSAGE, messageUrl, json.toString());
+        post(() -> {
+            String json = codec.description(SignalingCodec.TYPE_OFFER, sdp.description, remoteSdpCompression);
+            metrics.record("signaling_sdp_bytes", json.length());
+            sendPostMessage(MessageType.MESSAGE, messageUrl, json);
         });
     }
 
     @Override
     public void sendAnswerSdp(final SessionDescription sdp) {
-        handler.post(() -> {
-            JSONObject json = new JSONObject();
-            Util.jsonPut(json, "sdp", sdp.description);
-            Util.jsonPut(json, "type", "answer");
-            wsClient.send(json.toString());
+        post(() -> {
+            String json = codec.description(SignalingCodec.TYPE_ANSWER, sdp.description, remoteSdpCompression);
+            metrics.record("signaling_sdp_bytes", json.length());
+            wsClient.send(json);
         });
     }
 
     @Override
     public void sendLocalIceCandidate(final IceCandidate candidate) {
-        handler.post(() -> {
-            JSONObject json = new JSONObject();
-            Util.jsonPut(json, "type", "candidate");
-            Util.jsonPut(json, "label", candidate.sdpMLineIndex);
-            Util.jsonPut(json, "id", candidate.sdpMid);
-            Util.jsonPut(json, "candidate", candidate.sdp);
+        post(() -> {
+            String json = codec.candidate(candidate);
             if (initiator) {
                 // Call initiator sends ice candidates to GAE server.
                 if (roomState != ConnectionState.CONNECTED) {
                     reportError("Sending ICE candidate in non connected state.");
                     return;
                 }
-                sendPostMessage(MessageType.MESSAGE, messageUrl, json.toString());
+                sendPostMessage(MessageType.MESSAGE, messageUrl, json);
             } else {
                 // Call receiver sends ice candidates to websocket server.
-                wsClient.send(json.toString());
+                wsClient.send(json);
             }
         });
     }
 
     @Override
     public void sendLocalIceCandidateRemovals(final IceCandidate[] candidates) {
-        handler.post(() -> {
-            JSONObject json = new JSONObject();
-            Util.jsonPut(json, "type", "remove-candidates");
-            JSONArray jsonArray = new JSONArray();
-            for (final IceCandidate candidate : candidates) {
-                jsonArray.put(Util.toJsonCandidate(candidate));
-            }
-            Util.jsonPut(json, "candidates", jsonArray);
+        post(() -> {
+            String json = codec.removeCandidates(candidates);
             if (initiator) {
                 // Call initiator sends ice candidates to GAE server.
                 if (roomState != ConnectionState.CONNECTED) {
                     reportError("Sending ICE candidate removals in non connected state.");
                     return;
                 }
-                sendPostMessage(MessageType.MESSAGE, messageUrl, json.toString());
+                sendPostMessage(MessageType.MESSAGE, messageUrl, json);
             } else {
                 // Call receiver sends ice candidates to websocket server.
-                wsClient.send(json.toString());
+                wsClient.send(json);
+            }
+        });
+    }
+
+
+    @Override
+    public void sendVideoPaused(final boolean paused) {
+        post(() -> {
+            if (wsClient == null) {
+                Log.w("WSRTCClient", "Dropping video state before joining a room.");
+                return;
+            }
+            if (!remoteVideoPaused) {
+                // Older peers report unknown messages as errors.
+                Log.d("WSRTCClient", "Remote peer does not take video state, dropping it.");
+                return;
+            }
+            // Both sides are on the websocket server mid-call, the channel
+            // queues it across a reconnect.
+            wsClient.send(codec.videoPaused(paused));
+        });
+    }
+
+    @Override
+    public void sendRenegotiationRequest() {
+        post(() -> {
+            if (wsClient == null) {
+                Log.w("WSRTCClient", "Dropping renegotiation request before joining a room.");
+                return;
+            }
+            if (!remoteRenegotiate) {
+                // The change takes effect with the next offer the initiator sends anyway.
+                Log.d("WSRTCClient", "Remote peer does not take renegotiation requests, dropping it.");
+                return;
             }
+            wsClient.send(codec.renegotiate());
         });
     }
 
 
     private void reportError(final String errorMessage) {
         Log.e("WSRTCClient", errorMessage);
-        handler.post(() -> {
+        metrics.recordError("WSRTCClient", errorMessage);
+        post(() -> {
             if (roomState != ConnectionState.ERROR) {
                 roomState = ConnectionState.ERROR;
                 events.onChannelError(errorMessage);
@@ -164,29 +258,37 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelClient.
     }
 
     // Send SDP or ICE candidate to a room server.
-    private void sendPostMessage(final MessageType messageType, final String url, final String message) {
-        AsyncHttpURLConnection httpConnection = new AsyncHttpURLConnection("POST", url, message, new AsyncHttpURLConnection.AsyncHttpEvents() {
-                    @Override
-                    public void onHttpError(String errorMessage) {
-                        reportError("GAE POST error: " + errorMessage);
-                    }
+    private CompletableFuture<Void> sendPostMessage(final MessageType messageType, final String url, final String message) {
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        httpSender.send("POST", url, message, new AsyncHttpURLConnection.AsyncHttpEvents() {
+            @Override
+            public void onHttpError(String errorMessage) {
+                if (messageType == MessageType.LEAVE) {
+                    // Nobody is listening for errors while leaving.
+                    Log.e("WSRTCClient", "GAE POST error: " + errorMessage);
+                } else {
+                    reportError("GAE POST error: " + errorMessage);
+                }
+                done.complete(null);
+            }
 
-                    @Override
-                    public void onHttpComplete(String response) {
-                        if (messageType == MessageType.MESSAGE) {
-                            try {
-                                JSONObject roomJson = new JSONObject(response);
-                                String result = roomJson.getString("result");
-                                if (!result.equals("SUCCESS")) {
-                                    reportError("GAE POST error: " + result);
-                                }
-                            } catch (JSONException e) {
-                                reportError("GAE POST JSON error: " + e.toString());
-                            }
+            @Override
+            public void onHttpComplete(String response) {
+                done.complete(null);
+                if (messageType == MessageType.MESSAGE) {
+                    try {
+                        JSONObject roomJson = new JSONObject(response);
+                        String result = roomJson.getString("result");
+                        if (!result.equals("SUCCESS")) {
+                            reportError("GAE POST error: " + result);
                         }
+                    } catch (JSONException e) {
+                        reportError("GAE POST JSON error: " + e.toString());
                     }
-                });
-        httpConnection.send();
+                }
+            }
+        });
+        return done;
     }
 
 
@@ -201,32 +303,36 @@ public class WebSocketRTCClient implements AppRTCClient, WebSocketChannelClient.
             return;
         }
         try {
-            JSONObject json = new JSONObject(msg);
-            String msgText = json.getString("msg");
-            json = new JSONObject(msgText);
-            String type = json.optString("type");
+            codec.readEnvelope(msg, message);
+            String type = message.type;
 
             switch (type) {
-                case "candidate":
-                    events.onRemoteIceCandidate(Util.toJavaCandidate(json));
+                case SignalingCodec.TYPE_CANDIDATE:
+                    events.onRemoteIceCandidate(message.candidates.get(0));
                     break;
-                case "remove-candidates":
-                    JSONArray candidateArray = json.getJSONArray("candidates");
-                    IceCandidate[] candidates = new IceCandidate[candidateArray.length()];
-                    for (int i = 0; i < candidateArray.length(); ++i) {
-                        candidates[i] = Util.toJavaCandidate(candidateArray.getJSONObject(i));
-                    }
-                    events.onRemoteIceCandidatesRemoved(candidates);
+                case SignalingCodec.TYPE_REMOVE_CANDIDATES:
+                    events.onRemoteIceCandidatesRemoved(message.candidates.toArray(new IceCandidate[0]));
+                    break;
+                case SignalingCodec.TYPE_ANSWER:
+                case SignalingCodec.TYPE_OFFER:
+                    remoteSdpCompression = message.sdpCompression;
+                    remoteVideoPaused = message.videoPaused;
+                    remoteRenegotiate = message.renegotiate;
+                    events.onRemoteDescription(new SessionDescription(SessionDescription.Type.fromCanonicalForm(type), message.sdp));
+                    break;
+                case SignalingCodec.TYPE_VIDEO_PAUSED:
+                case SignalingCodec.TYPE_VIDEO_RESUMED:
+                    events.onRemoteVideoPaused(type.equals(SignalingCodec.TYPE_VIDEO_PAUSED));
                     break;
-                case "answer":
-                case "offer":
-                    events.onRemoteDescription(new SessionDescription(SessionDescription.Type.fromCanonicalForm(type), json.getString("sdp")));
+                case SignalingCodec.TYPE_RENEGOTIATE:
+                    events.onRemoteRenegotiationRequest();
                     break;
-                case "bye":
+                case SignalingCodec.TYPE_BYE:
                     events.onChannelClose();
                     break;
                 default:
-                    reportError("Unexpected WebSocket message: " + msg);
+                    // Newer peers may send types this version does not know.
+                    Log.w("WSRTCClient", "Ignoring unknown WebSocket message: " + msg);
             }
         } catch (JSONException e) {
             reportError("WebSocket message JSON parsing error: " + e.toString());
@@ -0,0 +1,44 @@
+package com.marcuschiu.meet.client;
+
+import java.io.IOException;
+import java.net.URI;
+
+/**
+ * A WebSocket connection carrying text frames. WebSocketChannelClient only
+ * talks to this interface, so the signaling channel can run on different
+ * WebSocket implementations or against a stand-in server.
+ */
+public interface WebSocketTransport {
+
+    interface Factory {
+        WebSocketTransport create();
+    }
+
+    /**
+     * Callbacks may come on any thread.
+     */
+    interface Observer {
+        void onOpen();
+
+        void onClose(String reason);
+
+        void onTextMessage(String payload);
+
+        /**
+         * A pong answering sendPing(), or unsolicited. The server sends it
+         * after reading every frame sent before the ping.
+         */
+        void onPong(byte[] payload);
+    }
+
+    void connect(URI uri, Observer observer) throws IOException;
+
+    void sendTextMessage(String message);
+
+    /**
+     * Sends a ping with up to 125 bytes of |payload|, dropped unless open.
+     */
+    void sendPing(byte[] payload);
+
+    void disconnect();
+}
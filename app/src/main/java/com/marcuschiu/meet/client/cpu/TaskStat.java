@@ -0,0 +1,109 @@
+package com.marcuschiu.meet.client.cpu;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Parses the stat file of a process or thread, /proc/[pid]/stat or
+ * /proc/[pid]/task/[tid]/stat, into a reused buffer:
+ * <pre>
+ *   tid (comm) state ppid pgrp session tty_nr tpgid flags minflt cminflt majflt cmajflt utime stime ...
+ * </pre>
+ * The name may contain spaces and parentheses, so fields are counted from
+ * the last ')'. Re-reading the same open file from offset 0 returns fresh
+ * values, which keeps repeated samples free of allocation.
+ */
+public class TaskStat {
+    // Field 14, counted from the state field after the name.
+    private static final int UTIME_FIELD = 11;
+    private static final int STIME_FIELD = 12;
+
+    private final byte[] buffer = new byte[1024];
+    private int nameStart;
+    private int nameEnd;
+
+    /**
+     * User mode CPU time in clock ticks.
+     */
+    public long utimeTicks;
+    /**
+     * Kernel mode CPU time in clock ticks.
+     */
+    public long stimeTicks;
+
+    /**
+     * Reads and parses |file| from its start. Returns false if the content
+     * is malformed; an exited thread throws IOException or reads empty.
+     */
+    public boolean read(RandomAccessFile file) throws IOException {
+        file.seek(0);
+        int length = 0;
+        int n;
+        while (length < buffer.length && (n = file.read(buffer, length, buffer.length - length)) > 0) {
+            length += n;
+        }
+        return parse(length);
+    }
+
+    public long totalTicks() {
+        return utimeTicks + stimeTicks;
+    }
+
+    /**
+     * The thread name of the last read, allocates.
+     */
+    public String name() {
+        return new String(buffer, nameStart, nameEnd - nameStart, StandardCharsets.UTF_8);
+    }
+
+    private boolean parse(int length) {
+        int open = -1;
+        int close = -1;
+        for (int i = 0; i < length; i++) {
+            if (buffer[i] == '(' && open < 0) {
+                open = i;
+            } else if (buffer[i] == ')') {
+                close = i;
+            }
+        }
+        if (open < 0 || close < open) {
+            return false;
+        }
+        nameStart = open + 1;
+        nameEnd = close;
+
+        int field = -1;
+        int i = close + 1;
+        utimeTicks = -1;
+        stimeTicks = -1;
+        while (i < length && field < STIME_FIELD) {
+            while (i < length && buffer[i] == ' ') {
+                i++;
+            }
+            if (i >= length) {
+                break;
+            }
+            field++;
+            if (field == UTIME_FIELD || field == STIME_FIELD) {
+                long value = 0;
+                int digits = 0;
+                for (; i < length && buffer[i] >= '0' && buffer[i] <= '9'; i++, digits++) {
+                    value = value * 10 + (buffer[i] - '0');
+                }
+                if (digits == 0) {
+                    return false;
+                }
+                if (field == UTIME_FIELD) {
+                    utimeTicks = value;
+                } else {
+                    stimeTicks = value;
+                }
+            }
+            while (i < length && buffer[i] != ' ') {
+                i++;
+            }
+        }
+        return utimeTicks >= 0 && stimeTicks >= 0;
+    }
+}
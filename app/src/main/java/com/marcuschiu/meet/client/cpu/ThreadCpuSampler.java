@@ -0,0 +1,280 @@
+package com.marcuschiu.meet.client.cpu;
+
+import android.util.Log;
+
+import com.marcuschiu.meet.client.util.CallMetrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Attributes the process' CPU time to groups of threads, e.g. encoder,
+ * decoder, network and the app's own threads, by sampling
+ * /proc/self/task/[tid]/stat. Every period the CPU used by each group
+ * since the last sample is recorded as metric "cpu_[group]_ms". The whole
+ * process is recorded as "cpu_process_ms". Threads that exited between two
+ * samples are missing from the groups but still count in the process
+ * total.
+ *
+ * <p>Stat files stay open and are re-read in place. Each sample still
+ * allocates, mostly for the directory listing with one String per thread;
+ * new threads also open their stat file and have their name matched
+ * against the groups. The process directory can point at fixture files
+ * with the same layout.
+ *
+ * <p>Threads are grouped once, by tid, when first seen. A new thread that
+ * reuses the tid of one that exited between two samples keeps the old
+ * thread's group for as long as the open stat file still reads. Tids are
+ * only reused after wrapping around pid_max, so this is rare.
+ */
+public class ThreadCpuSampler {
+    private static final String TAG = "ThreadCpuSampler";
+    private static final String MAIN_GROUP = "main";
+    private static final String OTHER_GROUP = "other";
+
+    public static class Config {
+        public long periodMs = 5000;
+        // USER_HZ, 100 on Android and most Linux builds.
+        public int clockTicksPerSecond = 100;
+        // Thread name patterns by group, the first match wins. Linux cuts
+        // names to 15 bytes, e.g. "signaling_thread" is "signaling_threa".
+        // The main thread and threads matching no pattern get groups of
+        // their own.
+        public final Map<String, Pattern> groups = new LinkedHashMap<>();
+
+        public Config() {
+            groups.put("pc_client", Pattern.compile("PCClient"));
+            groups.put("signaling", Pattern.compile("WSRTCClient|WebSocketIO|WSResolver|AsyncHttp|CallState"));
+            groups.put("webrtc_worker", Pattern.compile("worker_thread|signaling_threa.*|call_worker_que.*"));
+            groups.put("network", Pattern.compile("network_thread|PacerThread|ModuleProcessTh.*|rtp_send.*"));
+            groups.put("encoder", Pattern.compile("EncoderQueue|.*Encoder.*"));
+            groups.put("decoder", Pattern.compile("DecodingThread|IncomingVideoSt.*|.*Decoder.*"));
+            groups.put("audio", Pattern.compile("AudioRecord.*|AudioTrack.*|.*Audio.*"));
+            groups.put("capture", Pattern.compile("VideoCapturerTh.*|CameraThread|.*EglRend.*"));
+        }
+    }
+
+    private static class Task {
+        final RandomAccessFile file;
+        final int group;
+        long lastTicks;
+        boolean seen;
+
+        Task(RandomAccessFile file, int group) {
+            this.file = file;
+            this.group = group;
+        }
+    }
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "CpuSampler");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final File processDirectory;
+    private final File taskDirectory;
+    private final Config config;
+    private final CallMetrics metrics;
+    private final String[] groupNames;
+    private final Pattern[] patterns;
+    private final String[] metricNames;
+    private final long[] intervalTicks;
+    private final Map<String, Task> tasks = new HashMap<>();
+    private final TaskStat stat = new TaskStat();
+    private RandomAccessFile processStat;
+    private String mainTid;
+    private long lastProcessTicks;
+    // The first sample only sets the baseline.
+    private boolean primed;
+
+    /**
+     * Samples the process in |processDirectory|, /proc/self on a device.
+     */
+    public ThreadCpuSampler(File processDirectory, Config config, CallMetrics metrics) {
+        this.processDirectory = processDirectory;
+        this.taskDirectory = new File(processDirectory, "task");
+        this.config = config;
+        this.metrics = metrics;
+        int groups = config.groups.size() + 2;
+        groupNames = new String[groups];
+        patterns = new Pattern[groups];
+        int i = 0;
+        for (Map.Entry<String, Pattern> entry : config.groups.entrySet()) {
+            groupNames[i] = entry.getKey();
+            patterns[i++] = entry.getValue();
+        }
+        groupNames[i++] = MAIN_GROUP;
+        groupNames[i] = OTHER_GROUP;
+        metricNames = new String[groups];
+        for (i = 0; i < groups; i++) {
+            metricNames[i] = "cpu_" + groupNames[i] + "_ms";
+        }
+        intervalTicks = new long[groups];
+    }
+
+    public void start() {
+        try {
+            executor.scheduleAtFixedRate(this::sample, 0, config.periodMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            Log.d(TAG, "Ignoring start after stop");
+        }
+    }
+
+    /**
+     * Records a last sample and closes the stat files.
+     */
+    public void stop() {
+        try {
+            executor.execute(() -> {
+                sample();
+                close();
+            });
+        } catch (RejectedExecutionException e) {
+            return;
+        }
+        executor.shutdown();
+    }
+
+    /**
+     * Reads all threads once and records the CPU time used since the last
+     * call. Runs on the calling thread, for use without start(), e.g.
+     * against fixture files.
+     */
+    public synchronized void sample() {
+        try {
+            if (processStat == null) {
+                processStat = new RandomAccessFile(new File(processDirectory, "stat"), "r");
+            }
+            if (!stat.read(processStat)) {
+                Log.w(TAG, "Malformed process stat");
+                return;
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot read process stat: " + e.getMessage());
+            return;
+        }
+        long processTicks = stat.totalTicks();
+        // A String per thread every sample, a directory cannot be listed
+        // into reused storage.
+        String[] tids = taskDirectory.list();
+        if (tids == null) {
+            Log.w(TAG, "Cannot list " + taskDirectory);
+            return;
+        }
+        if (mainTid == null) {
+            // The main thread's tid is the pid, the name of the process directory.
+            mainTid = readPid();
+        }
+
+        for (int i = 0; i < intervalTicks.length; i++) {
+            intervalTicks[i] = 0;
+        }
+        for (Task task : tasks.values()) {
+            task.seen = false;
+        }
+        for (String tid : tids) {
+            Task task = tasks.get(tid);
+            try {
+                if (task == null) {
+                    task = open(tid);
+                    tasks.put(tid, task);
+                    if (!primed) {
+                        task.lastTicks = stat.totalTicks();
+                    }
+                } else if (!stat.read(task.file)) {
+                    continue;
+                }
+            } catch (IOException e) {
+                // Exited since the directory was listed.
+                continue;
+            }
+            long ticks = stat.totalTicks();
+            intervalTicks[task.group] += Math.max(0, ticks - task.lastTicks);
+            task.lastTicks = ticks;
+            task.seen = true;
+        }
+        for (Iterator<Task> it = tasks.values().iterator(); it.hasNext(); ) {
+            Task task = it.next();
+            if (!task.seen) {
+                closeQuietly(task.file);
+                it.remove();
+            }
+        }
+
+        if (primed) {
+            for (int i = 0; i < intervalTicks.length; i++) {
+                if (intervalTicks[i] > 0) {
+                    metrics.record(metricNames[i], ticksToMs(intervalTicks[i]));
+                }
+            }
+            metrics.record("cpu_process_ms", ticksToMs(processTicks - lastProcessTicks));
+        }
+        lastProcessTicks = processTicks;
+        primed = true;
+    }
+
+    // Opens and reads the stat of a thread not seen before.
+    private Task open(String tid) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(new File(taskDirectory, tid + "/stat"), "r");
+        try {
+            if (!stat.read(file)) {
+                throw new IOException("Malformed stat of thread " + tid);
+            }
+        } catch (IOException e) {
+            closeQuietly(file);
+            throw e;
+        }
+        return new Task(file, tid.equals(mainTid) ? groupNames.length - 2 : groupOf(stat.name()));
+    }
+
+    private int groupOf(String name) {
+        for (int i = 0; i < patterns.length; i++) {
+            if (patterns[i] != null && patterns[i].matcher(name).matches()) {
+                return i;
+            }
+        }
+        return groupNames.length - 1;
+    }
+
+    // /proc/self is a link to the pid's directory.
+    private String readPid() {
+        try {
+            return processDirectory.getCanonicalFile().getName();
+        } catch (IOException e) {
+            return processDirectory.getName();
+        }
+    }
+
+    private long ticksToMs(long ticks) {
+        return ticks * 1000 / config.clockTicksPerSecond;
+    }
+
+    private synchronized void close() {
+        for (Task task : tasks.values()) {
+            closeQuietly(task.file);
+        }
+        tasks.clear();
+        if (processStat != null) {
+            closeQuietly(processStat);
+            processStat = null;
+        }
+    }
+
+    private static void closeQuietly(RandomAccessFile file) {
+        try {
+            file.close();
+        } catch (IOException e) {
+            // Nothing left to read.
+        }
+    }
+}
@@ -0,0 +1,535 @@
+package com.marcuschiu.meet.client.data;
+
+import android.util.Log;
+
+import com.marcuschiu.meet.client.util.ByteBufferPool;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Message and file transfer over a MessageChannel. Payloads are split into
+ * chunks small enough for any SCTP implementation, sending pauses while the
+ * channel buffers more than HIGH_WATER_MARK bytes and resumes once it drained
+ * below LOW_WATER_MARK. A chunk the channel refuses is retried after a
+ * growing delay, the transfer fails after Config.maxSendAttempts refusals
+ * and the receiver is told to drop it.
+ *
+ * <p>Inbound transfers reserve their declared length up front, so their
+ * number and the bytes they reserve are capped by the Config, and a
+ * transfer beyond either limit is rejected before anything is allocated.
+ * The receiver acknowledges each reassembled transfer or reports the
+ * rejection, and only then does the sender report it complete or failed.
+ * Inbound transfers that see no chunk for Config.inboundIdleTimeoutMs are
+ * dropped, in case the sender's abort was lost too.
+ *
+ * <p>Chunk layout: kind (1 byte), transfer id, total length and offset
+ * (4 bytes each, big endian), then the payload. Control chunks carry the
+ * payload length as total length, offset 0, and a UTF-8 reason if any.
+ *
+ * <p>All state is confined to |executor|.
+ */
+public class DataChannelTransport implements MessageChannel.Observer {
+    private static final String TAG = "DataChannelTransport";
+
+    public static final int CHUNK_SIZE = 16 * 1024;
+    private static final int HEADER_SIZE = 13;
+    private static final int POOLED_CHUNKS = 16;
+    static final long HIGH_WATER_MARK = 1024 * 1024;
+    static final long LOW_WATER_MARK = 256 * 1024;
+    private static final int MAX_TRANSFER_SIZE = 64 * 1024 * 1024;
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    private static final byte KIND_TEXT = 0;
+    private static final byte KIND_BINARY = 1;
+    // Control chunks. The sender gave up its transfer |id|.
+    private static final byte KIND_ABORT = 2;
+    // The receiver reassembled, or rejected, the transfer |id| we sent.
+    private static final byte KIND_ACK = 3;
+    private static final byte KIND_REJECT = 4;
+
+    public static class Config {
+        /**
+         * Inbound transfers reassembled at once.
+         */
+        public int maxInboundTransfers = 4;
+        /**
+         * Bytes reserved by all inbound transfers being reassembled.
+         */
+        public int maxInboundBytes = 16 * 1024 * 1024;
+        /**
+         * Interval of onTransferProgress() while sending.
+         */
+        public long progressIntervalMs = 250;
+        /**
+         * Delay before the first retry of a refused chunk, doubled for each
+         * further one.
+         */
+        public long sendRetryDelayMs = 50;
+        public int maxSendAttempts = 6;
+        /**
+         * Time without a chunk after which an inbound transfer is dropped.
+         */
+        public long inboundIdleTimeoutMs = 30000;
+    }
+
+    public interface Listener {
+        void onMessage(String message);
+
+        void onData(int transferId, ByteBuffer data);
+
+        void onTransferProgress(int transferId, long bytesSent, long totalBytes, long bytesPerSecond);
+
+        /**
+         * The receiver reassembled the whole transfer.
+         */
+        void onTransferComplete(int transferId, long totalBytes, long bytesPerSecond);
+
+        /**
+         * A transfer was given up. Either one we sent, because the channel
+         * refused it or the receiver rejected it, or, with the sender's id,
+         * one we rejected, the sender aborted or that went idle.
+         */
+        void onTransferFailed(int transferId, String reason);
+    }
+
+    private static class Transfer {
+        final int id;
+        final byte kind;
+        final ByteBuffer data;
+        final int totalLength;
+        long startNanos;
+        long progressNanos;
+
+        Transfer(int id, byte kind, ByteBuffer data) {
+            this.id = id;
+            this.kind = kind;
+            this.data = data;
+            this.totalLength = data.remaining();
+        }
+    }
+
+    private static class Inbound {
+        final byte kind;
+        final ByteBuffer data;
+        int received;
+        long lastChunkNanos;
+
+        Inbound(byte kind, int totalLength) {
+            this.kind = kind;
+            this.data = ByteBuffer.allocate(totalLength);
+        }
+    }
+
+    private final ScheduledExecutorService executor;
+    private final Config config;
+    private final ByteBufferPool pool = new ByteBufferPool(CHUNK_SIZE, POOLED_CHUNKS);
+    private final ArrayDeque<Transfer> outgoing = new ArrayDeque<>();
+    // Sent in full, waiting for the receiver's ack or reject.
+    private final Map<Integer, Transfer> unacknowledged = new HashMap<>();
+    private final Map<Integer, Inbound> incoming = new HashMap<>();
+    // Inbound transfers whose remaining chunks are dropped, with the time
+    // their last chunk arrived.
+    private final Map<Integer, Long> rejected = new HashMap<>();
+    private int inboundBytes;
+    private MessageChannel channel;
+    private Listener listener;
+    private int nextTransferId;
+    private boolean paused;
+    // Refusals of the chunk at the head of |outgoing|.
+    private int sendFailures;
+    private ScheduledFuture<?> retryTimer;
+    private ScheduledFuture<?> expiryTimer;
+
+    public DataChannelTransport(ScheduledExecutorService executor) {
+        this(executor, new Config());
+    }
+
+    public DataChannelTransport(ScheduledExecutorService executor, Config config) {
+        this.executor = executor;
+        this.config = config;
+    }
+
+    public void setListener(final Listener listener) {
+        executor.execute(() -> this.listener = listener);
+    }
+
+    /**
+     * Starts using |channel|. Transfers queued before are sent once it opens.
+     */
+    public void attach(final MessageChannel channel) {
+        executor.execute(() -> {
+            this.channel = channel;
+            channel.setObserver(this);
+            pump();
+        });
+    }
+
+    public void detach() {
+        executor.execute(() -> {
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+            cancelRetry();
+            if (expiryTimer != null) {
+                expiryTimer.cancel(false);
+                expiryTimer = null;
+            }
+            outgoing.clear();
+            unacknowledged.clear();
+            paused = false;
+            sendFailures = 0;
+            incoming.clear();
+            rejected.clear();
+            inboundBytes = 0;
+        });
+    }
+
+    /**
+     * Queues a text message. Returns the transfer id.
+     */
+    public int sendMessage(String message) {
+        return send(KIND_TEXT, ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Queues the remaining bytes of |data|, e.g. a memory-mapped file, which
+     * must not be modified until the transfer completes. Returns the transfer
+     * id.
+     */
+    public int sendData(ByteBuffer data) {
+        return send(KIND_BINARY, data.slice());
+    }
+
+    private synchronized int nextTransferId() {
+        return nextTransferId++;
+    }
+
+    private int send(byte kind, ByteBuffer data) {
+        if (data.remaining() > MAX_TRANSFER_SIZE) {
+            throw new IllegalArgumentException("Transfer of " + data.remaining() + " bytes is too large");
+        }
+        final Transfer transfer = new Transfer(nextTransferId(), kind, data);
+        executor.execute(() -> {
+            outgoing.add(transfer);
+            if (!paused) {
+                pump();
+            }
+        });
+        return transfer.id;
+    }
+
+    // Sends chunks until the queue is empty or the channel buffers too much.
+    private void pump() {
+        if (channel == null || !channel.isOpen()) {
+            return;
+        }
+        while (!outgoing.isEmpty()) {
+            if (channel.bufferedAmount() >= HIGH_WATER_MARK) {
+                paused = true;
+                reportProgress(outgoing.peek());
+                return;
+            }
+            Transfer transfer = outgoing.peek();
+            if (transfer.startNanos == 0) {
+                transfer.startNanos = System.nanoTime();
+                transfer.progressNanos = transfer.startNanos;
+            }
+            int offset = transfer.data.position();
+            int length = Math.min(transfer.data.remaining(), CHUNK_SIZE - HEADER_SIZE);
+
+            ByteBuffer chunk = pool.acquire();
+            chunk.put(transfer.kind).putInt(transfer.id).putInt(transfer.totalLength).putInt(offset);
+            ByteBuffer payload = transfer.data.duplicate();
+            payload.limit(offset + length);
+            chunk.put(payload);
+            chunk.flip();
+            boolean sent = channel.send(chunk, true);
+            pool.release(chunk);
+            if (!sent) {
+                // No buffered amount change may follow, e.g. the channel was
+                // full but nothing of ours was queued, so retry on a timer.
+                if (++sendFailures >= config.maxSendAttempts) {
+                    Log.e(TAG, "Giving up transfer " + transfer.id + " after " + sendFailures + " failed sends");
+                    outgoing.poll();
+                    sendFailures = 0;
+                    if (transfer.data.position() > 0) {
+                        sendControl(KIND_ABORT, transfer.id, "");
+                    }
+                    if (listener != null) {
+                        listener.onTransferFailed(transfer.id, "Channel refused data");
+                    }
+                    continue;
+                }
+                long delayMs = config.sendRetryDelayMs << (sendFailures - 1);
+                Log.w(TAG, "Failed to send chunk of transfer " + transfer.id + ", retrying in " + delayMs + " ms");
+                paused = true;
+                scheduleRetry(delayMs);
+                return;
+            }
+            sendFailures = 0;
+
+            transfer.data.position(offset + length);
+            if (!transfer.data.hasRemaining()) {
+                outgoing.poll();
+                unacknowledged.put(transfer.id, transfer);
+            } else if (System.nanoTime() - transfer.progressNanos >= TimeUnit.MILLISECONDS.toNanos(config.progressIntervalMs)) {
+                reportProgress(transfer);
+            }
+        }
+        paused = false;
+    }
+
+    // Best effort: a lost abort is covered by the receiver's idle timeout,
+    // a lost ack or reject leaves the transfer unacknowledged until detach().
+    private void sendControl(byte kind, int transferId, String reason) {
+        byte[] payload = reason.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer chunk = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+        chunk.put(kind).putInt(transferId).putInt(payload.length).putInt(0).put(payload);
+        chunk.flip();
+        if (channel == null || !channel.send(chunk, true)) {
+            Log.w(TAG, "Failed to send control chunk " + kind + " for transfer " + transferId);
+        }
+    }
+
+    private void scheduleRetry(long delayMs) {
+        cancelRetry();
+        retryTimer = executor.schedule(() -> {
+            retryTimer = null;
+            if (paused) {
+                pump();
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void cancelRetry() {
+        if (retryTimer != null) {
+            retryTimer.cancel(false);
+            retryTimer = null;
+        }
+    }
+
+    private void reportProgress(Transfer transfer) {
+        if (listener != null && transfer.startNanos != 0) {
+            long sent = transfer.data.position();
+            transfer.progressNanos = System.nanoTime();
+            listener.onTransferProgress(transfer.id, sent, transfer.totalLength, throughput(transfer, sent));
+        }
+    }
+
+    private static long throughput(Transfer transfer, long bytes) {
+        long elapsedNanos = Math.max(1, System.nanoTime() - transfer.startNanos);
+        return bytes * NANOS_PER_SECOND / elapsedNanos;
+    }
+
+    private void onChunk(ByteBuffer chunk) {
+        if (chunk.remaining() < HEADER_SIZE) {
+            Log.e(TAG, "Dropping short chunk of " + chunk.remaining() + " bytes");
+            return;
+        }
+        byte kind = chunk.get();
+        int transferId = chunk.getInt();
+        int totalLength = chunk.getInt();
+        int offset = chunk.getInt();
+        if (kind >= KIND_ABORT) {
+            onControl(kind, transferId, StandardCharsets.UTF_8.decode(chunk).toString());
+            return;
+        }
+        if (totalLength < 0 || totalLength > MAX_TRANSFER_SIZE || offset < 0 || offset + chunk.remaining() > totalLength) {
+            Log.e(TAG, "Dropping malformed chunk of transfer " + transferId);
+            removeInbound(transferId);
+            return;
+        }
+        long now = System.nanoTime();
+        Inbound inbound = incoming.get(transferId);
+        if (inbound == null) {
+            if (rejected.containsKey(transferId)) {
+                // Chunks arrive in order, forget the transfer after its last one.
+                if (offset + chunk.remaining() == totalLength) {
+                    rejected.remove(transferId);
+                } else {
+                    rejected.put(transferId, now);
+                }
+                return;
+            }
+            String reason = null;
+            if (incoming.size() >= config.maxInboundTransfers) {
+                reason = "Too many inbound transfers";
+            } else if (totalLength > config.maxInboundBytes - inboundBytes) {
+                reason = "Inbound transfer of " + totalLength + " bytes exceeds the limit";
+            }
+            if (reason != null) {
+                Log.e(TAG, "Rejecting transfer " + transferId + ": " + reason);
+                if (offset + chunk.remaining() < totalLength) {
+                    rejected.put(transferId, now);
+                    scheduleExpiry();
+                }
+                sendControl(KIND_REJECT, transferId, reason);
+                if (listener != null) {
+                    listener.onTransferFailed(transferId, reason);
+                }
+                return;
+            }
+            inbound = new Inbound(kind, totalLength);
+            incoming.put(transferId, inbound);
+            inboundBytes += totalLength;
+            scheduleExpiry();
+        }
+        inbound.lastChunkNanos = now;
+        inbound.received += chunk.remaining();
+        inbound.data.position(offset);
+        inbound.data.put(chunk);
+        if (inbound.received < totalLength) {
+            return;
+        }
+        removeInbound(transferId);
+        sendControl(KIND_ACK, transferId, "");
+        inbound.data.clear();
+        if (listener == null) {
+            return;
+        }
+        if (inbound.kind == KIND_TEXT) {
+            listener.onMessage(new String(inbound.data.array(), 0, totalLength, StandardCharsets.UTF_8));
+        } else {
+            listener.onData(transferId, inbound.data);
+        }
+    }
+
+    private void onControl(byte kind, int transferId, String reason) {
+        switch (kind) {
+            case KIND_ABORT:
+                rejected.remove(transferId);
+                if (removeInbound(transferId) && listener != null) {
+                    listener.onTransferFailed(transferId, "Aborted by sender");
+                }
+                return;
+            case KIND_ACK: {
+                Transfer transfer = unacknowledged.remove(transferId);
+                if (transfer != null && listener != null) {
+                    listener.onTransferComplete(transfer.id, transfer.totalLength, throughput(transfer, transfer.totalLength));
+                }
+                return;
+            }
+            case KIND_REJECT: {
+                Transfer transfer = unacknowledged.remove(transferId);
+                if (transfer == null) {
+                    // Rejected on its first chunk, while the rest is still queued.
+                    for (Iterator<Transfer> it = outgoing.iterator(); it.hasNext(); ) {
+                        Transfer queued = it.next();
+                        if (queued.id == transferId) {
+                            if (queued == outgoing.peek()) {
+                                sendFailures = 0;
+                            }
+                            it.remove();
+                            transfer = queued;
+                            break;
+                        }
+                    }
+                }
+                if (transfer != null && listener != null) {
+                    listener.onTransferFailed(transferId, "Rejected by receiver: " + reason);
+                }
+                return;
+            }
+            default:
+                Log.e(TAG, "Dropping chunk of unknown kind " + kind);
+        }
+    }
+
+    // Returns true if the transfer was being reassembled.
+    private boolean removeInbound(int transferId) {
+        Inbound inbound = incoming.remove(transferId);
+        if (inbound == null) {
+            return false;
+        }
+        inboundBytes -= inbound.data.capacity();
+        return true;
+    }
+
+    private void scheduleExpiry() {
+        if (expiryTimer == null) {
+            expiryTimer = executor.schedule(this::expireIdleInbound, config.inboundIdleTimeoutMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void expireIdleInbound() {
+        expiryTimer = null;
+        long idleNanos = TimeUnit.MILLISECONDS.toNanos(config.inboundIdleTimeoutMs);
+        long now = System.nanoTime();
+        for (Iterator<Map.Entry<Integer, Inbound>> it = incoming.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Integer, Inbound> entry = it.next();
+            if (now - entry.getValue().lastChunkNanos >= idleNanos) {
+                it.remove();
+                inboundBytes -= entry.getValue().data.capacity();
+                Log.w(TAG, "Dropping idle transfer " + entry.getKey());
+                if (listener != null) {
+                    listener.onTransferFailed(entry.getKey(), "Inbound transfer timed out");
+                }
+            }
+        }
+        for (Iterator<Long> it = rejected.values().iterator(); it.hasNext(); ) {
+            if (now - it.next() >= idleNanos) {
+                it.remove();
+            }
+        }
+        if (!incoming.isEmpty() || !rejected.isEmpty()) {
+            scheduleExpiry();
+        }
+    }
+
+
+    /////////////////////////////
+    // MessageChannel.Observer //
+    /////////////////////////////
+
+    @Override
+    public void onOpen() {
+        executor.execute(this::pump);
+    }
+
+    @Override
+    public void onClose() {
+        executor.execute(() -> {
+            if (!outgoing.isEmpty()) {
+                Log.w(TAG, "Channel closed with " + outgoing.size() + " pending transfers");
+            }
+            cancelRetry();
+            paused = false;
+        });
+    }
+
+    @Override
+    public void onBufferedAmountChange(long bufferedAmount) {
+        if (bufferedAmount <= LOW_WATER_MARK) {
+            executor.execute(() -> {
+                if (paused) {
+                    pump();
+                }
+            });
+        }
+    }
+
+    @Override
+    public void onMessage(ByteBuffer data, boolean binary) {
+        // |data| is released once this returns, copy it before hopping threads.
+        if (data.remaining() > pool.getBufferSize()) {
+            Log.e(TAG, "Dropping oversized message of " + data.remaining() + " bytes");
+            return;
+        }
+        final ByteBuffer chunk = pool.acquire();
+        chunk.put(data);
+        chunk.flip();
+        executor.execute(() -> {
+            onChunk(chunk);
+            pool.release(chunk);
+        });
+    }
+}
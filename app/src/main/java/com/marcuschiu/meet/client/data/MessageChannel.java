@@ -0,0 +1,42 @@
+package com.marcuschiu.meet.client.data;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The part of a WebRTC DataChannel used by DataChannelTransport, so the
+ * transport can run against an in-memory channel outside a peer connection.
+ */
+public interface MessageChannel {
+
+    interface Observer {
+        void onOpen();
+
+        void onClose();
+
+        /**
+         * Called whenever the amount of data queued for sending changed.
+         */
+        void onBufferedAmountChange(long bufferedAmount);
+
+        /**
+         * |data| is only valid for the duration of the call.
+         */
+        void onMessage(ByteBuffer data, boolean binary);
+    }
+
+    void setObserver(Observer observer);
+
+    boolean isOpen();
+
+    /**
+     * Bytes queued for sending but not yet handed to the transport.
+     */
+    long bufferedAmount();
+
+    /**
+     * Queues |data| for sending. The bytes are copied before this returns.
+     */
+    boolean send(ByteBuffer data, boolean binary);
+
+    void close();
+}
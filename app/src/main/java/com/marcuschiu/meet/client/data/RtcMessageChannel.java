@@ -0,0 +1,62 @@
+package com.marcuschiu.meet.client.data;
+
+import org.webrtc.DataChannel;
+
+import java.nio.ByteBuffer;
+
+/**
+ * MessageChannel backed by an org.webrtc.DataChannel.
+ */
+public class RtcMessageChannel implements MessageChannel {
+    private final DataChannel dataChannel;
+
+    public RtcMessageChannel(DataChannel dataChannel) {
+        this.dataChannel = dataChannel;
+    }
+
+    @Override
+    public void setObserver(final Observer observer) {
+        dataChannel.registerObserver(new DataChannel.Observer() {
+            @Override
+            public void onBufferedAmountChange(long previousAmount) {
+                observer.onBufferedAmountChange(dataChannel.bufferedAmount());
+            }
+
+            @Override
+            public void onStateChange() {
+                DataChannel.State state = dataChannel.state();
+                if (state == DataChannel.State.OPEN) {
+                    observer.onOpen();
+                } else if (state == DataChannel.State.CLOSED) {
+                    observer.onClose();
+                }
+            }
+
+            @Override
+            public void onMessage(DataChannel.Buffer buffer) {
+                observer.onMessage(buffer.data, buffer.binary);
+            }
+        });
+    }
+
+    @Override
+    public boolean isOpen() {
+        return dataChannel.state() == DataChannel.State.OPEN;
+    }
+
+    @Override
+    public long bufferedAmount() {
+        return dataChannel.bufferedAmount();
+    }
+
+    @Override
+    public boolean send(ByteBuffer data, boolean binary) {
+        return dataChannel.send(new DataChannel.Buffer(data, binary));
+    }
+
+    @Override
+    public void close() {
+        dataChannel.unregisterObserver();
+        dataChannel.close();
+    }
+}
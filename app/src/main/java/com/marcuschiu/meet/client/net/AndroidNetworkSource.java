@@ -0,0 +1,79 @@
+package com.marcuschiu.meet.client.net;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
+
+/**
+ * NetworkSource backed by ConnectivityManager network callbacks.
+ */
+public class AndroidNetworkSource implements NetworkSource {
+    private final ConnectivityManager connectivityManager;
+    private ConnectivityManager.NetworkCallback allNetworksCallback;
+    private ConnectivityManager.NetworkCallback defaultNetworkCallback;
+
+    public AndroidNetworkSource(Context context) {
+        connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+    }
+
+    @Override
+    public void start(final Listener listener) {
+        allNetworksCallback = new ConnectivityManager.NetworkCallback() {
+            @Override
+            public void onCapabilitiesChanged(Network network, NetworkCapabilities capabilities) {
+                listener.onNetworkAvailable(toNetwork(network, capabilities));
+            }
+
+            @Override
+            public void onLost(Network network) {
+                listener.onNetworkLost(network.getNetworkHandle());
+            }
+        };
+        defaultNetworkCallback = new ConnectivityManager.NetworkCallback() {
+            @Override
+            public void onCapabilitiesChanged(Network network, NetworkCapabilities capabilities) {
+                listener.onDefaultNetworkChanged(toNetwork(network, capabilities));
+            }
+
+            @Override
+            public void onLost(Network network) {
+                listener.onDefaultNetworkChanged(null);
+            }
+        };
+        NetworkRequest request = new NetworkRequest.Builder()
+                .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+                .build();
+        connectivityManager.registerNetworkCallback(request, allNetworksCallback);
+        connectivityManager.registerDefaultNetworkCallback(defaultNetworkCallback);
+    }
+
+    @Override
+    public void stop() {
+        if (allNetworksCallback != null) {
+            connectivityManager.unregisterNetworkCallback(allNetworksCallback);
+            allNetworksCallback = null;
+        }
+        if (defaultNetworkCallback != null) {
+            connectivityManager.unregisterNetworkCallback(defaultNetworkCallback);
+            defaultNetworkCallback = null;
+        }
+    }
+
+    private static NetworkSource.Network toNetwork(Network network, NetworkCapabilities capabilities) {
+        Transport transport;
+        if (capabilities.hasTransport(NetworkCapabilities.TRANSPORT_ETHERNET)) {
+            transport = Transport.ETHERNET;
+        } else if (capabilities.hasTransport(NetworkCapabilities.TRANSPORT_WIFI)) {
+            transport = Transport.WIFI;
+        } else if (capabilities.hasTransport(NetworkCapabilities.TRANSPORT_CELLULAR)) {
+            transport = Transport.CELLULAR;
+        } else {
+            transport = Transport.OTHER;
+        }
+        boolean metered = !capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_METERED);
+        boolean validated = capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_VALIDATED);
+        return new NetworkSource.Network(network.getNetworkHandle(), transport, metered, validated);
+    }
+}
@@ -0,0 +1,202 @@
+package com.marcuschiu.meet.client.net;
+
+import android.util.Log;
+
+import com.marcuschiu.meet.client.util.CallMetrics;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Turns network events into handover requests: when the default network
+ * changes to another one, or when a validated network cheaper than the
+ * current one comes up. Capability updates of networks already known do not
+ * count as changes. The call stays on a cheaper network it moved to while
+ * that network works, even if the default is still another one.
+ *
+ * <p>Requests arriving close together, e.g. a new network appearing and
+ * then becoming the default, are coalesced into one. After a handover,
+ * further ones are held off for Config.holdOffMs unless the network in use
+ * stops working, and a request that ends where the call already is gets
+ * dropped, so flapping networks do not restart ICE over and over.
+ *
+ * <p>All state is confined to |executor|.
+ */
+public class NetworkMonitor implements NetworkSource.Listener {
+    private static final String TAG = "NetworkMonitor";
+
+    public static class Config {
+        /**
+         * Delay that coalesces requests arriving close together.
+         */
+        public long debounceMs = 500;
+        /**
+         * Minimum time between handovers while the network in use works.
+         */
+        public long holdOffMs = 10000;
+    }
+
+    public interface Events {
+        void onNetworkHandover(NetworkSource.Network from, NetworkSource.Network to);
+    }
+
+    private final NetworkSource source;
+    private final Config config;
+    private final ScheduledExecutorService executor;
+    private final CallMetrics metrics;
+    private final Events events;
+    private final Map<Long, NetworkSource.Network> available = new HashMap<>();
+    // The network the call is on, or is being handed over to.
+    private NetworkSource.Network current;
+    private NetworkSource.Network defaultNetwork;
+    private NetworkSource.Network handoverFrom;
+    private NetworkSource.Network handoverTo;
+    private ScheduledFuture<?> pendingHandover;
+    private long gapStartNanos;
+    private long lastHandoverNanos;
+
+    public NetworkMonitor(NetworkSource source, ScheduledExecutorService executor, CallMetrics metrics, Events events) {
+        this(source, new Config(), executor, metrics, events);
+    }
+
+    public NetworkMonitor(NetworkSource source, Config config, ScheduledExecutorService executor, CallMetrics metrics, Events events) {
+        this.source = source;
+        this.config = config;
+        this.executor = executor;
+        this.metrics = metrics;
+        this.events = events;
+    }
+
+    public void start() {
+        source.start(this);
+    }
+
+    public void stop() {
+        source.stop();
+        executor.execute(() -> {
+            if (pendingHandover != null) {
+                pendingHandover.cancel(false);
+                pendingHandover = null;
+            }
+        });
+    }
+
+    @Override
+    public void onNetworkAvailable(final NetworkSource.Network network) {
+        executor.execute(() -> {
+            available.put(network.handle, network);
+            if (current == null) {
+                return;
+            }
+            if (network.handle == current.handle) {
+                current = network;
+                return;
+            }
+            if (network.validated && network.cost() < current.cost()) {
+                Log.d(TAG, "Cheaper network available: " + network + ", current: " + current);
+                requestHandover(network);
+            }
+        });
+    }
+
+    @Override
+    public void onNetworkLost(final long handle) {
+        executor.execute(() -> {
+            available.remove(handle);
+            if (current != null && current.handle == handle) {
+                markGapStart();
+            }
+        });
+    }
+
+    @Override
+    public void onDefaultNetworkChanged(final NetworkSource.Network network) {
+        executor.execute(() -> {
+            if (network == null) {
+                defaultNetwork = null;
+                markGapStart();
+                return;
+            }
+            boolean changed = defaultNetwork == null || defaultNetwork.handle != network.handle;
+            defaultNetwork = network;
+            if (current == null) {
+                requestHandover(network);
+                return;
+            }
+            if (network.handle == current.handle) {
+                current = network;
+                return;
+            }
+            if (!changed) {
+                // Only the capabilities of the default changed.
+                return;
+            }
+            if (isUsable(current) && available.get(current.handle).cost() < network.cost()) {
+                Log.d(TAG, "Staying on cheaper " + current + ", default is " + network);
+                return;
+            }
+            requestHandover(network);
+        });
+    }
+
+    private boolean isUsable(NetworkSource.Network network) {
+        NetworkSource.Network known = available.get(network.handle);
+        return known != null && known.validated;
+    }
+
+    private void markGapStart() {
+        if (gapStartNanos == 0) {
+            gapStartNanos = System.nanoTime();
+        }
+    }
+
+    private void requestHandover(NetworkSource.Network to) {
+        if (handoverTo == null) {
+            handoverFrom = current;
+        } else if (handoverTo.handle == to.handle) {
+            // Already on its way there.
+            handoverTo = to;
+            current = to;
+            return;
+        }
+        handoverTo = to;
+        current = to;
+        if (gapStartNanos != 0) {
+            metrics.record("network_handover_gap_ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - gapStartNanos));
+            gapStartNanos = 0;
+        }
+        long delayMs = config.debounceMs;
+        if (lastHandoverNanos != 0 && handoverFrom != null && isUsable(handoverFrom)) {
+            long sinceMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastHandoverNanos);
+            delayMs = Math.max(delayMs, config.holdOffMs - sinceMs);
+        }
+        if (pendingHandover != null) {
+            pendingHandover.cancel(false);
+        }
+        pendingHandover = executor.schedule(this::fireHandover, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void fireHandover() {
+        NetworkSource.Network from = handoverFrom;
+        NetworkSource.Network to = handoverTo;
+        handoverFrom = null;
+        handoverTo = null;
+        pendingHandover = null;
+        if (from == null) {
+            // First network seen by this call, nothing to hand over from.
+            return;
+        }
+        if (from.handle == to.handle) {
+            // Went away and came back while held off.
+            metrics.increment("network_handovers_suppressed");
+            return;
+        }
+        Log.d(TAG, "Network handover " + from + " -> " + to);
+        lastHandoverNanos = System.nanoTime();
+        metrics.increment("network_handovers");
+        events.onNetworkHandover(from, to);
+    }
+}
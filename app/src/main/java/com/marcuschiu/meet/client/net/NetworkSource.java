@@ -0,0 +1,69 @@
+package com.marcuschiu.meet.client.net;
+
+/**
+ * Source of network availability events, so NetworkMonitor can be driven
+ * without ConnectivityManager.
+ */
+public interface NetworkSource {
+
+    enum Transport {ETHERNET, WIFI, CELLULAR, OTHER}
+
+    class Network {
+        public final long handle;
+        public final Transport transport;
+        public final boolean metered;
+        // Internet access was confirmed on this network.
+        public final boolean validated;
+
+        public Network(long handle, Transport transport, boolean metered, boolean validated) {
+            this.handle = handle;
+            this.transport = transport;
+            this.metered = metered;
+            this.validated = validated;
+        }
+
+        /**
+         * Relative cost of sending over this network, lower is cheaper.
+         */
+        public int cost() {
+            switch (transport) {
+                case ETHERNET:
+                    return 0;
+                case WIFI:
+                    return metered ? 5 : 1;
+                case CELLULAR:
+                    return 10;
+                default:
+                    return metered ? 10 : 5;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return transport + "#" + handle + (metered ? " (metered)" : "") + (validated ? "" : " (unvalidated)");
+        }
+    }
+
+    /**
+     * Callbacks may come on any thread.
+     */
+    interface Listener {
+        /**
+         * |network| came up or its capabilities changed, which may happen
+         * often for the same network.
+         */
+        void onNetworkAvailable(Network network);
+
+        void onNetworkLost(long handle);
+
+        /**
+         * |network| is null if there is no default network. Also called when
+         * the capabilities of the default network change.
+         */
+        void onDefaultNetworkChanged(Network network);
+    }
+
+    void start(Listener listener);
+
+    void stop();
+}
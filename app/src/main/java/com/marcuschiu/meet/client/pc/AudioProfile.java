@@ -0,0 +1,58 @@
+package com.marcuschiu.meet.client.pc;
+
+/**
+ * Opus encoder settings written into the audio section of the SDP.
+ */
+public class AudioProfile {
+    /**
+     * Full-band speech, FEC on for the occasional lost packet.
+     */
+    public static final AudioProfile DEFAULT = new AudioProfile("default", 32000, false, true, false, 20, 60);
+
+    /**
+     * Lossy links: longer packets cut header overhead, FEC covers the losses.
+     */
+    public static final AudioProfile LOSSY = new AudioProfile("lossy", 24000, false, true, false, 40, 120);
+
+    /**
+     * Very low bandwidth: DTX stops sending during silence.
+     */
+    public static final AudioProfile CONSTRAINED = new AudioProfile("constrained", 16000, true, true, false, 60, 120);
+
+    public final String name;
+    public final int bitrateBps;
+    public final boolean dtx;
+    public final boolean inbandFec;
+    public final boolean stereo;
+    public final int ptimeMs;
+    public final int maxPtimeMs;
+
+    public AudioProfile(String name, int bitrateBps, boolean dtx, boolean inbandFec, boolean stereo, int ptimeMs, int maxPtimeMs) {
+        this.name = name;
+        this.bitrateBps = bitrateBps;
+        this.dtx = dtx;
+        this.inbandFec = inbandFec;
+        this.stereo = stereo;
+        this.ptimeMs = ptimeMs;
+        this.maxPtimeMs = maxPtimeMs;
+    }
+
+    /**
+     * Whether switching from |other| requires renegotiation, i.e. anything but
+     * the bitrate changed.
+     */
+    public boolean needsRenegotiation(AudioProfile other) {
+        return other == null
+                || dtx != other.dtx
+                || inbandFec != other.inbandFec
+                || stereo != other.stereo
+                || ptimeMs != other.ptimeMs
+                || maxPtimeMs != other.maxPtimeMs;
+    }
+
+    @Override
+    public String toString() {
+        return name + "[" + bitrateBps + "bps, dtx=" + dtx + ", fec=" + inbandFec + ", stereo=" + stereo
+                + ", ptime=" + ptimeMs + "/" + maxPtimeMs + "]";
+    }
+}
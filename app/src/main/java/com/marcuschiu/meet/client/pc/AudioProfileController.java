@@ -0,0 +1,101 @@
+package com.marcuschiu.meet.client.pc;
+
+import org.webrtc.StatsReport;
+
+/**
+ * Picks an AudioProfile from periodic stats reports. Steps down as soon as
+ * loss or bandwidth cross a threshold, and only steps back up after a run of
+ * good reports so the profile does not flap.
+ */
+public class AudioProfileController {
+    private static final float LOSSY_PACKET_LOSS = 0.05f;
+    private static final int CONSTRAINED_BANDWIDTH_KBPS = 150;
+    private static final int GOOD_REPORTS_TO_RECOVER = 10;
+
+    private AudioProfile profile = AudioProfile.DEFAULT;
+    private long lastPacketsSent = -1;
+    private long lastPacketsLost = -1;
+    private int goodReports;
+
+    public AudioProfile getProfile() {
+        return profile;
+    }
+
+    /**
+     * Returns the profile to use after |reports|, or null if it is unchanged.
+     */
+    public AudioProfile onStatsReady(StatsReport[] reports) {
+        long packetsSent = -1;
+        long packetsLost = -1;
+        int bandwidthKbps = -1;
+        for (StatsReport report : reports) {
+            if (report.type.equals("ssrc") && report.id.contains("send") && isAudio(report)) {
+                packetsSent = getLong(report, "packetsSent");
+                packetsLost = getLong(report, "packetsLost");
+            } else if (report.type.equals("VideoBwe")) {
+                long bps = getLong(report, "googAvailableSendBandwidth");
+                bandwidthKbps = bps < 0 ? -1 : (int) (bps / 1000);
+            }
+        }
+
+        float loss = 0;
+        if (packetsSent >= 0 && lastPacketsSent >= 0 && packetsSent > lastPacketsSent) {
+            long lost = Math.max(0, packetsLost - lastPacketsLost);
+            loss = (float) lost / (packetsSent - lastPacketsSent + lost);
+        }
+        lastPacketsSent = packetsSent;
+        lastPacketsLost = packetsLost;
+
+        AudioProfile target;
+        if (bandwidthKbps >= 0 && bandwidthKbps < CONSTRAINED_BANDWIDTH_KBPS) {
+            target = AudioProfile.CONSTRAINED;
+        } else if (loss >= LOSSY_PACKET_LOSS) {
+            target = AudioProfile.LOSSY;
+        } else {
+            target = AudioProfile.DEFAULT;
+        }
+
+        if (target == profile) {
+            goodReports = 0;
+            return null;
+        }
+        if (rank(target) < rank(profile)) {
+            // Stepping up to a better profile needs a stable link first.
+            if (++goodReports < GOOD_REPORTS_TO_RECOVER) {
+                return null;
+            }
+        }
+        goodReports = 0;
+        profile = target;
+        return profile;
+    }
+
+    private static int rank(AudioProfile profile) {
+        if (profile == AudioProfile.CONSTRAINED) {
+            return 2;
+        }
+        return profile == AudioProfile.LOSSY ? 1 : 0;
+    }
+
+    private static boolean isAudio(StatsReport report) {
+        for (StatsReport.Value value : report.values) {
+            if (value.name.equals("mediaType")) {
+                return value.value.equals("audio");
+            }
+        }
+        return false;
+    }
+
+    private static long getLong(StatsReport report, String name) {
+        for (StatsReport.Value value : report.values) {
+            if (value.name.equals(name)) {
+                try {
+                    return Long.parseLong(value.value);
+                } catch (NumberFormatException e) {
+                    return -1;
+                }
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,123 @@
+package com.marcuschiu.meet.client.pc;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.LinkProperties;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.RouteInfo;
+import android.telephony.TelephonyManager;
+import android.util.Log;
+
+import java.net.InetAddress;
+
+/**
+ * Send bandwidth observed in previous calls, keyed by network, so the next
+ * call on the same network can start near the bitrate it ended up at.
+ * Cellular networks are keyed by carrier. Wi-Fi networks are keyed by a hash
+ * of their gateway, DNS servers and search domains: the SSID needs the
+ * location permission since Android 10, which a call should not ask for.
+ */
+public class BandwidthHistory {
+    private static final String TAG = "BandwidthHistory";
+    private static final String PREFS_NAME = "bandwidth_history";
+    // Weight of the newest call in the stored moving average.
+    private static final float NEW_SAMPLE_WEIGHT = 0.3f;
+
+    private final Context context;
+    private final SharedPreferences prefs;
+
+    public BandwidthHistory(Context context) {
+        this.context = context.getApplicationContext();
+        this.prefs = this.context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Returns a key for the current default network, e.g. "wifi:1f2e3d4c" or
+     * "cell:310260", or null if there is no connected network.
+     */
+    public String currentNetworkKey() {
+        Network network = connectivityManager().getActiveNetwork();
+        return network != null ? networkKey(network) : null;
+    }
+
+    /**
+     * Returns the key for the network with |networkHandle|, as reported by
+     * NetworkSource, or null if it is gone.
+     */
+    public String networkKey(long networkHandle) {
+        return networkKey(Network.fromNetworkHandle(networkHandle));
+    }
+
+    private String networkKey(Network network) {
+        ConnectivityManager cm = connectivityManager();
+        NetworkCapabilities caps = cm.getNetworkCapabilities(network);
+        if (caps == null) {
+            return null;
+        }
+        if (caps.hasTransport(NetworkCapabilities.TRANSPORT_WIFI)) {
+            LinkProperties link = cm.getLinkProperties(network);
+            if (link == null) {
+                return null;
+            }
+            return "wifi:" + Integer.toHexString(linkIdentity(link).hashCode());
+        }
+        if (caps.hasTransport(NetworkCapabilities.TRANSPORT_CELLULAR)) {
+            TelephonyManager tm = (TelephonyManager) context.getSystemService(Context.TELEPHONY_SERVICE);
+            return "cell:" + tm.getNetworkOperator();
+        }
+        if (caps.hasTransport(NetworkCapabilities.TRANSPORT_ETHERNET)) {
+            return "ethernet";
+        }
+        return "other";
+    }
+
+    // Tells LANs apart as far as possible without the SSID. Two networks with
+    // the same router defaults share a key, which only costs a worse guess.
+    private static String linkIdentity(LinkProperties link) {
+        StringBuilder identity = new StringBuilder();
+        for (RouteInfo route : link.getRoutes()) {
+            if (route.isDefaultRoute() && route.getGateway() != null && !route.getGateway().isAnyLocalAddress()) {
+                identity.append(route.getGateway().getHostAddress()).append(' ');
+            }
+        }
+        for (InetAddress dns : link.getDnsServers()) {
+            identity.append(dns.getHostAddress()).append(' ');
+        }
+        if (link.getDomains() != null) {
+            identity.append(link.getDomains());
+        }
+        return identity.toString();
+    }
+
+    private ConnectivityManager connectivityManager() {
+        return (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+    }
+
+    /**
+     * Returns the remembered send bandwidth for |networkKey| in kbps, or 0 if
+     * no call was made on that network yet.
+     */
+    public int getBandwidthKbps(String networkKey) {
+        if (networkKey == null) {
+            return 0;
+        }
+        return prefs.getInt(networkKey, 0);
+    }
+
+    /**
+     * Folds the average send bandwidth of a finished call into the history.
+     */
+    public void record(String networkKey, int bandwidthKbps) {
+        if (networkKey == null || bandwidthKbps <= 0) {
+            return;
+        }
+        int previous = prefs.getInt(networkKey, 0);
+        int updated = previous == 0
+                ? bandwidthKbps
+                : Math.round(previous * (1 - NEW_SAMPLE_WEIGHT) + bandwidthKbps * NEW_SAMPLE_WEIGHT);
+        prefs.edit().putInt(networkKey, updated).apply();
+        Log.d(TAG, "Bandwidth for " + networkKey + ": " + previous + " -> " + updated + " kbps");
+    }
+}
@@ -0,0 +1,240 @@
+package com.marcuschiu.meet.client.pc;
+
+import android.util.Log;
+
+import com.marcuschiu.meet.client.util.CallMetrics;
+
+import org.webrtc.IceCandidate;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides which local ICE candidates are signaled to the remote peer.
+ * Duplicates (same address, port, transport and type gathered on several
+ * interfaces) are sent once, configured candidate classes are dropped, and
+ * relay candidates are held back until a deadline passes or connectivity
+ * fails, since most calls connect without TURN.
+ *
+ * <p>All methods must be called on |executor|.
+ */
+public class CandidatePolicy {
+    private static final String TAG = "CandidatePolicy";
+
+    public static final String TYPE_HOST = "host";
+    public static final String TYPE_SRFLX = "srflx";
+    public static final String TYPE_PRFLX = "prflx";
+    public static final String TYPE_RELAY = "relay";
+
+    public static class Config {
+        /**
+         * Candidate types (TYPE_*) never sent.
+         */
+        public final Set<String> droppedTypes = new HashSet<>();
+        public boolean dropIpv6LinkLocal = true;
+        public boolean dropTcp = false;
+        /**
+         * How long relay candidates are held back. Zero sends them right away.
+         */
+        public long relayHoldMs = 1500;
+    }
+
+    public interface Sink {
+        void onIceCandidate(IceCandidate candidate);
+    }
+
+    /**
+     * Fields of an a=candidate line:
+     * candidate:<foundation> <component> <transport> <priority> <address> <port> typ <type> [<name> <value>]...
+     */
+    public static class ParsedCandidate {
+        public final String component;
+        public final String transport;
+        public final String address;
+        public final String port;
+        public final String type;
+        public final String ufrag;
+
+        ParsedCandidate(String component, String transport, String address, String port, String type, String ufrag) {
+            this.component = component;
+            this.transport = transport;
+            this.address = address;
+            this.port = port;
+            this.type = type;
+            this.ufrag = ufrag;
+        }
+
+        String key() {
+            return ufrag + ' ' + component + ' ' + transport + ' ' + address + ' ' + port + ' ' + type;
+        }
+
+        /**
+         * Returns null if |sdp| is not a candidate line.
+         */
+        public static ParsedCandidate parse(String sdp) {
+            String line = sdp.startsWith("a=") ? sdp.substring(2) : sdp;
+            String[] tokens = line.trim().split(" +");
+            if (tokens.length < 8 || !tokens[0].startsWith("candidate:") || !tokens[6].equals("typ")) {
+                return null;
+            }
+            String ufrag = "";
+            for (int i = 8; i + 1 < tokens.length; i += 2) {
+                if (tokens[i].equals("ufrag")) {
+                    ufrag = tokens[i + 1];
+                }
+            }
+            return new ParsedCandidate(tokens[1], tokens[2].toLowerCase(), tokens[4].toLowerCase(), tokens[5], tokens[7], ufrag);
+        }
+    }
+
+    private Config config;
+    private final ScheduledExecutorService executor;
+    private final CallMetrics metrics;
+    private final Sink sink;
+    private final Set<String> seen = new HashSet<>();
+    private final Set<String> sent = new HashSet<>();
+    private final List<IceCandidate> heldRelays = new ArrayList<>();
+    private ScheduledFuture<?> relayDeadline;
+    private boolean relaysReleased;
+    private boolean connected;
+
+    public CandidatePolicy(Config config, ScheduledExecutorService executor, CallMetrics metrics, Sink sink) {
+        this.config = config;
+        this.executor = executor;
+        this.metrics = metrics;
+        this.sink = sink;
+    }
+
+    /**
+     * Applies |config| to candidates gathered from now on and to held relays,
+     * keeping track of what was already sent. Relays are released right away
+     * if the new config no longer holds them.
+     */
+    public void setConfig(Config config) {
+        this.config = config;
+        Iterator<IceCandidate> held = heldRelays.iterator();
+        while (held.hasNext()) {
+            if (isDropped(ParsedCandidate.parse(held.next().sdp))) {
+                metrics.increment("candidates_dropped");
+                held.remove();
+            }
+        }
+        if (config.relayHoldMs <= 0) {
+            releaseRelays();
+        }
+    }
+
+    public void onLocalCandidate(IceCandidate candidate) {
+        ParsedCandidate parsed = ParsedCandidate.parse(candidate.sdp);
+        if (parsed == null) {
+            // Unknown format, let the remote side decide.
+            send(candidate);
+            return;
+        }
+        if (!seen.add(parsed.key())) {
+            metrics.increment("candidates_duplicate");
+            return;
+        }
+        if (isDropped(parsed)) {
+            metrics.increment("candidates_dropped");
+            return;
+        }
+        if (parsed.type.equals(TYPE_RELAY) && !relaysReleased && config.relayHoldMs > 0) {
+            heldRelays.add(candidate);
+            metrics.increment("candidates_relay_held");
+            if (relayDeadline == null && !connected) {
+                relayDeadline = executor.schedule(this::releaseRelays, config.relayHoldMs, TimeUnit.MILLISECONDS);
+            }
+            return;
+        }
+        send(candidate);
+    }
+
+    /**
+     * Returns the candidates of |candidates| that were actually sent, so no
+     * removal is signaled for a candidate the remote side never saw.
+     */
+    public IceCandidate[] filterRemovals(IceCandidate[] candidates) {
+        List<IceCandidate> removals = new ArrayList<>();
+        for (IceCandidate candidate : candidates) {
+            if (sent.remove(candidate.sdp)) {
+                removals.add(candidate);
+            }
+            Iterator<IceCandidate> held = heldRelays.iterator();
+            while (held.hasNext()) {
+                if (held.next().sdp.equals(candidate.sdp)) {
+                    held.remove();
+                }
+            }
+        }
+        return removals.toArray(new IceCandidate[0]);
+    }
+
+    /**
+     * Connected without relays: keep holding them in case connectivity fails
+     * later.
+     */
+    public void onConnected() {
+        connected = true;
+        cancelRelayDeadline();
+    }
+
+    public void onConnectivityFailure() {
+        connected = false;
+        releaseRelays();
+    }
+
+    /**
+     * Starts over for an ICE restart, which gathers candidates with new
+     * credentials.
+     */
+    public void reset() {
+        cancelRelayDeadline();
+        seen.clear();
+        sent.clear();
+        heldRelays.clear();
+        relaysReleased = false;
+        connected = false;
+    }
+
+    private boolean isDropped(ParsedCandidate parsed) {
+        if (config.droppedTypes.contains(parsed.type)) {
+            return true;
+        }
+        if (config.dropTcp && parsed.transport.equals("tcp")) {
+            return true;
+        }
+        return config.dropIpv6LinkLocal && parsed.address.startsWith("fe80:");
+    }
+
+    private void releaseRelays() {
+        cancelRelayDeadline();
+        relaysReleased = true;
+        if (!heldRelays.isEmpty()) {
+            Log.d(TAG, "Releasing " + heldRelays.size() + " relay candidates");
+        }
+        for (IceCandidate candidate : heldRelays) {
+            send(candidate);
+        }
+        heldRelays.clear();
+    }
+
+    private void cancelRelayDeadline() {
+        if (relayDeadline != null) {
+            relayDeadline.cancel(false);
+            relayDeadline = null;
+        }
+    }
+
+    private void send(IceCandidate candidate) {
+        sent.add(candidate.sdp);
+        metrics.increment("candidates_sent");
+        sink.onIceCandidate(candidate);
+    }
+}
@@ -0,0 +1,75 @@
+package com.marcuschiu.meet.client.pc;
+
+/**
+ * What the local video gives up first when the link, the CPU or the device
+ * temperature cannot afford full quality. Named after the
+ * RtpParameters.DegradationPreference values of later WebRTC releases.
+ */
+public enum DegradationPreference {
+    /**
+     * Lowers resolution and keeps the framerate, for smooth face video.
+     */
+    MAINTAIN_FRAMERATE,
+    /**
+     * Lowers the framerate and keeps resolution, so text stays legible.
+     */
+    MAINTAIN_RESOLUTION,
+    /**
+     * Lowers resolution first, then the framerate as well.
+     */
+    BALANCED;
+
+    private static final int MIN_FPS = 5;
+
+    /**
+     * Returns the format to send for |quality|, picked by the quality
+     * governor, at |degradation|, a VideoDegradationController level below
+     * PAUSED. |source| is the best format of the video source, see
+     * capture().
+     */
+    public VideoQuality adapt(VideoQuality quality, VideoQuality source, int degradation) {
+        VideoQuality capture = capture(quality, source);
+        int width = capture.width;
+        int height = capture.height;
+        int fps = capture.fps;
+        switch (this) {
+            case MAINTAIN_FRAMERATE:
+                // 720p goes to 360p, then 240p.
+                width /= degradation + 1;
+                height /= degradation + 1;
+                break;
+            case MAINTAIN_RESOLUTION:
+                fps = degradation == VideoDegradationController.FULL ? fps : Math.max(MIN_FPS, fps >> degradation);
+                break;
+            case BALANCED:
+                if (degradation >= VideoDegradationController.REDUCED) {
+                    width /= 2;
+                    height /= 2;
+                }
+                if (degradation >= VideoDegradationController.HEAVILY_REDUCED) {
+                    fps = Math.max(MIN_FPS, fps / 2);
+                }
+                break;
+        }
+        return new VideoQuality(capture.name, width, height, fps, capture.maxBitrateKbps);
+    }
+
+    /**
+     * Returns the capture format for |quality| from a source whose best
+     * format is |source|, the top of the ladder for the camera. Framerate and
+     * bitrate are the lower of both. Keeping resolution means capturing at
+     * the source's full resolution while the governor only lowers the
+     * framerate and bitrate; otherwise the resolution scales with the ladder.
+     */
+    public VideoQuality capture(VideoQuality quality, VideoQuality source) {
+        VideoQuality top = VideoQuality.LADDER[0];
+        int width = source.width;
+        int height = source.height;
+        if (this != MAINTAIN_RESOLUTION) {
+            width = width * quality.width / top.width;
+            height = height * quality.height / top.height;
+        }
+        return new VideoQuality(quality.name, width, height, Math.min(quality.fps, source.fps),
+                Math.min(quality.maxBitrateKbps, source.maxBitrateKbps));
+    }
+}
@@ -0,0 +1,232 @@
+package com.marcuschiu.meet.client.pc;
+
+import org.webrtc.IceCandidate;
+import org.webrtc.MediaConstraints;
+import org.webrtc.PeerConnection;
+import org.webrtc.SdpObserver;
+import org.webrtc.SessionDescription;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Offer/answer negotiation and remote candidate queueing on a
+ * PeerConnectionEngine. Remote candidates are queued until both descriptions
+ * are set, and again while an ICE restart waits for its answer. Free of
+ * Android dependencies so the call simulator tests run it on a JVM.
+ *
+ * <p>Must be called on |executor|, which engine callbacks are moved to as
+ * well.
+ */
+public class Negotiator {
+    public interface Listener {
+        void onLocalDescription(SessionDescription sdp);
+
+        void onNegotiationError(String description);
+    }
+
+    /**
+     * Rewrites descriptions before they are applied.
+     */
+    public interface SdpMunger {
+        String mungeLocal(String sdp);
+
+        String mungeRemote(String sdp);
+    }
+
+    private final PeerConnectionEngine engine;
+    private final Executor executor;
+    private final SdpMunger munger;
+    private final Listener listener;
+    private final SDPObserver sdpObserver = new SDPObserver();
+    private boolean initiator;
+    private boolean answering;
+    private boolean closed;
+    // Null once queued candidates were handed to the engine.
+    private List<IceCandidate> queuedRemoteCandidates = new ArrayList<>();
+    private SessionDescription localSdp; // either offer or answer SDP
+    private String lastRemoteSdp; // as received, before munging
+    // o= line of the last remote description, see isStale().
+    private String lastRemoteSessionId;
+    private long lastRemoteSessionVersion = -1;
+
+    public Negotiator(PeerConnectionEngine engine, Executor executor, SdpMunger munger, Listener listener) {
+        this.engine = engine;
+        this.executor = executor;
+        this.munger = munger;
+        this.listener = listener;
+    }
+
+    public boolean isInitiator() {
+        return initiator;
+    }
+
+    public boolean isStable() {
+        return engine.signalingState() == PeerConnection.SignalingState.STABLE;
+    }
+
+    public void createOffer(MediaConstraints constraints) {
+        initiator = true;
+        engine.createOffer(sdpObserver, constraints);
+    }
+
+    /**
+     * Does nothing unless a remote offer is waiting for an answer, e.g. when
+     * the signaling channel replayed a description after a reconnect.
+     */
+    public void createAnswer(MediaConstraints constraints) {
+        if (answering || engine.signalingState() != PeerConnection.SignalingState.HAVE_REMOTE_OFFER) {
+            return;
+        }
+        initiator = false;
+        answering = true;
+        engine.createAnswer(sdpObserver, constraints);
+    }
+
+    /**
+     * Returns false if |sdp| is a replay of an earlier remote description and
+     * was ignored.
+     */
+    public boolean setRemoteDescription(SessionDescription sdp) {
+        if (isStale(sdp.description)) {
+            return false;
+        }
+        engine.setRemoteDescription(sdpObserver, new SessionDescription(sdp.type, munger.mungeRemote(sdp.description)));
+        return true;
+    }
+
+    // A peer increments the o= session version with every description it
+    // creates, so an older version is a delayed duplicate. Descriptions
+    // without a usable o= line are compared as text.
+    private boolean isStale(String sdp) {
+        String sessionId = null;
+        long version = -1;
+        for (String line : sdp.split("\r?\n")) {
+            // o=<username> <sess-id> <sess-version> <nettype> <addrtype> <address>
+            String[] origin = line.split(" ");
+            if (line.startsWith("o=") && origin.length >= 3) {
+                try {
+                    version = Long.parseLong(origin[2]);
+                    sessionId = origin[1];
+                } catch (NumberFormatException e) {
+                    // Compared as text.
+                }
+                break;
+            }
+        }
+        boolean stale = sessionId != null
+                ? sessionId.equals(lastRemoteSessionId) && version <= lastRemoteSessionVersion
+                : sdp.equals(lastRemoteSdp);
+        if (!stale) {
+            lastRemoteSdp = sdp;
+            lastRemoteSessionId = sessionId;
+            lastRemoteSessionVersion = version;
+        }
+        return stale;
+    }
+
+    public void addRemoteIceCandidate(IceCandidate candidate) {
+        if (queuedRemoteCandidates != null) {
+            queuedRemoteCandidates.add(candidate);
+        } else {
+            engine.addIceCandidate(candidate);
+        }
+    }
+
+    public void removeRemoteIceCandidates(IceCandidate[] candidates) {
+        // Drain the queued remote candidates if there is any so that they are processed in the proper order.
+        drainCandidates();
+        engine.removeIceCandidates(candidates);
+    }
+
+    /**
+     * Holds remote candidates back until the next remote description is set,
+     * so candidates for new ICE credentials are not added too early.
+     */
+    public void holdRemoteCandidates() {
+        if (queuedRemoteCandidates == null) {
+            queuedRemoteCandidates = new ArrayList<>();
+        }
+    }
+
+    /**
+     * Drops engine callbacks still in flight, call before disposing the
+     * engine.
+     */
+    public void close() {
+        closed = true;
+    }
+
+    private void drainCandidates() {
+        if (queuedRemoteCandidates != null) {
+            for (IceCandidate candidate : queuedRemoteCandidates) {
+                engine.addIceCandidate(candidate);
+            }
+            queuedRemoteCandidates = null;
+        }
+    }
+
+    private class SDPObserver implements SdpObserver {
+        @Override
+        public void onCreateSuccess(final SessionDescription origSdp) {
+            executor.execute(() -> {
+                if (closed) {
+                    return;
+                }
+                localSdp = new SessionDescription(origSdp.type, munger.mungeLocal(origSdp.description));
+                engine.setLocalDescription(sdpObserver, localSdp);
+            });
+        }
+
+        @Override
+        public void onSetSuccess() {
+            executor.execute(() -> {
+                if (closed) {
+                    return;
+                }
+                if (initiator) {
+                    // For offering peer connection we first create offer and set local SDP, then after receiving answer set remote SDP.
+                    // Checking the signaling state rather than the remote description keeps this right for re-offers.
+                    if (engine.signalingState() == PeerConnection.SignalingState.HAVE_LOCAL_OFFER) {
+                        // We've just set our local SDP so time to send it.
+                        listener.onLocalDescription(localSdp);
+                    } else {
+                        // We've just set remote description, so drain remote and send local ICE candidates.
+                        drainCandidates();
+                    }
+                } else {
+                    // For answering peer connection we set remote SDP and then create answer and set local SDP.
+                    if (engine.signalingState() == PeerConnection.SignalingState.STABLE) {
+                        // We've just set our local SDP so time to send it, drain remote and send local ICE candidates.
+                        answering = false;
+                        listener.onLocalDescription(localSdp);
+                        drainCandidates();
+                    } else {
+                        // We've just set remote SDP - do nothing for now - answer will be created soon.
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onCreateFailure(final String error) {
+            executor.execute(() -> {
+                answering = false;
+                if (!closed) {
+                    listener.onNegotiationError("createSDP error: " + error);
+                }
+            });
+        }
+
+        @Override
+        public void onSetFailure(final String error) {
+            executor.execute(() -> {
+                answering = false;
+                if (!closed) {
+                    listener.onNegotiationError("setSDP error: " + error);
+                }
+            });
+        }
+    }
+}
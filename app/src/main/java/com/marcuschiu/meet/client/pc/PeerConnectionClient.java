@@ -4,6 +4,15 @@ import android.content.Context;
 import android.util.Log;
 
 import com.marcuschiu.meet.client.AppRTCClient;
+import com.marcuschiu.meet.client.data.DataChannelTransport;
+import com.marcuschiu.meet.client.data.RtcMessageChannel;
+import com.marcuschiu.meet.client.net.AndroidNetworkSource;
+import com.marcuschiu.meet.client.net.NetworkMonitor;
+import com.marcuschiu.meet.client.net.NetworkSource;
+import com.marcuschiu.meet.client.power.AndroidPowerSource;
+import com.marcuschiu.meet.client.power.MediaQualityGovernor;
+import com.marcuschiu.meet.client.power.QualityPolicy;
+import com.marcuschiu.meet.client.util.CallMetrics;
 import com.marcuschiu.meet.client.util.Util;
 
 import org.webrtc.AudioSource;
@@ -22,8 +31,8 @@ import org.webrtc.PeerConnectionFactory;
 import org.webrtc.RtpParameters;
 import org.webrtc.RtpReceiver;
 import org.webrtc.RtpSender;
-import org.webrtc.SdpObserver;
 import org.webrtc.SessionDescription;
+import org.webrtc.StatsReport;
 import org.webrtc.VideoCapturer;
 import org.webrtc.VideoRenderer;
 import org.webrtc.VideoSink;
@@ -37,12 +46,16 @@ import org.webrtc.voiceengine.WebRtcAudioTrack;
 import org.webrtc.voiceengine.WebRtcAudioTrack.AudioTrackStartErrorCode;
 import org.webrtc.voiceengine.WebRtcAudioUtils;
 
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
+import java.util.Locale;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -51,60 +64,176 @@ public class PeerConnectionClient {
     private static final String TAG = "PCRTCClient";
 
     public static final String VIDEO_TRACK_ID = "ARDAMSv0";
+    public static final String SCREEN_TRACK_ID = "ARDAMSv1";
     public static final String AUDIO_TRACK_ID = "ARDAMSa0";
     public static final String VIDEO_TRACK_TYPE = "video";
+    public static final String AUDIO_TRACK_TYPE = "audio";
     public static final String VIDEO_CODEC_VP8 = "VP8";
+    public static final String VIDEO_CODEC_VP9 = "VP9";
+    public static final String VIDEO_CODEC_H264 = "H264";
+    public static final String VIDEO_CODEC_H264_BASELINE = "H264 Baseline";
+    public static final String VIDEO_CODEC_H264_HIGH = "H264 High";
     public static final String AUDIO_CODEC_OPUS = "opus";
+    public static final String DATA_CHANNEL_LABEL = "ARDAMSd0";
     private static final String VIDEO_VP8_INTEL_HW_ENCODER_FIELDTRIAL = "WebRTC-IntelVP8/Enabled/";
     private static final String VIDEO_FRAME_EMIT_FIELDTRIAL = PeerConnectionFactory.VIDEO_FRAME_EMIT_TRIAL + "/" + PeerConnectionFactory.TRIAL_ENABLED + "/";
     private static final String AUDIO_LEVEL_CONTROL_CONSTRAINT = "levelControl";
-    private static final int HD_VIDEO_WIDTH = 1280;
-    private static final int HD_VIDEO_HEIGHT = 720;
-    private static final int FRAMES_PER_SECOND = 720;
     private static final int BPS_IN_KBPS = 1000;
+    // Video start bitrate is taken from the bandwidth history of the current
+    // network, scaled down a little so the first seconds do not overshoot.
+    private static final float START_BITRATE_HEADROOM = 0.8f;
+    private static final float MIN_BITRATE_FRACTION = 0.3f;
+    private static final int START_BITRATE_MIN_KBPS = 300;
+    private static final int START_BITRATE_MAX_KBPS = 1700;
+    private static final String STATS_TYPE_VIDEO_BWE = "VideoBwe";
+    private static final String STATS_AVAILABLE_SEND_BANDWIDTH = "googAvailableSendBandwidth";
+    // ICE recovery: a DISCONNECTED connection gets a grace period to come back
+    // on its own before the initiator restarts ICE. The call only fails once
+    // the recovery deadline passes.
+    private static final long ICE_DISCONNECTED_GRACE_MS = 2000;
+    private static final long ICE_RECOVERY_TIMEOUT_MS = 15000;
+    private static final int ICE_MAX_RESTARTS = 3;
+    private static final String ICE_RESTART_CONSTRAINT = "IceRestart";
+    // With MAXBUNDLE a single pooled ICE session covers all media.
+    private static final int ICE_CANDIDATE_POOL_SIZE = 1;
 
     // Executor thread is started once in private ctor and is used for all
     // peer connection API calls to ensure new peer connection factory is
     // created on the same thread as previously destroyed factory.
-    private static final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private static final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(
+            runnable -> new Thread(runnable, "PCClient"));
 
-    private final SDPObserver sdpObserver = new SDPObserver();
+    private final DataChannelTransport dataTransport = new DataChannelTransport(executor);
+    private final CandidatePolicy candidatePolicy;
+    private SdpPruner sdpPruner = new SdpPruner(new SdpPruner.Config());
 
     private final EglBase rootEglBase;
+    private final CallMetrics metrics;
+    private final PeerConnectionEngine.Factory engineFactory;
+    private Context appContext;
     private PeerConnectionFactory pcFactory = null;
     private PeerConnection pc = null;
 
     private PeerConnectionEvents events;
+    private VideoCodecPolicy codecPolicy;
+    private BandwidthHistory bandwidthHistory;
+    private String networkKey;
+    private long sendBandwidthSumKbps;
+    private int sendBandwidthSamples;
+    private Timer statsTimer;
+    private final AudioProfileController audioProfileController = new AudioProfileController();
+    private AudioProfile audioProfile = AudioProfile.DEFAULT;
+    private final VideoDegradationController degradationController =
+            new VideoDegradationController(new VideoDegradationController.Config());
+    // Level of |degradationController| applied on top of |videoQuality|.
+    private int videoDegradation = VideoDegradationController.FULL;
+    private DegradationPreference degradationPreference = VideoContentMode.CAMERA.preference;
     private boolean isError = false;
-    private boolean isInitiator;
 
     private VideoRenderer.Callbacks remoteVideo;
     private MediaConstraints sdpMediaConstraints;
-    // Queued remote ICE candidates are consumed only after both local and
-    // remote descriptions are set. Similarly local ICE candidates are sent to
-    // remote peer after both local and remote description are set.
-    private List<IceCandidate> queuedRemoteCandidates = null;
-    private SessionDescription localSdp = null; // either offer or answer SDP
+    // Offer/answer and remote candidate queueing for |pc|.
+    private Negotiator negotiator;
+    // A re-offer asked for while negotiating, sent once stable again.
+    private boolean renegotiationPending;
 
     private boolean videoCapturerStopped = false;
+    // Whether stopVideoSource() was called, e.g. while in the background.
+    private boolean videoSourceStopped;
+    // The active source: the camera, or the screen while sharing it.
     private VideoCapturer videoCapturer = null;
+    private VideoTrack localVideoTrack;
+    // Best format of the active source.
+    private VideoQuality sourceQuality = VideoQuality.LADDER[0];
+    // The stopped camera while the screen is shared, null otherwise.
+    private VideoCapturer cameraCapturer;
+    private VideoSource cameraSource;
+    private VideoTrack cameraTrack;
     private VideoTrack remoteVideoTrack;
+    // Set through setRemoteVideoPaused(), also for a track not added yet.
+    private boolean remoteVideoPaused;
     private RtpSender localVideoSender;
+    private RtpSender localAudioSender;
+    private DataChannel dataChannel;
+    private NetworkMonitor networkMonitor;
+    private MediaQualityGovernor qualityGovernor;
+    // Capture format and bitrate cap picked by |qualityGovernor|.
+    private VideoQuality videoQuality = VideoQuality.HD;
+    // Cap set through setVideoMaxBitrate(), null for none.
+    private Integer videoMaxBitrateKbps;
+    // Null unless internal tracing was requested.
+    private WebRtcTraceCapture traceCapture;
+    private long iceRecoveryStartNanos;
+    private long pcCreatedNanos;
+    private int iceRestarts;
+    private ScheduledFuture<?> iceGraceTimer;
+    private ScheduledFuture<?> iceRecoveryDeadline;
     private AudioSource audioSource;
     private VideoSource videoSource;
 
-    public PeerConnectionClient() {
-        rootEglBase = EglBase.create();
+    public PeerConnectionClient(CallMetrics metrics) {
+        this(metrics, WebRtcPeerConnectionEngine::new);
+    }
+
+    /**
+     * Negotiates through the engines |engineFactory| wraps each new
+     * PeerConnection in, e.g. a fake one in tests.
+     */
+    public PeerConnectionClient(CallMetrics metrics, PeerConnectionEngine.Factory engineFactory) {
+        this.rootEglBase = EglBase.create();
+        this.metrics = metrics;
+        this.engineFactory = engineFactory;
+        this.candidatePolicy = new CandidatePolicy(new CandidatePolicy.Config(), executor, metrics, candidate -> {
+            if (events != null) {
+                events.onIceCandidate(candidate);
+            }
+        });
+    }
+
+    /**
+     * Replaces the filtering applied to local ICE candidates before they are
+     * signaled. Takes effect for candidates gathered from now on and for
+     * relays still held back, see CandidatePolicy.setConfig().
+     */
+    public void setCandidatePolicyConfig(final CandidatePolicy.Config config) {
+        executor.execute(() -> candidatePolicy.setConfig(config));
+    }
+
+    /**
+     * Replaces what is stripped from local descriptions. Takes effect with the
+     * next offer or answer.
+     */
+    public void setSdpPrunerConfig(final SdpPruner.Config config) {
+        executor.execute(() -> sdpPruner = new SdpPruner(config));
+    }
+
+    /**
+     * Captures WebRTC's internal trace events for this call. Must be called
+     * before createPeerConnectionFactory().
+     */
+    public void setTraceCapture(WebRtcTraceCapture traceCapture) {
+        this.traceCapture = traceCapture;
     }
 
     public void createPeerConnectionFactory(final Context context, final PeerConnectionEvents events) {
         this.events = events;
+        this.appContext = context.getApplicationContext();
 
         executor.execute(() -> {
+            codecPolicy = VideoCodecPolicy.load(context);
+            bandwidthHistory = new BandwidthHistory(context);
+            String fieldTrials = VIDEO_FRAME_EMIT_FIELDTRIAL;
+            if (codecPolicy.isIntelVp8EncoderEnabled()) {
+                fieldTrials += VIDEO_VP8_INTEL_HW_ENCODER_FIELDTRIAL;
+            }
             PeerConnectionFactory.InitializationOptions options = PeerConnectionFactory.InitializationOptions.builder(context)
-                    .setFieldTrials(VIDEO_VP8_INTEL_HW_ENCODER_FIELDTRIAL + VIDEO_FRAME_EMIT_FIELDTRIAL)
+                    .setFieldTrials(fieldTrials)
+                    .setEnableInternalTracer(traceCapture != null)
                     .createInitializationOptions();
             PeerConnectionFactory.initialize(options);
+            if (traceCapture != null && !traceCapture.start()) {
+                Log.w(TAG, "Internal tracing capture did not start");
+            }
 
             WebRtcAudioManager.setBlacklistDeviceForOpenSLESUsage(true);
             WebRtcAudioUtils.setWebRtcBasedAcousticEchoCanceler(true);
@@ -151,7 +280,8 @@ public class PeerConnectionClient {
             });
 
             pcFactory = new PeerConnectionFactory(null,
-                    new DefaultVideoEncoderFactory(rootEglBase.getEglBaseContext(), true, false),
+                    new DefaultVideoEncoderFactory(rootEglBase.getEglBaseContext(),
+                            codecPolicy.isIntelVp8EncoderEnabled(), codecPolicy.isH264HighProfileEnabled()),
                     new DefaultVideoDecoderFactory(rootEglBase.getEglBaseContext()));
 //            PeerConnectionFactory.builder()
 //                    .setVideoEncoderFactory(new DefaultVideoEncoderFactory(rootEglBase.getEglBaseContext(), true, false))
@@ -175,25 +305,32 @@ public class PeerConnectionClient {
                 ////////////////////////////
                 // CREATE PEER CONNECTION //
                 ////////////////////////////
-                queuedRemoteCandidates = new ArrayList<>();
-
-                pcFactory.setVideoHwAccelerationOptions(rootEglBase.getEglBaseContext(), rootEglBase.getEglBaseContext());
+                if (pc == null) {
+                    createPeerConnectionInternal(signalingParameters.iceServers);
+                }
 
-                PeerConnection.RTCConfiguration rtcConfig = new PeerConnection.RTCConfiguration(signalingParameters.iceServers);
-                rtcConfig.tcpCandidatePolicy = PeerConnection.TcpCandidatePolicy.DISABLED; // TCP candidates are only useful when connecting to a server that supports ICE-TCP
-                rtcConfig.bundlePolicy = PeerConnection.BundlePolicy.MAXBUNDLE;
-                rtcConfig.rtcpMuxPolicy = PeerConnection.RtcpMuxPolicy.REQUIRE;
-                rtcConfig.continualGatheringPolicy = PeerConnection.ContinualGatheringPolicy.GATHER_CONTINUALLY;
-                rtcConfig.keyType = PeerConnection.KeyType.ECDSA; // Use ECDSA encryption
-                rtcConfig.enableDtlsSrtp = true; // Enable DTLS for normal calls and disable for loopback calls
+                // The initiator opens the data channel, the other side picks it up in onDataChannel.
+                if (signalingParameters.initiator) {
+                    DataChannel.Init init = new DataChannel.Init();
+                    init.ordered = true;
+                    dataChannel = pc.createDataChannel(DATA_CHANNEL_LABEL, init);
+                    dataTransport.attach(new RtcMessageChannel(dataChannel));
+                }
 
-                pc = pcFactory.createPeerConnection(rtcConfig, new PCObserver());
+                // Taken here rather than when pre-warming, the network may have changed since.
+                networkKey = bandwidthHistory.currentNetworkKey();
+                networkMonitor = new NetworkMonitor(new AndroidNetworkSource(appContext), executor, metrics,
+                        this::onNetworkHandover);
+                networkMonitor.start();
+                qualityGovernor = new MediaQualityGovernor(new AndroidPowerSource(appContext), new QualityPolicy.Config(),
+                        executor, metrics, this::applyVideoQuality);
+                qualityGovernor.start();
 
                 MediaStream mediaStream = pcFactory.createLocalMediaStream("ARDAMS");
 
                 videoSource = pcFactory.createVideoSource(videoCapturer);
-                videoCapturer.startCapture(HD_VIDEO_WIDTH, HD_VIDEO_HEIGHT, FRAMES_PER_SECOND);
-                VideoTrack localVideoTrack = pcFactory.createVideoTrack(VIDEO_TRACK_ID, videoSource);
+                startCapture();
+                localVideoTrack = pcFactory.createVideoTrack(VIDEO_TRACK_ID, videoSource);
                 localVideoTrack.setEnabled(true);
                 localVideoTrack.addSink(localVideo);
                 mediaStream.addTrack(localVideoTrack);
@@ -211,6 +348,8 @@ public class PeerConnectionClient {
                         String trackType = sender.track().kind();
                         if (trackType.equals(VIDEO_TRACK_TYPE)) {
                             localVideoSender = sender;
+                        } else if (trackType.equals(AUDIO_TRACK_TYPE)) {
+                            localAudioSender = sender;
                         }
                     }
                 }
@@ -221,8 +360,66 @@ public class PeerConnectionClient {
         });
     }
 
+    /**
+     * Creates the peer connection as soon as the ICE servers are known so
+     * STUN/TURN candidates are gathered into the candidate pool while the rest
+     * of the call setup (camera, WebSocket registration, the remote peer) is
+     * still pending. createPeerConnection() picks up the pre-warmed connection.
+     */
+    public void prewarm(final List<PeerConnection.IceServer> iceServers) {
+        executor.execute(() -> {
+            if (pc != null || pcFactory == null || isError) {
+                return;
+            }
+            Log.d(TAG, "Pre-warming ICE candidate pool");
+            createPeerConnectionInternal(iceServers);
+        });
+    }
+
+    private void createPeerConnectionInternal(List<PeerConnection.IceServer> iceServers) {
+        pcFactory.setVideoHwAccelerationOptions(rootEglBase.getEglBaseContext(), rootEglBase.getEglBaseContext());
+
+        PeerConnection.RTCConfiguration rtcConfig = new PeerConnection.RTCConfiguration(iceServers);
+        rtcConfig.tcpCandidatePolicy = PeerConnection.TcpCandidatePolicy.DISABLED; // TCP candidates are only useful when connecting to a server that supports ICE-TCP
+        rtcConfig.bundlePolicy = PeerConnection.BundlePolicy.MAXBUNDLE;
+        rtcConfig.rtcpMuxPolicy = PeerConnection.RtcpMuxPolicy.REQUIRE;
+        rtcConfig.continualGatheringPolicy = PeerConnection.ContinualGatheringPolicy.GATHER_CONTINUALLY;
+        rtcConfig.keyType = PeerConnection.KeyType.ECDSA; // Use ECDSA encryption
+        rtcConfig.enableDtlsSrtp = true; // Enable DTLS for normal calls and disable for loopback calls
+        rtcConfig.iceCandidatePoolSize = ICE_CANDIDATE_POOL_SIZE; // Start gathering now instead of at setLocalDescription
+
+        pcCreatedNanos = System.nanoTime();
+        pc = pcFactory.createPeerConnection(rtcConfig, new PCObserver());
+        negotiator = new Negotiator(engineFactory.create(pc), executor, new SdpMunger(), new NegotiationListener());
+    }
+
     public void close() {
+        // Queued ahead of the teardown below so the channel is closed before it is disposed.
+        dataTransport.detach();
         executor.execute(() -> {
+            if (statsTimer != null) {
+                statsTimer.cancel();
+                statsTimer = null;
+            }
+            if (networkMonitor != null) {
+                networkMonitor.stop();
+                networkMonitor = null;
+            }
+            if (qualityGovernor != null) {
+                qualityGovernor.stop();
+                qualityGovernor = null;
+            }
+            finishIceRecovery();
+            saveSendBandwidth();
+            if (dataChannel != null) {
+                dataChannel.dispose();
+                dataChannel = null;
+            }
+            if (negotiator != null) {
+                negotiator.close();
+                negotiator = null;
+                renegotiationPending = false;
+            }
             if (pc != null) {
                 pc.dispose();
                 pc = null;
@@ -241,6 +438,16 @@ public class PeerConnectionClient {
                 videoCapturer.dispose();
                 videoCapturer = null;
             }
+            if (cameraCapturer != null) {
+                // The screen track is not part of the disposed stream.
+                localVideoTrack.dispose();
+                localVideoTrack = null;
+                cameraCapturer.dispose();
+                cameraCapturer = null;
+                cameraSource.dispose();
+                cameraSource = null;
+                cameraTrack = null;
+            }
             if (videoSource != null) {
                 videoSource.dispose();
                 videoSource = null;
@@ -252,12 +459,21 @@ public class PeerConnectionClient {
             }
             rootEglBase.release();
             events.onPeerConnectionClosed();
-            PeerConnectionFactory.stopInternalTracingCapture();
-            PeerConnectionFactory.shutdownInternalTracer();
+            if (traceCapture != null) {
+                traceCapture.stop();
+                PeerConnectionFactory.shutdownInternalTracer();
+            }
             events = null;
         });
     }
 
+    /**
+     * Message and file transfer to the remote peer over the call's data channel.
+     */
+    public DataChannelTransport getDataTransport() {
+        return dataTransport;
+    }
+
     public EglBase.Context getRenderContext() {
         return rootEglBase.getEglBaseContext();
     }
@@ -265,8 +481,7 @@ public class PeerConnectionClient {
     public void createOffer() {
         executor.execute(() -> {
             if (pc != null && !isError) {
-                isInitiator = true;
-                pc.createOffer(sdpObserver, sdpMediaConstraints);
+                negotiator.createOffer(sdpMediaConstraints);
             }
         });
     }
@@ -274,8 +489,7 @@ public class PeerConnectionClient {
     public void createAnswer() {
         executor.execute(() -> {
             if (pc != null && !isError) {
-                isInitiator = false;
-                pc.createAnswer(sdpObserver, sdpMediaConstraints);
+                negotiator.createAnswer(sdpMediaConstraints);
             }
         });
     }
@@ -283,11 +497,7 @@ public class PeerConnectionClient {
     public void addRemoteIceCandidate(final IceCandidate candidate) {
         executor.execute(() -> {
             if (pc != null && !isError) {
-                if (queuedRemoteCandidates != null) {
-                    queuedRemoteCandidates.add(candidate);
-                } else {
-                    pc.addIceCandidate(candidate);
-                }
+                negotiator.addRemoteIceCandidate(candidate);
             }
         });
     }
@@ -297,66 +507,506 @@ public class PeerConnectionClient {
             if (pc == null || isError) {
                 return;
             }
-            // Drain the queued remote candidates if there is any so that they are processed in the proper order.
-            drainCandidates();
-            pc.removeIceCandidates(candidates);
+            negotiator.removeRemoteIceCandidates(candidates);
         });
     }
 
     public void setRemoteDescription(final SessionDescription sdp) {
         executor.execute(() -> {
-            String sdpDescription = sdp.description;
-            sdpDescription = Util.preferCodec(sdpDescription);
-            sdpDescription = Util.setStartBitrate(sdpDescription);
-            pc.setRemoteDescription(sdpObserver, new SessionDescription(sdp.type, sdpDescription));
+            if (pc == null || isError) {
+                return;
+            }
+            if (!negotiator.setRemoteDescription(sdp)) {
+                Log.d(TAG, "Ignoring stale remote " + sdp.type);
+            }
         });
     }
 
+    /**
+     * Stops the camera. A shared screen keeps being captured, so slides can
+     * be presented from another app.
+     */
     public void stopVideoSource() {
         executor.execute(() -> {
-            if (videoCapturer != null && !videoCapturerStopped) {
-                try {
-                    videoCapturer.stopCapture();
-                } catch (InterruptedException e) {
-                }
-                videoCapturerStopped = true;
+            videoSourceStopped = true;
+            if (cameraCapturer == null) {
+                stopCapture();
             }
         });
     }
 
     public void startVideoSource() {
         executor.execute(() -> {
+            videoSourceStopped = false;
             if (videoCapturer != null && videoCapturerStopped) {
-                videoCapturer.startCapture(HD_VIDEO_WIDTH, HD_VIDEO_HEIGHT, FRAMES_PER_SECOND);
+                startCapture();
                 videoCapturerStopped = false;
             }
         });
     }
 
-    public void setVideoMaxBitrate(final Integer maxBitrateKbps) {
+    /**
+     * Sends the screen captured by |screenCapturer|, e.g. a
+     * ScreenCapturerAndroid, in place of the camera with the screen share
+     * profile for a display of |width| x |height| pixels. The sender's track
+     * is replaced, so no renegotiation is needed. The camera is stopped
+     * until stopScreenShare().
+     */
+    public void startScreenShare(final VideoCapturer screenCapturer, final int width, final int height) {
         executor.execute(() -> {
-            if (pc == null || localVideoSender == null || isError) {
+            if (pc == null || isError || cameraCapturer != null || localVideoSender == null) {
+                screenCapturer.dispose();
                 return;
             }
+            stopCapture();
+            cameraCapturer = videoCapturer;
+            cameraSource = videoSource;
+            cameraTrack = localVideoTrack;
+            videoCapturer = screenCapturer;
+            // A screencast source: the encoder keeps resolution on its own
+            // and uses its screen content settings.
+            videoSource = pcFactory.createVideoSource(screenCapturer);
+            // Not shown locally, a preview of the screen would be captured again.
+            localVideoTrack = pcFactory.createVideoTrack(SCREEN_TRACK_ID, videoSource);
+            localVideoSender.setTrack(localVideoTrack, false);
+            switchSource(VideoQuality.screen(width, height), VideoContentMode.SCREEN);
+            metrics.increment("screen_shares");
+        });
+    }
 
-            RtpParameters parameters = localVideoSender.getParameters();
-            if (parameters.encodings.size() == 0) {
-                Log.w(TAG, "RtpParameters are not ready.");
+    /**
+     * Switches back from the shared screen to the camera.
+     */
+    public void stopScreenShare() {
+        executor.execute(() -> {
+            if (cameraCapturer == null) {
                 return;
             }
+            stopCapture();
+            localVideoSender.setTrack(cameraTrack, false);
+            localVideoTrack.dispose();
+            videoCapturer.dispose();
+            videoSource.dispose();
+            videoCapturer = cameraCapturer;
+            videoSource = cameraSource;
+            localVideoTrack = cameraTrack;
+            cameraCapturer = null;
+            cameraSource = null;
+            cameraTrack = null;
+            switchSource(VideoQuality.LADDER[0], VideoContentMode.CAMERA);
+        });
+    }
+
+    // Starts the new |videoCapturer| with the content mode's preference.
+    private void switchSource(VideoQuality source, VideoContentMode mode) {
+        sourceQuality = source;
+        Log.d(TAG, "Video source: " + mode + " " + source);
+        applyDegradationPreference(mode.preference);
+        // The screen is shared from the background too, the camera waits for
+        // startVideoSource().
+        if (mode == VideoContentMode.SCREEN || !videoSourceStopped) {
+            startCapture();
+            videoCapturerStopped = false;
+        }
+        adaptVideoFormat();
+        updateVideoMaxBitrate();
+    }
+
+    private void stopCapture() {
+        if (videoCapturer != null && !videoCapturerStopped) {
+            try {
+                videoCapturer.stopCapture();
+            } catch (InterruptedException e) {
+            }
+            videoCapturerStopped = true;
+        }
+    }
+
+    /**
+     * Stops rendering the remote video while the remote side has paused its
+     * sender, e.g. on a link too poor for video.
+     */
+    public void setRemoteVideoPaused(final boolean paused) {
+        executor.execute(() -> {
+            remoteVideoPaused = paused;
+            if (remoteVideoTrack != null) {
+                remoteVideoTrack.setEnabled(!paused);
+            }
+        });
+    }
+
+    /**
+     * Caps the video send bitrate, null for no cap. The quality governor's
+     * cap applies on top.
+     */
+    public void setVideoMaxBitrate(final Integer maxBitrateKbps) {
+        executor.execute(() -> {
+            videoMaxBitrateKbps = maxBitrateKbps;
+            updateVideoMaxBitrate();
+        });
+    }
+
+    private void updateVideoMaxBitrate() {
+        int maxBitrateKbps = degradationPreference.capture(videoQuality, sourceQuality).maxBitrateKbps;
+        if (videoMaxBitrateKbps != null) {
+            maxBitrateKbps = Math.min(maxBitrateKbps, videoMaxBitrateKbps);
+        }
+        metrics.record("bitrate_video_max_kbps", maxBitrateKbps);
+        setSenderMaxBitrate(localVideoSender, maxBitrateKbps * BPS_IN_KBPS);
+    }
+
+    // Changing the capture format restarts the camera session, which also
+    // lowers the camera's own power draw.
+    private void applyVideoQuality(VideoQuality quality) {
+        videoQuality = quality;
+        changeCaptureFormat();
+        adaptVideoFormat();
+        updateVideoMaxBitrate();
+    }
+
+    /**
+     * Tells the sender what the local video shows and switches to the
+     * mode's DegradationPreference.
+     */
+    public void setVideoContentMode(final VideoContentMode mode) {
+        executor.execute(() -> applyDegradationPreference(mode.preference));
+    }
+
+    /**
+     * Overrides the DegradationPreference of the current content mode.
+     */
+    public void setDegradationPreference(final DegradationPreference preference) {
+        executor.execute(() -> applyDegradationPreference(preference));
+    }
+
+    // This WebRTC release has no degradation preference in RtpParameters, so
+    // the capture format and the stats driven degradation follow
+    // |degradationPreference| instead.
+    private void applyDegradationPreference(DegradationPreference preference) {
+        if (preference == degradationPreference) {
+            return;
+        }
+        DegradationPreference previous = degradationPreference;
+        degradationPreference = preference;
+        Log.d(TAG, "Degradation preference: " + preference);
+        if (previous.capture(videoQuality, sourceQuality).width != preference.capture(videoQuality, sourceQuality).width) {
+            changeCaptureFormat();
+        }
+        adaptVideoFormat();
+    }
+
+    private void startCapture() {
+        VideoQuality capture = degradationPreference.capture(videoQuality, sourceQuality);
+        videoCapturer.startCapture(capture.width, capture.height, capture.fps);
+    }
+
+    private void changeCaptureFormat() {
+        if (videoCapturer != null && !videoCapturerStopped) {
+            VideoQuality capture = degradationPreference.capture(videoQuality, sourceQuality);
+            videoCapturer.changeCaptureFormat(capture.width, capture.height, capture.fps);
+        }
+    }
+
+    // Reduced resolution and framerate scale and drop captured frames
+    // without restarting the camera; a paused sender stops encoding and the
+    // remote side is told to show a placeholder.
+    private void applyVideoDegradation(int level) {
+        boolean wasPaused = videoDegradation == VideoDegradationController.PAUSED;
+        boolean paused = level == VideoDegradationController.PAUSED;
+        videoDegradation = level;
+        Log.d(TAG, "Video degradation level: " + level);
+        metrics.record("video_degradation_level", level);
+        adaptVideoFormat();
+        if (paused != wasPaused) {
+            metrics.increment(paused ? "video_pauses" : "video_resumes");
+            setSenderActive(localVideoSender, !paused);
+            if (events != null) {
+                events.onLocalVideoPaused(paused);
+            }
+        }
+    }
+
+    private void adaptVideoFormat() {
+        if (videoSource == null || videoDegradation == VideoDegradationController.PAUSED) {
+            return;
+        }
+        VideoQuality output = degradationPreference.adapt(videoQuality, sourceQuality, videoDegradation);
+        videoSource.adaptOutputFormat(output.width, output.height, output.fps);
+    }
+
+    /**
+     * Switches the Opus settings mid-call. The bitrate is applied to the audio
+     * sender right away; DTX, FEC, stereo and ptime are fmtp parameters and take
+     * effect with the next negotiation, see renegotiate().
+     */
+    public void setAudioProfile(final AudioProfile profile) {
+        executor.execute(() -> applyAudioProfile(profile));
+    }
+
+    private void applyAudioProfile(AudioProfile profile) {
+        AudioProfile previous = audioProfile;
+        audioProfile = profile;
+        Log.d(TAG, "Audio profile: " + profile);
+        metrics.record("bitrate_audio_bps", profile.bitrateBps);
+        setSenderMaxBitrate(localAudioSender, profile.bitrateBps);
+        if (profile.needsRenegotiation(previous)) {
+            renegotiate("audio profile " + profile.name);
+        }
+    }
+
+    /**
+     * Sends a new offer for the remote participant, who asked for one with
+     * PeerConnectionEvents.onOfferNeeded().
+     */
+    public void onRemoteOfferNeeded() {
+        executor.execute(() -> renegotiate("requested by remote"));
+    }
 
-            for (RtpParameters.Encoding encoding : parameters.encodings) {
-                // Null value means no limit.
-                encoding.maxBitrateBps = maxBitrateKbps == null ? null : maxBitrateKbps * BPS_IN_KBPS;
+    // Only the initiator sends offers in the AppRTC protocol, so the other side
+    // asks it for one. An offer asked for while negotiating waits for the
+    // stable state, so offers never cross.
+    private void renegotiate(String reason) {
+        if (pc == null || isError) {
+            return;
+        }
+        if (!negotiator.isInitiator()) {
+            Log.d(TAG, "Asking initiator for an offer: " + reason);
+            if (events != null) {
+                events.onOfferNeeded();
             }
-            if (!localVideoSender.setParameters(parameters)) {
-                Log.e(TAG, "RtpSender.setParameters failed.");
+            return;
+        }
+        if (!negotiator.isStable()) {
+            Log.d(TAG, "Negotiation in progress, renegotiating later: " + reason);
+            renegotiationPending = true;
+            return;
+        }
+        Log.d(TAG, "Renegotiating: " + reason);
+        renegotiationPending = false;
+        negotiator.createOffer(sdpMediaConstraints);
+    }
+
+    /**
+     * Restarts ICE now if this side sends offers and no negotiation is in
+     * progress, e.g. when connecting takes too long.
+     */
+    public void requestIceRestart() {
+        executor.execute(() -> {
+            if (sendIceRestartOffer("requested")) {
+                metrics.increment("ice_restarts");
             }
         });
     }
 
+    private void setSenderMaxBitrate(RtpSender sender, Integer maxBitrateBps) {
+        if (pc == null || sender == null || isError) {
+            return;
+        }
+
+        RtpParameters parameters = sender.getParameters();
+        if (parameters.encodings.size() == 0) {
+            Log.w(TAG, "RtpParameters are not ready.");
+            return;
+        }
+
+        for (RtpParameters.Encoding encoding : parameters.encodings) {
+            // Null value means no limit.
+            encoding.maxBitrateBps = maxBitrateBps;
+        }
+        if (!sender.setParameters(parameters)) {
+            Log.e(TAG, "RtpSender.setParameters failed.");
+        }
+    }
+
+    private void setSenderActive(RtpSender sender, boolean active) {
+        if (pc == null || sender == null || isError) {
+            return;
+        }
+
+        RtpParameters parameters = sender.getParameters();
+        if (parameters.encodings.size() == 0) {
+            Log.w(TAG, "RtpParameters are not ready.");
+            return;
+        }
+
+        for (RtpParameters.Encoding encoding : parameters.encodings) {
+            encoding.active = active;
+        }
+        if (!sender.setParameters(parameters)) {
+            Log.e(TAG, "RtpSender.setParameters failed.");
+        }
+    }
+
+    /**
+     * Periodically fires PeerConnectionEvents.onPeerConnectionStatsReady.
+     */
+    public void enableStatsEvents(boolean enable, int periodMs) {
+        if (enable) {
+            if (statsTimer != null) {
+                return;
+            }
+            try {
+                statsTimer = new Timer();
+                statsTimer.schedule(new TimerTask() {
+                    @Override
+                    public void run() {
+                        executor.execute(() -> getStats());
+                    }
+                }, 0, periodMs);
+            } catch (Exception e) {
+                Log.e(TAG, "Can not schedule statistics timer", e);
+            }
+        } else if (statsTimer != null) {
+            statsTimer.cancel();
+            statsTimer = null;
+        }
+    }
+
+    private void getStats() {
+        if (pc == null || isError) {
+            return;
+        }
+        boolean success = pc.getStats(reports -> executor.execute(() -> {
+            recordSendBandwidth(reports);
+            AudioProfile profile = audioProfileController.onStatsReady(reports);
+            if (profile != null) {
+                applyAudioProfile(profile);
+            }
+            int degradation = degradationController.onStatsReady(reports);
+            if (degradation >= 0) {
+                applyVideoDegradation(degradation);
+            }
+            if (events != null) {
+                events.onPeerConnectionStatsReady(reports);
+            }
+        }), null);
+        if (!success) {
+            Log.e(TAG, "getStats() returns false!");
+        }
+    }
+
+    private void recordSendBandwidth(StatsReport[] reports) {
+        for (StatsReport report : reports) {
+            if (!report.type.equals(STATS_TYPE_VIDEO_BWE)) {
+                continue;
+            }
+            for (StatsReport.Value value : report.values) {
+                if (value.name.equals(STATS_AVAILABLE_SEND_BANDWIDTH)) {
+                    int kbps = Integer.parseInt(value.value) / BPS_IN_KBPS;
+                    if (kbps > 0) {
+                        sendBandwidthSumKbps += kbps;
+                        sendBandwidthSamples++;
+                    }
+                }
+            }
+        }
+    }
+
+    // Bandwidth measured so far belongs to the network we are leaving.
+    private void onNetworkHandover(NetworkSource.Network from, NetworkSource.Network to) {
+        saveSendBandwidth();
+        networkKey = bandwidthHistory.networkKey(to.handle);
+        sendIceRestartOffer("network handover to " + to);
+    }
+
+    private void saveSendBandwidth() {
+        if (sendBandwidthSamples > 0) {
+            bandwidthHistory.record(networkKey, (int) (sendBandwidthSumKbps / sendBandwidthSamples));
+        }
+        sendBandwidthSumKbps = 0;
+        sendBandwidthSamples = 0;
+    }
+
+    // Returns 0 if there is no history for the current network, which leaves
+    // the start bitrate to the library default.
+    private int getStartBitrateKbps() {
+        int historyKbps = bandwidthHistory.getBandwidthKbps(networkKey);
+        if (historyKbps == 0) {
+            return 0;
+        }
+        int startKbps = (int) (historyKbps * START_BITRATE_HEADROOM);
+        return Math.max(START_BITRATE_MIN_KBPS, Math.min(START_BITRATE_MAX_KBPS, startKbps));
+    }
+
+    // Starts the recovery clock on the first DISCONNECTED or FAILED state.
+    private void startIceRecovery() {
+        if (iceRecoveryStartNanos != 0) {
+            return;
+        }
+        iceRecoveryStartNanos = System.nanoTime();
+        iceRestarts = 0;
+        iceGraceTimer = executor.schedule(this::restartIce, ICE_DISCONNECTED_GRACE_MS, TimeUnit.MILLISECONDS);
+        iceRecoveryDeadline = executor.schedule(() -> {
+            metrics.increment("ice_recovery_failures");
+            finishIceRecovery();
+            reportError("ICE connection failed.");
+        }, ICE_RECOVERY_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void restartIce() {
+        if (iceGraceTimer != null) {
+            iceGraceTimer.cancel(false);
+            iceGraceTimer = null;
+        }
+        if (iceRestarts >= ICE_MAX_RESTARTS) {
+            return;
+        }
+        if (sendIceRestartOffer("ICE recovery")) {
+            iceRestarts++;
+            metrics.increment("ice_restarts");
+        }
+    }
+
+    private void finishIceRecovery() {
+        if (iceRecoveryStartNanos == 0) {
+            return;
+        }
+        if (iceGraceTimer != null) {
+            iceGraceTimer.cancel(false);
+            iceGraceTimer = null;
+        }
+        if (iceRecoveryDeadline != null) {
+            iceRecoveryDeadline.cancel(false);
+            iceRecoveryDeadline = null;
+        }
+        iceRecoveryStartNanos = 0;
+    }
+
+    // Only the initiator sends offers in the AppRTC protocol, so the other side
+    // waits for the re-offer. Local media is left untouched.
+    private boolean sendIceRestartOffer(String reason) {
+        if (pc == null || isError) {
+            return false;
+        }
+        if (!negotiator.isInitiator()) {
+            Log.d(TAG, "Waiting for ICE restart offer from initiator: " + reason);
+            return false;
+        }
+        if (!negotiator.isStable()) {
+            Log.d(TAG, "Negotiation in progress, skipping ICE restart: " + reason);
+            return false;
+        }
+        Log.d(TAG, "Restarting ICE: " + reason);
+        candidatePolicy.reset();
+        if (iceRecoveryStartNanos != 0) {
+            // Connectivity is already lost, relays should not wait.
+            candidatePolicy.onConnectivityFailure();
+        }
+        if (traceCapture != null) {
+            traceCapture.markPhase("ice_restart");
+        }
+        // Hold remote candidates back until the answer with the new credentials is set.
+        negotiator.holdRemoteCandidates();
+        MediaConstraints constraints = new MediaConstraints();
+        constraints.mandatory.addAll(sdpMediaConstraints.mandatory);
+        constraints.mandatory.add(new MediaConstraints.KeyValuePair(ICE_RESTART_CONSTRAINT, "true"));
+        negotiator.createOffer(constraints);
+        return true;
+    }
+
     private void reportError(final String errorMessage) {
         Log.e(TAG, "Peerconnection error: " + errorMessage);
+        metrics.recordError(TAG, errorMessage);
         executor.execute(() -> {
             if (!isError) {
                 events.onPeerConnectionError(errorMessage);
@@ -365,15 +1015,6 @@ public class PeerConnectionClient {
         });
     }
 
-    private void drainCandidates() {
-        if (queuedRemoteCandidates != null) {
-            for (IceCandidate candidate : queuedRemoteCandidates) {
-                pc.addIceCandidate(candidate);
-            }
-            queuedRemoteCandidates = null;
-        }
-    }
-
     public void switchCamera() {
         executor.execute(() -> {
             if (videoCapturer instanceof CameraVideoCapturer) {
@@ -389,27 +1030,58 @@ public class PeerConnectionClient {
     private class PCObserver implements PeerConnection.Observer {
         @Override
         public void onIceCandidate(final IceCandidate candidate) {
-            executor.execute(() -> events.onIceCandidate(candidate));
+            executor.execute(() -> {
+                if (pcCreatedNanos != 0) {
+                    metrics.record("ice_first_candidate_ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - pcCreatedNanos));
+                    pcCreatedNanos = 0;
+                }
+                candidatePolicy.onLocalCandidate(candidate);
+            });
         }
 
         @Override
         public void onIceCandidatesRemoved(final IceCandidate[] candidates) {
-            executor.execute(() -> events.onIceCandidatesRemoved(candidates));
+            executor.execute(() -> {
+                IceCandidate[] removals = candidatePolicy.filterRemovals(candidates);
+                if (removals.length > 0) {
+                    events.onIceCandidatesRemoved(removals);
+                }
+            });
         }
 
         @Override
         public void onSignalingChange(PeerConnection.SignalingState newState) {
+            if (newState != PeerConnection.SignalingState.STABLE) {
+                return;
+            }
+            executor.execute(() -> {
+                if (renegotiationPending) {
+                    renegotiate("pending");
+                }
+            });
         }
 
         @Override
         public void onIceConnectionChange(final IceConnectionState newState) {
             executor.execute(() -> {
+                if (traceCapture != null) {
+                    traceCapture.markPhase("ice_" + newState.name().toLowerCase(Locale.US));
+                }
                 if (newState == IceConnectionState.CONNECTED) {
+                    if (iceRecoveryStartNanos != 0) {
+                        metrics.record("ice_recovery_ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - iceRecoveryStartNanos));
+                        finishIceRecovery();
+                    }
+                    candidatePolicy.onConnected();
                     events.onIceConnected();
                 } else if (newState == IceConnectionState.DISCONNECTED) {
                     events.onIceDisconnected();
+                    candidatePolicy.onConnectivityFailure();
+                    startIceRecovery();
                 } else if (newState == IceConnectionState.FAILED) {
-                    reportError("ICE connection failed.");
+                    candidatePolicy.onConnectivityFailure();
+                    startIceRecovery();
+                    restartIce();
                 }
             });
         }
@@ -434,7 +1106,7 @@ public class PeerConnectionClient {
                 }
                 if (stream.videoTracks.size() == 1) {
                     remoteVideoTrack = stream.videoTracks.get(0);
-                    remoteVideoTrack.setEnabled(true);
+                    remoteVideoTrack.setEnabled(!remoteVideoPaused);
                     remoteVideoTrack.addRenderer(new VideoRenderer(remoteVideo));
                 }
             });
@@ -447,6 +1119,13 @@ public class PeerConnectionClient {
 
         @Override
         public void onDataChannel(final DataChannel dc) {
+            executor.execute(() -> {
+                if (pc == null || isError || !dc.label().equals(DATA_CHANNEL_LABEL)) {
+                    return;
+                }
+                dataChannel = dc;
+                dataTransport.attach(new RtcMessageChannel(dc));
+            });
         }
 
         @Override
@@ -460,46 +1139,34 @@ public class PeerConnectionClient {
         }
     }
 
-    private class SDPObserver implements SdpObserver {
+    private class SdpMunger implements Negotiator.SdpMunger {
         @Override
-        public void onCreateSuccess(final SessionDescription origSdp) {
-            localSdp = new SessionDescription(origSdp.type, Util.preferCodec(origSdp.description));
-            executor.execute(() -> pc.setLocalDescription(sdpObserver, localSdp));
+        public String mungeLocal(String sdp) {
+            String sdpDescription = Util.preferCodecs(sdp, codecPolicy.getPreferredCodecs());
+            sdpDescription = sdpPruner.prune(sdpDescription, codecPolicy.getDecodableCodecs());
+            metrics.record("sdp_pruned_bytes", sdp.length() - sdpDescription.length());
+            return sdpDescription;
         }
 
         @Override
-        public void onSetSuccess() {
-            executor.execute(() -> {
-                if (isInitiator) {
-                    // For offering peer connection we first create offer and set local SDP, then after receiving answer set remote SDP.
-                    if (pc.getRemoteDescription() == null) {
-                        // We've just set our local SDP so time to send it.
-                        events.onLocalDescription(localSdp);
-                    } else {
-                        // We've just set remote description, so drain remote and send local ICE candidates.
-                        drainCandidates();
-                    }
-                } else {
-                    // For answering peer connection we set remote SDP and then create answer and set local SDP.
-                    if (pc.getLocalDescription() != null) {
-                        // We've just set our local SDP so time to send it, drain remote and send local ICE candidates.
-                        events.onLocalDescription(localSdp);
-                        drainCandidates();
-                    } else {
-                        // We've just set remote SDP - do nothing for now - answer will be created soon.
-                    }
-                }
-            });
+        public String mungeRemote(String sdp) {
+            String sdpDescription = Util.preferCodecs(sdp, codecPolicy.getPreferredCodecs());
+            int startBitrateKbps = getStartBitrateKbps();
+            metrics.record("bitrate_video_start_kbps", startBitrateKbps);
+            sdpDescription = Util.setStartBitrate(sdpDescription, startBitrateKbps, (int) (startBitrateKbps * MIN_BITRATE_FRACTION));
+            return Util.setAudioProfile(sdpDescription, audioProfile);
         }
+    }
 
+    private class NegotiationListener implements Negotiator.Listener {
         @Override
-        public void onCreateFailure(final String error) {
-            reportError("createSDP error: " + error);
+        public void onLocalDescription(SessionDescription sdp) {
+            events.onLocalDescription(sdp);
         }
 
         @Override
-        public void onSetFailure(final String error) {
-            reportError("setSDP error: " + error);
+        public void onNegotiationError(String description) {
+            reportError(description);
         }
     }
 }
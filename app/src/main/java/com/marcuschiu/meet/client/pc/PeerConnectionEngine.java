@@ -0,0 +1,36 @@
+package com.marcuschiu.meet.client.pc;
+
+import org.webrtc.IceCandidate;
+import org.webrtc.MediaConstraints;
+import org.webrtc.PeerConnection;
+import org.webrtc.SdpObserver;
+import org.webrtc.SessionDescription;
+
+/**
+ * The part of a PeerConnection that offer/answer negotiation drives. The app
+ * runs Negotiator on a real PeerConnection, the call simulator tests on a fake one.
+ * Like PeerConnection, state changes take effect when a call returns while
+ * observers are called back later.
+ */
+public interface PeerConnectionEngine {
+    /**
+     * Wraps the PeerConnection PeerConnectionClient created for a call.
+     */
+    interface Factory {
+        PeerConnectionEngine create(PeerConnection pc);
+    }
+
+    PeerConnection.SignalingState signalingState();
+
+    void createOffer(SdpObserver observer, MediaConstraints constraints);
+
+    void createAnswer(SdpObserver observer, MediaConstraints constraints);
+
+    void setLocalDescription(SdpObserver observer, SessionDescription sdp);
+
+    void setRemoteDescription(SdpObserver observer, SessionDescription sdp);
+
+    boolean addIceCandidate(IceCandidate candidate);
+
+    boolean removeIceCandidates(IceCandidate[] candidates);
+}
@@ -27,8 +27,9 @@ public interface PeerConnectionEvents {
     void onIceConnected();
 
     /**
-     * Callback fired once connection is closed (IceConnectionState is
-     * DISCONNECTED).
+     * Callback fired once connection is interrupted (IceConnectionState is
+     * DISCONNECTED). PeerConnectionClient tries to recover and reports
+     * onPeerConnectionError if it cannot.
      */
     void onIceDisconnected();
 
@@ -42,6 +43,19 @@ public interface PeerConnectionEvents {
      */
     void onPeerConnectionStatsReady(final StatsReport[] reports);
 
+    /**
+     * Callback fired once the local video sender is paused because the link
+     * cannot carry video, or resumed again. The remote side should be told.
+     */
+    void onLocalVideoPaused(final boolean paused);
+
+    /**
+     * Callback fired on the answering side once a local change, e.g. a new
+     * audio profile, takes a new offer. The initiator should be asked for one,
+     * see PeerConnectionClient.onRemoteOfferNeeded().
+     */
+    void onOfferNeeded();
+
     /**
      * Callback fired once peer connection error happened.
      */
@@ -0,0 +1,266 @@
+package com.marcuschiu.meet.client.pc;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Strips what we never use from local descriptions before they are set and
+ * signaled: codecs outside the configured lists together with their rtx
+ * payload types, video FEC, and unwanted rtcp-fb and extmap lines.
+ * telephone-event and CN are always kept, DTMF towards gateways and comfort
+ * noise for non-Opus codecs cost a few lines only. A media
+ * section that would lose all its codecs is left alone, and if the result
+ * does not pass validate() the original description is used.
+ */
+public class SdpPruner {
+    private static final String TAG = "SdpPruner";
+
+    private static final String RTX = "rtx";
+    private static final Set<String> FEC_CODECS = new HashSet<>(Arrays.asList("red", "ulpfec", "flexfec-03"));
+    // Kept with whichever codec is, but not codecs of their own.
+    private static final Set<String> AUXILIARY_CODECS = new HashSet<>(Arrays.asList("telephone-event", "cn"));
+
+    public static class Config {
+        /**
+         * Audio encoding names kept, case-insensitive.
+         */
+        public final Set<String> audioCodecs = new HashSet<>(Arrays.asList("opus"));
+        /**
+         * Video encoding names kept besides rtx. Null keeps what prune() is
+         * given, the codecs this device can decode.
+         */
+        public Set<String> videoCodecs;
+        public boolean dropVideoFec = true;
+        /**
+         * rtcp-fb types removed, e.g. "goog-remb" once transport-cc is used.
+         */
+        public final Set<String> droppedFeedback = new HashSet<>();
+        /**
+         * Header extension URIs removed.
+         */
+        public final Set<String> droppedExtensions = new HashSet<>(Arrays.asList(
+                "urn:ietf:params:rtp-hdrext:toffset",
+                "http://www.webrtc.org/experiments/rtp-hdrext/playout-delay",
+                "http://www.webrtc.org/experiments/rtp-hdrext/video-timing"));
+    }
+
+    private final Config config;
+
+    public SdpPruner(Config config) {
+        this.config = config;
+    }
+
+    /**
+     * Returns |sdp| without the unused parts. |videoCodecs| are the video
+     * codecs this device can decode, kept when the config does not name any.
+     * What we can send is not enough, a peer offering only a codec we can
+     * decode but not encode must still be able to send it.
+     */
+    public String prune(String sdp, List<String> videoCodecs) {
+        Set<String> keptVideo = new HashSet<>();
+        for (String codec : config.videoCodecs != null ? config.videoCodecs : videoCodecs) {
+            // "H264 Baseline" and "H264 High" are both H264 payload types.
+            keptVideo.add(codec.split(" ")[0].toLowerCase());
+        }
+        Set<String> keptAudio = new HashSet<>();
+        for (String codec : config.audioCodecs) {
+            keptAudio.add(codec.toLowerCase());
+        }
+
+        String[] lines = sdp.split("\r\n");
+        List<String> result = new ArrayList<>(lines.length);
+        int start = 0;
+        while (start < lines.length) {
+            int end = start + 1;
+            while (end < lines.length && !lines[end].startsWith("m=")) {
+                end++;
+            }
+            List<String> section = Arrays.asList(lines).subList(start, end);
+            if (lines[start].startsWith("m=audio ")) {
+                result.addAll(pruneSection(section, keptAudio, false));
+            } else if (lines[start].startsWith("m=video ")) {
+                result.addAll(pruneSection(section, keptVideo, config.dropVideoFec));
+            } else {
+                result.addAll(section);
+            }
+            start = end;
+        }
+
+        String pruned = String.join("\r\n", result) + "\r\n";
+        String error = validate(pruned);
+        if (error != null) {
+            Log.e(TAG, "Pruned SDP is invalid (" + error + "), using the original");
+            return sdp;
+        }
+        return pruned;
+    }
+
+    private List<String> pruneSection(List<String> section, Set<String> keptCodecs, boolean dropFec) {
+        // a=rtpmap:<payload type> <encoding name>/<clock rate>, a=fmtp:<payload type> apt=<payload type>
+        Map<String, String> names = new HashMap<>();
+        Map<String, String> rtxTargets = new HashMap<>();
+        for (String line : section) {
+            if (line.startsWith("a=rtpmap:")) {
+                String[] parts = line.substring("a=rtpmap:".length()).split("[ /]");
+                if (parts.length >= 2) {
+                    names.put(parts[0], parts[1].toLowerCase());
+                }
+            } else if (line.startsWith("a=fmtp:") && line.contains("apt=")) {
+                String payloadType = line.substring("a=fmtp:".length(), line.indexOf(' '));
+                String apt = line.substring(line.indexOf("apt=") + 4).split(";")[0].trim();
+                rtxTargets.put(payloadType, apt);
+            }
+        }
+
+        Set<String> removed = new HashSet<>();
+        boolean keepsCodec = false;
+        for (Map.Entry<String, String> entry : names.entrySet()) {
+            String name = entry.getValue();
+            if (name.equals(RTX) || AUXILIARY_CODECS.contains(name)) {
+                continue;
+            }
+            if (FEC_CODECS.contains(name) ? dropFec : !keptCodecs.contains(name)) {
+                removed.add(entry.getKey());
+            } else if (!FEC_CODECS.contains(name)) {
+                keepsCodec = true;
+            }
+        }
+        if (!keepsCodec) {
+            Log.w(TAG, "No kept codec in " + section.get(0) + ", leaving it as is");
+            removed.clear();
+        }
+        // rtx follows its codec; red may itself carry rtx, so repeat until stable.
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Map.Entry<String, String> entry : rtxTargets.entrySet()) {
+                if (removed.contains(entry.getValue()) && removed.add(entry.getKey())) {
+                    changed = true;
+                }
+            }
+        }
+
+        List<String> result = new ArrayList<>(section.size());
+        for (String line : section) {
+            if (line.startsWith("m=")) {
+                result.add(pruneMLine(line, removed));
+            } else if (line.startsWith("a=rtpmap:") || line.startsWith("a=fmtp:") || line.startsWith("a=rtcp-fb:")) {
+                String[] parts = line.substring(line.indexOf(':') + 1).split(" ");
+                if (removed.contains(parts[0])) {
+                    continue;
+                }
+                if (line.startsWith("a=rtcp-fb:") && parts.length > 1 && config.droppedFeedback.contains(parts[1])) {
+                    continue;
+                }
+                result.add(line);
+            } else if (line.startsWith("a=extmap:")) {
+                String[] parts = line.split(" ");
+                if (parts.length < 2 || !config.droppedExtensions.contains(parts[1])) {
+                    result.add(line);
+                }
+            } else {
+                result.add(line);
+            }
+        }
+        return result;
+    }
+
+    // m=<media> <port> <proto> <fmt> ...
+    private static String pruneMLine(String mLine, Set<String> removed) {
+        String[] parts = mLine.split(" ");
+        StringBuilder builder = new StringBuilder(parts[0]);
+        for (int i = 1; i < parts.length; i++) {
+            if (i < 3 || !removed.contains(parts[i])) {
+                builder.append(' ').append(parts[i]);
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Returns null if every media section of |sdp| is consistent: all dynamic
+     * payload types on the m-line have an rtpmap, no attribute refers to a
+     * payload type missing from the m-line, and rtx points at a present
+     * codec. Otherwise returns what is wrong.
+     */
+    public static String validate(String sdp) {
+        String[] lines = sdp.split("\r\n");
+        if (lines.length == 0 || !lines[0].equals("v=0")) {
+            return "no v=0";
+        }
+        Set<String> payloadTypes = null;
+        Set<String> mapped = new HashSet<>();
+        List<String> apts = new ArrayList<>();
+        String mLine = null;
+        for (int i = 0; i <= lines.length; i++) {
+            String line = i < lines.length ? lines[i] : null;
+            if (line == null || line.startsWith("m=")) {
+                if (payloadTypes != null) {
+                    String error = validateSection(mLine, payloadTypes, mapped, apts);
+                    if (error != null) {
+                        return error;
+                    }
+                }
+                if (line == null) {
+                    break;
+                }
+                mLine = line;
+                String[] parts = line.split(" ");
+                if (parts.length < 4) {
+                    return "short m-line: " + line;
+                }
+                boolean rtp = parts[2].contains("RTP");
+                payloadTypes = rtp ? new HashSet<>(Arrays.asList(parts).subList(3, parts.length)) : null;
+                mapped.clear();
+                apts.clear();
+                continue;
+            }
+            if (payloadTypes == null) {
+                continue;
+            }
+            if (line.startsWith("a=rtpmap:") || line.startsWith("a=fmtp:") || line.startsWith("a=rtcp-fb:")) {
+                String payloadType = line.substring(line.indexOf(':') + 1).split(" ")[0];
+                if (payloadType.equals("*")) {
+                    continue;
+                }
+                if (!payloadTypes.contains(payloadType)) {
+                    return "payload type " + payloadType + " not on " + mLine;
+                }
+                if (line.startsWith("a=rtpmap:")) {
+                    mapped.add(payloadType);
+                } else if (line.startsWith("a=fmtp:") && line.contains("apt=")) {
+                    apts.add(line.substring(line.indexOf("apt=") + 4).split(";")[0].trim());
+                }
+            }
+        }
+        return null;
+    }
+
+    private static String validateSection(String mLine, Set<String> payloadTypes, Set<String> mapped, List<String> apts) {
+        if (payloadTypes.isEmpty()) {
+            return "no payload types on " + mLine;
+        }
+        for (String payloadType : payloadTypes) {
+            try {
+                if (Integer.parseInt(payloadType) >= 96 && !mapped.contains(payloadType)) {
+                    return "no rtpmap for " + payloadType;
+                }
+            } catch (NumberFormatException e) {
+                return "bad payload type " + payloadType;
+            }
+        }
+        for (String apt : apts) {
+            if (!payloadTypes.contains(apt)) {
+                return "rtx for missing payload type " + apt;
+            }
+        }
+        return null;
+    }
+}
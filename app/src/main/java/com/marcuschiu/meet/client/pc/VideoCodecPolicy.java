@@ -0,0 +1,223 @@
+package com.marcuschiu.meet.client.pc;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecInfo.CodecProfileLevel;
+import android.media.MediaCodecList;
+import android.os.Build;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Per-device video codec preference derived from the hardware codecs reported
+ * by MediaCodecList. Probing is done once per OS build and cached in shared
+ * preferences, since walking the codec list is slow on some devices.
+ */
+public class VideoCodecPolicy {
+    private static final String TAG = "VideoCodecPolicy";
+    private static final String PREFS_NAME = "video_codec_policy";
+    private static final String KEY_FINGERPRINT = "fingerprint";
+    private static final String KEY_CAPABILITIES = "capabilities";
+
+    private static final String VP8_MIME_TYPE = "video/x-vnd.on2.vp8";
+    private static final String VP9_MIME_TYPE = "video/x-vnd.on2.vp9";
+    private static final String H264_MIME_TYPE = "video/avc";
+    private static final String INTEL_PREFIX = "OMX.Intel.";
+    // Software codecs bundled with the platform.
+    private static final String[] SOFTWARE_PREFIXES = {"OMX.google.", "c2.android.", "c2.google."};
+
+    // Capability bits persisted in preferences.
+    static final int HW_ENCODER_VP8 = 1;
+    static final int HW_DECODER_VP8 = 1 << 1;
+    static final int HW_ENCODER_VP9 = 1 << 2;
+    static final int HW_DECODER_VP9 = 1 << 3;
+    static final int HW_ENCODER_H264 = 1 << 4;
+    static final int HW_DECODER_H264 = 1 << 5;
+    static final int HW_ENCODER_H264_HIGH = 1 << 6;
+    static final int HW_ENCODER_INTEL_VP8 = 1 << 7;
+
+    private final int capabilities;
+    private final List<String> preferredCodecs;
+    private final List<String> decodableCodecs;
+
+    VideoCodecPolicy(int capabilities) {
+        this.capabilities = capabilities;
+        this.preferredCodecs = rankCodecs(capabilities);
+        this.decodableCodecs = decodableCodecs(capabilities);
+    }
+
+    /**
+     * Returns the cached policy for this device, probing MediaCodecList if the
+     * OS build changed since the last probe.
+     */
+    public static VideoCodecPolicy load(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        if (Build.FINGERPRINT.equals(prefs.getString(KEY_FINGERPRINT, null))) {
+            return new VideoCodecPolicy(prefs.getInt(KEY_CAPABILITIES, 0));
+        }
+        int capabilities = probeCapabilities();
+        prefs.edit()
+                .putString(KEY_FINGERPRINT, Build.FINGERPRINT)
+                .putInt(KEY_CAPABILITIES, capabilities)
+                .apply();
+        VideoCodecPolicy policy = new VideoCodecPolicy(capabilities);
+        Log.d(TAG, "Probed codec capabilities: 0x" + Integer.toHexString(capabilities) + ", preferred codecs: " + policy.preferredCodecs);
+        return policy;
+    }
+
+    /**
+     * Codec names in order of preference, using the PeerConnectionClient
+     * VIDEO_CODEC_* names.
+     */
+    public List<String> getPreferredCodecs() {
+        return preferredCodecs;
+    }
+
+    /**
+     * Codec names DefaultVideoDecoderFactory can decode: H.264 with a
+     * hardware decoder only, VP8 and VP9 always, in software if need be.
+     */
+    public List<String> getDecodableCodecs() {
+        return decodableCodecs;
+    }
+
+    public boolean isIntelVp8EncoderEnabled() {
+        return (capabilities & HW_ENCODER_INTEL_VP8) != 0;
+    }
+
+    public boolean isH264HighProfileEnabled() {
+        return (capabilities & HW_ENCODER_H264_HIGH) != 0;
+    }
+
+    private static int probeCapabilities() {
+        int capabilities = 0;
+        MediaCodecInfo[] codecInfos;
+        try {
+            codecInfos = new MediaCodecList(MediaCodecList.REGULAR_CODECS).getCodecInfos();
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Failed to enumerate codecs: " + e.getMessage());
+            return 0;
+        }
+        for (MediaCodecInfo info : codecInfos) {
+            if (!isHardwareAccelerated(info)) {
+                continue;
+            }
+            boolean encoder = info.isEncoder();
+            for (String type : info.getSupportedTypes()) {
+                if (type.equalsIgnoreCase(VP8_MIME_TYPE)) {
+                    capabilities |= encoder ? HW_ENCODER_VP8 : HW_DECODER_VP8;
+                    if (encoder && info.getName().startsWith(INTEL_PREFIX)) {
+                        capabilities |= HW_ENCODER_INTEL_VP8;
+                    }
+                } else if (type.equalsIgnoreCase(VP9_MIME_TYPE)) {
+                    capabilities |= encoder ? HW_ENCODER_VP9 : HW_DECODER_VP9;
+                } else if (type.equalsIgnoreCase(H264_MIME_TYPE)) {
+                    capabilities |= encoder ? HW_ENCODER_H264 : HW_DECODER_H264;
+                    if (encoder && supportsProfile(info, type, CodecProfileLevel.AVCProfileHigh)) {
+                        capabilities |= HW_ENCODER_H264_HIGH;
+                    }
+                }
+            }
+        }
+        return capabilities;
+    }
+
+    private static boolean isHardwareAccelerated(MediaCodecInfo info) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            return info.isHardwareAccelerated();
+        }
+        String name = info.getName();
+        for (String prefix : SOFTWARE_PREFIXES) {
+            if (name.startsWith(prefix)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean supportsProfile(MediaCodecInfo info, String type, int profile) {
+        try {
+            for (CodecProfileLevel level : info.getCapabilitiesForType(type).profileLevels) {
+                if (level.profile == profile) {
+                    return true;
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "No capabilities for " + type + " in " + info.getName());
+        }
+        return false;
+    }
+
+    // Codecs with a hardware encoder come first, those that can also be decoded
+    // in hardware ahead of the rest. VP8 is the software fallback, then VP9.
+    static List<String> rankCodecs(int capabilities) {
+        List<String> hwBoth = new ArrayList<>();
+        List<String> hwEncoderOnly = new ArrayList<>();
+        for (String codec : Arrays.asList(
+                PeerConnectionClient.VIDEO_CODEC_H264_HIGH,
+                PeerConnectionClient.VIDEO_CODEC_H264_BASELINE,
+                PeerConnectionClient.VIDEO_CODEC_VP8,
+                PeerConnectionClient.VIDEO_CODEC_VP9)) {
+            if (!hasHwEncoder(capabilities, codec)) {
+                continue;
+            }
+            if (hasHwDecoder(capabilities, codec)) {
+                hwBoth.add(codec);
+            } else {
+                hwEncoderOnly.add(codec);
+            }
+        }
+        List<String> ranked = new ArrayList<>(hwBoth);
+        ranked.addAll(hwEncoderOnly);
+        for (String codec : Arrays.asList(PeerConnectionClient.VIDEO_CODEC_VP8, PeerConnectionClient.VIDEO_CODEC_VP9)) {
+            if (!ranked.contains(codec)) {
+                ranked.add(codec);
+            }
+        }
+        return ranked;
+    }
+
+    static List<String> decodableCodecs(int capabilities) {
+        List<String> codecs = new ArrayList<>();
+        if ((capabilities & HW_DECODER_H264) != 0) {
+            codecs.add(PeerConnectionClient.VIDEO_CODEC_H264_HIGH);
+            codecs.add(PeerConnectionClient.VIDEO_CODEC_H264_BASELINE);
+        }
+        codecs.add(PeerConnectionClient.VIDEO_CODEC_VP8);
+        codecs.add(PeerConnectionClient.VIDEO_CODEC_VP9);
+        return codecs;
+    }
+
+    private static boolean hasHwEncoder(int capabilities, String codec) {
+        switch (codec) {
+            case PeerConnectionClient.VIDEO_CODEC_VP8:
+                return (capabilities & HW_ENCODER_VP8) != 0;
+            case PeerConnectionClient.VIDEO_CODEC_VP9:
+                return (capabilities & HW_ENCODER_VP9) != 0;
+            case PeerConnectionClient.VIDEO_CODEC_H264_BASELINE:
+                return (capabilities & HW_ENCODER_H264) != 0;
+            case PeerConnectionClient.VIDEO_CODEC_H264_HIGH:
+                return (capabilities & HW_ENCODER_H264_HIGH) != 0;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean hasHwDecoder(int capabilities, String codec) {
+        switch (codec) {
+            case PeerConnectionClient.VIDEO_CODEC_VP8:
+                return (capabilities & HW_DECODER_VP8) != 0;
+            case PeerConnectionClient.VIDEO_CODEC_VP9:
+                return (capabilities & HW_DECODER_VP9) != 0;
+            case PeerConnectionClient.VIDEO_CODEC_H264_BASELINE:
+            case PeerConnectionClient.VIDEO_CODEC_H264_HIGH:
+                return (capabilities & HW_DECODER_H264) != 0;
+            default:
+                return false;
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package com.marcuschiu.meet.client.pc;
+
+/**
+ * What the local video shows, which decides its default
+ * DegradationPreference.
+ */
+public enum VideoContentMode {
+    CAMERA(DegradationPreference.MAINTAIN_FRAMERATE),
+    /**
+     * Screens and documents, where detail matters more than motion.
+     */
+    SCREEN(DegradationPreference.MAINTAIN_RESOLUTION);
+
+    public final DegradationPreference preference;
+
+    VideoContentMode(DegradationPreference preference) {
+        this.preference = preference;
+    }
+}
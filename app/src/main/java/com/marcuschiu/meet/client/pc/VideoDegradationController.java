@@ -0,0 +1,187 @@
+package com.marcuschiu.meet.client.pc;
+
+import org.webrtc.StatsReport;
+
+/**
+ * Walks a degradation ladder for the local video from periodic stats
+ * reports: full quality, reduced, heavily reduced, then paused so the call
+ * runs audio-only. Whether a level costs resolution or framerate is up to
+ * the sender's DegradationPreference. Steps down as soon as bandwidth or loss cross
+ * a threshold, pausing needs a few bad reports in a row. Steps back up one
+ * level at a time after a run of good reports.
+ *
+ * <p>While video is paused the send bandwidth estimate no longer grows, so
+ * the controller resumes heavily reduced on its own after a while to
+ * probe the link. A probe that ends in another pause doubles the wait for
+ * the next one.
+ */
+public class VideoDegradationController {
+    public static final int FULL = 0;
+    public static final int REDUCED = 1;
+    public static final int HEAVILY_REDUCED = 2;
+    public static final int PAUSED = 3;
+
+    public static class Config {
+        public int reducedBandwidthKbps = 400;
+        public int heavilyReducedBandwidthKbps = 200;
+        public int pauseBandwidthKbps = 80;
+        public float reducedPacketLoss = 0.03f;
+        public float heavilyReducedPacketLoss = 0.08f;
+        public float pausePacketLoss = 0.15f;
+        public int badReportsToPause = 3;
+        public int goodReportsToRecover = 10;
+        // Reports after resuming before the link may pause video again, the
+        // bandwidth estimate needs some to ramp up.
+        public int resumeGraceReports = 5;
+        public int firstProbeReports = 15;
+        public int maxProbeReports = 120;
+    }
+
+    private final Config config;
+    private int level = FULL;
+    private long lastPacketsSent = -1;
+    private long lastPacketsLost = -1;
+    private int goodReports;
+    private int badReports;
+    private int pausedReports;
+    private int probeReports;
+    // Reports since video was last resumed, -1 if it never was paused.
+    private int resumedReports = -1;
+
+    public VideoDegradationController(Config config) {
+        this.config = config;
+        this.probeReports = config.firstProbeReports;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * Returns the level to use after |reports|, or -1 if it is unchanged.
+     */
+    public int onStatsReady(StatsReport[] reports) {
+        long packetsSent = -1;
+        long packetsLost = -1;
+        int bandwidthKbps = -1;
+        boolean cpuLimited = false;
+        for (StatsReport report : reports) {
+            if (report.type.equals("ssrc") && report.id.contains("send") && "video".equals(getString(report, "mediaType"))) {
+                packetsSent = getLong(report, "packetsSent");
+                packetsLost = getLong(report, "packetsLost");
+                cpuLimited = "true".equals(getString(report, "googCpuLimitedResolution"));
+            } else if (report.type.equals("VideoBwe")) {
+                long bps = getLong(report, "googAvailableSendBandwidth");
+                bandwidthKbps = bps < 0 ? -1 : (int) (bps / 1000);
+            }
+        }
+
+        float loss = 0;
+        if (packetsSent >= 0 && lastPacketsSent >= 0 && packetsSent > lastPacketsSent) {
+            long lost = Math.max(0, packetsLost - lastPacketsLost);
+            loss = (float) lost / (packetsSent - lastPacketsSent + lost);
+        }
+        lastPacketsSent = packetsSent;
+        lastPacketsLost = packetsLost;
+        if (resumedReports >= 0) {
+            resumedReports++;
+        }
+
+        if (level == PAUSED) {
+            return whilePaused(bandwidthKbps);
+        }
+        int target = target(bandwidthKbps, loss, cpuLimited);
+        if (target == PAUSED) {
+            boolean settling = resumedReports >= 0 && resumedReports <= config.resumeGraceReports;
+            if (settling || ++badReports < config.badReportsToPause) {
+                target = HEAVILY_REDUCED;
+            }
+        } else {
+            badReports = 0;
+        }
+        if (resumedReports > config.goodReportsToRecover && target < PAUSED) {
+            // The last probe held up, the next pause probes early again.
+            probeReports = config.firstProbeReports;
+        }
+
+        if (target > level) {
+            goodReports = 0;
+            return setLevel(target);
+        }
+        if (target == level) {
+            goodReports = 0;
+            return -1;
+        }
+        // Stepping up needs a stable link first.
+        if (++goodReports < config.goodReportsToRecover) {
+            return -1;
+        }
+        goodReports = 0;
+        return setLevel(level - 1);
+    }
+
+    private int whilePaused(int bandwidthKbps) {
+        pausedReports++;
+        // Without video only a clearly recovered estimate is worth trusting.
+        if (bandwidthKbps >= config.reducedBandwidthKbps) {
+            goodReports++;
+        } else {
+            goodReports = 0;
+        }
+        boolean recovered = goodReports >= config.goodReportsToRecover;
+        if (!recovered && pausedReports < probeReports) {
+            return -1;
+        }
+        if (!recovered) {
+            probeReports = Math.min(probeReports * 2, config.maxProbeReports);
+        }
+        goodReports = 0;
+        resumedReports = 0;
+        return setLevel(HEAVILY_REDUCED);
+    }
+
+    private int target(int bandwidthKbps, float loss, boolean cpuLimited) {
+        boolean bandwidthKnown = bandwidthKbps >= 0;
+        if ((bandwidthKnown && bandwidthKbps < config.pauseBandwidthKbps) || loss >= config.pausePacketLoss) {
+            return PAUSED;
+        }
+        if ((bandwidthKnown && bandwidthKbps < config.heavilyReducedBandwidthKbps) || loss >= config.heavilyReducedPacketLoss) {
+            return HEAVILY_REDUCED;
+        }
+        if ((bandwidthKnown && bandwidthKbps < config.reducedBandwidthKbps)
+                || loss >= config.reducedPacketLoss || cpuLimited) {
+            return REDUCED;
+        }
+        return FULL;
+    }
+
+    private int setLevel(int next) {
+        if (next == PAUSED) {
+            pausedReports = 0;
+            badReports = 0;
+        }
+        level = next;
+        return level;
+    }
+
+    private static String getString(StatsReport report, String name) {
+        for (StatsReport.Value value : report.values) {
+            if (value.name.equals(name)) {
+                return value.value;
+            }
+        }
+        return null;
+    }
+
+    private static long getLong(StatsReport report, String name) {
+        String value = getString(report, name);
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.marcuschiu.meet.client.pc;
+
+/**
+ * Capture format and send bitrate cap of the local video.
+ */
+public class VideoQuality {
+    public static final VideoQuality HD = new VideoQuality("hd", 1280, 720, 30, 1700);
+    public static final VideoQuality SD = new VideoQuality("sd", 960, 540, 30, 1000);
+    public static final VideoQuality LOW = new VideoQuality("low", 640, 360, 24, 500);
+    public static final VideoQuality MINIMAL = new VideoQuality("minimal", 480, 270, 15, 250);
+
+    /**
+     * From best to cheapest, indexed by MediaQualityGovernor levels.
+     */
+    public static final VideoQuality[] LADDER = {HD, SD, LOW, MINIMAL};
+
+    // Screen share: full detail at a few frames per second, slides barely move.
+    private static final int SCREEN_MAX_SIDE = 1920;
+    private static final int SCREEN_FPS = 5;
+    private static final int SCREEN_MAX_BITRATE_KBPS = 1200;
+
+    public final String name;
+    public final int width;
+    public final int height;
+    public final int fps;
+    public final int maxBitrateKbps;
+
+    public VideoQuality(String name, int width, int height, int fps, int maxBitrateKbps) {
+        this.name = name;
+        this.width = width;
+        this.height = height;
+        this.fps = fps;
+        this.maxBitrateKbps = maxBitrateKbps;
+    }
+
+    /**
+     * Returns the screen share profile for a display of |width| x |height|
+     * pixels, scaled down to at most SCREEN_MAX_SIDE on the long side.
+     */
+    public static VideoQuality screen(int width, int height) {
+        float scale = Math.min(1f, (float) SCREEN_MAX_SIDE / Math.max(width, height));
+        // Encoders want even dimensions.
+        int scaledWidth = Math.round(width * scale) & ~1;
+        int scaledHeight = Math.round(height * scale) & ~1;
+        return new VideoQuality("screen", scaledWidth, scaledHeight, SCREEN_FPS, SCREEN_MAX_BITRATE_KBPS);
+    }
+
+    @Override
+    public String toString() {
+        return name + "[" + width + "x" + height + "@" + fps + ", " + maxBitrateKbps + "kbps]";
+    }
+}
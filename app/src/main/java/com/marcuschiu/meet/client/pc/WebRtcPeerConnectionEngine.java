@@ -0,0 +1,53 @@
+package com.marcuschiu.meet.client.pc;
+
+import org.webrtc.IceCandidate;
+import org.webrtc.MediaConstraints;
+import org.webrtc.PeerConnection;
+import org.webrtc.SdpObserver;
+import org.webrtc.SessionDescription;
+
+/**
+ * PeerConnectionEngine backed by a libwebrtc PeerConnection.
+ */
+class WebRtcPeerConnectionEngine implements PeerConnectionEngine {
+    private final PeerConnection pc;
+
+    WebRtcPeerConnectionEngine(PeerConnection pc) {
+        this.pc = pc;
+    }
+
+    @Override
+    public PeerConnection.SignalingState signalingState() {
+        return pc.signalingState();
+    }
+
+    @Override
+    public void createOffer(SdpObserver observer, MediaConstraints constraints) {
+        pc.createOffer(observer, constraints);
+    }
+
+    @Override
+    public void createAnswer(SdpObserver observer, MediaConstraints constraints) {
+        pc.createAnswer(observer, constraints);
+    }
+
+    @Override
+    public void setLocalDescription(SdpObserver observer, SessionDescription sdp) {
+        pc.setLocalDescription(observer, sdp);
+    }
+
+    @Override
+    public void setRemoteDescription(SdpObserver observer, SessionDescription sdp) {
+        pc.setRemoteDescription(observer, sdp);
+    }
+
+    @Override
+    public boolean addIceCandidate(IceCandidate candidate) {
+        return pc.addIceCandidate(candidate);
+    }
+
+    @Override
+    public boolean removeIceCandidates(IceCandidate[] candidates) {
+        return pc.removeIceCandidates(candidates);
+    }
+}
@@ -0,0 +1,225 @@
+package com.marcuschiu.meet.client.pc;
+
+import android.os.Process;
+import android.util.Log;
+
+import org.webrtc.PeerConnectionFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Captures WebRTC's internal trace events, the native thread timelines of
+ * encoding, decoding and networking, to Chrome trace JSON files that
+ * chrome://tracing or Perfetto open.
+ *
+ * <p>The capture is split into segments of at most maxSegmentBytes. The
+ * oldest segments in the directory are deleted to stay under maxTotalBytes.
+ * The native tracer has no way to add events from Java, so phases marked
+ * with markPhase() are appended to a segment as global instant events when
+ * it is closed. A segment cut off by a crash has no phase markers.
+ *
+ * <p>Hand it to PeerConnectionClient before the factory is created; the
+ * tracer must be enabled when WebRTC is initialized.
+ */
+public class WebRtcTraceCapture {
+    private static final String TAG = "WebRtcTraceCapture";
+    private static final String PREFIX = "webrtc-";
+    private static final String SUFFIX = ".json";
+    // The native tracer ends its array with "]}", look for it in the last bytes.
+    private static final int TAIL_BYTES = 64;
+
+    public static class Config {
+        public long maxSegmentBytes = 16 * 1024 * 1024;
+        public long maxTotalBytes = 64 * 1024 * 1024;
+        public long checkPeriodMs = 1000;
+    }
+
+    private static class Marker {
+        final String name;
+        final long timeUs;
+
+        Marker(String name, long timeUs) {
+            this.name = name;
+            this.timeUs = timeUs;
+        }
+    }
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "TraceCapture");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final File directory;
+    private final Config config;
+    private final long startMs = System.currentTimeMillis();
+    // Guarded by this.
+    private final List<Marker> markers = new ArrayList<>();
+    private File segment;
+    private int segmentIndex;
+    private boolean stopped;
+
+    public WebRtcTraceCapture(File directory, Config config) {
+        this.directory = directory;
+        this.config = config;
+    }
+
+    /**
+     * Starts the first segment. Call after PeerConnectionFactory.initialize()
+     * with the internal tracer enabled.
+     */
+    public synchronized boolean start() {
+        if (segment != null || stopped) {
+            return segment != null;
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.e(TAG, "Cannot create " + directory);
+            return false;
+        }
+        if (!startSegment()) {
+            return false;
+        }
+        executor.scheduleWithFixedDelay(this::checkSegment, config.checkPeriodMs, config.checkPeriodMs, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    /**
+     * Marks the start of call phase |name|, e.g. a state change. May be
+     * called from any thread.
+     */
+    public synchronized void markPhase(String name) {
+        if (segment != null) {
+            // Native trace timestamps come from the same monotonic clock.
+            markers.add(new Marker(name, System.nanoTime() / 1000));
+        }
+    }
+
+    /**
+     * Ends the capture and closes the last segment.
+     */
+    public synchronized void stop() {
+        if (stopped) {
+            return;
+        }
+        stopped = true;
+        executor.shutdown();
+        if (segment != null) {
+            closeSegment();
+            segment = null;
+        }
+    }
+
+    private synchronized void checkSegment() {
+        if (segment == null || segment.length() < config.maxSegmentBytes) {
+            return;
+        }
+        closeSegment();
+        if (!startSegment()) {
+            segment = null;
+            executor.shutdown();
+        }
+    }
+
+    private boolean startSegment() {
+        File next = new File(directory, PREFIX + startMs + "-" + segmentIndex++ + SUFFIX);
+        if (!PeerConnectionFactory.startInternalTracingCapture(next.getAbsolutePath())) {
+            Log.e(TAG, "Cannot capture to " + next);
+            return false;
+        }
+        segment = next;
+        Log.d(TAG, "Capturing to " + segment);
+        deleteOldSegments();
+        return true;
+    }
+
+    private void closeSegment() {
+        PeerConnectionFactory.stopInternalTracingCapture();
+        if (markers.isEmpty()) {
+            return;
+        }
+        try {
+            appendMarkers(segment);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot add phase markers to " + segment + ": " + e.getMessage());
+        }
+        markers.clear();
+    }
+
+    // Inserts the markers before the closing bracket of the traceEvents array.
+    private void appendMarkers(File file) throws IOException {
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            long tailStart = Math.max(0, out.length() - TAIL_BYTES);
+            byte[] tail = new byte[(int) (out.length() - tailStart)];
+            out.seek(tailStart);
+            out.readFully(tail);
+            int end = tail.length - 1;
+            while (end >= 0 && tail[end] != ']') {
+                end--;
+            }
+            if (end < 0) {
+                throw new IOException("No end of trace events");
+            }
+            int previous = end - 1;
+            while (previous >= 0 && Character.isWhitespace(tail[previous])) {
+                previous--;
+            }
+            boolean empty = previous >= 0 && tail[previous] == '[';
+
+            StringBuilder json = new StringBuilder();
+            for (Marker marker : markers) {
+                json.append(empty && json.length() == 0 ? "\n" : ",\n");
+                json.append("{\"name\":\"").append(escape(marker.name))
+                        .append("\",\"cat\":\"phase\",\"ph\":\"i\",\"s\":\"g\",\"pid\":").append(Process.myPid())
+                        .append(",\"tid\":0,\"ts\":").append(marker.timeUs).append('}');
+            }
+            json.append("]}\n");
+            out.seek(tailStart + end);
+            out.write(json.toString().getBytes(StandardCharsets.UTF_8));
+            out.setLength(out.getFilePointer());
+        }
+    }
+
+    // Deletes the oldest segments, also those of earlier calls, so that the
+    // current one can grow to maxSegmentBytes within maxTotalBytes.
+    private void deleteOldSegments() {
+        File[] segments = directory.listFiles((dir, name) -> name.startsWith(PREFIX) && name.endsWith(SUFFIX));
+        if (segments == null) {
+            return;
+        }
+        Arrays.sort(segments, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        long totalBytes = 0;
+        for (File file : segments) {
+            totalBytes += file.length();
+        }
+        for (File file : segments) {
+            if (totalBytes <= config.maxTotalBytes - config.maxSegmentBytes || file.equals(segment)) {
+                break;
+            }
+            totalBytes -= file.length();
+            if (!file.delete()) {
+                Log.w(TAG, "Cannot delete " + file);
+            }
+        }
+    }
+
+    private static String escape(String text) {
+        StringBuilder escaped = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                escaped.append('\\').append(c);
+            } else if (c >= ' ') {
+                escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+}
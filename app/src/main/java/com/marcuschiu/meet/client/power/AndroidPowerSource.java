@@ -0,0 +1,65 @@
+package com.marcuschiu.meet.client.power;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.PowerManager;
+
+/**
+ * PowerSource backed by PowerManager thermal status and the battery
+ * broadcast. Thermal status needs API 29; on older releases it stays NONE.
+ */
+public class AndroidPowerSource implements PowerSource {
+    private final Context context;
+    private final PowerManager powerManager;
+    private PowerManager.OnThermalStatusChangedListener thermalListener;
+    private BroadcastReceiver batteryReceiver;
+
+    public AndroidPowerSource(Context context) {
+        this.context = context;
+        powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+    }
+
+    @Override
+    public void start(final Listener listener) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            thermalListener = status -> listener.onThermalStatusChanged(toThermalStatus(status));
+            powerManager.addThermalStatusListener(thermalListener);
+            listener.onThermalStatusChanged(toThermalStatus(powerManager.getCurrentThermalStatus()));
+        }
+        batteryReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                int level = intent.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+                int scale = intent.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+                if (level < 0 || scale <= 0) {
+                    return;
+                }
+                boolean charging = intent.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+                listener.onBatteryChanged(level * 100 / scale, charging);
+            }
+        };
+        // The battery broadcast is sticky, the current state arrives right away.
+        context.registerReceiver(batteryReceiver, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+    }
+
+    @Override
+    public void stop() {
+        if (thermalListener != null) {
+            powerManager.removeThermalStatusListener(thermalListener);
+            thermalListener = null;
+        }
+        if (batteryReceiver != null) {
+            context.unregisterReceiver(batteryReceiver);
+            batteryReceiver = null;
+        }
+    }
+
+    private static ThermalStatus toThermalStatus(int status) {
+        ThermalStatus[] values = ThermalStatus.values();
+        return values[Math.max(0, Math.min(values.length - 1, status))];
+    }
+}
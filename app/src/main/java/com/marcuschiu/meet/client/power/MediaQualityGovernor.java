@@ -0,0 +1,100 @@
+package com.marcuschiu.meet.client.power;
+
+import android.util.Log;
+
+import com.marcuschiu.meet.client.pc.VideoQuality;
+import com.marcuschiu.meet.client.util.CallMetrics;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Steps the local video down the VideoQuality ladder when the device runs
+ * hot or low on battery, and back up once it recovers, as decided by
+ * QualityPolicy. Every decision is recorded in the call metrics.
+ *
+ * <p>All state is confined to |executor|.
+ */
+public class MediaQualityGovernor implements PowerSource.Listener {
+    private static final String TAG = "MediaQualityGovernor";
+    // Step-ups are due without any new event, so conditions are re-checked periodically.
+    private static final long EVALUATE_PERIOD_MS = 5000;
+
+    public interface Events {
+        void onVideoQualityChanged(VideoQuality quality);
+    }
+
+    private final PowerSource source;
+    private final QualityPolicy policy;
+    private final ScheduledExecutorService executor;
+    private final CallMetrics metrics;
+    private final Events events;
+    private final long startNanos = System.nanoTime();
+    private ScheduledFuture<?> evaluateTimer;
+    private int lastBatteryPercent = -1;
+
+    public MediaQualityGovernor(PowerSource source, QualityPolicy.Config config, ScheduledExecutorService executor,
+                                CallMetrics metrics, Events events) {
+        this.source = source;
+        this.policy = new QualityPolicy(config);
+        this.executor = executor;
+        this.metrics = metrics;
+        this.events = events;
+    }
+
+    public void start() {
+        source.start(this);
+        executor.execute(() -> evaluateTimer = executor.scheduleWithFixedDelay(this::evaluate,
+                EVALUATE_PERIOD_MS, EVALUATE_PERIOD_MS, TimeUnit.MILLISECONDS));
+    }
+
+    public void stop() {
+        source.stop();
+        executor.execute(() -> {
+            if (evaluateTimer != null) {
+                evaluateTimer.cancel(false);
+                evaluateTimer = null;
+            }
+        });
+    }
+
+    @Override
+    public void onThermalStatusChanged(final PowerSource.ThermalStatus status) {
+        executor.execute(() -> {
+            Log.d(TAG, "Thermal status: " + status);
+            metrics.record("thermal_status", status.ordinal());
+            policy.onThermalStatusChanged(status);
+            evaluate();
+        });
+    }
+
+    @Override
+    public void onBatteryChanged(final int percent, final boolean charging) {
+        executor.execute(() -> {
+            if (percent != lastBatteryPercent) {
+                lastBatteryPercent = percent;
+                metrics.record("battery_percent", percent);
+            }
+            policy.onBatteryChanged(percent, charging);
+            evaluate();
+        });
+    }
+
+    private void evaluate() {
+        int previous = policy.getLevel();
+        int level = policy.evaluate(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+        if (level == previous) {
+            return;
+        }
+        VideoQuality quality = qualityOf(level);
+        Log.d(TAG, "Video quality " + qualityOf(previous) + " -> " + quality);
+        metrics.record("quality_level", level);
+        metrics.increment(level > previous ? "quality_steps_down" : "quality_steps_up");
+        events.onVideoQualityChanged(quality);
+    }
+
+    private static VideoQuality qualityOf(int level) {
+        return VideoQuality.LADDER[Math.min(level, VideoQuality.LADDER.length - 1)];
+    }
+}
@@ -0,0 +1,26 @@
+package com.marcuschiu.meet.client.power;
+
+/**
+ * Source of thermal and battery events, so MediaQualityGovernor can be
+ * driven without PowerManager.
+ */
+public interface PowerSource {
+
+    /**
+     * Mirrors PowerManager.THERMAL_STATUS_*, in the same order.
+     */
+    enum ThermalStatus {NONE, LIGHT, MODERATE, SEVERE, CRITICAL, EMERGENCY, SHUTDOWN}
+
+    /**
+     * Callbacks may come on any thread.
+     */
+    interface Listener {
+        void onThermalStatusChanged(ThermalStatus status);
+
+        void onBatteryChanged(int percent, boolean charging);
+    }
+
+    void start(Listener listener);
+
+    void stop();
+}
@@ -0,0 +1,92 @@
+package com.marcuschiu.meet.client.power;
+
+/**
+ * Decides how far down the VideoQuality ladder the call should run given
+ * the thermal status and battery. Level 0 is the best quality. Worse
+ * conditions step down at once, possibly several levels. Recovery steps up
+ * one level at a time, and only after conditions have allowed it for
+ * stepUpDelayMs, so a device hovering around a threshold does not flap.
+ * Battery thresholds additionally need batteryHysteresisPercent of margin
+ * to be lifted.
+ *
+ * <p>Time is passed in, so thermal sequences can be replayed on simulated
+ * time. Not thread-safe.
+ */
+public class QualityPolicy {
+    public static class Config {
+        // Lowest allowed level by ThermalStatus ordinal.
+        public int[] thermalLevels = {0, 0, 1, 2, 3, 3, 3};
+        public int lowBatteryPercent = 30;
+        public int lowBatteryLevel = 1;
+        public int criticalBatteryPercent = 15;
+        public int criticalBatteryLevel = 2;
+        public int batteryHysteresisPercent = 5;
+        public long stepUpDelayMs = 60000;
+    }
+
+    private final Config config;
+    private PowerSource.ThermalStatus thermalStatus = PowerSource.ThermalStatus.NONE;
+    private int batteryPercent = 100;
+    private boolean charging;
+    private int level;
+    // Since when conditions allow a better level, -1 if they do not.
+    private long betterSinceMs = -1;
+
+    public QualityPolicy(Config config) {
+        this.config = config;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public void onThermalStatusChanged(PowerSource.ThermalStatus status) {
+        thermalStatus = status;
+    }
+
+    public void onBatteryChanged(int percent, boolean charging) {
+        this.batteryPercent = percent;
+        this.charging = charging;
+    }
+
+    /**
+     * Returns the level to run at |nowMs|.
+     */
+    public int evaluate(long nowMs) {
+        int target = targetLevel();
+        if (target > level) {
+            level = target;
+            betterSinceMs = -1;
+        } else if (target < level) {
+            if (betterSinceMs < 0) {
+                betterSinceMs = nowMs;
+            } else if (nowMs - betterSinceMs >= config.stepUpDelayMs) {
+                level--;
+                // The next step up waits a full delay again.
+                betterSinceMs = level > target ? nowMs : -1;
+            }
+        } else {
+            betterSinceMs = -1;
+        }
+        return level;
+    }
+
+    private int targetLevel() {
+        int target = config.thermalLevels[Math.min(thermalStatus.ordinal(), config.thermalLevels.length - 1)];
+        if (!charging) {
+            if (belowThreshold(config.criticalBatteryPercent, config.criticalBatteryLevel)) {
+                target = Math.max(target, config.criticalBatteryLevel);
+            } else if (belowThreshold(config.lowBatteryPercent, config.lowBatteryLevel)) {
+                target = Math.max(target, config.lowBatteryLevel);
+            }
+        }
+        return target;
+    }
+
+    // A threshold applies at or below |percent|, and keeps applying within the
+    // hysteresis margin while the level it imposes is in effect.
+    private boolean belowThreshold(int percent, int thresholdLevel) {
+        return batteryPercent <= percent
+                || (level >= thresholdLevel && batteryPercent < percent + config.batteryHysteresisPercent);
+    }
+}
@@ -0,0 +1,127 @@
+package com.marcuschiu.meet.client.trace;
+
+import android.util.Log;
+
+import com.marcuschiu.meet.client.util.CallMetrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the recent history of one call in a memory-mapped FlightRecording
+ * ring file, for looking into bad calls after the fact. The mapping is
+ * backed by the page cache, so everything recorded survives the process
+ * being killed.
+ *
+ * <p>Records may be written from any thread. Writers claim a slot with one
+ * atomic increment and copy their fields into it without locking or
+ * allocating. Set it as the CallMetrics listener to capture metrics and
+ * errors.
+ */
+public class FlightRecorder implements CallMetrics.Listener {
+    private static final String TAG = "FlightRecorder";
+    private static final String SUFFIX = ".frec";
+    // 4 MB, several minutes of stats at one report per second.
+    public static final int DEFAULT_SLOT_COUNT = 32 * 1024;
+
+    private final MappedByteBuffer buffer;
+    private final int slotCount;
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * Creates or truncates |file| and maps it. |label| identifies the call,
+     * e.g. the room id.
+     */
+    public FlightRecorder(File file, int slotCount, String label) throws IOException {
+        this.slotCount = slotCount;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            long size = (long) FlightRecording.SLOT_SIZE * (slotCount + 1);
+            raf.setLength(0);
+            raf.setLength(size);
+            // The mapping stays valid after the file is closed.
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+        for (int i = 0; i < FlightRecording.MAGIC.length; i++) {
+            buffer.put(i, FlightRecording.MAGIC[i]);
+        }
+        buffer.putInt(4, FlightRecording.VERSION);
+        buffer.putInt(8, FlightRecording.SLOT_SIZE);
+        buffer.putInt(12, slotCount);
+        buffer.putLong(16, System.currentTimeMillis());
+        int end = putText(FlightRecording.HEADER_LABEL,
+                FlightRecording.HEADER_LABEL + FlightRecording.LABEL_CAPACITY, label);
+        buffer.put(24, (byte) (end - FlightRecording.HEADER_LABEL));
+    }
+
+    /**
+     * Starts a recording in |directory|, deleting the oldest ones so that at
+     * most |keep| recordings remain.
+     */
+    public static FlightRecorder create(File directory, int keep, String label) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        File[] recordings = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        if (recordings != null && recordings.length >= keep) {
+            Arrays.sort(recordings, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+            for (int i = 0; i <= recordings.length - keep; i++) {
+                if (!recordings[i].delete()) {
+                    Log.w(TAG, "Cannot delete " + recordings[i]);
+                }
+            }
+        }
+        File file = new File(directory, "call-" + System.currentTimeMillis() + SUFFIX);
+        Log.d(TAG, "Recording to " + file);
+        return new FlightRecorder(file, DEFAULT_SLOT_COUNT, label);
+    }
+
+    /**
+     * Appends a record with text "|name| |detail|", or just |name| if
+     * |detail| is null. Text beyond the slot is cut off.
+     */
+    public void record(FlightRecording.Kind kind, CharSequence name, CharSequence detail, long value) {
+        long seq = sequence.getAndIncrement();
+        int base = FlightRecording.SLOT_SIZE * (int) (seq % slotCount + 1);
+        long stamp = seq + 1;
+        // Invalidate the slot first, the stamps are written last.
+        buffer.putLong(base + FlightRecording.STAMP, 0);
+        buffer.putLong(base + FlightRecording.TIME, System.currentTimeMillis());
+        buffer.putLong(base + FlightRecording.VALUE, value);
+        buffer.put(base + FlightRecording.KIND, (byte) kind.code);
+        int start = base + FlightRecording.TEXT;
+        int limit = start + FlightRecording.TEXT_CAPACITY;
+        int end = putText(start, limit, name);
+        if (detail != null && end < limit) {
+            buffer.put(end++, (byte) ' ');
+            end = putText(end, limit, detail);
+        }
+        buffer.put(base + FlightRecording.TEXT_LENGTH, (byte) (end - start));
+        buffer.putLong(base + FlightRecording.STAMP_END, stamp);
+        buffer.putLong(base + FlightRecording.STAMP, stamp);
+    }
+
+    @Override
+    public void onMetric(String name, long value) {
+        record(FlightRecording.Kind.METRIC, name, null, value);
+    }
+
+    @Override
+    public void onError(String source, String description) {
+        record(FlightRecording.Kind.ERROR, source, description, 0);
+    }
+
+    // Returns the offset after the last byte written.
+    private int putText(int offset, int limit, CharSequence text) {
+        int length = text.length();
+        for (int i = 0; i < length && offset < limit; i++) {
+            char c = text.charAt(i);
+            buffer.put(offset++, c < 0x100 ? (byte) c : (byte) '?');
+        }
+        return offset;
+    }
+}
@@ -0,0 +1,157 @@
+package com.marcuschiu.meet.client.trace;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Format and contents of a flight recording, the ring file FlightRecorder
+ * writes. The file is a header slot followed by |slotCount| record slots of
+ * SLOT_SIZE bytes, all big-endian:
+ * <pre>
+ *   header: MAGIC | version (4) | slot size (4) | slot count (4) | start wall clock ms (8) | label length (1) | label
+ *   slot:   stamp (8) | wall clock ms (8) | value (8) | kind (1) | text length (1) | text | stamp (8)
+ * </pre>
+ * Record n goes to slot n % slotCount with stamp n + 1. A slot is valid if
+ * both stamps match, so a record cut off by a crash is skipped. Text is
+ * Latin-1, other characters are stored as '?'.
+ */
+public class FlightRecording {
+    static final byte[] MAGIC = {'F', 'R', 'E', 'C'};
+    static final int VERSION = 1;
+    static final int SLOT_SIZE = 128;
+    static final int HEADER_LABEL = 25;
+    static final int LABEL_CAPACITY = SLOT_SIZE - HEADER_LABEL - 1;
+    static final int STAMP = 0;
+    static final int TIME = 8;
+    static final int VALUE = 16;
+    static final int KIND = 24;
+    static final int TEXT_LENGTH = 25;
+    static final int TEXT = 26;
+    static final int STAMP_END = SLOT_SIZE - 8;
+    static final int TEXT_CAPACITY = STAMP_END - TEXT;
+
+    public enum Kind {
+        // Any CallMetrics value, including bitrate decisions.
+        METRIC(1),
+        // One value of a stats report, text is "<report id> <value name>".
+        STATS(2),
+        // Call state transition, text is "<from> <to>", value the time spent in <from>.
+        STATE(3),
+        // Text is "<source> <description>".
+        ERROR(4);
+
+        final int code;
+
+        Kind(int code) {
+            this.code = code;
+        }
+
+        static Kind fromCode(int code) {
+            for (Kind kind : values()) {
+                if (kind.code == code) {
+                    return kind;
+                }
+            }
+            return null;
+        }
+    }
+
+    public static class Entry {
+        public final long sequence;
+        public final long timeMs;
+        public final Kind kind;
+        public final String text;
+        public final long value;
+
+        Entry(long sequence, long timeMs, Kind kind, String text, long value) {
+            this.sequence = sequence;
+            this.timeMs = timeMs;
+            this.kind = kind;
+            this.text = text;
+            this.value = value;
+        }
+    }
+
+    public final long startMs;
+    public final String label;
+    public final int slotCount;
+    // Valid records in order, the oldest ones may have been overwritten.
+    public final List<Entry> entries;
+    // Slots holding a partially written record.
+    public final int tornSlots;
+
+    private FlightRecording(long startMs, String label, int slotCount, List<Entry> entries, int tornSlots) {
+        this.startMs = startMs;
+        this.label = label;
+        this.slotCount = slotCount;
+        this.entries = entries;
+        this.tornSlots = tornSlots;
+    }
+
+    /**
+     * Number of records lost to the ring wrapping around.
+     */
+    public long overwritten() {
+        return entries.isEmpty() ? 0 : entries.get(0).sequence;
+    }
+
+    public static FlightRecording read(File file) throws IOException {
+        byte[] bytes;
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            if (in.length() > Integer.MAX_VALUE) {
+                throw new IOException("Recording of " + in.length() + " bytes");
+            }
+            bytes = new byte[(int) in.length()];
+            in.readFully(bytes);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        if (bytes.length < SLOT_SIZE) {
+            throw new IOException("Truncated recording header");
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (bytes[i] != MAGIC[i]) {
+                throw new IOException("Not a flight recording");
+            }
+        }
+        int version = buffer.getInt(4);
+        if (version != VERSION) {
+            throw new IOException("Unsupported recording version " + version);
+        }
+        if (buffer.getInt(8) != SLOT_SIZE) {
+            throw new IOException("Unsupported slot size " + buffer.getInt(8));
+        }
+        int slotCount = buffer.getInt(12);
+        long startMs = buffer.getLong(16);
+        int labelLength = Math.min(LABEL_CAPACITY, buffer.get(24) & 0xFF);
+        String label = new String(bytes, HEADER_LABEL, labelLength, StandardCharsets.ISO_8859_1);
+        // A file cut short, e.g. copied while being written, keeps the slots it has.
+        slotCount = Math.min(slotCount, bytes.length / SLOT_SIZE - 1);
+
+        List<Entry> entries = new ArrayList<>();
+        int torn = 0;
+        for (int slot = 0; slot < slotCount; slot++) {
+            int base = SLOT_SIZE * (slot + 1);
+            long stamp = buffer.getLong(base + STAMP);
+            long stampEnd = buffer.getLong(base + STAMP_END);
+            if (stamp == 0 && stampEnd == 0) {
+                continue;
+            }
+            Kind kind = Kind.fromCode(buffer.get(base + KIND));
+            if (stamp != stampEnd || (stamp - 1) % slotCount != slot || kind == null) {
+                torn++;
+                continue;
+            }
+            int textLength = Math.min(TEXT_CAPACITY, buffer.get(base + TEXT_LENGTH) & 0xFF);
+            entries.add(new Entry(stamp - 1, buffer.getLong(base + TIME), kind,
+                    new String(bytes, base + TEXT, textLength, StandardCharsets.ISO_8859_1), buffer.getLong(base + VALUE)));
+        }
+        Collections.sort(entries, (a, b) -> Long.compare(a.sequence, b.sequence));
+        return new FlightRecording(startMs, label, slotCount, entries, torn);
+    }
+}
@@ -0,0 +1,181 @@
+package com.marcuschiu.meet.client.trace;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Binary format of signaling traces. A trace starts with MAGIC, a version
+ * byte and the start time in wall clock milliseconds as 8 bytes big-endian.
+ * Each event follows as
+ * <pre>
+ *   kind (1 byte) | time since the previous event in us (varint) | length (varint) | UTF-8 payload
+ * </pre>
+ * Varints are unsigned LEB128. A trace cut off mid-event, e.g. by a crash,
+ * reads up to the last complete event.
+ *
+ * <p>Payloads: HTTP_REQUEST is "method url\nbody", HTTP_RESPONSE and
+ * HTTP_ERROR are "url\nbody", WS_CONNECT is the URI and the other WebSocket
+ * events carry the message or close reason.
+ */
+public final class SignalingTrace {
+    static final byte[] MAGIC = {'S', 'G', 'T', 'R'};
+    static final int VERSION = 1;
+
+    public enum Kind {
+        HTTP_REQUEST(1, false),
+        HTTP_RESPONSE(2, true),
+        HTTP_ERROR(3, true),
+        WS_CONNECT(4, false),
+        WS_OPEN(5, true),
+        WS_SEND(6, false),
+        WS_MESSAGE(7, true),
+        WS_DISCONNECT(8, false),
+        WS_CLOSE(9, true);
+
+        final int code;
+        /**
+         * Whether the event came from the network rather than the app.
+         */
+        public final boolean inbound;
+
+        Kind(int code, boolean inbound) {
+            this.code = code;
+            this.inbound = inbound;
+        }
+
+        static Kind fromCode(int code) throws IOException {
+            for (Kind kind : values()) {
+                if (kind.code == code) {
+                    return kind;
+                }
+            }
+            throw new IOException("Unknown event kind " + code);
+        }
+    }
+
+    public static class Event {
+        /**
+         * Microseconds since the trace started.
+         */
+        public final long timeUs;
+        public final Kind kind;
+        public final String payload;
+
+        public Event(long timeUs, Kind kind, String payload) {
+            this.timeUs = timeUs;
+            this.kind = kind;
+            this.payload = payload;
+        }
+
+        /**
+         * The part of an HTTP payload before the first line break.
+         */
+        public String head() {
+            int end = payload.indexOf('\n');
+            return end < 0 ? payload : payload.substring(0, end);
+        }
+
+        /**
+         * The part of an HTTP payload after the first line break.
+         */
+        public String body() {
+            int end = payload.indexOf('\n');
+            return end < 0 ? "" : payload.substring(end + 1);
+        }
+
+        @Override
+        public String toString() {
+            return timeUs + " " + kind + " " + payload;
+        }
+    }
+
+    private SignalingTrace() {
+    }
+
+    /**
+     * Reads all complete events of the trace in |file|.
+     */
+    public static List<Event> read(File file) throws IOException {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            byte[] header = new byte[MAGIC.length + 1 + 8];
+            if (!readFully(in, header)) {
+                throw new IOException("Truncated trace header");
+            }
+            for (int i = 0; i < MAGIC.length; i++) {
+                if (header[i] != MAGIC[i]) {
+                    throw new IOException("Not a signaling trace");
+                }
+            }
+            if (header[MAGIC.length] != VERSION) {
+                throw new IOException("Unsupported trace version " + header[MAGIC.length]);
+            }
+            List<Event> events = new ArrayList<>();
+            long timeUs = 0;
+            while (true) {
+                int code = in.read();
+                if (code < 0) {
+                    break;
+                }
+                try {
+                    Kind kind = Kind.fromCode(code);
+                    timeUs += readVarint(in);
+                    long length = readVarint(in);
+                    if (length > Integer.MAX_VALUE) {
+                        throw new IOException("Event of " + length + " bytes");
+                    }
+                    byte[] payload = new byte[(int) length];
+                    if (!readFully(in, payload)) {
+                        break;
+                    }
+                    events.add(new Event(timeUs, kind, new String(payload, StandardCharsets.UTF_8)));
+                } catch (EOFException e) {
+                    break;
+                }
+            }
+            return events;
+        }
+    }
+
+    static void writeVarint(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarint(InputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Varint too long");
+    }
+
+    private static boolean readFully(InputStream in, byte[] buffer) throws IOException {
+        int offset = 0;
+        while (offset < buffer.length) {
+            int n = in.read(buffer, offset, buffer.length - offset);
+            if (n < 0) {
+                return false;
+            }
+            offset += n;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,160 @@
+package com.marcuschiu.meet.client.trace;
+
+import android.util.Log;
+
+import com.marcuschiu.meet.client.WebSocketTransport;
+import com.marcuschiu.meet.client.util.AsyncHttpURLConnection;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes the signaling traffic of a call to a SignalingTrace file. Wrap the
+ * HTTP sender and WebSocket factory handed to WebSocketRTCClient to record
+ * everything it sends and receives. Each event is flushed as it is appended,
+ * so the trace survives a crash; a write error stops recording without
+ * affecting the call.
+ *
+ * <p>Traces hold SDP and candidates, i.e. IP addresses, and are meant for
+ * debugging only. Thread-safe.
+ */
+public class SignalingTraceRecorder implements Closeable {
+    private static final String TAG = "SignalingTraceRecorder";
+
+    private final DataOutputStream out;
+    private final long startNanos = System.nanoTime();
+    private long lastUs;
+    private boolean failed;
+
+    /**
+     * Creates or truncates |file| and writes the trace header.
+     */
+    public SignalingTraceRecorder(File file) throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        out.write(SignalingTrace.MAGIC);
+        out.write(SignalingTrace.VERSION);
+        out.writeLong(System.currentTimeMillis());
+        out.flush();
+    }
+
+    public synchronized void record(SignalingTrace.Kind kind, String payload) {
+        if (failed) {
+            return;
+        }
+        long nowUs = (System.nanoTime() - startNanos) / 1000;
+        byte[] bytes = payload.getBytes(StandardCharsets.UTF_8);
+        try {
+            out.write(kind.code);
+            SignalingTrace.writeVarint(out, Math.max(0, nowUs - lastUs));
+            SignalingTrace.writeVarint(out, bytes.length);
+            out.write(bytes);
+            out.flush();
+        } catch (IOException e) {
+            Log.e(TAG, "Stopped recording: " + e.getMessage());
+            failed = true;
+        }
+        lastUs = Math.max(lastUs, nowUs);
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            out.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Close failed: " + e.getMessage());
+        }
+        failed = true;
+    }
+
+    /**
+     * Returns a sender recording requests and their outcome before passing
+     * them on to |sender|.
+     */
+    public AsyncHttpURLConnection.Sender wrap(final AsyncHttpURLConnection.Sender sender) {
+        return (method, url, message, events) -> {
+            record(SignalingTrace.Kind.HTTP_REQUEST, method + " " + url + "\n" + (message == null ? "" : message));
+            sender.send(method, url, message, new AsyncHttpURLConnection.AsyncHttpEvents() {
+                @Override
+                public void onHttpError(String errorMessage) {
+                    record(SignalingTrace.Kind.HTTP_ERROR, url + "\n" + errorMessage);
+                    events.onHttpError(errorMessage);
+                }
+
+                @Override
+                public void onHttpComplete(String response) {
+                    record(SignalingTrace.Kind.HTTP_RESPONSE, url + "\n" + response);
+                    events.onHttpComplete(response);
+                }
+            });
+        };
+    }
+
+    /**
+     * Returns a factory whose transports record traffic and state changes of
+     * the ones |factory| creates.
+     */
+    public WebSocketTransport.Factory wrap(final WebSocketTransport.Factory factory) {
+        return () -> new RecordingTransport(factory.create());
+    }
+
+    private class RecordingTransport implements WebSocketTransport {
+        private final WebSocketTransport transport;
+
+        RecordingTransport(WebSocketTransport transport) {
+            this.transport = transport;
+        }
+
+        @Override
+        public void connect(URI uri, final Observer observer) throws IOException {
+            record(SignalingTrace.Kind.WS_CONNECT, uri.toString());
+            transport.connect(uri, new Observer() {
+                @Override
+                public void onOpen() {
+                    record(SignalingTrace.Kind.WS_OPEN, "");
+                    observer.onOpen();
+                }
+
+                @Override
+                public void onClose(String reason) {
+                    record(SignalingTrace.Kind.WS_CLOSE, reason == null ? "" : reason);
+                    observer.onClose(reason);
+                }
+
+                @Override
+                public void onTextMessage(String payload) {
+                    record(SignalingTrace.Kind.WS_MESSAGE, payload);
+                    observer.onTextMessage(payload);
+                }
+
+                @Override
+                public void onPong(byte[] payload) {
+                    observer.onPong(payload);
+                }
+            });
+        }
+
+        @Override
+        public void sendTextMessage(String message) {
+            record(SignalingTrace.Kind.WS_SEND, message);
+            transport.sendTextMessage(message);
+        }
+
+        // Pings only acknowledge traffic, they are not part of the trace.
+        @Override
+        public void sendPing(byte[] payload) {
+            transport.sendPing(payload);
+        }
+
+        @Override
+        public void disconnect() {
+            record(SignalingTrace.Kind.WS_DISCONNECT, "");
+            transport.disconnect();
+        }
+    }
+}
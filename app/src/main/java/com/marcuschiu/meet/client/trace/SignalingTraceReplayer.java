@@ -0,0 +1,253 @@
+package com.marcuschiu.meet.client.trace;
+
+import android.util.Log;
+
+import com.marcuschiu.meet.client.WebSocketTransport;
+import com.marcuschiu.meet.client.util.AsyncHttpURLConnection;
+
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Plays a recorded SignalingTrace back in place of the network. Hand it to
+ * WebSocketRTCClient as both HTTP sender and WebSocket factory and join any
+ * room: recorded responses and WebSocket events are released at their
+ * original offsets from the first request, divided by |speed|, and go to
+ * whoever waits for them. A response goes to the pending request for the
+ * same URL, else to the oldest one; WebSocket events wait for a connected
+ * transport and keep their order. What the client sends is only counted.
+ *
+ * <p>Callbacks run on a private thread.
+ */
+public class SignalingTraceReplayer implements AsyncHttpURLConnection.Sender, WebSocketTransport.Factory {
+    private static final String TAG = "SignalingTraceReplayer";
+    // Events nobody took this long after the last one was released are
+    // counted as unmatched.
+    private static final long IDLE_GRACE_MS = 1000;
+
+    public static class Stats {
+        public int delivered;
+        public int unmatched;
+        public int requests;
+        public int messagesSent;
+        public long elapsedMs;
+
+        @Override
+        public String toString() {
+            return "delivered=" + delivered + ", unmatched=" + unmatched + ", requests=" + requests
+                    + ", messagesSent=" + messagesSent + ", elapsedMs=" + elapsedMs;
+        }
+    }
+
+    private static class PendingRequest {
+        final String url;
+        final AsyncHttpURLConnection.AsyncHttpEvents events;
+
+        PendingRequest(String url, AsyncHttpURLConnection.AsyncHttpEvents events) {
+            this.url = url;
+            this.events = events;
+        }
+    }
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "TraceReplay");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final List<SignalingTrace.Event> events;
+    private final double speed;
+    private final CompletableFuture<Stats> finished = new CompletableFuture<>();
+    private final Stats stats = new Stats();
+    // Used on the executor thread only.
+    private final ArrayDeque<SignalingTrace.Event> releasedHttp = new ArrayDeque<>();
+    private final ArrayDeque<SignalingTrace.Event> releasedWs = new ArrayDeque<>();
+    private final ArrayDeque<PendingRequest> pendingRequests = new ArrayDeque<>();
+    private ReplayTransport transport;
+    private long startNanos;
+    private int unreleased;
+
+    /**
+     * |speed| 1 keeps the recorded timing, 0 releases everything at once.
+     */
+    public SignalingTraceReplayer(List<SignalingTrace.Event> events, double speed) {
+        this.events = events;
+        this.speed = speed;
+    }
+
+    /**
+     * Completes once every recorded response and WebSocket event was
+     * delivered or given up on.
+     */
+    public CompletableFuture<Stats> finished() {
+        return finished;
+    }
+
+    @Override
+    public void send(String method, String url, String message, AsyncHttpURLConnection.AsyncHttpEvents events) {
+        post(() -> {
+            start();
+            stats.requests++;
+            pendingRequests.add(new PendingRequest(url, events));
+            pump();
+        });
+    }
+
+    @Override
+    public WebSocketTransport create() {
+        return new ReplayTransport();
+    }
+
+    // Whatever the client does after the replay finished is dropped.
+    private void post(Runnable runnable) {
+        try {
+            executor.execute(runnable);
+        } catch (RejectedExecutionException e) {
+            Log.d(TAG, "Ignoring call after the replay finished");
+        }
+    }
+
+    // The timeline starts with the first request, aligned to the first
+    // recorded event.
+    private void start() {
+        if (startNanos != 0) {
+            return;
+        }
+        startNanos = System.nanoTime();
+        long baseUs = events.isEmpty() ? 0 : events.get(0).timeUs;
+        long lastDelayMs = 0;
+        for (final SignalingTrace.Event event : events) {
+            if (!event.kind.inbound) {
+                continue;
+            }
+            long delayMs = speed > 0 ? (long) ((event.timeUs - baseUs) / 1000 / speed) : 0;
+            lastDelayMs = Math.max(lastDelayMs, delayMs);
+            unreleased++;
+            executor.schedule(() -> release(event), delayMs, TimeUnit.MILLISECONDS);
+        }
+        executor.schedule(this::finish, lastDelayMs + IDLE_GRACE_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void release(SignalingTrace.Event event) {
+        unreleased--;
+        if (event.kind == SignalingTrace.Kind.HTTP_RESPONSE || event.kind == SignalingTrace.Kind.HTTP_ERROR) {
+            releasedHttp.add(event);
+        } else {
+            releasedWs.add(event);
+        }
+        pump();
+    }
+
+    private void pump() {
+        Iterator<SignalingTrace.Event> responses = releasedHttp.iterator();
+        while (responses.hasNext() && !pendingRequests.isEmpty()) {
+            SignalingTrace.Event response = responses.next();
+            PendingRequest request = takeRequest(response.head());
+            responses.remove();
+            stats.delivered++;
+            if (response.kind == SignalingTrace.Kind.HTTP_ERROR) {
+                request.events.onHttpError(response.body());
+            } else {
+                request.events.onHttpComplete(response.body());
+            }
+        }
+        while (!releasedWs.isEmpty() && transport != null) {
+            SignalingTrace.Event event = releasedWs.peekFirst();
+            if (event.kind == SignalingTrace.Kind.WS_OPEN) {
+                if (transport.open) {
+                    // Recorded reconnect, the replayed client has not dropped its connection.
+                    stats.unmatched++;
+                } else {
+                    transport.open = true;
+                    stats.delivered++;
+                    transport.observer.onOpen();
+                }
+            } else if (!transport.open) {
+                break;
+            } else if (event.kind == SignalingTrace.Kind.WS_MESSAGE) {
+                stats.delivered++;
+                transport.observer.onTextMessage(event.payload);
+            } else {
+                stats.delivered++;
+                closeTransport(event.payload);
+            }
+            releasedWs.pollFirst();
+        }
+        if (unreleased == 0 && releasedHttp.isEmpty() && releasedWs.isEmpty()) {
+            finish();
+        }
+    }
+
+    private PendingRequest takeRequest(String url) {
+        for (Iterator<PendingRequest> it = pendingRequests.iterator(); it.hasNext(); ) {
+            PendingRequest request = it.next();
+            if (request.url.equals(url)) {
+                it.remove();
+                return request;
+            }
+        }
+        return pendingRequests.pollFirst();
+    }
+
+    private void closeTransport(String reason) {
+        ReplayTransport closed = transport;
+        transport = null;
+        closed.observer.onClose(reason);
+    }
+
+    private void finish() {
+        if (finished.isDone()) {
+            return;
+        }
+        stats.unmatched += releasedHttp.size() + releasedWs.size() + unreleased;
+        stats.elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        Log.d(TAG, "Replay finished: " + stats);
+        finished.complete(stats);
+        // Requests still pending get no answer, like on a dead network.
+        executor.shutdownNow();
+    }
+
+    private class ReplayTransport implements WebSocketTransport {
+        private Observer observer;
+        private boolean open;
+
+        @Override
+        public void connect(URI uri, Observer observer) {
+            this.observer = observer;
+            post(() -> {
+                transport = this;
+                pump();
+            });
+        }
+
+        @Override
+        public void sendTextMessage(String message) {
+            post(() -> stats.messagesSent++);
+        }
+
+        // Answered right away, as a live server reads everything sent before.
+        @Override
+        public void sendPing(final byte[] payload) {
+            post(() -> {
+                if (transport == this) {
+                    observer.onPong(payload);
+                }
+            });
+        }
+
+        @Override
+        public void disconnect() {
+            post(() -> {
+                if (transport == this) {
+                    closeTransport("disconnect");
+                }
+            });
+        }
+    }
+}
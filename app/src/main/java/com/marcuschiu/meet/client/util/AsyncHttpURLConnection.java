@@ -28,6 +28,20 @@ public class AsyncHttpURLConnection {
     void onHttpComplete(String response);
   }
 
+  /**
+   * Issues requests, the signaling clients go through one so traffic can be
+   * recorded or replayed.
+   */
+  public interface Sender {
+    void send(String method, String url, String message, AsyncHttpEvents events);
+  }
+
+  /**
+   * Sends each request on a new AsyncHttpURLConnection.
+   */
+  public static final Sender DEFAULT_SENDER =
+      (method, url, message, events) -> new AsyncHttpURLConnection(method, url, message, events).send();
+
   public AsyncHttpURLConnection(String method, String url, String message, AsyncHttpEvents events) {
     this.method = method;
     this.url = url;
@@ -40,7 +54,8 @@ public class AsyncHttpURLConnection {
   }
 
   public void send() {
-    new Thread(this ::sendHttpMessage).start();
+    // Named so per-thread CPU accounting can tell request threads apart.
+    new Thread(this ::sendHttpMessage, "AsyncHttp").start();
   }
 
   private void sendHttpMessage() {
@@ -57,6 +72,8 @@ public class AsyncHttpURLConnection {
       connection.setReadTimeout(HTTP_TIMEOUT_MS);
       // TODO(glaznev) - query request origin from pref_room_server_url_key preferences.
       connection.addRequestProperty("origin", HTTP_ORIGIN);
+      // The TURN server checks the referer.
+      connection.addRequestProperty("REFERER", HTTP_ORIGIN);
       boolean doOutput = false;
       if (method.equals("POST")) {
         doOutput = true;
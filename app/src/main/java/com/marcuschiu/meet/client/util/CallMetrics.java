@@ -0,0 +1,106 @@
+package com.marcuschiu.meet.client.util;
+
+import android.util.Log;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Named metrics collected over one call. Each metric keeps its count, sum,
+ * last and maximum value. Thread-safe.
+ */
+public class CallMetrics {
+    private static final String TAG = "CallMetrics";
+
+    public static class Metric {
+        public long count;
+        public long sum;
+        public long last;
+        public long max;
+
+        Metric copy() {
+            Metric copy = new Metric();
+            copy.count = count;
+            copy.sum = sum;
+            copy.last = last;
+            copy.max = max;
+            return copy;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + count + ", sum=" + sum + ", last=" + last + ", max=" + max;
+        }
+    }
+
+    /**
+     * Receives every recorded value, e.g. to forward it to a flight recorder.
+     */
+    public interface Listener {
+        void onMetric(String name, long value);
+
+        /**
+         * Called for every error reported through recordError(), including
+         * those that do not end the call.
+         */
+        void onError(String source, String description);
+    }
+
+    private final Map<String, Metric> metrics = new LinkedHashMap<>();
+    private Listener listener;
+
+    public synchronized void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public void increment(String name) {
+        record(name, 1);
+    }
+
+    public void record(String name, long value) {
+        Listener listener;
+        synchronized (this) {
+            Metric metric = metrics.get(name);
+            if (metric == null) {
+                metric = new Metric();
+                metrics.put(name, metric);
+            }
+            metric.count++;
+            metric.sum += value;
+            metric.last = value;
+            metric.max = metric.count == 1 ? value : Math.max(metric.max, value);
+            listener = this.listener;
+        }
+        if (listener != null) {
+            listener.onMetric(name, value);
+        }
+    }
+
+    /**
+     * Counts an error of |source| and hands its |description| to the listener.
+     */
+    public void recordError(String source, String description) {
+        increment("errors");
+        Listener listener;
+        synchronized (this) {
+            listener = this.listener;
+        }
+        if (listener != null) {
+            listener.onError(source, description);
+        }
+    }
+
+    public synchronized Map<String, Metric> snapshot() {
+        Map<String, Metric> snapshot = new LinkedHashMap<>();
+        for (Map.Entry<String, Metric> entry : metrics.entrySet()) {
+            snapshot.put(entry.getKey(), entry.getValue().copy());
+        }
+        return snapshot;
+    }
+
+    public void log() {
+        for (Map.Entry<String, Metric> entry : snapshot().entrySet()) {
+            Log.d(TAG, entry.getKey() + ": " + entry.getValue());
+        }
+    }
+}
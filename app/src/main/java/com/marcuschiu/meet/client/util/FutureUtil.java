@@ -0,0 +1,42 @@
+package com.marcuschiu.meet.client.util;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * CompletableFuture helpers missing from the Java 8 API level.
+ */
+public final class FutureUtil {
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "FutureDeadline");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private FutureUtil() {
+    }
+
+    /**
+     * Returns a future completing like |future|, or with a TimeoutException
+     * once |timeoutMs| passed.
+     */
+    public static <T> CompletableFuture<T> withDeadline(CompletableFuture<T> future, long timeoutMs) {
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        final ScheduledFuture<?> timer = scheduler.schedule(
+                () -> result.completeExceptionally(new TimeoutException("Deadline of " + timeoutMs + " ms exceeded")),
+                timeoutMs, TimeUnit.MILLISECONDS);
+        future.whenComplete((value, error) -> {
+            timer.cancel(false);
+            if (error != null) {
+                result.completeExceptionally(error);
+            } else {
+                result.complete(value);
+            }
+        });
+        return result;
+    }
+}
@@ -0,0 +1,127 @@
+package com.marcuschiu.meet.client.util;
+
+import android.util.Log;
+
+import com.marcuschiu.meet.BuildConfig;
+
+/**
+ * Logging for per-message and per-frame paths. A message is only built when
+ * its level is enabled, and "{}" placeholders take up to three arguments
+ * without allocating a varargs array. Arguments longer than
+ * maxArgumentChars are cut, so whole SDPs and room responses do not flood
+ * the log.
+ *
+ * <p>Release builds drop verbose and debug messages: the level check fails
+ * on BuildConfig.DEBUG, and with minification R8 removes the calls
+ * altogether, see proguard-rules.pro.
+ */
+public final class Logger {
+    private static volatile int minLevel = BuildConfig.DEBUG ? Log.VERBOSE : Log.INFO;
+    private static volatile int maxArgumentChars = 300;
+
+    private Logger() {
+    }
+
+    /**
+     * Sets the lowest android.util.Log level that is logged. Verbose and
+     * debug stay off in release builds.
+     */
+    public static void setMinLevel(int level) {
+        minLevel = level;
+    }
+
+    /**
+     * Sets how much of each argument is logged, 0 to log its length only.
+     */
+    public static void setMaxArgumentChars(int chars) {
+        maxArgumentChars = chars;
+    }
+
+    public static boolean isLoggable(int level) {
+        return level >= minLevel && (level > Log.DEBUG || BuildConfig.DEBUG);
+    }
+
+    public static void v(String tag, String message) {
+        log(Log.VERBOSE, tag, message, null, null, null, 0);
+    }
+
+    public static void v(String tag, String format, Object arg) {
+        log(Log.VERBOSE, tag, format, arg, null, null, 1);
+    }
+
+    public static void d(String tag, String message) {
+        log(Log.DEBUG, tag, message, null, null, null, 0);
+    }
+
+    public static void d(String tag, String format, Object arg) {
+        log(Log.DEBUG, tag, format, arg, null, null, 1);
+    }
+
+    public static void d(String tag, String format, Object arg1, Object arg2) {
+        log(Log.DEBUG, tag, format, arg1, arg2, null, 2);
+    }
+
+    public static void d(String tag, String format, Object arg1, Object arg2, Object arg3) {
+        log(Log.DEBUG, tag, format, arg1, arg2, arg3, 3);
+    }
+
+    public static void i(String tag, String format, Object arg) {
+        log(Log.INFO, tag, format, arg, null, null, 1);
+    }
+
+    public static void w(String tag, String message) {
+        log(Log.WARN, tag, message, null, null, null, 0);
+    }
+
+    public static void w(String tag, String format, Object arg) {
+        log(Log.WARN, tag, format, arg, null, null, 1);
+    }
+
+    public static void w(String tag, String format, Object arg1, Object arg2) {
+        log(Log.WARN, tag, format, arg1, arg2, null, 2);
+    }
+
+    public static void e(String tag, String message) {
+        log(Log.ERROR, tag, message, null, null, null, 0);
+    }
+
+    public static void e(String tag, String format, Object arg) {
+        log(Log.ERROR, tag, format, arg, null, null, 1);
+    }
+
+    public static void e(String tag, String format, Object arg1, Object arg2) {
+        log(Log.ERROR, tag, format, arg1, arg2, null, 2);
+    }
+
+    private static void log(int level, String tag, String format, Object arg1, Object arg2, Object arg3, int argCount) {
+        if (!isLoggable(level)) {
+            return;
+        }
+        if (argCount == 0) {
+            Log.println(level, tag, format);
+            return;
+        }
+        StringBuilder message = new StringBuilder(format.length() + 64);
+        int arg = 0;
+        int start = 0;
+        int placeholder;
+        while (arg < argCount && (placeholder = format.indexOf("{}", start)) >= 0) {
+            message.append(format, start, placeholder);
+            appendArgument(message, arg == 0 ? arg1 : arg == 1 ? arg2 : arg3);
+            arg++;
+            start = placeholder + 2;
+        }
+        message.append(format, start, format.length());
+        Log.println(level, tag, message.toString());
+    }
+
+    private static void appendArgument(StringBuilder message, Object arg) {
+        String text = String.valueOf(arg);
+        int maxChars = maxArgumentChars;
+        if (text.length() <= maxChars) {
+            message.append(text);
+        } else {
+            message.append(text, 0, maxChars).append("...[").append(text.length()).append(" chars]");
+        }
+    }
+}
@@ -1,130 +1,190 @@
 package com.marcuschiu.meet.client.util;
 
-import android.util.Log;
-
+import com.marcuschiu.meet.client.pc.AudioProfile;
 import com.marcuschiu.meet.client.pc.PeerConnectionClient;
 
-import org.json.JSONException;
-import org.json.JSONObject;
-import org.webrtc.IceCandidate;
-
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class Util {
 
-    public static JSONObject toJsonCandidate(final IceCandidate candidate) {
-        JSONObject json = new JSONObject();
-        Util.jsonPut(json, "id", candidate.sdpMid);
-        Util.jsonPut(json, "label", candidate.sdpMLineIndex);
-        Util.jsonPut(json, "candidate", candidate.sdp);
-        return json;
-    }
-
-    public static IceCandidate toJavaCandidate(JSONObject json) throws JSONException {
-        return new IceCandidate(
-                json.getString("id"),
-                json.getInt("label"),
-                json.getString("candidate"));
-    }
+    private static final String VIDEO_CODEC_PARAM_START_BITRATE = "x-google-start-bitrate";
+    private static final String VIDEO_CODEC_PARAM_MIN_BITRATE = "x-google-min-bitrate";
+    private static final String AUDIO_CODEC_PARAM_BITRATE = "maxaveragebitrate";
+    private static final String AUDIO_CODEC_PARAM_DTX = "usedtx";
+    private static final String AUDIO_CODEC_PARAM_FEC = "useinbandfec";
+    private static final String AUDIO_CODEC_PARAM_STEREO = "stereo";
+    private static final String AUDIO_ATTRIBUTE_PTIME = "a=ptime:";
+    private static final String AUDIO_ATTRIBUTE_MAXPTIME = "a=maxptime:";
+    private static final String[] VIDEO_CODECS = {
+            PeerConnectionClient.VIDEO_CODEC_VP8,
+            PeerConnectionClient.VIDEO_CODEC_VP9,
+            PeerConnectionClient.VIDEO_CODEC_H264};
+    // Leading profile_idc byte of the H.264 profile-level-id fmtp parameter.
+    private static final String H264_PROFILE_BASELINE = "42";
+    private static final String H264_PROFILE_HIGH = "64";
 
-    public static void jsonPut(JSONObject json, String key, Object value) {
-        try {
-            json.put(key, value);
-        } catch (JSONException e) {
-            throw new RuntimeException(e);
+    /**
+     * Sets the start and minimum bitrate of every video codec in the
+     * description. A non-positive |videoStartKbps| leaves it unchanged.
+     */
+    public static String setStartBitrate(String sdpDescription, int videoStartKbps, int videoMinKbps) {
+        if (videoStartKbps <= 0) {
+            return sdpDescription;
         }
+        List<String> lines = new ArrayList<>(Arrays.asList(sdpDescription.split("\r\n")));
+        String videoParameters = VIDEO_CODEC_PARAM_START_BITRATE + "=" + videoStartKbps
+                + "; " + VIDEO_CODEC_PARAM_MIN_BITRATE + "=" + videoMinKbps;
+        for (String codec : VIDEO_CODECS) {
+            addCodecParameters(lines, codec, videoParameters);
+        }
+        return joinString(lines, "\r\n", true /* delimiterAtEnd */);
     }
 
-
-    private static final String VIDEO_CODEC_PARAM_START_BITRATE = "x-google-start-bitrate";
-    private static final String AUDIO_CODEC_PARAM_BITRATE = "maxaveragebitrate";
-
-    public static String setStartBitrate(String sdpDescription) {
-        String[] lines = sdpDescription.split("\r\n");
-        int rtpmapLineIndex = -1;
-        boolean sdpFormatUpdated = false;
-        String codecRtpMap = null;
-        // Search for codec rtpmap in format
+    /**
+     * Rewrites the Opus a=fmtp line and the a=ptime/a=maxptime attributes of
+     * the audio section according to |profile|. Parameters not covered by the
+     * profile are kept.
+     */
+    public static String setAudioProfile(String sdpDescription, AudioProfile profile) {
+        List<String> lines = new ArrayList<>(Arrays.asList(sdpDescription.split("\r\n")));
+        int rtpmapIndex = -1;
+        String payloadType = null;
         // a=rtpmap:<payload type> <encoding name>/<clock rate> [/<encoding parameters>]
-        String regex = "^a=rtpmap:(\\d+) " + PeerConnectionClient.AUDIO_CODEC_OPUS + "(/\\d+)+[\r]?$";
-        Pattern codecPattern = Pattern.compile(regex);
-        for (int i = 0; i < lines.length; i++) {
-            Matcher codecMatcher = codecPattern.matcher(lines[i]);
+        final Pattern codecPattern = Pattern.compile("^a=rtpmap:(\\d+) " + PeerConnectionClient.AUDIO_CODEC_OPUS + "(/\\d+)+[\r]?$");
+        for (int i = 0; i < lines.size(); i++) {
+            Matcher codecMatcher = codecPattern.matcher(lines.get(i));
             if (codecMatcher.matches()) {
-                codecRtpMap = codecMatcher.group(1);
-                rtpmapLineIndex = i;
+                payloadType = codecMatcher.group(1);
+                rtpmapIndex = i;
                 break;
             }
         }
-        if (codecRtpMap == null) {
-            Log.w("Util.setStartBitrate", "No rtpmap for " + PeerConnectionClient.AUDIO_CODEC_OPUS + " codec");
+        if (payloadType == null) {
+            Logger.w("Util.setAudioProfile", "No rtpmap for {} codec", PeerConnectionClient.AUDIO_CODEC_OPUS);
             return sdpDescription;
         }
 
-        // Check if a=fmtp string already exist in remote SDP for this codec and
-        // update it with new bitrate parameter.
-        regex = "^a=fmtp:" + codecRtpMap + " \\w+=\\d+.*[\r]?$";
-        codecPattern = Pattern.compile(regex);
-        for (int i = 0; i < lines.length; i++) {
-            Matcher codecMatcher = codecPattern.matcher(lines[i]);
-            if (codecMatcher.matches()) {
-                Log.d("Util.setStartBitrate", "Found " + PeerConnectionClient.AUDIO_CODEC_OPUS + " " + lines[i]);
-                if (false) {
-                    lines[i] += "; " + VIDEO_CODEC_PARAM_START_BITRATE + "=" + 32;
-                } else {
-                    lines[i] += "; " + AUDIO_CODEC_PARAM_BITRATE + "=" + (32 * 1000);
+        final String fmtpPrefix = "a=fmtp:" + payloadType + " ";
+        final Map<String, String> parameters = new LinkedHashMap<>();
+        int fmtpIndex = -1;
+        for (int i = 0; i < lines.size(); i++) {
+            if (lines.get(i).startsWith(fmtpPrefix)) {
+                fmtpIndex = i;
+                for (String parameter : lines.get(i).substring(fmtpPrefix.length()).split(";")) {
+                    String[] keyValue = parameter.trim().split("=", 2);
+                    if (keyValue.length == 2) {
+                        parameters.put(keyValue[0], keyValue[1]);
+                    }
                 }
-                Log.d("Util.setStartBitrate", "Update remote SDP line: " + lines[i]);
-                sdpFormatUpdated = true;
                 break;
             }
         }
+        parameters.put(AUDIO_CODEC_PARAM_BITRATE, String.valueOf(profile.bitrateBps));
+        parameters.put(AUDIO_CODEC_PARAM_DTX, profile.dtx ? "1" : "0");
+        parameters.put(AUDIO_CODEC_PARAM_FEC, profile.inbandFec ? "1" : "0");
+        parameters.put(AUDIO_CODEC_PARAM_STEREO, profile.stereo ? "1" : "0");
+        StringBuilder fmtp = new StringBuilder(fmtpPrefix);
+        for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+            if (fmtp.length() > fmtpPrefix.length()) {
+                fmtp.append(';');
+            }
+            fmtp.append(parameter.getKey()).append('=').append(parameter.getValue());
+        }
+        if (fmtpIndex != -1) {
+            lines.set(fmtpIndex, fmtp.toString());
+        } else {
+            fmtpIndex = rtpmapIndex + 1;
+            lines.add(fmtpIndex, fmtp.toString());
+        }
+
+        // a=ptime and a=maxptime are media-level attributes of the audio section.
+        int sectionStart = rtpmapIndex;
+        while (sectionStart > 0 && !lines.get(sectionStart).startsWith("m=")) {
+            sectionStart--;
+        }
+        int sectionEnd = lines.size();
+        for (int i = fmtpIndex + 1; i < lines.size(); i++) {
+            if (lines.get(i).startsWith("m=")) {
+                sectionEnd = i;
+                break;
+            }
+        }
+        for (int i = sectionEnd - 1; i > sectionStart; i--) {
+            if (lines.get(i).startsWith(AUDIO_ATTRIBUTE_PTIME) || lines.get(i).startsWith(AUDIO_ATTRIBUTE_MAXPTIME)) {
+                lines.remove(i);
+                sectionEnd--;
+            }
+        }
+        lines.add(sectionEnd, AUDIO_ATTRIBUTE_MAXPTIME + profile.maxPtimeMs);
+        lines.add(sectionEnd, AUDIO_ATTRIBUTE_PTIME + profile.ptimeMs);
+        Logger.d("Util.setAudioProfile", "Set {}: {}", profile, fmtp);
+        return joinString(lines, "\r\n", true /* delimiterAtEnd */);
+    }
 
-        StringBuilder newSdpDescription = new StringBuilder();
-        for (int i = 0; i < lines.length; i++) {
-            newSdpDescription.append(lines[i]).append("\r\n");
-            // Append new a=fmtp line if no such line exist for a codec.
-            if (!sdpFormatUpdated && i == rtpmapLineIndex) {
-                String bitrateSet;
-                if (false) {
-                    bitrateSet =
-                            "a=fmtp:" + codecRtpMap + " " + VIDEO_CODEC_PARAM_START_BITRATE + "=" + 32;
-                } else {
-                    bitrateSet = "a=fmtp:" + codecRtpMap + " " + AUDIO_CODEC_PARAM_BITRATE + "="
-                            + (32 * 1000);
+    // Appends |parameters| to the a=fmtp line of every payload type named
+    // |codec|, adding the a=fmtp line after the rtpmap if there is none yet.
+    // Returns false if the codec is not in the description.
+    private static boolean addCodecParameters(List<String> lines, String codec, String parameters) {
+        boolean found = false;
+        // a=rtpmap:<payload type> <encoding name>/<clock rate> [/<encoding parameters>]
+        final Pattern codecPattern = Pattern.compile("^a=rtpmap:(\\d+) " + codec + "(/\\d+)+[\r]?$");
+        for (int i = 0; i < lines.size(); i++) {
+            Matcher codecMatcher = codecPattern.matcher(lines.get(i));
+            if (!codecMatcher.matches()) {
+                continue;
+            }
+            found = true;
+            final String fmtpPrefix = "a=fmtp:" + codecMatcher.group(1) + " ";
+            int fmtpIndex = -1;
+            for (int j = 0; j < lines.size(); j++) {
+                if (lines.get(j).startsWith(fmtpPrefix)) {
+                    fmtpIndex = j;
+                    break;
                 }
-                Log.d("Util.setStartBitrate", "Add remote SDP line: " + bitrateSet);
-                newSdpDescription.append(bitrateSet).append("\r\n");
+            }
+            if (fmtpIndex != -1) {
+                lines.set(fmtpIndex, lines.get(fmtpIndex) + "; " + parameters);
+                Logger.d("Util.setStartBitrate", "Update remote SDP line: {}", lines.get(fmtpIndex));
+            } else {
+                lines.add(i + 1, fmtpPrefix + parameters);
+                Logger.d("Util.setStartBitrate", "Add remote SDP line: {}", lines.get(i + 1));
+                i++;
             }
         }
-        return newSdpDescription.toString();
+        return found;
     }
 
-    public static String preferCodec(String sdpDescription) {
+    /**
+     * Moves the payload types of |codecs| to the front of the video m-line, in
+     * the given order. H.264 is split by profile-level-id into Constrained
+     * Baseline and High.
+     */
+    public static String preferCodecs(String sdpDescription, List<String> codecs) {
         final String[] lines = sdpDescription.split("\r\n");
         final int mLineIndex = findMediaDescriptionLine(false, lines);
         if (mLineIndex == -1) {
-            Log.w("PCRTCClient", "No mediaDescription line, so can't prefer " + PeerConnectionClient.VIDEO_CODEC_VP8);
+            Logger.w("PCRTCClient", "No mediaDescription line, so can't prefer {}", codecs);
             return sdpDescription;
         }
-        // A list with all the payload types with name |codec|. The payload types are integers in the
+        // A list with all the payload types of |codecs|. The payload types are integers in the
         // range 96-127, but they are stored as strings here.
         final List<String> codecPayloadTypes = new ArrayList<>();
-        // a=rtpmap:<payload type> <encoding name>/<clock rate> [/<encoding parameters>]
-        final Pattern codecPattern = Pattern.compile("^a=rtpmap:(\\d+) " + PeerConnectionClient.VIDEO_CODEC_VP8 + "(/\\d+)+[\r]?$");
-        for (String line : lines) {
-            Matcher codecMatcher = codecPattern.matcher(line);
-            if (codecMatcher.matches()) {
-                codecPayloadTypes.add(codecMatcher.group(1));
+        for (String codec : codecs) {
+            for (String payloadType : findPayloadTypes(codec, lines)) {
+                if (!codecPayloadTypes.contains(payloadType)) {
+                    codecPayloadTypes.add(payloadType);
+                }
             }
         }
         if (codecPayloadTypes.isEmpty()) {
-            Log.w("PCRTCClient", "No payload types with name " + PeerConnectionClient.VIDEO_CODEC_VP8);
+            Logger.w("PCRTCClient", "No payload types with names {}", codecs);
             return sdpDescription;
         }
 
@@ -136,11 +196,45 @@ public class Util {
         return joinString(Arrays.asList(lines), "\r\n", true /* delimiterAtEnd */);
     }
 
+    private static List<String> findPayloadTypes(String codec, String[] lines) {
+        String profilePrefix = null;
+        String encodingName = codec;
+        if (codec.equals(PeerConnectionClient.VIDEO_CODEC_H264_BASELINE)) {
+            encodingName = PeerConnectionClient.VIDEO_CODEC_H264;
+            profilePrefix = H264_PROFILE_BASELINE;
+        } else if (codec.equals(PeerConnectionClient.VIDEO_CODEC_H264_HIGH)) {
+            encodingName = PeerConnectionClient.VIDEO_CODEC_H264;
+            profilePrefix = H264_PROFILE_HIGH;
+        }
+        final List<String> payloadTypes = new ArrayList<>();
+        // a=rtpmap:<payload type> <encoding name>/<clock rate> [/<encoding parameters>]
+        final Pattern codecPattern = Pattern.compile("^a=rtpmap:(\\d+) " + encodingName + "(/\\d+)+[\r]?$");
+        for (String line : lines) {
+            Matcher codecMatcher = codecPattern.matcher(line);
+            if (codecMatcher.matches()) {
+                payloadTypes.add(codecMatcher.group(1));
+            }
+        }
+        if (profilePrefix == null) {
+            return payloadTypes;
+        }
+        // a=fmtp:<payload type> ...;profile-level-id=<profile_idc><profile_iop><level_idc>
+        final List<String> profilePayloadTypes = new ArrayList<>();
+        final Pattern profilePattern = Pattern.compile("^a=fmtp:(\\d+) .*profile-level-id=" + profilePrefix + ".*$", Pattern.CASE_INSENSITIVE);
+        for (String line : lines) {
+            Matcher profileMatcher = profilePattern.matcher(line);
+            if (profileMatcher.matches() && payloadTypes.contains(profileMatcher.group(1))) {
+                profilePayloadTypes.add(profileMatcher.group(1));
+            }
+        }
+        return profilePayloadTypes;
+    }
+
     private static String movePayloadTypesToFront(List<String> preferredPayloadTypes, String mLine) {
         // The format of the media description line should be: m=<media> <port> <proto> <fmt> ...
         final List<String> origLineParts = Arrays.asList(mLine.split(" "));
         if (origLineParts.size() <= 3) {
-            Log.e("PCRTCClient", "Wrong SDP media description format: " + mLine);
+            Logger.e("PCRTCClient", "Wrong SDP media description format: {}", mLine);
             return null;
         }
         final List<String> header = origLineParts.subList(0, 3);
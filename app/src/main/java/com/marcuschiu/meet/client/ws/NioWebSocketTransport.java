@@ -0,0 +1,562 @@
+package com.marcuschiu.meet.client.ws;
+
+import android.util.Log;
+
+import com.marcuschiu.meet.client.WebSocketTransport;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLParameters;
+
+/**
+ * WebSocketTransport on a non-blocking SocketChannel. All I/O, TLS and
+ * framing happens on a WebSocketSelectorThread, by default the one shared by
+ * every connection of the app; observer callbacks come on that thread too.
+ */
+public class NioWebSocketTransport implements WebSocketTransport, WebSocketSelectorThread.Handler, WebSocketCodec.Listener {
+    private static final String TAG = "NioWebSocket";
+    private static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final int MAX_MESSAGE_SIZE = 1024 * 1024;
+    private static final int MAX_RESPONSE_HEADER_SIZE = 8 * 1024;
+    private static final int CONNECT_TIMEOUT_MS = 10000;
+    private static final int CLOSE_TIMEOUT_MS = 2000;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private enum State {NEW, CONNECTING, UPGRADING, OPEN, CLOSING, CLOSED}
+
+    private final WebSocketSelectorThread io;
+    private final SecureRandom random = new SecureRandom();
+    private final WebSocketCodec codec = new WebSocketCodec(random, MAX_MESSAGE_SIZE);
+    // Outgoing plain bytes in read mode.
+    private final ArrayDeque<ByteBuffer> pending = new ArrayDeque<>();
+    private Observer observer;
+    private URI uri;
+    private String key;
+    private SocketChannel channel;
+    private SelectionKey selectionKey;
+    // TLS state, engine is null for ws:// URIs. Buffers stay in write mode.
+    private SSLEngine engine;
+    private ByteBuffer netIn;
+    private ByteBuffer netOut;
+    private ByteBuffer appIn = ByteBuffer.allocate(8 * 1024);
+    private State state = State.NEW;
+    private boolean upgradeSent;
+    private boolean closeWhenFlushed;
+    private String closeReason;
+    private WebSocketSelectorThread.Timer timer;
+
+    public NioWebSocketTransport() {
+        this(WebSocketSelectorThread.getShared());
+    }
+
+    public NioWebSocketTransport(WebSocketSelectorThread io) {
+        this.io = io;
+    }
+
+    @Override
+    public void connect(final URI uri, final Observer observer) throws IOException {
+        final String scheme = uri.getScheme();
+        if (!"ws".equalsIgnoreCase(scheme) && !"wss".equalsIgnoreCase(scheme)) {
+            throw new IOException("Unsupported scheme: " + scheme);
+        }
+        if (uri.getHost() == null) {
+            throw new IOException("No host in " + uri);
+        }
+        final boolean secure = "wss".equalsIgnoreCase(scheme);
+        final int port = uri.getPort() != -1 ? uri.getPort() : (secure ? 443 : 80);
+        io.execute(() -> {
+            if (state != State.NEW) {
+                return;
+            }
+            this.uri = uri;
+            this.observer = observer;
+            state = State.CONNECTING;
+            timer = io.schedule(() -> closeChannel("Connect timeout"), CONNECT_TIMEOUT_MS);
+            io.resolve(() -> {
+                final InetSocketAddress address = new InetSocketAddress(uri.getHost(), port);
+                io.execute(() -> open(address, secure));
+            });
+        });
+    }
+
+    @Override
+    public void sendTextMessage(final String message) {
+        io.execute(() -> {
+            if (state != State.OPEN) {
+                Log.w(TAG, "Dropping message in state " + state);
+                return;
+            }
+            pending.add(codec.encodeText(message));
+            flushOrClose();
+        });
+    }
+
+    @Override
+    public void sendPing(final byte[] payload) {
+        io.execute(() -> {
+            if (state != State.OPEN) {
+                return;
+            }
+            pending.add(codec.encodeControl(WebSocketCodec.OPCODE_PING, ByteBuffer.wrap(payload)));
+            flushOrClose();
+        });
+    }
+
+    @Override
+    public void disconnect() {
+        io.execute(() -> {
+            if (state == State.OPEN) {
+                startClosing(codec.encodeClose(WebSocketProtocolException.NORMAL, ""), "Closed by client", false);
+                flushOrClose();
+            } else if (state != State.CLOSING) {
+                closeChannel("Closed by client");
+            }
+        });
+    }
+
+    private void open(InetSocketAddress address, boolean secure) {
+        if (state != State.CONNECTING) {
+            return;
+        }
+        if (address.isUnresolved()) {
+            closeChannel("Can not resolve " + address.getHostString());
+            return;
+        }
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            if (secure) {
+                engine = createEngine(address.getHostString(), address.getPort());
+                int packetSize = engine.getSession().getPacketBufferSize();
+                netIn = ByteBuffer.allocate(packetSize);
+                netOut = ByteBuffer.allocate(packetSize);
+                appIn = ByteBuffer.allocate(Math.max(appIn.capacity(), engine.getSession().getApplicationBufferSize()));
+            }
+            selectionKey = io.register(channel, SelectionKey.OP_CONNECT, this);
+            if (channel.connect(address)) {
+                onConnected();
+            }
+        } catch (IOException e) {
+            onError(e);
+        }
+    }
+
+    private static SSLEngine createEngine(String host, int port) throws IOException {
+        SSLContext context;
+        try {
+            context = SSLContext.getDefault();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("No TLS: " + e.getMessage(), e);
+        }
+        SSLEngine engine = context.createSSLEngine(host, port);
+        engine.setUseClientMode(true);
+        SSLParameters params = engine.getSSLParameters();
+        params.setEndpointIdentificationAlgorithm("HTTPS");
+        if (!Character.isDigit(host.charAt(host.length() - 1)) && host.indexOf(':') < 0) {
+            params.setServerNames(Collections.singletonList(new SNIHostName(host)));
+        }
+        engine.setSSLParameters(params);
+        return engine;
+    }
+
+    private void onConnected() throws IOException {
+        selectionKey.interestOps(SelectionKey.OP_READ);
+        state = State.UPGRADING;
+        if (engine != null) {
+            engine.beginHandshake();
+            processTls();
+        } else {
+            sendUpgradeRequest();
+        }
+    }
+
+    private void sendUpgradeRequest() throws IOException {
+        byte[] nonce = new byte[16];
+        random.nextBytes(nonce);
+        key = Base64.getEncoder().encodeToString(nonce);
+        String path = uri.getRawPath() == null || uri.getRawPath().isEmpty() ? "/" : uri.getRawPath();
+        if (uri.getRawQuery() != null) {
+            path += "?" + uri.getRawQuery();
+        }
+        String host = uri.getPort() == -1 ? uri.getHost() : uri.getHost() + ":" + uri.getPort();
+        String request = "GET " + path + " HTTP/1.1\r\n"
+                + "Host: " + host + "\r\n"
+                + "Upgrade: websocket\r\n"
+                + "Connection: Upgrade\r\n"
+                + "Sec-WebSocket-Key: " + key + "\r\n"
+                + "Sec-WebSocket-Version: 13\r\n"
+                + "Sec-WebSocket-Extensions: " + PerMessageDeflate.OFFER + "\r\n"
+                + "\r\n";
+        pending.add(ByteBuffer.wrap(request.getBytes(StandardCharsets.ISO_8859_1)));
+        upgradeSent = true;
+        flush();
+    }
+
+
+    ///////////////////////////////////////
+    // WebSocketSelectorThread.Handler //
+    ///////////////////////////////////////
+
+    @Override
+    public void onReady(SelectionKey key) throws IOException {
+        if (key.isConnectable()) {
+            channel.finishConnect();
+            onConnected();
+            return;
+        }
+        if (key.isReadable()) {
+            onReadable();
+        }
+        if (key.isValid() && key.isWritable()) {
+            flush();
+        }
+    }
+
+    @Override
+    public void onError(IOException e) {
+        Log.w(TAG, "Connection error: " + e.getMessage());
+        closeChannel(state == State.CLOSING ? closeReason : "Connection error: " + e.getMessage());
+    }
+
+    private void onReadable() throws IOException {
+        int read = channel.read(engine == null ? appIn : netIn);
+        if (read < 0) {
+            closeChannel(state == State.CLOSING ? closeReason : "Connection closed by server");
+            return;
+        }
+        if (engine != null) {
+            processTls();
+        }
+        processInput();
+    }
+
+    // Drives the TLS handshake and decrypts whatever netIn holds into appIn.
+    private void processTls() throws IOException {
+        netIn.flip();
+        try {
+            while (true) {
+                HandshakeStatus status = engine.getHandshakeStatus();
+                if (status == HandshakeStatus.NEED_TASK) {
+                    runDelegatedTasks();
+                    continue;
+                }
+                if (status == HandshakeStatus.NEED_WRAP) {
+                    wrap(EMPTY);
+                    continue;
+                }
+                if (!netIn.hasRemaining()) {
+                    break;
+                }
+                SSLEngineResult result = engine.unwrap(netIn, appIn);
+                if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                    appIn = PerMessageDeflate.grow(appIn, appIn.capacity() + engine.getSession().getApplicationBufferSize());
+                    continue;
+                }
+                if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                    break;
+                }
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    throw new EOFException("TLS session closed by server");
+                }
+                if (result.bytesConsumed() == 0 && result.bytesProduced() == 0 && engine.getHandshakeStatus() == status) {
+                    break;
+                }
+            }
+        } finally {
+            netIn.compact();
+        }
+        if (!netIn.hasRemaining()) {
+            netIn = PerMessageDeflate.grow(netIn, netIn.capacity() * 2);
+        }
+        if (!upgradeSent && engine.getHandshakeStatus() == HandshakeStatus.NOT_HANDSHAKING) {
+            sendUpgradeRequest();
+        } else {
+            flush();
+        }
+    }
+
+    // Certificate checks run here, on the selector thread; they are short
+    // compared to the round trips around them.
+    private void runDelegatedTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    private void wrap(ByteBuffer source) throws IOException {
+        while (true) {
+            SSLEngineResult result = engine.wrap(source, netOut);
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                netOut = PerMessageDeflate.grow(netOut, netOut.capacity() + engine.getSession().getPacketBufferSize());
+                continue;
+            }
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                throw new EOFException("TLS session closed");
+            }
+            return;
+        }
+    }
+
+    private void processInput() throws IOException {
+        if (state == State.UPGRADING && !parseUpgradeResponse()) {
+            return;
+        }
+        if (state != State.OPEN && state != State.CLOSING) {
+            return;
+        }
+        appIn.flip();
+        int needed;
+        try {
+            needed = codec.decode(appIn, this);
+        } catch (WebSocketProtocolException e) {
+            Log.w(TAG, "Protocol error: " + e.getMessage());
+            appIn.clear();
+            if (state == State.OPEN) {
+                startClosing(codec.encodeClose(e.closeCode, e.getMessage()), "Protocol error: " + e.getMessage(), true);
+                flushOrClose();
+            } else {
+                closeChannel(closeReason);
+            }
+            return;
+        }
+        appIn.compact();
+        if (needed > appIn.capacity()) {
+            appIn = PerMessageDeflate.grow(appIn, needed);
+        }
+        flushOrClose();
+    }
+
+    // Returns true once the 101 response was read and accepted.
+    private boolean parseUpgradeResponse() {
+        int end = indexOfHeaderEnd(appIn);
+        if (end < 0) {
+            if (appIn.position() >= MAX_RESPONSE_HEADER_SIZE) {
+                closeChannel("Upgrade response header too large");
+            }
+            return false;
+        }
+        String header = new String(appIn.array(), 0, end, StandardCharsets.ISO_8859_1);
+        appIn.flip();
+        appIn.position(end + 4);
+        appIn.compact();
+
+        String[] lines = header.split("\r\n");
+        if (!lines[0].startsWith("HTTP/1.1 101")) {
+            closeChannel("Upgrade rejected: " + lines[0]);
+            return false;
+        }
+        Map<String, String> headers = new HashMap<>();
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon > 0) {
+                String name = lines[i].substring(0, colon).trim().toLowerCase();
+                String value = lines[i].substring(colon + 1).trim();
+                String previous = headers.get(name);
+                headers.put(name, previous == null ? value : previous + ", " + value);
+            }
+        }
+        if (!"websocket".equalsIgnoreCase(headers.get("upgrade"))
+                || headers.get("connection") == null
+                || !headers.get("connection").toLowerCase().contains("upgrade")) {
+            closeChannel("Bad upgrade response headers");
+            return false;
+        }
+        if (!expectedAccept(key).equals(headers.get("sec-websocket-accept"))) {
+            closeChannel("Bad Sec-WebSocket-Accept");
+            return false;
+        }
+        try {
+            codec.setDeflate(PerMessageDeflate.accept(headers.get("sec-websocket-extensions"), MAX_MESSAGE_SIZE));
+        } catch (WebSocketProtocolException e) {
+            closeChannel(e.getMessage());
+            return false;
+        }
+        cancelTimer();
+        state = State.OPEN;
+        observer.onOpen();
+        return true;
+    }
+
+    private static int indexOfHeaderEnd(ByteBuffer buffer) {
+        for (int i = 0; i + 3 < buffer.position(); i++) {
+            if (buffer.get(i) == '\r' && buffer.get(i + 1) == '\n' && buffer.get(i + 2) == '\r' && buffer.get(i + 3) == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static String expectedAccept(String key) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            byte[] digest = sha1.digest((key + ACCEPT_GUID).getBytes(StandardCharsets.ISO_8859_1));
+            return Base64.getEncoder().encodeToString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void flushOrClose() {
+        try {
+            flush();
+        } catch (IOException e) {
+            onError(e);
+        }
+    }
+
+    // Writes as much pending output as the socket takes, then waits for
+    // OP_WRITE if anything is left.
+    private void flush() throws IOException {
+        if (state == State.CLOSED || selectionKey == null) {
+            return;
+        }
+        while (true) {
+            if (engine != null) {
+                if (!flushNet() || pending.isEmpty() || engine.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING) {
+                    break;
+                }
+                ByteBuffer head = pending.peek();
+                wrap(head);
+                if (!head.hasRemaining()) {
+                    pending.poll();
+                }
+            } else {
+                ByteBuffer head = pending.peek();
+                if (head == null) {
+                    break;
+                }
+                channel.write(head);
+                if (head.hasRemaining()) {
+                    break;
+                }
+                pending.poll();
+            }
+        }
+        boolean blocked = !pending.isEmpty() || (netOut != null && netOut.position() > 0);
+        if (closeWhenFlushed && !blocked) {
+            closeChannel(closeReason);
+            return;
+        }
+        selectionKey.interestOps(SelectionKey.OP_READ | (blocked ? SelectionKey.OP_WRITE : 0));
+    }
+
+    // Returns true if netOut is empty afterwards.
+    private boolean flushNet() throws IOException {
+        if (netOut.position() > 0) {
+            netOut.flip();
+            channel.write(netOut);
+            netOut.compact();
+        }
+        return netOut.position() == 0;
+    }
+
+    // Queues |closeFrame| to wait for the server to close, or to close right
+    // after sending when |closeWhenFlushed|. The caller flushes.
+    private void startClosing(ByteBuffer closeFrame, String reason, boolean closeWhenFlushed) {
+        state = State.CLOSING;
+        closeReason = reason;
+        this.closeWhenFlushed = closeWhenFlushed;
+        pending.add(closeFrame);
+        cancelTimer();
+        timer = io.schedule(() -> closeChannel(closeReason), CLOSE_TIMEOUT_MS);
+    }
+
+    private void closeChannel(String reason) {
+        if (state == State.CLOSED) {
+            return;
+        }
+        state = State.CLOSED;
+        cancelTimer();
+        if (selectionKey != null) {
+            selectionKey.cancel();
+        }
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Close failed: " + e.getMessage());
+            }
+        }
+        pending.clear();
+        codec.release();
+        Log.d(TAG, "Closed: " + reason);
+        if (observer != null) {
+            observer.onClose(reason);
+        }
+    }
+
+    private void cancelTimer() {
+        if (timer != null) {
+            timer.cancel();
+            timer = null;
+        }
+    }
+
+
+    ///////////////////////////////
+    // WebSocketCodec.Listener //
+    ///////////////////////////////
+
+    @Override
+    public void onTextMessage(String payload) {
+        if (state == State.OPEN) {
+            observer.onTextMessage(payload);
+        }
+    }
+
+    @Override
+    public void onBinaryMessage(ByteBuffer payload) {
+        Log.d(TAG, "Ignoring binary message of " + payload.remaining() + " bytes");
+    }
+
+    @Override
+    public void onPing(ByteBuffer payload) {
+        if (state == State.OPEN) {
+            pending.add(codec.encodeControl(WebSocketCodec.OPCODE_PONG, payload));
+        }
+    }
+
+    @Override
+    public void onPong(ByteBuffer payload) {
+        if (state == State.OPEN) {
+            byte[] bytes = new byte[payload.remaining()];
+            payload.get(bytes);
+            observer.onPong(bytes);
+        }
+    }
+
+    @Override
+    public void onClose(int code, String reason) {
+        if (state == State.OPEN) {
+            // Echo the close once decoding is done, then drop the connection.
+            ByteBuffer echo = code == 1005
+                    ? codec.encodeControl(WebSocketCodec.OPCODE_CLOSE, EMPTY)
+                    : codec.encodeClose(code, "");
+            startClosing(echo, code + ": " + reason, true);
+        } else if (state == State.CLOSING && !closeWhenFlushed) {
+            closeChannel(closeReason);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.marcuschiu.meet.client.ws;
+
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The permessage-deflate extension (RFC 7692). java.util.zip always uses a
+ * 32 KB window, so the client window size is never offered; the server may
+ * still limit its own window and either side may drop its context between
+ * messages.
+ *
+ * <p>Buffers are reused across messages. Not thread-safe.
+ */
+class PerMessageDeflate {
+    static final String EXTENSION = "permessage-deflate";
+    static final String OFFER = EXTENSION;
+
+    // Messages this small rarely shrink, they are sent uncompressed.
+    private static final int MIN_COMPRESS_SIZE = 64;
+    private static final byte[] TAIL = {0, 0, (byte) 0xff, (byte) 0xff};
+
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private final Inflater inflater = new Inflater(true);
+    private final boolean clientNoContextTakeover;
+    private final boolean serverNoContextTakeover;
+    private final int maxMessageSize;
+    private ByteBuffer deflated = ByteBuffer.allocate(1024);
+    private ByteBuffer inflated = ByteBuffer.allocate(4096);
+
+    private PerMessageDeflate(boolean clientNoContextTakeover, boolean serverNoContextTakeover, int maxMessageSize) {
+        this.clientNoContextTakeover = clientNoContextTakeover;
+        this.serverNoContextTakeover = serverNoContextTakeover;
+        this.maxMessageSize = maxMessageSize;
+    }
+
+    /**
+     * Parses the Sec-WebSocket-Extensions response header. Returns null if the
+     * server did not accept the extension.
+     */
+    static PerMessageDeflate accept(String header, int maxMessageSize) throws WebSocketProtocolException {
+        if (header == null) {
+            return null;
+        }
+        for (String extension : header.split(",")) {
+            String[] params = extension.split(";");
+            if (!params[0].trim().equalsIgnoreCase(EXTENSION)) {
+                continue;
+            }
+            boolean clientNoContextTakeover = false;
+            boolean serverNoContextTakeover = false;
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim().toLowerCase();
+                if (param.equals("client_no_context_takeover")) {
+                    clientNoContextTakeover = true;
+                } else if (param.equals("server_no_context_takeover")) {
+                    serverNoContextTakeover = true;
+                } else if (!param.startsWith("server_max_window_bits")) {
+                    // client_max_window_bits was not offered, anything else is unknown.
+                    throw new WebSocketProtocolException(WebSocketProtocolException.PROTOCOL_ERROR, "Bad " + EXTENSION + " parameter: " + param);
+                }
+            }
+            return new PerMessageDeflate(clientNoContextTakeover, serverNoContextTakeover, maxMessageSize);
+        }
+        return null;
+    }
+
+    /**
+     * Returns the compressed form of |payload|, or null if it should be sent as
+     * is. The returned buffer is only valid until the next call.
+     */
+    ByteBuffer compress(ByteBuffer payload) {
+        if (payload.remaining() < MIN_COMPRESS_SIZE) {
+            return null;
+        }
+        deflater.setInput(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining());
+        deflated.clear();
+        while (true) {
+            int n = deflater.deflate(deflated.array(), deflated.position(), deflated.remaining(), Deflater.SYNC_FLUSH);
+            deflated.position(deflated.position() + n);
+            if (deflated.hasRemaining()) {
+                break;
+            }
+            deflated = grow(deflated, deflated.capacity() * 2);
+        }
+        if (clientNoContextTakeover) {
+            deflater.reset();
+        }
+        // The flush ends with an empty stored block, which is left off on the wire.
+        if (endsWithTail(deflated)) {
+            deflated.position(deflated.position() - TAIL.length);
+        }
+        deflated.flip();
+        return deflated;
+    }
+
+    /**
+     * Decompresses the message in |payload|, which must have room for four
+     * more bytes. The returned buffer is only valid until the next call.
+     */
+    ByteBuffer decompress(ByteBuffer payload) throws WebSocketProtocolException {
+        payload.mark();
+        payload.position(payload.limit());
+        payload.limit(payload.limit() + TAIL.length);
+        payload.put(TAIL);
+        payload.reset();
+        inflater.setInput(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining());
+        inflated.clear();
+        try {
+            while (true) {
+                int n = inflater.inflate(inflated.array(), inflated.position(), inflated.remaining());
+                inflated.position(inflated.position() + n);
+                if (inflater.needsDictionary()) {
+                    throw new WebSocketProtocolException(WebSocketProtocolException.INVALID_DATA, "Unexpected preset dictionary");
+                }
+                if (!inflated.hasRemaining()) {
+                    if (inflated.capacity() >= maxMessageSize) {
+                        throw new WebSocketProtocolException(WebSocketProtocolException.MESSAGE_TOO_BIG, "Inflated message too big");
+                    }
+                    inflated = grow(inflated, Math.min(inflated.capacity() * 2, maxMessageSize));
+                } else if (n == 0) {
+                    break;
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new WebSocketProtocolException(WebSocketProtocolException.INVALID_DATA, "Bad deflate data: " + e.getMessage());
+        }
+        if (serverNoContextTakeover) {
+            inflater.reset();
+        }
+        inflated.flip();
+        return inflated;
+    }
+
+    void release() {
+        deflater.end();
+        inflater.end();
+    }
+
+    private static boolean endsWithTail(ByteBuffer buffer) {
+        int end = buffer.position();
+        if (end < TAIL.length) {
+            return false;
+        }
+        for (int i = 0; i < TAIL.length; i++) {
+            if (buffer.get(end - TAIL.length + i) != TAIL[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Returns a larger copy of |buffer|, both in write mode.
+    static ByteBuffer grow(ByteBuffer buffer, int capacity) {
+        ByteBuffer bigger = ByteBuffer.allocate(capacity);
+        buffer.flip();
+        bigger.put(buffer);
+        return bigger;
+    }
+}
@@ -0,0 +1,285 @@
+package com.marcuschiu.meet.client.ws;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Client side WebSocket framing (RFC 6455). Encodes masked frames and
+ * parses server frames into messages, reassembling fragments, inflating
+ * compressed messages and decoding UTF-8 into buffers that are reused from
+ * one message to the next.
+ *
+ * <p>Not thread-safe.
+ */
+class WebSocketCodec {
+    static final int OPCODE_CONTINUATION = 0x0;
+    static final int OPCODE_TEXT = 0x1;
+    static final int OPCODE_BINARY = 0x2;
+    static final int OPCODE_CLOSE = 0x8;
+    static final int OPCODE_PING = 0x9;
+    static final int OPCODE_PONG = 0xa;
+
+    private static final int MAX_CONTROL_PAYLOAD = 125;
+    private static final int MAX_HEADER_SIZE = 14;
+
+    interface Listener {
+        void onTextMessage(String payload);
+
+        void onBinaryMessage(ByteBuffer payload);
+
+        void onPing(ByteBuffer payload);
+
+        void onPong(ByteBuffer payload);
+
+        void onClose(int code, String reason);
+    }
+
+    private final Random random;
+    private final int maxMessageSize;
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPORT)
+            .onUnmappableCharacter(CodingErrorAction.REPORT);
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private PerMessageDeflate deflate;
+    private ByteBuffer encoded = ByteBuffer.allocate(1024);
+    private ByteBuffer message = ByteBuffer.allocate(4096);
+    private CharBuffer decoded = CharBuffer.allocate(4096);
+    private int messageOpcode = -1;
+    private boolean messageCompressed;
+
+    WebSocketCodec(Random random, int maxMessageSize) {
+        this.random = random;
+        this.maxMessageSize = maxMessageSize;
+    }
+
+    void setDeflate(PerMessageDeflate deflate) {
+        this.deflate = deflate;
+    }
+
+    void release() {
+        if (deflate != null) {
+            deflate.release();
+        }
+    }
+
+    /**
+     * Returns a new masked text frame carrying |text|.
+     */
+    ByteBuffer encodeText(String text) {
+        int maxLength = (int) (text.length() * encoder.maxBytesPerChar());
+        if (encoded.capacity() < maxLength) {
+            encoded = ByteBuffer.allocate(Math.max(encoded.capacity() * 2, maxLength));
+        }
+        encoder.reset();
+        encoded.clear();
+        encoder.encode(CharBuffer.wrap(text), encoded, true);
+        encoder.flush(encoded);
+        encoded.flip();
+        ByteBuffer compressed = deflate == null ? null : deflate.compress(encoded);
+        if (compressed != null) {
+            return encodeFrame(OPCODE_TEXT, true, compressed);
+        }
+        return encodeFrame(OPCODE_TEXT, false, encoded);
+    }
+
+    ByteBuffer encodeClose(int code, String reason) {
+        byte[] reasonBytes = reason.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(2 + Math.min(reasonBytes.length, MAX_CONTROL_PAYLOAD - 2));
+        payload.putShort((short) code);
+        payload.put(reasonBytes, 0, payload.remaining());
+        payload.flip();
+        return encodeFrame(OPCODE_CLOSE, false, payload);
+    }
+
+    ByteBuffer encodeControl(int opcode, ByteBuffer payload) {
+        return encodeFrame(opcode, false, payload);
+    }
+
+    private ByteBuffer encodeFrame(int opcode, boolean compressed, ByteBuffer payload) {
+        int length = payload.remaining();
+        ByteBuffer frame = ByteBuffer.allocate(MAX_HEADER_SIZE + length);
+        frame.put((byte) (0x80 | (compressed ? 0x40 : 0) | opcode));
+        if (length <= 125) {
+            frame.put((byte) (0x80 | length));
+        } else if (length <= 0xffff) {
+            frame.put((byte) (0x80 | 126));
+            frame.putShort((short) length);
+        } else {
+            frame.put((byte) (0x80 | 127));
+            frame.putLong(length);
+        }
+        int mask = random.nextInt();
+        frame.putInt(mask);
+        int start = frame.position();
+        frame.put(payload);
+        mask(frame.array(), start, frame.position(), mask);
+        frame.flip();
+        return frame;
+    }
+
+    private static void mask(byte[] data, int from, int to, int mask) {
+        for (int i = from; i < to; i++) {
+            data[i] ^= (byte) (mask >>> (24 - 8 * ((i - from) & 3)));
+        }
+    }
+
+    /**
+     * Parses the complete frames in |input| (read mode) and leaves it
+     * positioned at the first incomplete one. Returns the number of bytes
+     * |input| must be able to hold for that frame.
+     */
+    int decode(ByteBuffer input, Listener listener) throws WebSocketProtocolException {
+        while (input.remaining() >= 2) {
+            int start = input.position();
+            int b0 = input.get(start) & 0xff;
+            int b1 = input.get(start + 1) & 0xff;
+            boolean fin = (b0 & 0x80) != 0;
+            boolean rsv1 = (b0 & 0x40) != 0;
+            int opcode = b0 & 0x0f;
+            if ((b0 & 0x30) != 0) {
+                throw new WebSocketProtocolException(WebSocketProtocolException.PROTOCOL_ERROR, "Reserved bits set");
+            }
+            if ((b1 & 0x80) != 0) {
+                throw new WebSocketProtocolException(WebSocketProtocolException.PROTOCOL_ERROR, "Masked server frame");
+            }
+            long length = b1 & 0x7f;
+            int headerLength = 2;
+            if (length == 126) {
+                headerLength = 4;
+                if (input.remaining() < headerLength) {
+                    return headerLength;
+                }
+                length = input.getShort(start + 2) & 0xffff;
+            } else if (length == 127) {
+                headerLength = 10;
+                if (input.remaining() < headerLength) {
+                    return headerLength;
+                }
+                length = input.getLong(start + 2);
+            }
+            if (length < 0 || length > maxMessageSize) {
+                throw new WebSocketProtocolException(WebSocketProtocolException.MESSAGE_TOO_BIG, "Frame of " + length + " bytes");
+            }
+            int frameLength = headerLength + (int) length;
+            if (input.remaining() < frameLength) {
+                return frameLength;
+            }
+            ByteBuffer payload = input.duplicate();
+            payload.position(start + headerLength);
+            payload.limit(start + frameLength);
+            input.position(start + frameLength);
+            onFrame(fin, rsv1, opcode, payload, listener);
+        }
+        return 2;
+    }
+
+    private void onFrame(boolean fin, boolean rsv1, int opcode, ByteBuffer payload, Listener listener) throws WebSocketProtocolException {
+        if (opcode >= OPCODE_CLOSE) {
+            if (!fin || rsv1 || payload.remaining() > MAX_CONTROL_PAYLOAD) {
+                throw new WebSocketProtocolException(WebSocketProtocolException.PROTOCOL_ERROR, "Bad control frame");
+            }
+            switch (opcode) {
+                case OPCODE_CLOSE:
+                    onCloseFrame(payload, listener);
+                    return;
+                case OPCODE_PING:
+                    listener.onPing(payload);
+                    return;
+                case OPCODE_PONG:
+                    listener.onPong(payload);
+                    return;
+                default:
+                    throw new WebSocketProtocolException(WebSocketProtocolException.PROTOCOL_ERROR, "Unknown opcode " + opcode);
+            }
+        }
+
+        if (opcode == OPCODE_CONTINUATION) {
+            if (messageOpcode < 0 || rsv1) {
+                throw new WebSocketProtocolException(WebSocketProtocolException.PROTOCOL_ERROR, "Unexpected continuation");
+            }
+        } else if (opcode == OPCODE_TEXT || opcode == OPCODE_BINARY) {
+            if (messageOpcode >= 0) {
+                throw new WebSocketProtocolException(WebSocketProtocolException.PROTOCOL_ERROR, "Expected continuation");
+            }
+            if (rsv1 && deflate == null) {
+                throw new WebSocketProtocolException(WebSocketProtocolException.PROTOCOL_ERROR, "Compressed frame without extension");
+            }
+            messageOpcode = opcode;
+            messageCompressed = rsv1;
+            message.clear();
+        } else {
+            throw new WebSocketProtocolException(WebSocketProtocolException.PROTOCOL_ERROR, "Unknown opcode " + opcode);
+        }
+
+        if (message.position() + payload.remaining() > maxMessageSize) {
+            throw new WebSocketProtocolException(WebSocketProtocolException.MESSAGE_TOO_BIG, "Message too big");
+        }
+        // Keep room for the deflate tail.
+        if (message.remaining() < payload.remaining() + 4) {
+            message = PerMessageDeflate.grow(message, Math.max(message.capacity() * 2, message.position() + payload.remaining() + 4));
+        }
+        message.put(payload);
+        if (!fin) {
+            return;
+        }
+
+        int completedOpcode = messageOpcode;
+        messageOpcode = -1;
+        message.flip();
+        ByteBuffer data = messageCompressed ? deflate.decompress(message) : message;
+        if (completedOpcode == OPCODE_TEXT) {
+            listener.onTextMessage(decodeUtf8(data));
+        } else {
+            listener.onBinaryMessage(data);
+        }
+    }
+
+    private void onCloseFrame(ByteBuffer payload, Listener listener) throws WebSocketProtocolException {
+        if (payload.remaining() == 1) {
+            throw new WebSocketProtocolException(WebSocketProtocolException.PROTOCOL_ERROR, "Truncated close code");
+        }
+        int code = 1005;
+        String reason = "";
+        if (payload.remaining() >= 2) {
+            code = payload.getShort() & 0xffff;
+            if (!isValidCloseCode(code)) {
+                throw new WebSocketProtocolException(WebSocketProtocolException.PROTOCOL_ERROR, "Bad close code " + code);
+            }
+            reason = decodeUtf8(payload);
+        }
+        listener.onClose(code, reason);
+    }
+
+    private static boolean isValidCloseCode(int code) {
+        if (code >= 3000 && code <= 4999) {
+            return true;
+        }
+        return code >= 1000 && code <= 1011 && code != 1004 && code != 1005 && code != 1006;
+    }
+
+    private String decodeUtf8(ByteBuffer bytes) throws WebSocketProtocolException {
+        // UTF-8 never needs more chars than bytes.
+        if (decoded.capacity() < bytes.remaining()) {
+            decoded = CharBuffer.allocate(Math.max(decoded.capacity() * 2, bytes.remaining()));
+        }
+        decoder.reset();
+        decoded.clear();
+        CoderResult result = decoder.decode(bytes, decoded, true);
+        if (!result.isError()) {
+            result = decoder.flush(decoded);
+        }
+        if (result.isError()) {
+            throw new WebSocketProtocolException(WebSocketProtocolException.INVALID_DATA, "Invalid UTF-8");
+        }
+        decoded.flip();
+        return decoded.toString();
+    }
+}
@@ -0,0 +1,20 @@
+package com.marcuschiu.meet.client.ws;
+
+import java.io.IOException;
+
+/**
+ * The peer broke the WebSocket protocol. Carries the close code to send.
+ */
+public class WebSocketProtocolException extends IOException {
+    public static final int NORMAL = 1000;
+    public static final int PROTOCOL_ERROR = 1002;
+    public static final int INVALID_DATA = 1007;
+    public static final int MESSAGE_TOO_BIG = 1009;
+
+    public final int closeCode;
+
+    public WebSocketProtocolException(int closeCode, String message) {
+        super(message);
+        this.closeCode = closeCode;
+    }
+}
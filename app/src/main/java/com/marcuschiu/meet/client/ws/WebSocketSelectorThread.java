@@ -0,0 +1,173 @@
+package com.marcuschiu.meet.client.ws;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * One selector thread doing the I/O of any number of WebSocket connections.
+ * Connections register their channel with a Handler and get called back on
+ * this thread whenever the channel is ready. Tasks and timers posted from
+ * other threads run on it as well, so connection state needs no locking.
+ */
+public final class WebSocketSelectorThread implements Runnable {
+    private static final String TAG = "WSSelectorThread";
+
+    interface Handler {
+        void onReady(SelectionKey key) throws IOException;
+
+        void onError(IOException e);
+    }
+
+    /**
+     * A task scheduled with schedule(). Cancelling is only safe on the
+     * selector thread.
+     */
+    static final class Timer implements Comparable<Timer> {
+        private final long deadlineMs;
+        private final Runnable task;
+        private boolean cancelled;
+
+        Timer(long deadlineMs, Runnable task) {
+            this.deadlineMs = deadlineMs;
+            this.task = task;
+        }
+
+        void cancel() {
+            cancelled = true;
+        }
+
+        @Override
+        public int compareTo(Timer other) {
+            return Long.compare(deadlineMs, other.deadlineMs);
+        }
+    }
+
+    private static WebSocketSelectorThread shared;
+
+    private final Selector selector;
+    private final Thread thread;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final PriorityQueue<Timer> timers = new PriorityQueue<>();
+    // Name resolution blocks, keep it off the selector thread.
+    private final Executor resolver = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "WSResolver");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Returns the selector thread shared by all connections not given their own.
+     */
+    public static synchronized WebSocketSelectorThread getShared() {
+        if (shared == null) {
+            try {
+                shared = new WebSocketSelectorThread("WebSocketIO");
+            } catch (IOException e) {
+                throw new IllegalStateException("Can not open selector", e);
+            }
+        }
+        return shared;
+    }
+
+    public WebSocketSelectorThread(String name) throws IOException {
+        selector = Selector.open();
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    boolean isCurrentThread() {
+        return Thread.currentThread() == thread;
+    }
+
+    void execute(Runnable task) {
+        tasks.add(task);
+        if (!isCurrentThread()) {
+            selector.wakeup();
+        }
+    }
+
+    void resolve(Runnable task) {
+        resolver.execute(task);
+    }
+
+    /**
+     * Runs |task| on the selector thread after |delayMs|. Must be called on the
+     * selector thread.
+     */
+    Timer schedule(Runnable task, long delayMs) {
+        Timer timer = new Timer(System.currentTimeMillis() + delayMs, task);
+        timers.add(timer);
+        return timer;
+    }
+
+    /**
+     * Must be called on the selector thread.
+     */
+    SelectionKey register(SelectableChannel channel, int ops, Handler handler) throws ClosedChannelException {
+        return channel.register(selector, ops, handler);
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                long timeoutMs = runDueTimers();
+                if (tasks.isEmpty()) {
+                    selector.select(timeoutMs);
+                } else {
+                    selector.selectNow();
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Select failed", e);
+                continue;
+            }
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                Handler handler = (Handler) key.attachment();
+                try {
+                    handler.onReady(key);
+                } catch (CancelledKeyException e) {
+                    // Closed while handling an earlier event.
+                } catch (IOException e) {
+                    handler.onError(e);
+                }
+            }
+        }
+    }
+
+    // Returns the select timeout until the next timer, 0 if there is none.
+    private long runDueTimers() {
+        while (!timers.isEmpty()) {
+            Timer next = timers.peek();
+            if (next.cancelled) {
+                timers.poll();
+                continue;
+            }
+            long remainingMs = next.deadlineMs - System.currentTimeMillis();
+            if (remainingMs > 0) {
+                return remainingMs;
+            }
+            timers.poll();
+            next.task.run();
+        }
+        return 0;
+    }
+}
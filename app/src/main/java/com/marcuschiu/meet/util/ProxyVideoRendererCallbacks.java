@@ -1,15 +1,20 @@
 package com.marcuschiu.meet.util;
 
-import org.webrtc.Logging;
+import com.marcuschiu.meet.client.util.Logger;
+
 import org.webrtc.VideoRenderer;
 
 public class ProxyVideoRendererCallbacks implements VideoRenderer.Callbacks {
+    private static final String TAG = "ProxyVideoRendererCallbacks";
+
     private VideoRenderer.Callbacks target;
+    // Frames dropped without a target, logged once a target is set.
+    private int droppedFrames;
 
     @Override
     synchronized public void renderFrame(VideoRenderer.I420Frame frame) {
         if (target == null) {
-            Logging.d("ProxyVideoRendererCallbacks", "Dropping frame in proxy because target is null.");
+            droppedFrames++;
             VideoRenderer.renderFrameDone(frame);
             return;
         }
@@ -18,6 +23,10 @@ public class ProxyVideoRendererCallbacks implements VideoRenderer.Callbacks {
     }
 
     synchronized public void setTarget(VideoRenderer.Callbacks target) {
+        if (droppedFrames > 0) {
+            Logger.d(TAG, "Dropped {} frames in proxy because target was null.", droppedFrames);
+            droppedFrames = 0;
+        }
         this.target = target;
     }
 }
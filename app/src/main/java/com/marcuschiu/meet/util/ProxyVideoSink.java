@@ -1,16 +1,21 @@
 package com.marcuschiu.meet.util;
 
-import org.webrtc.Logging;
+import com.marcuschiu.meet.client.util.Logger;
+
 import org.webrtc.VideoFrame;
 import org.webrtc.VideoSink;
 
 public class ProxyVideoSink implements VideoSink {
+    private static final String TAG = "ProxyVideoSink";
+
     private VideoSink target;
+    // Frames dropped without a target, logged once a target is set.
+    private int droppedFrames;
 
     @Override
     synchronized public void onFrame(VideoFrame frame) {
         if (target == null) {
-            Logging.d("ProxyVideoSink", "Dropping frame in proxy because target is null.");
+            droppedFrames++;
             return;
         }
 
@@ -18,6 +23,10 @@ public class ProxyVideoSink implements VideoSink {
     }
 
     synchronized public void setTarget(VideoSink target) {
+        if (droppedFrames > 0) {
+            Logger.d(TAG, "Dropped {} frames in proxy because target was null.", droppedFrames);
+            droppedFrames = 0;
+        }
         this.target = target;
     }
 }
@@ -0,0 +1,139 @@
+package com.marcuschiu.meet.client;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Locale;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SdpCompressionTest {
+    @Test
+    public void roundTripsFixtures() throws Exception {
+        for (String name : SdpFixtures.ALL) {
+            String sdp = SdpFixtures.load(name);
+            String compressed = SdpCompression.compress(sdp);
+            assertNotNull(name, compressed);
+            assertEquals(name, sdp, SdpCompression.decompress(compressed));
+        }
+    }
+
+    @Test
+    public void dictionaryNeverHurts() throws Exception {
+        for (String name : SdpFixtures.ALL) {
+            String sdp = SdpFixtures.load(name);
+            int compressed = SdpCompression.compress(sdp).length();
+            int plain = deflateWithoutDictionary(sdp).length();
+            assertTrue(name + ": " + compressed + " with dictionary, " + plain + " without", compressed <= plain);
+        }
+    }
+
+    /**
+     * Prints the encoded size of each fixture with and without the
+     * dictionary, for comparing dictionary changes across SDP flavors.
+     */
+    @Test
+    public void reportsSizes() throws Exception {
+        int totalSdp = 0;
+        int totalPlain = 0;
+        int totalCompressed = 0;
+        for (String name : SdpFixtures.ALL) {
+            String sdp = SdpFixtures.load(name);
+            int plain = deflateWithoutDictionary(sdp).length();
+            int compressed = SdpCompression.compress(sdp).length();
+            totalSdp += sdp.length();
+            totalPlain += plain;
+            totalCompressed += compressed;
+            System.out.println(sizes(name, sdp.length(), plain, compressed));
+        }
+        System.out.println(sizes("total", totalSdp, totalPlain, totalCompressed));
+    }
+
+    private static String sizes(String name, int sdp, int plain, int compressed) {
+        return String.format(Locale.US, "SdpCompression %-26s %6d bytes, %5d (%4.1f%%) without dictionary, %5d (%4.1f%%) with",
+                name, sdp, plain, 100.0 * plain / sdp, compressed, 100.0 * compressed / sdp);
+    }
+
+    // What SdpCompression would produce with an empty dictionary.
+    private static String deflateWithoutDictionary(String sdp) {
+        byte[] plain = sdp.getBytes(StandardCharsets.UTF_8);
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        deflater.setInput(plain);
+        deflater.finish();
+        byte[] buffer = new byte[plain.length + 64];
+        int length = deflater.deflate(buffer);
+        deflater.end();
+        return Base64.getEncoder().withoutPadding().encodeToString(Arrays.copyOf(buffer, length));
+    }
+
+    @Test
+    public void iceRestartChangesOnlyCredentials() throws Exception {
+        String offer = SdpCompression.compress(SdpFixtures.load(SdpFixtures.OFFER));
+        String restart = SdpCompression.compress(SdpFixtures.load(SdpFixtures.OFFER_ICE_RESTART));
+        assertTrue(!offer.equals(restart));
+        // New credentials do not defeat the dictionary.
+        assertTrue(offer + " vs " + restart, Math.abs(offer.length() - restart.length()) < 16);
+        assertEquals(SdpFixtures.load(SdpFixtures.OFFER_ICE_RESTART), SdpCompression.decompress(restart));
+    }
+
+    @Test
+    public void roundTripsThroughSignalingCodec() throws Exception {
+        SignalingCodec codec = new SignalingCodec();
+        SignalingCodec.Message message = new SignalingCodec.Message();
+        String sdp = SdpFixtures.load(SdpFixtures.OFFER);
+        String json = codec.description(SignalingCodec.TYPE_OFFER, sdp, true);
+        assertTrue(json, json.contains("\"zsdp\":"));
+        assertTrue(json.length() < sdp.length());
+        codec.readMessage(json, message);
+        assertEquals(sdp, message.sdp);
+    }
+
+    @Test
+    public void keepsNonAscii() throws Exception {
+        String sdp = SdpFixtures.load(SdpFixtures.ANSWER_H264).replace("s=-", "s=Café über 会议");
+        assertEquals(sdp, SdpCompression.decompress(SdpCompression.compress(sdp)));
+    }
+
+    @Test
+    public void skipsWhatDoesNotShrink() {
+        assertNull(SdpCompression.compress("v=0\r\n"));
+        assertNull(SdpCompression.compress(""));
+    }
+
+    @Test
+    public void rejectsBadInput() throws Exception {
+        String compressed = SdpCompression.compress(SdpFixtures.load(SdpFixtures.OFFER));
+        assertRejected(compressed.substring(0, compressed.length() / 2));
+        assertRejected("not base64!");
+        // Not deflate data.
+        assertRejected(Base64.getEncoder().encodeToString(new byte[]{(byte) 0xff, 0x00, 0x13}));
+    }
+
+    @Test
+    public void rejectsDecompressionBomb() throws Exception {
+        byte[] zeros = new byte[1024 * 1024];
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+        deflater.setInput(zeros);
+        deflater.finish();
+        byte[] buffer = new byte[8192];
+        int length = deflater.deflate(buffer);
+        deflater.end();
+        assertRejected(Base64.getEncoder().encodeToString(Arrays.copyOf(buffer, length)));
+    }
+
+    private static void assertRejected(String encoded) {
+        try {
+            SdpCompression.decompress(encoded);
+            fail("Decoded " + encoded);
+        } catch (DataFormatException expected) {
+        }
+    }
+}
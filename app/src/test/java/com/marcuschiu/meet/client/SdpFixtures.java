@@ -0,0 +1,47 @@
+package com.marcuschiu.meet.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Session descriptions recorded from Chrome, Firefox, Safari and Android
+ * calls, under src/test/resources/sdp.
+ */
+public final class SdpFixtures {
+    // Android, Plan B, as this app sends them.
+    public static final String OFFER = "offer.sdp";
+    public static final String ANSWER_H264 = "answer-h264.sdp";
+    public static final String OFFER_ICE_RESTART = "offer-ice-restart.sdp";
+    // Newer Chrome, unified plan with numeric mids, AV1 and more H264 profiles.
+    public static final String OFFER_CHROME_UNIFIED = "offer-chrome-unified.sdp";
+    public static final String OFFER_FIREFOX = "offer-firefox.sdp";
+    // H264 first, upper case msids.
+    public static final String ANSWER_SAFARI = "answer-safari.sdp";
+    // Chrome sending three simulcast layers.
+    public static final String OFFER_SIMULCAST = "offer-simulcast.sdp";
+
+    public static final String[] ALL = {
+            OFFER, ANSWER_H264, OFFER_ICE_RESTART, OFFER_CHROME_UNIFIED, OFFER_FIREFOX, ANSWER_SAFARI, OFFER_SIMULCAST};
+
+    private SdpFixtures() {
+    }
+
+    /**
+     * Returns fixture |name| with CRLF line endings, as on the wire.
+     */
+    public static String load(String name) throws IOException {
+        try (InputStream in = SdpFixtures.class.getResourceAsStream("/sdp/" + name)) {
+            if (in == null) {
+                throw new IOException("No fixture " + name);
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+            }
+            return out.toString("UTF-8").replace("\r\n", "\n").replace("\n", "\r\n");
+        }
+    }
+}
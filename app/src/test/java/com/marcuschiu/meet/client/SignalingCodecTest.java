@@ -0,0 +1,217 @@
+package com.marcuschiu.meet.client;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.webrtc.IceCandidate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SignalingCodecTest {
+    private static final String SDP = "v=0\r\no=- 1 2 IN IP4 127.0.0.1\r\ns=-\r\nt=0 0\r\n";
+    // Quotes, backslashes, control characters, non-ASCII and a surrogate pair.
+    private static final String AWKWARD = "a=x-note:\"q\" \\ / \t\b\f\u0001\u001f caf\u00e9 \u4f1a\u8b70 \ud83d\ude00\r\n";
+    private static final IceCandidate CANDIDATE = new IceCandidate("audio", 0,
+            "candidate:1467250027 1 udp 2122260223 192.168.1.23 52301 typ host generation 0");
+    private static final IceCandidate OTHER_CANDIDATE = new IceCandidate("video", 1,
+            "candidate:842163049 1 udp 1686052607 203.0.113.7 52301 typ srflx raddr 192.168.1.23 rport 52301");
+
+    private final SignalingCodec codec = new SignalingCodec();
+    private final SignalingCodec.Message message = new SignalingCodec.Message();
+
+    @Test
+    public void descriptionAdvertisesCapabilities() throws Exception {
+        codec.readMessage(codec.description(SignalingCodec.TYPE_OFFER, SDP, false), message);
+        assertEquals(SignalingCodec.TYPE_OFFER, message.type);
+        assertEquals(SDP, message.sdp);
+        assertTrue(message.sdpCompression);
+        assertTrue(message.videoPaused);
+        assertTrue(message.renegotiate);
+    }
+
+    @Test
+    public void olderPeerHasNoCapabilities() throws Exception {
+        codec.readMessage("{\"type\":\"answer\",\"sdp\":\"v=0\\r\\n\"}", message);
+        assertFalse(message.sdpCompression);
+        assertFalse(message.videoPaused);
+        assertFalse(message.renegotiate);
+    }
+
+    @Test
+    public void capabilitiesAreTokens() throws Exception {
+        codec.readMessage("{\"type\":\"answer\",\"caps\":\"future video-paused\",\"sdp\":\"\"}", message);
+        assertTrue(message.videoPaused);
+        assertFalse(message.renegotiate);
+        codec.readMessage("{\"type\":\"answer\",\"caps\":\"video-paused-v2\",\"sdp\":\"\"}", message);
+        assertFalse(message.videoPaused);
+    }
+
+    @Test
+    public void readsVideoPausedInEnvelope() throws Exception {
+        codec.readEnvelope("{\"msg\":" + quote(codec.videoPaused(true)) + ",\"error\":\"\"}", message);
+        assertEquals(SignalingCodec.TYPE_VIDEO_PAUSED, message.type);
+        codec.readEnvelope("{\"msg\":" + quote(codec.videoPaused(false)) + ",\"error\":\"\"}", message);
+        assertEquals(SignalingCodec.TYPE_VIDEO_RESUMED, message.type);
+    }
+
+    @Test
+    public void readsRenegotiateInEnvelope() throws Exception {
+        codec.readEnvelope("{\"msg\":" + quote(codec.renegotiate()) + ",\"error\":\"\"}", message);
+        assertEquals(SignalingCodec.TYPE_RENEGOTIATE, message.type);
+    }
+
+    @Test
+    public void escapesAwkwardCharacters() throws Exception {
+        String description = codec.description(SignalingCodec.TYPE_ANSWER, AWKWARD, false);
+        // Control characters never appear raw.
+        for (char c : description.toCharArray()) {
+            assertTrue("raw " + (int) c, c >= 0x20);
+        }
+        assertEquals(AWKWARD, new JSONObject(description).getString("sdp"));
+        codec.readMessage(description, message);
+        assertEquals(AWKWARD, message.sdp);
+
+        // Escaped twice inside an envelope.
+        codec.readEnvelope(new JSONObject().put("msg", description).put("error", "").toString(), message);
+        assertEquals(AWKWARD, message.sdp);
+    }
+
+    @Test
+    public void readsUnicodeEscapes() throws Exception {
+        codec.readMessage("{\"type\":\"answer\",\"sdp\":\"caf\\u00E9 \\ud83d\\ude00 \\/\\u0000\"}", message);
+        assertEquals("caf\u00e9 \ud83d\ude00 /\u0000", message.sdp);
+    }
+
+    @Test
+    public void roundTripsCompressedDescription() throws Exception {
+        String sdp = SdpFixtures.load(SdpFixtures.OFFER);
+        String json = codec.description(SignalingCodec.TYPE_OFFER, sdp, true);
+        assertTrue(json.contains("\"zsdp\""));
+        codec.readMessage(json, message);
+        assertEquals(sdp, message.sdp);
+    }
+
+    @Test
+    public void roundTripsCandidate() throws Exception {
+        String json = codec.candidate(CANDIDATE);
+        JSONObject parsed = new JSONObject(json);
+        assertEquals(SignalingCodec.TYPE_CANDIDATE, parsed.getString("type"));
+        assertEquals(0, parsed.getInt("label"));
+        assertEquals("audio", parsed.getString("id"));
+        assertEquals(CANDIDATE.sdp, parsed.getString("candidate"));
+
+        codec.readMessage(json, message);
+        assertEquals(SignalingCodec.TYPE_CANDIDATE, message.type);
+        assertEquals(1, message.candidates.size());
+        assertCandidate(CANDIDATE, message.candidates.get(0));
+    }
+
+    @Test
+    public void roundTripsRemovedCandidates() throws Exception {
+        String json = codec.removeCandidates(new IceCandidate[]{CANDIDATE, OTHER_CANDIDATE});
+        assertEquals(2, new JSONObject(json).getJSONArray("candidates").length());
+        codec.readMessage(json, message);
+        assertEquals(SignalingCodec.TYPE_REMOVE_CANDIDATES, message.type);
+        assertEquals(2, message.candidates.size());
+        assertCandidate(CANDIDATE, message.candidates.get(0));
+        assertCandidate(OTHER_CANDIDATE, message.candidates.get(1));
+
+        // Reused messages start over.
+        codec.readMessage(codec.removeCandidates(new IceCandidate[0]), message);
+        assertTrue(message.candidates.isEmpty());
+    }
+
+    @Test
+    public void skipsUnknownKeys() throws Exception {
+        codec.readMessage("{ \"extra\" : {\"a\":[1,-2.5e3,true,false,null,{}]}, \"type\":\"candidate\","
+                + "\"label\":1,\"id\":\"video\",\"candidate\":" + JSONObject.quote(OTHER_CANDIDATE.sdp) + "}", message);
+        assertCandidate(OTHER_CANDIDATE, message.candidates.get(0));
+    }
+
+    @Test
+    public void writesCommands() throws Exception {
+        JSONObject register = new JSONObject(codec.register("room\"1", "client\\1"));
+        assertEquals("register", register.getString("cmd"));
+        assertEquals("room\"1", register.getString("roomid"));
+        assertEquals("client\\1", register.getString("clientid"));
+
+        String candidate = codec.candidate(CANDIDATE);
+        JSONObject send = new JSONObject(codec.send(candidate));
+        assertEquals("send", send.getString("cmd"));
+        assertEquals(candidate, send.getString("msg"));
+
+        String description = codec.description(SignalingCodec.TYPE_OFFER, AWKWARD, false);
+        assertEquals(description, new JSONObject(codec.send(description)).getString("msg"));
+    }
+
+    @Test
+    public void rejectsMalformedMessages() {
+        String[] malformed = {
+                "",
+                "   ",
+                "[]",
+                "{",
+                "{null:1}",
+                "{1:2}",
+                "{type:\"bye\"}",
+                "{\"type\" \"bye\"}",
+                "{\"type\":\"bye\",}",
+                "{\"type\":\"bye\"",
+                "{\"type\":\"by",
+                "{\"type\":\"bye\\",
+                "{\"type\":\"\\u12\"}",
+                "{\"type\":\"\\uZZZZ\"}",
+                "{\"type\":\"offer\"}",
+                "{\"type\":\"answer\",\"sdp\":null}",
+                "{\"type\":\"answer\",\"zsdp\":\"not base64!\"}",
+                "{\"type\":\"candidate\",\"id\":\"0\",\"candidate\":\"c\"}",
+                "{\"type\":\"candidate\",\"label\":\"0\",\"id\":\"0\",\"candidate\":\"c\"}",
+                "{\"type\":\"candidate\",\"label\":99999999999,\"id\":\"0\",\"candidate\":\"c\"}",
+                "{\"type\":\"remove-candidates\",\"candidates\":[{\"label\":0}]}",
+                "{\"type\":\"remove-candidates\",\"candidates\":{}}",
+                "{\"type\":\"bye\",\"extra\":tru}",
+                "{\"type\":\"bye\",\"extra\":[1,}",
+        };
+        for (String text : malformed) {
+            try {
+                codec.readMessage(text, message);
+                fail("Accepted " + text);
+            } catch (JSONException expected) {
+                // Expected.
+            }
+        }
+    }
+
+    @Test
+    public void rejectsMalformedEnvelopes() {
+        String[] malformed = {
+                "{}",
+                "{null:\"x\"}",
+                "{\"error\":\"\"}",
+                "{\"msg\":null,\"error\":\"\"}",
+                "{\"msg\":\"{\\\"type\\\":\\\"offer\\\"}\",\"error\":\"\"}",
+                "{\"msg\":\"not json\",\"error\":\"\"}",
+        };
+        for (String text : malformed) {
+            try {
+                codec.readEnvelope(text, message);
+                fail("Accepted " + text);
+            } catch (JSONException expected) {
+                // Expected.
+            }
+        }
+    }
+
+    private static void assertCandidate(IceCandidate expected, IceCandidate actual) {
+        assertEquals(expected.sdpMid, actual.sdpMid);
+        assertEquals(expected.sdpMLineIndex, actual.sdpMLineIndex);
+        assertEquals(expected.sdp, actual.sdp);
+    }
+
+    private static String quote(String json) {
+        return "\"" + json.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+}
@@ -0,0 +1,181 @@
+package com.marcuschiu.meet.client;
+
+import com.marcuschiu.meet.client.util.CallMetrics;
+
+import org.junit.Test;
+import org.webrtc.IceCandidate;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SignalingSendQueueTest {
+    private final SignalingCodec codec = new SignalingCodec();
+    private final CallMetrics metrics = new CallMetrics();
+
+    private static IceCandidate candidate(int port) {
+        return new IceCandidate("0", 0, "candidate:1467250027 1 udp 2122260223 192.168.1.23 " + port + " typ host generation 0");
+    }
+
+    private String candidateMessage(int port) {
+        return codec.candidate(candidate(port));
+    }
+
+    private String offer(int version) {
+        return codec.description(SignalingCodec.TYPE_OFFER, "v=0\r\no=- 42 " + version + " IN IP4 127.0.0.1\r\n", false);
+    }
+
+    private String removal(int... ports) {
+        IceCandidate[] candidates = new IceCandidate[ports.length];
+        for (int i = 0; i < ports.length; i++) {
+            candidates[i] = candidate(ports[i]);
+        }
+        return codec.removeCandidates(candidates);
+    }
+
+    private long metricCount(String name) {
+        CallMetrics.Metric metric = metrics.snapshot().get(name);
+        return metric == null ? 0 : metric.count;
+    }
+
+    private static long bytes(String... messages) {
+        long bytes = 0;
+        for (String message : messages) {
+            bytes += 2L * message.length();
+        }
+        return bytes;
+    }
+
+    @Test
+    public void keepsOrder() {
+        SignalingSendQueue queue = new SignalingSendQueue(16, 1 << 20, metrics);
+        assertTrue(queue.offer(offer(1)));
+        assertTrue(queue.offer(candidateMessage(1)));
+        assertTrue(queue.offer(codec.videoPaused(true)));
+        assertTrue(queue.offer(candidateMessage(2)));
+        assertEquals(Arrays.asList(offer(1), candidateMessage(1), codec.videoPaused(true), candidateMessage(2)), queue.drain());
+        assertEquals(0, queue.size());
+        assertTrue(queue.drain().isEmpty());
+    }
+
+    @Test
+    public void descriptionReplacesQueuedOneAndItsCandidates() {
+        SignalingSendQueue queue = new SignalingSendQueue(16, 1 << 20, metrics);
+        // Gathered before the first description, kept.
+        queue.offer(candidateMessage(1));
+        queue.offer(offer(1));
+        queue.offer(candidateMessage(2));
+        queue.offer(codec.videoPaused(true));
+        queue.offer(candidateMessage(3));
+        assertTrue(queue.offer(offer(2)));
+        assertEquals(Arrays.asList(candidateMessage(1), codec.videoPaused(true), offer(2)), queue.drain());
+    }
+
+    @Test
+    public void removalCancelsQueuedCandidates() {
+        SignalingSendQueue queue = new SignalingSendQueue(16, 1 << 20, metrics);
+        queue.offer(candidateMessage(1));
+        queue.offer(candidateMessage(2));
+        queue.offer(candidateMessage(3));
+        // All still queued, the removal itself is not needed.
+        assertTrue(queue.offer(removal(1, 3)));
+        assertEquals(1, queue.size());
+
+        // One was already sent, the removal has to go out.
+        assertTrue(queue.offer(removal(2, 4)));
+        assertEquals(Collections.singletonList(removal(2, 4)), queue.drain());
+    }
+
+    @Test
+    public void byeClearsQueue() {
+        SignalingSendQueue queue = new SignalingSendQueue(16, 1 << 20, metrics);
+        queue.offer(offer(1));
+        queue.offer(candidateMessage(1));
+        queue.offer(codec.videoPaused(true));
+        assertTrue(queue.offer(codec.bye()));
+        assertEquals(codec.bye().length() * 2L, queue.getQueuedBytes());
+        assertEquals(Collections.singletonList(codec.bye()), queue.drain());
+    }
+
+    @Test
+    public void refusesCandidatesWhenFull() {
+        SignalingSendQueue queue = new SignalingSendQueue(2, 1 << 20, metrics);
+        assertTrue(queue.offer(candidateMessage(1)));
+        assertTrue(queue.offer(candidateMessage(2)));
+        assertFalse(queue.offer(candidateMessage(3)));
+        assertFalse(queue.offer(codec.videoPaused(true)));
+        assertEquals(2, metricCount("ws_queue_dropped"));
+        assertEquals(0, metricCount("ws_queue_evicted_candidates"));
+        assertEquals(Arrays.asList(candidateMessage(1), candidateMessage(2)), queue.drain());
+    }
+
+    @Test
+    public void descriptionEvictsOldestCandidates() {
+        SignalingSendQueue queue = new SignalingSendQueue(3, 1 << 20, metrics);
+        queue.offer(candidateMessage(1));
+        queue.offer(codec.videoPaused(true));
+        queue.offer(candidateMessage(2));
+        assertTrue(queue.offer(offer(1)));
+        assertEquals(1, metricCount("ws_queue_evicted_candidates"));
+        assertEquals(0, metricCount("ws_queue_dropped"));
+        assertEquals(Arrays.asList(codec.videoPaused(true), candidateMessage(2), offer(1)), queue.drain());
+    }
+
+    @Test
+    public void descriptionEvictsCandidatesToFitBytes() {
+        char[] padding = new char[candidateMessage(1).length()];
+        Arrays.fill(padding, 'x');
+        String offer = codec.description(SignalingCodec.TYPE_OFFER, "v=0\r\na=x-padding:" + new String(padding) + "\r\n", false);
+        // Larger than one candidate, smaller than two.
+        assertTrue(offer.length() > candidateMessage(1).length());
+        assertTrue(offer.length() <= 2 * candidateMessage(1).length());
+
+        SignalingSendQueue queue = new SignalingSendQueue(16, bytes(candidateMessage(1), candidateMessage(2), candidateMessage(3)), metrics);
+        queue.offer(candidateMessage(1));
+        queue.offer(candidateMessage(2));
+        queue.offer(candidateMessage(3));
+        assertTrue(queue.offer(offer));
+        assertEquals(2, metricCount("ws_queue_evicted_candidates"));
+        assertEquals(Arrays.asList(candidateMessage(3), offer), queue.drain());
+    }
+
+    @Test
+    public void dropsDescriptionThatCannotFit() {
+        SignalingSendQueue queue = new SignalingSendQueue(16, bytes(offer(1)) - 2, metrics);
+        queue.offer(codec.videoPaused(true));
+        assertFalse(queue.offer(offer(1)));
+        assertEquals(1, metricCount("ws_queue_dropped"));
+        assertEquals(Collections.singletonList(codec.videoPaused(true)), queue.drain());
+    }
+
+    @Test
+    public void countsTwoBytesPerChar() {
+        SignalingSendQueue queue = new SignalingSendQueue(16, 1 << 20, metrics);
+        queue.offer(offer(1));
+        queue.offer(candidateMessage(1));
+        queue.offer(candidateMessage(2));
+        assertEquals(bytes(offer(1), candidateMessage(1), candidateMessage(2)), queue.getQueuedBytes());
+
+        queue.offer(removal(1));
+        assertEquals(bytes(offer(1), candidateMessage(2)), queue.getQueuedBytes());
+        queue.offer(offer(2));
+        assertEquals(bytes(offer(2)), queue.getQueuedBytes());
+        queue.drain();
+        assertEquals(0, queue.getQueuedBytes());
+    }
+
+    @Test
+    public void queuesUnparsableMessagesAsIs() {
+        SignalingSendQueue queue = new SignalingSendQueue(16, 1 << 20, metrics);
+        assertTrue(queue.offer("{not json"));
+        assertTrue(queue.offer(candidateMessage(1)));
+        // A removal that cannot be parsed cancels nothing.
+        assertTrue(queue.offer("{\"type\":\"remove-candidates\",\"candidates\":["));
+        assertEquals(3, queue.size());
+        assertNull(metrics.snapshot().get("ws_queue_dropped"));
+    }
+}
@@ -0,0 +1,313 @@
+package com.marcuschiu.meet.client;
+
+import com.marcuschiu.meet.client.util.AsyncHttpURLConnection;
+import com.marcuschiu.meet.client.util.CallMetrics;
+import com.marcuschiu.meet.client.ws.NioWebSocketTransport;
+import com.marcuschiu.meet.client.ws.ScriptedWebSocketServer;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.webrtc.IceCandidate;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs WebSocketChannelClient against a local server that drops the
+ * connection, with backoff shortened to milliseconds.
+ */
+public class WebSocketChannelClientTest {
+    private static final int FIN = 0x80;
+    private static final int TEXT = 0x1;
+    private static final int PING = 0x9;
+    private static final int PONG = 0xa;
+    private static final String ROOM = "room1";
+    private static final String CLIENT = "client1";
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    private final CallMetrics metrics = new CallMetrics();
+    private final SignalingCodec codec = new SignalingCodec();
+    private final BlockingQueue<String> events = new LinkedBlockingQueue<>();
+    private final List<String> httpRequests = Collections.synchronizedList(new ArrayList<>());
+    // Transports in creation order, with the calls made on them.
+    private final List<List<String>> transports = Collections.synchronizedList(new ArrayList<>());
+    private ScriptedWebSocketServer server;
+    private WebSocketChannelClient client;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new ScriptedWebSocketServer();
+        WebSocketChannelClient.Config config = new WebSocketChannelClient.Config();
+        config.reconnectBaseDelayMs = 20;
+        config.reconnectMaxDelayMs = 80;
+        config.reconnectMaxAttempts = 3;
+        WebSocketTransport.Factory factory = () -> {
+            List<String> calls = Collections.synchronizedList(new ArrayList<>());
+            transports.add(calls);
+            return new TrackingTransport(new NioWebSocketTransport(), calls);
+        };
+        AsyncHttpURLConnection.Sender httpSender = (method, url, message, httpEvents) -> {
+            httpRequests.add(method + " " + url);
+            httpEvents.onHttpComplete("");
+        };
+        client = new WebSocketChannelClient(executor, config, new WebSocketChannelClient.WebSocketChannelEvents() {
+            @Override
+            public void onWebSocketMessage(String message) {
+                events.add("message:" + message);
+            }
+
+            @Override
+            public void onWebSocketClose() {
+                events.add("close");
+            }
+
+            @Override
+            public void onWebSocketError(String description) {
+                events.add("error:" + description);
+            }
+        }, metrics, factory, httpSender);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        CompletableFuture<Void> done = call(() -> client.disconnect());
+        // Ends the closing handshake the server does not answer.
+        server.close();
+        done.get(5, TimeUnit.SECONDS);
+        executor.shutdownNow();
+    }
+
+    private static class TrackingTransport implements WebSocketTransport {
+        private final WebSocketTransport transport;
+        private final List<String> calls;
+
+        TrackingTransport(WebSocketTransport transport, List<String> calls) {
+            this.transport = transport;
+            this.calls = calls;
+        }
+
+        @Override
+        public void connect(URI uri, Observer observer) throws IOException {
+            calls.add("connect");
+            transport.connect(uri, observer);
+        }
+
+        @Override
+        public void sendTextMessage(String message) {
+            transport.sendTextMessage(message);
+        }
+
+        @Override
+        public void sendPing(byte[] payload) {
+            calls.add("ping");
+            transport.sendPing(payload);
+        }
+
+        @Override
+        public void disconnect() {
+            calls.add("disconnect");
+            transport.disconnect();
+        }
+    }
+
+    private <T> T call(Callable<T> task) throws Exception {
+        return executor.submit(task).get(5, TimeUnit.SECONDS);
+    }
+
+    private void run(Runnable task) throws Exception {
+        executor.submit(task).get(5, TimeUnit.SECONDS);
+    }
+
+    private void waitFor(Callable<Boolean> condition) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!call(condition)) {
+            assertTrue("Timed out", System.nanoTime() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    private static String candidate(int port) {
+        return "candidate:1467250027 1 udp 2122260223 192.168.1.23 " + port + " typ host generation 0";
+    }
+
+    private String candidateMessage(int port) {
+        return codec.candidate(new IceCandidate("0", 0, candidate(port)));
+    }
+
+    private String offer(int version) {
+        return codec.description(SignalingCodec.TYPE_OFFER, "v=0\r\no=- 42 " + version + " IN IP4 127.0.0.1\r\n", false);
+    }
+
+    private void acceptAndExpectRegister() throws Exception {
+        server.accept(null);
+        JSONObject register = new JSONObject(server.readFrame().text());
+        assertEquals("register", register.getString("cmd"));
+        assertEquals(ROOM, register.getString("roomid"));
+        assertEquals(CLIENT, register.getString("clientid"));
+    }
+
+    private void connectAndRegister() throws Exception {
+        run(() -> {
+            client.connect(server.uri("ws").toString(), "http://localhost/post");
+            client.register(ROOM, CLIENT);
+        });
+        acceptAndExpectRegister();
+        waitFor(() -> client.state == WebSocketChannelClient.WebSocketConnectionState.REGISTERED);
+    }
+
+    // Reads a send command and returns the message it carries.
+    private String readSent() throws Exception {
+        ScriptedWebSocketServer.Frame frame = server.readFrame();
+        assertEquals(TEXT, frame.opcode);
+        JSONObject envelope = new JSONObject(frame.text());
+        assertEquals("send", envelope.getString("cmd"));
+        return envelope.getString("msg");
+    }
+
+    private ScriptedWebSocketServer.Frame readPing() throws Exception {
+        ScriptedWebSocketServer.Frame frame = server.readFrame();
+        assertEquals(PING, frame.opcode);
+        return frame;
+    }
+
+    private void dropAndWaitForReconnecting() throws Exception {
+        server.drop();
+        waitFor(() -> client.state == WebSocketChannelClient.WebSocketConnectionState.RECONNECTING);
+    }
+
+    private CallMetrics.Metric metric(String name) {
+        return metrics.snapshot().get(name);
+    }
+
+    @Test
+    public void pingsOncePerBatch() throws Exception {
+        connectAndRegister();
+        run(() -> {
+            client.send(candidateMessage(1));
+            client.send(candidateMessage(2));
+        });
+        assertEquals(candidateMessage(1), readSent());
+        assertEquals(candidateMessage(2), readSent());
+        ScriptedWebSocketServer.Frame ping = readPing();
+        assertEquals(8, ping.payload.length);
+        assertEquals(2, (int) call(() -> client.getUnackedCount()));
+
+        server.send(FIN | PONG, ping.payload);
+        waitFor(() -> client.getUnackedCount() == 0);
+        assertEquals(Collections.singletonList("ping"), transports.get(0).subList(1, transports.get(0).size()));
+    }
+
+    @Test
+    public void reRegistersAndResendsUnacknowledgedMessages() throws Exception {
+        connectAndRegister();
+        run(() -> client.send(candidateMessage(1)));
+        assertEquals(candidateMessage(1), readSent());
+        server.send(FIN | PONG, readPing().payload);
+        waitFor(() -> client.getUnackedCount() == 0);
+
+        // Sent, but the pong never comes.
+        run(() -> client.send(candidateMessage(2)));
+        assertEquals(candidateMessage(2), readSent());
+        readPing();
+        dropAndWaitForReconnecting();
+        run(() -> client.send(candidateMessage(3)));
+
+        // Same IDs, then the unacknowledged message before the queued one.
+        acceptAndExpectRegister();
+        assertEquals(candidateMessage(2), readSent());
+        assertEquals(candidateMessage(3), readSent());
+        readPing();
+        waitFor(() -> client.state == WebSocketChannelClient.WebSocketConnectionState.REGISTERED);
+
+        assertEquals(2, transports.size());
+        assertEquals(1, metric("ws_reconnect_attempts").count);
+        assertEquals(1, metric("ws_reconnects").count);
+        assertEquals(1, metric("ws_resent_messages").last);
+        CallMetrics.Metric downtime = metric("ws_downtime_ms");
+        assertEquals(1, downtime.count);
+        // At least half the first backoff step.
+        assertTrue("downtime " + downtime.last, downtime.last >= 10);
+        assertTrue(events.isEmpty());
+    }
+
+    @Test
+    public void resentDescriptionIsCoalesced() throws Exception {
+        connectAndRegister();
+        run(() -> {
+            client.send(offer(1));
+            client.send(candidateMessage(1));
+        });
+        readSent();
+        readSent();
+        readPing();
+        dropAndWaitForReconnecting();
+        // A newer offer replaces the lost one and its candidate.
+        run(() -> client.send(offer(2)));
+
+        acceptAndExpectRegister();
+        assertEquals(offer(2), readSent());
+        readPing();
+        assertEquals(2, metric("ws_resent_messages").last);
+    }
+
+    @Test
+    public void givesUpAfterMaxAttempts() throws Exception {
+        connectAndRegister();
+        // Nothing listens any more, every attempt is refused.
+        server.close();
+        assertEquals("close", events.poll(5, TimeUnit.SECONDS));
+        assertEquals(WebSocketChannelClient.WebSocketConnectionState.CLOSED, call(() -> client.state));
+
+        assertEquals(3, metric("ws_reconnect_attempts").count);
+        assertEquals(1, metric("ws_reconnect_failures").count);
+        assertEquals(null, metric("ws_reconnects"));
+        // The first transport plus one per attempt.
+        assertEquals(4, transports.size());
+
+        run(() -> client.send(candidateMessage(1)));
+        assertTrue(events.isEmpty());
+    }
+
+    @Test
+    public void disconnectWhileReconnectingClosesAttemptInFlight() throws Exception {
+        connectAndRegister();
+        dropAndWaitForReconnecting();
+        // The attempt connects, but the server never answers its upgrade.
+        waitFor(() -> transports.size() == 2);
+
+        CompletableFuture<Void> done = call(() -> client.disconnect());
+        done.get(5, TimeUnit.SECONDS);
+        assertTrue(transports.get(1).contains("disconnect"));
+        assertEquals(Collections.singletonList("DELETE http://localhost/post/" + ROOM + "/" + CLIENT), httpRequests);
+        assertEquals(WebSocketChannelClient.WebSocketConnectionState.CLOSED, call(() -> client.state));
+        assertFalse(events.contains("close"));
+    }
+
+    @Test
+    public void closesWithoutRoom() throws Exception {
+        run(() -> client.connect(server.uri("ws").toString(), "http://localhost/post"));
+        server.accept(null);
+        waitFor(() -> client.state == WebSocketChannelClient.WebSocketConnectionState.CONNECTED);
+        server.drop();
+        assertNotNull(events.poll(5, TimeUnit.SECONDS));
+        assertEquals(1, transports.size());
+        assertEquals(null, metric("ws_reconnect_attempts"));
+    }
+}
@@ -0,0 +1,96 @@
+package com.marcuschiu.meet.client.cpu;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TaskStatTest {
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final TaskStat stat = new TaskStat();
+
+    private boolean read(String name) throws Exception {
+        File file = new File(getClass().getResource("/proc/" + name).toURI());
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            return stat.read(in);
+        }
+    }
+
+    private boolean readText(String text) throws Exception {
+        File file = folder.newFile();
+        Files.write(file.toPath(), text.getBytes(StandardCharsets.UTF_8));
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            return stat.read(in);
+        }
+    }
+
+    @Test
+    public void readsProcessStat() throws Exception {
+        assertTrue(read("4242/stat"));
+        assertEquals("marcuschiu.meet", stat.name());
+        assertEquals(480, stat.utimeTicks);
+        assertEquals(120, stat.stimeTicks);
+        assertEquals(600, stat.totalTicks());
+    }
+
+    @Test
+    public void readsNameWithSpaces() throws Exception {
+        assertTrue(read("4242/task/4252/stat"));
+        assertEquals("Jit thread pool", stat.name());
+        assertEquals(30, stat.utimeTicks);
+        assertEquals(5, stat.stimeTicks);
+    }
+
+    @Test
+    public void readsNameWithParentheses() throws Exception {
+        assertTrue(read("4242/task/4253/stat"));
+        assertEquals("a) b (c)", stat.name());
+        assertEquals(10, stat.utimeTicks);
+        assertEquals(0, stat.stimeTicks);
+    }
+
+    @Test
+    public void rereadsOpenFileInPlace() throws Exception {
+        File file = folder.newFile();
+        File before = new File(getClass().getResource("/proc/4242/task/4250/stat").toURI());
+        File after = new File(getClass().getResource("/proc/4242-later/task/4250/stat").toURI());
+        Files.write(file.toPath(), Files.readAllBytes(before.toPath()));
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            assertTrue(stat.read(in));
+            long first = stat.totalTicks();
+            // The kernel regenerates the content on every read from offset 0.
+            Files.write(file.toPath(), Files.readAllBytes(after.toPath()));
+            assertTrue(stat.read(in));
+            assertEquals("PCClient", stat.name());
+            assertEquals(70, stat.totalTicks() - first);
+        }
+    }
+
+    @Test
+    public void rejectsMalformedContent() throws Exception {
+        assertFalse(readText(""));
+        assertFalse(readText("4250 PCClient S 612 612 0 0 -1 1077952832 700 0 10 0 100 20\n"));
+        assertFalse(readText("4250 (PCClient S 612 612 0 0 -1 1077952832 700 0 10 0 100 20\n"));
+        // Cut off before stime.
+        assertFalse(readText("4250 (PCClient) S 612 612 0 0 -1 1077952832 700 0 10 0 100"));
+        assertFalse(readText("4250 (PCClient) S 612 612 0 0 -1 1077952832 700 0 10 0 x 20\n"));
+    }
+
+    @Test
+    public void readsMinimalLine() throws Exception {
+        assertTrue(readText("1 () R 0 0 0 0 0 0 0 0 0 0 12345678901 1"));
+        assertEquals("", stat.name());
+        assertEquals(12345678901L, stat.utimeTicks);
+        assertEquals(1, stat.stimeTicks);
+    }
+}
@@ -0,0 +1,115 @@
+package com.marcuschiu.meet.client.cpu;
+
+import com.marcuschiu.meet.client.util.CallMetrics;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Samples the fixture process in src/test/resources/proc/4242, then again
+ * after overwriting it with proc/4242-later: PCClient, signaling_threa and
+ * two threads of no group used CPU, IncomingVideoSt exited and
+ * DecodingThread started.
+ */
+public class ThreadCpuSamplerTest {
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final CallMetrics metrics = new CallMetrics();
+    private File process;
+    private ThreadCpuSampler sampler;
+
+    @Before
+    public void setUp() throws Exception {
+        process = new File(folder.getRoot(), "4242");
+        copy(fixture("4242"), process);
+        sampler = new ThreadCpuSampler(process, new ThreadCpuSampler.Config(), metrics);
+    }
+
+    @Test
+    public void firstSampleIsBaseline() {
+        sampler.sample();
+        assertTrue(metrics.snapshot().isEmpty());
+    }
+
+    @Test
+    public void recordsDeltasByGroup() throws Exception {
+        sampler.sample();
+        update(fixture("4242-later"), process);
+        sampler.sample();
+
+        Map<String, CallMetrics.Metric> snapshot = metrics.snapshot();
+        // 100 ticks per second.
+        assertEquals(700, snapshot.get("cpu_pc_client_ms").sum);
+        assertEquals(400, snapshot.get("cpu_webrtc_worker_ms").sum);
+        assertEquals(300, snapshot.get("cpu_main_ms").sum);
+        assertEquals(60, snapshot.get("cpu_other_ms").sum);
+        // All of the new thread's time, none of the exited one's.
+        assertEquals(100, snapshot.get("cpu_decoder_ms").sum);
+        // Includes what the exited thread used before it was gone.
+        assertEquals(1640, snapshot.get("cpu_process_ms").sum);
+        assertFalse(snapshot.containsKey("cpu_encoder_ms"));
+    }
+
+    @Test
+    public void idleIntervalRecordsProcessOnly() throws Exception {
+        sampler.sample();
+        sampler.sample();
+
+        Map<String, CallMetrics.Metric> snapshot = metrics.snapshot();
+        assertEquals(1, snapshot.size());
+        assertEquals(0, snapshot.get("cpu_process_ms").sum);
+    }
+
+    @Test
+    public void skipsMalformedThread() throws Exception {
+        Files.write(new File(process, "task/4250/stat").toPath(), "4250 PCClient".getBytes());
+        sampler.sample();
+        update(fixture("4242-later"), process);
+        sampler.sample();
+
+        // Opened on the second sample, all its ticks count.
+        assertEquals(1900, metrics.snapshot().get("cpu_pc_client_ms").sum);
+        assertEquals(400, metrics.snapshot().get("cpu_webrtc_worker_ms").sum);
+    }
+
+    private File fixture(String name) throws Exception {
+        return new File(getClass().getResource("/proc/" + name).toURI());
+    }
+
+    private static void copy(File from, File to) throws IOException {
+        if (from.isDirectory()) {
+            to.mkdirs();
+            for (String child : from.list()) {
+                copy(new File(from, child), new File(to, child));
+            }
+        } else {
+            Files.write(to.toPath(), Files.readAllBytes(from.toPath()));
+        }
+    }
+
+    // Rewrites files in place, the sampler keeps them open, and removes
+    // threads that exited.
+    private static void update(File from, File to) throws IOException {
+        copy(from, to);
+        File tasks = new File(to, "task");
+        for (String tid : tasks.list()) {
+            if (!new File(from, "task/" + tid).exists()) {
+                File task = new File(tasks, tid);
+                new File(task, "stat").delete();
+                task.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,374 @@
+package com.marcuschiu.meet.client.data;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DataChannelTransportTest {
+    private static final int HEADER_SIZE = 13;
+    private static final int CHUNK_PAYLOAD = DataChannelTransport.CHUNK_SIZE - HEADER_SIZE;
+
+    private static class RecordingListener implements DataChannelTransport.Listener {
+        final BlockingQueue<Object[]> events = new LinkedBlockingQueue<>();
+
+        @Override
+        public void onMessage(String message) {
+            events.add(new Object[]{"message", message});
+        }
+
+        @Override
+        public void onData(int transferId, ByteBuffer data) {
+            byte[] bytes = new byte[data.remaining()];
+            data.get(bytes);
+            events.add(new Object[]{"data", transferId, bytes});
+        }
+
+        @Override
+        public void onTransferProgress(int transferId, long bytesSent, long totalBytes, long bytesPerSecond) {
+            events.add(new Object[]{"progress", transferId, bytesSent, totalBytes});
+        }
+
+        @Override
+        public void onTransferComplete(int transferId, long totalBytes, long bytesPerSecond) {
+            events.add(new Object[]{"complete", transferId, totalBytes});
+        }
+
+        @Override
+        public void onTransferFailed(int transferId, String reason) {
+            events.add(new Object[]{"failed", transferId, reason});
+        }
+
+        Object[] next(String type) throws InterruptedException {
+            while (true) {
+                Object[] event = events.poll(5, TimeUnit.SECONDS);
+                assertNotNull("No " + type, event);
+                if (event[0].equals(type)) {
+                    return event;
+                }
+            }
+        }
+    }
+
+    private final ScheduledExecutorService senderExecutor = Executors.newSingleThreadScheduledExecutor();
+    private final ScheduledExecutorService receiverExecutor = Executors.newSingleThreadScheduledExecutor();
+    private final DataChannelTransport.Config config = new DataChannelTransport.Config();
+    private final RecordingListener senderEvents = new RecordingListener();
+    private final RecordingListener receiverEvents = new RecordingListener();
+    private InMemoryMessageChannel local;
+    private InMemoryMessageChannel remote;
+    private DataChannelTransport sender;
+    private DataChannelTransport receiver;
+
+    @Before
+    public void setUp() {
+        config.sendRetryDelayMs = 10;
+        InMemoryMessageChannel[] channels = InMemoryMessageChannel.pair();
+        local = channels[0];
+        remote = channels[1];
+    }
+
+    private void connect() throws Exception {
+        sender = new DataChannelTransport(senderExecutor, config);
+        receiver = new DataChannelTransport(receiverExecutor, config);
+        sender.setListener(senderEvents);
+        receiver.setListener(receiverEvents);
+        sender.attach(local);
+        receiver.attach(remote);
+        // Acks and rejects reach the sender right away.
+        remote.setAutoDeliver(true);
+        settle();
+        local.open();
+    }
+
+    @After
+    public void tearDown() {
+        senderExecutor.shutdownNow();
+        receiverExecutor.shutdownNow();
+    }
+
+    // Waits for what both transports have been posted so far.
+    private void settle() throws Exception {
+        senderExecutor.submit(() -> {
+        }).get(5, TimeUnit.SECONDS);
+        receiverExecutor.submit(() -> {
+        }).get(5, TimeUnit.SECONDS);
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static ByteBuffer chunk(int kind, int transferId, int totalLength, int offset, int payloadLength) {
+        ByteBuffer chunk = ByteBuffer.allocate(HEADER_SIZE + payloadLength);
+        chunk.put((byte) kind).putInt(transferId).putInt(totalLength).putInt(offset);
+        chunk.position(chunk.limit());
+        chunk.flip();
+        return chunk;
+    }
+
+    @Test
+    public void splitsIntoChunks() throws Exception {
+        connect();
+        int length = 3 * CHUNK_PAYLOAD + 100;
+        int id = sender.sendData(ByteBuffer.wrap(randomBytes(length)));
+        settle();
+        // Complete once the receiver acknowledged it.
+        assertNull(senderEvents.events.poll());
+        local.deliver(0);
+        assertEquals(length, ((Number) senderEvents.next("complete")[2]).intValue());
+
+        assertEquals(4, local.sentCount());
+        for (int i = 0; i < 4; i++) {
+            ByteBuffer chunk = local.sent.get(i);
+            assertTrue(chunk.remaining() <= DataChannelTransport.CHUNK_SIZE);
+            assertEquals(1, chunk.get());
+            assertEquals(id, chunk.getInt());
+            assertEquals(length, chunk.getInt());
+            assertEquals(i * CHUNK_PAYLOAD, chunk.getInt());
+            assertEquals(i < 3 ? CHUNK_PAYLOAD : 100, chunk.remaining());
+        }
+    }
+
+    @Test
+    public void reassemblesMessagesAndData() throws Exception {
+        local.setAutoDeliver(true);
+        connect();
+        // Three-byte characters end up split across chunks.
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            text.append('€');
+        }
+        byte[] bytes = randomBytes(100000);
+        sender.sendMessage(text.toString());
+        int id = sender.sendData(ByteBuffer.wrap(bytes));
+        sender.sendMessage("");
+
+        assertEquals(text.toString(), receiverEvents.next("message")[1]);
+        Object[] data = receiverEvents.next("data");
+        assertEquals(id, data[1]);
+        assertArrayEquals(bytes, (byte[]) data[2]);
+        assertEquals("", receiverEvents.next("message")[1]);
+    }
+
+    @Test
+    public void pausesAtHighWaterMarkAndResumesBelowLow() throws Exception {
+        connect();
+        int length = 3 * 1024 * 1024;
+        byte[] bytes = randomBytes(length);
+        int id = sender.sendData(ByteBuffer.wrap(bytes));
+        settle();
+
+        // Stops at the first chunk that reaches the high water mark.
+        long buffered = local.bufferedAmount();
+        assertTrue(buffered >= DataChannelTransport.HIGH_WATER_MARK);
+        assertTrue(buffered < DataChannelTransport.HIGH_WATER_MARK + DataChannelTransport.CHUNK_SIZE);
+        Object[] progress = senderEvents.next("progress");
+        assertEquals(id, progress[1]);
+        assertEquals(buffered - local.sentCount() * HEADER_SIZE, ((Number) progress[2]).longValue());
+
+        // Drained, but not below the low water mark.
+        int sent = local.sentCount();
+        local.deliver(2 * DataChannelTransport.LOW_WATER_MARK);
+        settle();
+        assertEquals(sent, local.sentCount());
+
+        local.deliver(DataChannelTransport.LOW_WATER_MARK);
+        settle();
+        assertTrue(local.sentCount() > sent);
+        assertTrue(local.bufferedAmount() >= DataChannelTransport.HIGH_WATER_MARK);
+
+        while (!hasComplete()) {
+            local.deliver(0);
+            settle();
+        }
+        Object[] data = receiverEvents.next("data");
+        assertArrayEquals(bytes, (byte[]) data[2]);
+    }
+
+    private boolean hasComplete() {
+        for (Object[] event : senderEvents.events) {
+            if (event[0].equals("complete")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Test
+    public void reportsProgressWhileSending() throws Exception {
+        config.progressIntervalMs = 0;
+        local.setAutoDeliver(true);
+        connect();
+        int length = 5 * CHUNK_PAYLOAD;
+        int id = sender.sendData(ByteBuffer.wrap(randomBytes(length)));
+        for (int i = 1; i < 5; i++) {
+            Object[] progress = senderEvents.next("progress");
+            assertEquals(id, progress[1]);
+            assertEquals((long) i * CHUNK_PAYLOAD, progress[2]);
+            assertEquals((long) length, progress[3]);
+        }
+        senderEvents.next("complete");
+    }
+
+    @Test
+    public void retriesRefusedSendWithoutBufferedAmountChange() throws Exception {
+        local.setAutoDeliver(true);
+        connect();
+        local.refuseSends(3);
+        byte[] bytes = randomBytes(2 * CHUNK_PAYLOAD);
+        sender.sendData(ByteBuffer.wrap(bytes));
+        senderEvents.next("complete");
+        assertArrayEquals(bytes, (byte[]) receiverEvents.next("data")[2]);
+    }
+
+    @Test
+    public void failsTransferAfterRepeatedRefusals() throws Exception {
+        config.maxSendAttempts = 3;
+        local.setAutoDeliver(true);
+        connect();
+        local.refuseSends(3);
+        int failed = sender.sendData(ByteBuffer.wrap(randomBytes(100)));
+        int next = sender.sendMessage("next");
+        assertEquals(failed, senderEvents.next("failed")[1]);
+        assertEquals(next, senderEvents.next("complete")[1]);
+        assertEquals("next", receiverEvents.next("message")[1]);
+    }
+
+    @Test
+    public void abortReleasesPartialInboundTransfer() throws Exception {
+        config.maxSendAttempts = 3;
+        config.maxInboundTransfers = 1;
+        connect();
+        int failed = sender.sendData(ByteBuffer.wrap(randomBytes(3 * 1024 * 1024)));
+        settle();
+        // The receiver reserved the transfer, then the channel refuses the rest.
+        local.refuseSends(3);
+        local.deliver(0);
+        assertEquals(failed, senderEvents.next("failed")[1]);
+        settle();
+        local.deliver(0);
+
+        Object[] aborted = receiverEvents.next("failed");
+        assertEquals(failed, aborted[1]);
+        assertEquals("Aborted by sender", aborted[2]);
+        ByteBuffer abort = local.sent.get(local.sentCount() - 1);
+        assertEquals(2, abort.get(0));
+        assertEquals(failed, abort.getInt(1));
+
+        // The slot is free again.
+        local.setAutoDeliver(true);
+        int next = sender.sendMessage("next");
+        assertEquals("next", receiverEvents.next("message")[1]);
+        assertEquals(next, senderEvents.next("complete")[1]);
+    }
+
+    @Test
+    public void expiresIdleInboundTransfers() throws Exception {
+        config.maxInboundTransfers = 1;
+        config.inboundIdleTimeoutMs = 50;
+        connect();
+        receiver.onMessage(chunk(1, 5, 100, 0, 10), true);
+        Object[] expired = receiverEvents.next("failed");
+        assertEquals(5, expired[1]);
+        assertEquals("Inbound transfer timed out", expired[2]);
+        receiver.onMessage(chunk(0, 6, 10, 0, 10), true);
+        assertEquals(new String(new byte[10]), receiverEvents.next("message")[1]);
+    }
+
+    @Test
+    public void forgetsRejectedTransferWithoutLastChunk() throws Exception {
+        config.maxInboundBytes = 1000;
+        config.inboundIdleTimeoutMs = 50;
+        connect();
+        receiver.onMessage(chunk(1, 7, 2000, 0, 10), true);
+        assertEquals(7, receiverEvents.next("failed")[1]);
+        receiver.onMessage(chunk(1, 7, 2000, 10, 10), true);
+        settle();
+        assertNull(receiverEvents.events.poll());
+
+        // Once forgotten, a stray chunk counts as a new transfer again.
+        Thread.sleep(150);
+        receiver.onMessage(chunk(1, 7, 2000, 20, 10), true);
+        assertEquals(7, receiverEvents.next("failed")[1]);
+    }
+
+    @Test
+    public void reportsRejectedTransferAsFailedOnSender() throws Exception {
+        config.maxInboundBytes = 1000;
+        local.setAutoDeliver(true);
+        connect();
+        int rejected = sender.sendData(ByteBuffer.wrap(randomBytes(3 * CHUNK_PAYLOAD)));
+        int small = sender.sendMessage("small");
+
+        // Never reported complete.
+        Object[] failed = senderEvents.events.poll(5, TimeUnit.SECONDS);
+        assertEquals("failed", failed[0]);
+        assertEquals(rejected, failed[1]);
+        assertTrue(((String) failed[2]).startsWith("Rejected by receiver"));
+        assertEquals(small, senderEvents.next("complete")[1]);
+        assertEquals("small", receiverEvents.next("message")[1]);
+    }
+
+    @Test
+    public void rejectsOversizedTransferBeforeAllocating() throws Exception {
+        config.maxInboundBytes = 1024 * 1024;
+        connect();
+        // Declares 64 MB, sends 16 KB.
+        receiver.onMessage(chunk(1, 7, 64 * 1024 * 1024, 0, CHUNK_PAYLOAD), true);
+        Object[] failed = receiverEvents.next("failed");
+        assertEquals(7, failed[1]);
+        // Later chunks of the rejected transfer are dropped quietly.
+        receiver.onMessage(chunk(1, 7, 64 * 1024 * 1024, CHUNK_PAYLOAD, CHUNK_PAYLOAD), true);
+        settle();
+        assertNull(receiverEvents.events.poll());
+
+        local.setAutoDeliver(true);
+        sender.sendMessage("still works");
+        assertEquals("still works", receiverEvents.next("message")[1]);
+    }
+
+    @Test
+    public void limitsConcurrentInboundTransfers() throws Exception {
+        connect();
+        for (int id = 0; id < config.maxInboundTransfers; id++) {
+            receiver.onMessage(chunk(0, id, 20, 0, 10), true);
+        }
+        receiver.onMessage(chunk(0, 99, 20, 0, 10), true);
+        assertEquals(99, receiverEvents.next("failed")[1]);
+
+        // Completing one makes room for another.
+        receiver.onMessage(chunk(0, 0, 20, 10, 10), true);
+        receiverEvents.next("message");
+        receiver.onMessage(chunk(0, 100, 10, 0, 10), true);
+        assertEquals(new String(new byte[10]), receiverEvents.next("message")[1]);
+    }
+
+    @Test
+    public void limitsInboundBytesOutstanding() throws Exception {
+        config.maxInboundBytes = 100000;
+        connect();
+        receiver.onMessage(chunk(1, 1, 60000, 0, 10), true);
+        receiver.onMessage(chunk(1, 2, 60000, 0, 10), true);
+        assertEquals(2, receiverEvents.next("failed")[1]);
+        // What remains fits.
+        receiver.onMessage(chunk(1, 3, 40000, 0, 10), true);
+        settle();
+        assertNull(receiverEvents.events.poll());
+    }
+}
@@ -0,0 +1,146 @@
+package com.marcuschiu.meet.client.data;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One end of an in-memory channel pair. Sent messages stay buffered, and
+ * count in bufferedAmount(), until the test delivers them to the peer with
+ * deliver(), unless autoDeliver is set. All calls come from the test or the
+ * transport executor, so methods are synchronized.
+ */
+class InMemoryMessageChannel implements MessageChannel {
+    private final ArrayDeque<ByteBuffer> buffered = new ArrayDeque<>();
+    // Copies of everything sent, for inspecting chunks.
+    final List<ByteBuffer> sent = new ArrayList<>();
+    private InMemoryMessageChannel peer;
+    private Observer observer;
+    private boolean open;
+    private long bufferedAmount;
+    private int refusals;
+    private boolean autoDeliver;
+
+    static InMemoryMessageChannel[] pair() {
+        InMemoryMessageChannel a = new InMemoryMessageChannel();
+        InMemoryMessageChannel b = new InMemoryMessageChannel();
+        a.peer = b;
+        b.peer = a;
+        return new InMemoryMessageChannel[]{a, b};
+    }
+
+    void open() {
+        Observer a;
+        Observer b;
+        synchronized (this) {
+            open = true;
+            peer.open = true;
+            a = observer;
+            b = peer.observer;
+        }
+        a.onOpen();
+        b.onOpen();
+    }
+
+    /**
+     * Makes the next |count| sends fail without a buffered amount change.
+     */
+    synchronized void refuseSends(int count) {
+        refusals = count;
+    }
+
+    synchronized void setAutoDeliver(boolean autoDeliver) {
+        this.autoDeliver = autoDeliver;
+    }
+
+    /**
+     * Delivers buffered messages to the peer until at most |keepBytes|
+     * remain buffered, then reports the new amount.
+     */
+    void deliver(long keepBytes) {
+        Observer receiver;
+        List<ByteBuffer> messages = new ArrayList<>();
+        long amount;
+        synchronized (this) {
+            while (!buffered.isEmpty() && bufferedAmount > keepBytes) {
+                ByteBuffer message = buffered.poll();
+                bufferedAmount -= message.remaining();
+                messages.add(message);
+            }
+            amount = bufferedAmount;
+            receiver = peer.observer;
+        }
+        for (ByteBuffer message : messages) {
+            receiver.onMessage(message, true);
+        }
+        Observer observer;
+        synchronized (this) {
+            observer = this.observer;
+        }
+        observer.onBufferedAmountChange(amount);
+    }
+
+    synchronized int sentCount() {
+        return sent.size();
+    }
+
+    @Override
+    public synchronized void setObserver(Observer observer) {
+        this.observer = observer;
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public synchronized long bufferedAmount() {
+        return bufferedAmount;
+    }
+
+    @Override
+    public boolean send(ByteBuffer data, boolean binary) {
+        ByteBuffer copy = ByteBuffer.allocate(data.remaining());
+        copy.put(data.duplicate()).flip();
+        synchronized (this) {
+            if (!open) {
+                return false;
+            }
+            if (refusals > 0) {
+                refusals--;
+                return false;
+            }
+            sent.add(copy.duplicate());
+            buffered.add(copy);
+            bufferedAmount += copy.remaining();
+            if (!autoDeliver) {
+                return true;
+            }
+        }
+        deliver(0);
+        return true;
+    }
+
+    @Override
+    public void close() {
+        Observer a;
+        Observer b;
+        synchronized (this) {
+            if (!open) {
+                return;
+            }
+            open = false;
+            peer.open = false;
+            a = observer;
+            b = peer.observer;
+        }
+        if (a != null) {
+            a.onClose();
+        }
+        if (b != null) {
+            b.onClose();
+        }
+    }
+}
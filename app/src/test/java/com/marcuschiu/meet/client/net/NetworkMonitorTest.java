@@ -0,0 +1,193 @@
+package com.marcuschiu.meet.client.net;
+
+import com.marcuschiu.meet.client.util.CallMetrics;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class NetworkMonitorTest {
+    private static final NetworkSource.Network CELLULAR =
+            new NetworkSource.Network(100, NetworkSource.Transport.CELLULAR, true, true);
+    private static final NetworkSource.Network OTHER_CELLULAR =
+            new NetworkSource.Network(400, NetworkSource.Transport.CELLULAR, true, true);
+    private static final NetworkSource.Network WIFI =
+            new NetworkSource.Network(200, NetworkSource.Transport.WIFI, false, true);
+    private static final NetworkSource.Network WIFI_UNVALIDATED =
+            new NetworkSource.Network(200, NetworkSource.Transport.WIFI, false, false);
+    private static final NetworkSource.Network OTHER_WIFI =
+            new NetworkSource.Network(300, NetworkSource.Transport.WIFI, false, true);
+    private static final long DEBOUNCE_MS = 20;
+    private static final long HOLD_OFF_MS = 400;
+
+    private static class FakeNetworkSource implements NetworkSource {
+        Listener listener;
+        boolean stopped;
+
+        @Override
+        public void start(Listener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void stop() {
+            stopped = true;
+        }
+
+        // Networks come up on both callbacks, like on Android.
+        void becomeDefault(Network network) {
+            listener.onNetworkAvailable(network);
+            listener.onDefaultNetworkChanged(network);
+        }
+    }
+
+    private final FakeNetworkSource source = new FakeNetworkSource();
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    private final CallMetrics metrics = new CallMetrics();
+    private final BlockingQueue<String> handovers = new LinkedBlockingQueue<>();
+    private NetworkMonitor monitor;
+
+    @Before
+    public void setUp() {
+        NetworkMonitor.Config config = new NetworkMonitor.Config();
+        config.debounceMs = DEBOUNCE_MS;
+        config.holdOffMs = HOLD_OFF_MS;
+        monitor = new NetworkMonitor(source, config, executor, metrics,
+                (from, to) -> handovers.add(from.handle + "->" + to.handle));
+        monitor.start();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private String nextHandover() throws InterruptedException {
+        String handover = handovers.poll(5, TimeUnit.SECONDS);
+        assertNotNull("No handover", handover);
+        return handover;
+    }
+
+    // Fails if a handover comes within the hold-off.
+    private void assertNoHandover() throws InterruptedException {
+        assertNull(handovers.poll(HOLD_OFF_MS + 100, TimeUnit.MILLISECONDS));
+    }
+
+    private long metricCount(String name) throws Exception {
+        executor.submit(() -> {
+        }).get(5, TimeUnit.SECONDS);
+        CallMetrics.Metric metric = metrics.snapshot().get(name);
+        return metric == null ? 0 : metric.count;
+    }
+
+    @Test
+    public void firstNetworkIsNotAHandover() throws Exception {
+        source.becomeDefault(CELLULAR);
+        assertNoHandover();
+    }
+
+    @Test
+    public void handsOverWhenDefaultChanges() throws Exception {
+        source.becomeDefault(CELLULAR);
+        Thread.sleep(2 * DEBOUNCE_MS);
+        source.becomeDefault(OTHER_WIFI);
+        assertEquals("100->300", nextHandover());
+        assertEquals(1, metricCount("network_handovers"));
+    }
+
+    @Test
+    public void capabilityUpdatesDoNotPingPong() throws Exception {
+        source.becomeDefault(CELLULAR);
+        Thread.sleep(2 * DEBOUNCE_MS);
+        // Wi-Fi validates before it becomes the default.
+        source.listener.onNetworkAvailable(WIFI);
+        assertEquals("100->200", nextHandover());
+
+        // Signal strength and the like change all the time.
+        for (int i = 0; i < 5; i++) {
+            source.listener.onDefaultNetworkChanged(CELLULAR);
+            source.listener.onNetworkAvailable(CELLULAR);
+            source.listener.onNetworkAvailable(WIFI);
+        }
+        source.listener.onDefaultNetworkChanged(WIFI);
+        assertNoHandover();
+        assertEquals(1, metricCount("network_handovers"));
+    }
+
+    @Test
+    public void waitsForCheaperNetworkToValidate() throws Exception {
+        source.becomeDefault(CELLULAR);
+        Thread.sleep(2 * DEBOUNCE_MS);
+        source.listener.onNetworkAvailable(WIFI_UNVALIDATED);
+        assertNull(handovers.poll(5 * DEBOUNCE_MS, TimeUnit.MILLISECONDS));
+        source.listener.onNetworkAvailable(WIFI);
+        assertEquals("100->200", nextHandover());
+    }
+
+    @Test
+    public void staysOnCheaperNetworkWhileItWorks() throws Exception {
+        source.becomeDefault(CELLULAR);
+        Thread.sleep(2 * DEBOUNCE_MS);
+        source.listener.onNetworkAvailable(WIFI);
+        assertEquals("100->200", nextHandover());
+
+        // The default moves to another costlier network, Wi-Fi still works.
+        source.becomeDefault(OTHER_CELLULAR);
+        assertNoHandover();
+
+        // Wi-Fi loses validation, the default wins.
+        source.listener.onNetworkAvailable(WIFI_UNVALIDATED);
+        source.listener.onDefaultNetworkChanged(CELLULAR);
+        assertEquals("200->100", nextHandover());
+    }
+
+    @Test
+    public void holdsOffBounceBetweenEqualNetworks() throws Exception {
+        source.listener.onNetworkAvailable(OTHER_WIFI);
+        source.becomeDefault(WIFI);
+        Thread.sleep(2 * DEBOUNCE_MS);
+        source.listener.onDefaultNetworkChanged(OTHER_WIFI);
+        assertEquals("200->300", nextHandover());
+
+        // Back and forth within the hold-off ends where it started.
+        source.listener.onDefaultNetworkChanged(WIFI);
+        Thread.sleep(2 * DEBOUNCE_MS);
+        source.listener.onDefaultNetworkChanged(OTHER_WIFI);
+        assertNoHandover();
+        assertEquals(1, metricCount("network_handovers_suppressed"));
+    }
+
+    @Test
+    public void lostNetworkSkipsHoldOff() throws Exception {
+        source.listener.onNetworkAvailable(OTHER_WIFI);
+        source.becomeDefault(WIFI);
+        Thread.sleep(2 * DEBOUNCE_MS);
+        source.listener.onDefaultNetworkChanged(OTHER_WIFI);
+        assertEquals("200->300", nextHandover());
+
+        long start = System.nanoTime();
+        source.listener.onNetworkLost(OTHER_WIFI.handle);
+        source.listener.onDefaultNetworkChanged(null);
+        source.becomeDefault(CELLULAR);
+        assertEquals("300->100", nextHandover());
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < HOLD_OFF_MS);
+        assertEquals(1, metricCount("network_handover_gap_ms"));
+    }
+
+    @Test
+    public void stopsSource() {
+        monitor.stop();
+        assertTrue(source.stopped);
+    }
+}
@@ -0,0 +1,245 @@
+package com.marcuschiu.meet.client.pc;
+
+import com.marcuschiu.meet.client.util.CallMetrics;
+
+import org.junit.After;
+import org.junit.Test;
+import org.webrtc.IceCandidate;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Candidate lines as gathered by libwebrtc on a phone with Wi-Fi, cellular
+ * and IPv6.
+ */
+public class CandidatePolicyTest {
+    private static final String HOST = "candidate:1467250027 1 udp 2122260223 192.168.1.23 52301 typ host"
+            + " generation 0 ufrag Xk3n network-id 1 network-cost 10";
+    private static final String HOST_RTCP = "candidate:1467250027 2 udp 2122260222 192.168.1.23 52302 typ host"
+            + " generation 0 ufrag Xk3n network-id 1 network-cost 10";
+    // Wi-Fi and cellular behind the same NAT map to one public address.
+    private static final String SRFLX_WIFI = "candidate:842163049 1 udp 1686052607 203.0.113.7 52301 typ srflx"
+            + " raddr 192.168.1.23 rport 52301 generation 0 ufrag Xk3n network-id 1 network-cost 10";
+    private static final String SRFLX_CELLULAR = "candidate:3301372592 1 udp 1685987071 203.0.113.7 52301 typ srflx"
+            + " raddr 10.132.7.41 rport 41877 generation 0 ufrag Xk3n network-id 2 network-cost 900";
+    private static final String HOST_IPV6 = "candidate:2999745851 1 udp 2122197247 2001:db8:4:2::1c 47829 typ host"
+            + " generation 0 ufrag Xk3n network-id 3 network-cost 10";
+    private static final String HOST_LINK_LOCAL = "candidate:1851281659 1 udp 2122131711 fe80::1c2a:8dff:fe4b:3a1e 47830"
+            + " typ host generation 0 ufrag Xk3n network-id 4 network-cost 10";
+    private static final String HOST_TCP = "candidate:1067250027 1 tcp 1518280447 192.168.1.23 9 typ host"
+            + " tcptype active generation 0 ufrag Xk3n network-id 1 network-cost 10";
+    private static final String RELAY = "candidate:1853887674 1 udp 41885439 198.51.100.20 61234 typ relay"
+            + " raddr 203.0.113.7 rport 52301 generation 0 ufrag Xk3n network-id 1 network-cost 10";
+    private static final String RELAY_CELLULAR = "candidate:2154937380 1 udp 25108223 198.51.100.20 64002 typ relay"
+            + " raddr 203.0.113.7 rport 49617 generation 0 ufrag Xk3n network-id 2 network-cost 900";
+
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    private final List<String> sent = Collections.synchronizedList(new ArrayList<>());
+    private CandidatePolicy policy;
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private void create(CandidatePolicy.Config config) {
+        policy = new CandidatePolicy(config, executor, new CallMetrics(), candidate -> sent.add(candidate.sdp));
+    }
+
+    private <T> T call(Callable<T> task) throws Exception {
+        return executor.submit(task).get(5, TimeUnit.SECONDS);
+    }
+
+    private void gather(String... lines) throws Exception {
+        call(() -> {
+            for (String line : lines) {
+                policy.onLocalCandidate(new IceCandidate("0", 0, line));
+            }
+            return null;
+        });
+    }
+
+    private List<String> sent() throws Exception {
+        // Runs after whatever the executor has queued.
+        return call(() -> new ArrayList<>(sent));
+    }
+
+    @Test
+    public void parsesCandidateLines() {
+        CandidatePolicy.ParsedCandidate parsed = CandidatePolicy.ParsedCandidate.parse("a=" + SRFLX_CELLULAR);
+        assertEquals("1", parsed.component);
+        assertEquals("udp", parsed.transport);
+        assertEquals("203.0.113.7", parsed.address);
+        assertEquals("52301", parsed.port);
+        assertEquals("srflx", parsed.type);
+        assertEquals("Xk3n", parsed.ufrag);
+        assertEquals("tcp", CandidatePolicy.ParsedCandidate.parse(HOST_TCP.replace(" tcp ", " TCP ")).transport);
+        assertNull(CandidatePolicy.ParsedCandidate.parse("candidate:1 1 udp 1 192.168.1.23 52301 host"));
+        assertNull(CandidatePolicy.ParsedCandidate.parse("a=end-of-candidates"));
+    }
+
+    @Test
+    public void sendsDuplicatesOnce() throws Exception {
+        create(new CandidatePolicy.Config());
+        // Foundation, priority, raddr and network differ, the key does not.
+        assertEquals(CandidatePolicy.ParsedCandidate.parse(SRFLX_WIFI).key(),
+                CandidatePolicy.ParsedCandidate.parse(SRFLX_CELLULAR).key());
+        gather(HOST, SRFLX_WIFI, SRFLX_CELLULAR, HOST_RTCP, HOST);
+        assertEquals(Arrays.asList(HOST, SRFLX_WIFI, HOST_RTCP), sent());
+    }
+
+    @Test
+    public void newCredentialsAreNotDuplicates() throws Exception {
+        create(new CandidatePolicy.Config());
+        String restarted = HOST.replace("ufrag Xk3n", "ufrag p7Rw");
+        gather(HOST, restarted);
+        assertEquals(Arrays.asList(HOST, restarted), sent());
+
+        // After a reset the same candidate is sent again.
+        call(() -> {
+            policy.reset();
+            return null;
+        });
+        gather(HOST);
+        assertEquals(Arrays.asList(HOST, restarted, HOST), sent());
+    }
+
+    @Test
+    public void dropsIpv6LinkLocal() throws Exception {
+        create(new CandidatePolicy.Config());
+        gather(HOST_LINK_LOCAL, HOST_IPV6, HOST_LINK_LOCAL.replace("fe80::", "FE80::"));
+        assertEquals(Collections.singletonList(HOST_IPV6), sent());
+
+        CandidatePolicy.Config config = new CandidatePolicy.Config();
+        config.dropIpv6LinkLocal = false;
+        sent.clear();
+        create(config);
+        gather(HOST_LINK_LOCAL);
+        assertEquals(Collections.singletonList(HOST_LINK_LOCAL), sent());
+    }
+
+    @Test
+    public void dropsTcpAndConfiguredTypes() throws Exception {
+        CandidatePolicy.Config config = new CandidatePolicy.Config();
+        config.relayHoldMs = 0;
+        create(config);
+        gather(HOST_TCP);
+        assertEquals(Collections.singletonList(HOST_TCP), sent());
+
+        config = new CandidatePolicy.Config();
+        config.relayHoldMs = 0;
+        config.dropTcp = true;
+        config.droppedTypes.add(CandidatePolicy.TYPE_HOST);
+        sent.clear();
+        create(config);
+        gather(HOST, HOST_TCP, HOST_IPV6, SRFLX_WIFI, RELAY);
+        assertEquals(Arrays.asList(SRFLX_WIFI, RELAY), sent());
+    }
+
+    @Test
+    public void holdsRelaysForOneAndAHalfSeconds() throws Exception {
+        create(new CandidatePolicy.Config());
+        long start = System.nanoTime();
+        gather(RELAY, HOST, RELAY_CELLULAR);
+        assertEquals(Collections.singletonList(HOST), sent());
+
+        while (sent().size() < 3 && System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5)) {
+            Thread.sleep(20);
+        }
+        long heldMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertEquals(Arrays.asList(HOST, RELAY, RELAY_CELLULAR), sent());
+        assertTrue("held " + heldMs + " ms", heldMs >= 1500);
+
+        // Released once, later relays go out right away.
+        String late = RELAY.replace("61234", "61240");
+        gather(late);
+        assertEquals(Arrays.asList(HOST, RELAY, RELAY_CELLULAR, late), sent());
+    }
+
+    @Test
+    public void releasesRelaysOnConnectivityFailure() throws Exception {
+        create(new CandidatePolicy.Config());
+        gather(HOST, RELAY);
+        call(() -> {
+            policy.onConnected();
+            return null;
+        });
+        // Connected: held past the deadline.
+        Thread.sleep(1700);
+        assertEquals(Collections.singletonList(HOST), sent());
+
+        call(() -> {
+            policy.onConnectivityFailure();
+            return null;
+        });
+        assertEquals(Arrays.asList(HOST, RELAY), sent());
+    }
+
+    @Test
+    public void removesOnlySentCandidates() throws Exception {
+        create(new CandidatePolicy.Config());
+        gather(HOST, HOST_LINK_LOCAL, RELAY);
+        IceCandidate[] removed = {
+                new IceCandidate("0", 0, HOST), new IceCandidate("0", 0, HOST_LINK_LOCAL), new IceCandidate("0", 0, RELAY)};
+        IceCandidate[] removals = call(() -> policy.filterRemovals(removed));
+        assertArrayEquals(new IceCandidate[]{removed[0]}, removals);
+        // The removed relay is no longer held.
+        call(() -> {
+            policy.onConnectivityFailure();
+            return null;
+        });
+        assertEquals(Collections.singletonList(HOST), sent());
+    }
+
+    @Test
+    public void newConfigKeepsSentAndHeldCandidates() throws Exception {
+        create(new CandidatePolicy.Config());
+        gather(HOST, SRFLX_WIFI, RELAY);
+
+        CandidatePolicy.Config config = new CandidatePolicy.Config();
+        config.dropTcp = true;
+        call(() -> {
+            policy.setConfig(config);
+            return null;
+        });
+        // Still known as sent, and still held.
+        gather(SRFLX_CELLULAR, HOST_TCP);
+        assertEquals(Arrays.asList(HOST, SRFLX_WIFI), sent());
+        IceCandidate[] removals = call(() -> policy.filterRemovals(new IceCandidate[]{new IceCandidate("0", 0, HOST)}));
+        assertEquals(1, removals.length);
+
+        CandidatePolicy.Config noHold = new CandidatePolicy.Config();
+        noHold.relayHoldMs = 0;
+        call(() -> {
+            policy.setConfig(noHold);
+            return null;
+        });
+        assertEquals(Arrays.asList(HOST, SRFLX_WIFI, RELAY), sent());
+    }
+
+    @Test
+    public void newConfigDropsHeldRelays() throws Exception {
+        create(new CandidatePolicy.Config());
+        gather(RELAY);
+        CandidatePolicy.Config config = new CandidatePolicy.Config();
+        config.droppedTypes.add(CandidatePolicy.TYPE_RELAY);
+        call(() -> {
+            policy.setConfig(config);
+            policy.onConnectivityFailure();
+            return null;
+        });
+        assertTrue(sent().isEmpty());
+    }
+}
@@ -0,0 +1,145 @@
+package com.marcuschiu.meet.client.pc;
+
+import com.marcuschiu.meet.client.SdpFixtures;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SdpPrunerTest {
+    private static final List<String> SOFTWARE_DECODERS = Arrays.asList(
+            PeerConnectionClient.VIDEO_CODEC_VP8, PeerConnectionClient.VIDEO_CODEC_VP9);
+    private static final List<String> HARDWARE_H264_DECODER = Arrays.asList(
+            PeerConnectionClient.VIDEO_CODEC_H264_HIGH, PeerConnectionClient.VIDEO_CODEC_H264_BASELINE,
+            PeerConnectionClient.VIDEO_CODEC_VP8, PeerConnectionClient.VIDEO_CODEC_VP9);
+
+    private final SdpPruner pruner = new SdpPruner(new SdpPruner.Config());
+
+    @Test
+    public void fixturesAreValid() throws Exception {
+        assertNull(SdpPruner.validate(SdpFixtures.load(SdpFixtures.OFFER)));
+        assertNull(SdpPruner.validate(SdpFixtures.load(SdpFixtures.ANSWER_H264)));
+        assertNull(SdpPruner.validate(SdpFixtures.load(SdpFixtures.OFFER_ICE_RESTART)));
+    }
+
+    @Test
+    public void keepsDecodableVideoCodecs() throws Exception {
+        String pruned = pruner.prune(SdpFixtures.load(SdpFixtures.OFFER), HARDWARE_H264_DECODER);
+        assertNull(SdpPruner.validate(pruned));
+        // H.264 and its rtx stay, FEC and the rtx of red go.
+        assertEquals("m=video 9 UDP/TLS/RTP/SAVPF 96 97 98 99 100 101", mLine(pruned, "video"));
+        assertTrue(pruned.contains("a=fmtp:100 level-asymmetry-allowed=1;packetization-mode=1;profile-level-id=42e01f\r\n"));
+        assertFalse(pruned.contains("red/90000"));
+        assertFalse(pruned.contains("ulpfec"));
+        assertFalse(pruned.contains("a=fmtp:124"));
+    }
+
+    @Test
+    public void dropsH264WithoutDecoder() throws Exception {
+        String pruned = pruner.prune(SdpFixtures.load(SdpFixtures.OFFER), SOFTWARE_DECODERS);
+        assertNull(SdpPruner.validate(pruned));
+        assertEquals("m=video 9 UDP/TLS/RTP/SAVPF 96 97 98 99", mLine(pruned, "video"));
+        assertFalse(pruned.contains("H264"));
+        assertFalse(pruned.contains("apt=100"));
+    }
+
+    @Test
+    public void keepsH264OnlyAnswer() throws Exception {
+        String answer = SdpFixtures.load(SdpFixtures.ANSWER_H264);
+        assertEquals("m=video 9 UDP/TLS/RTP/SAVPF 100 101", mLine(pruner.prune(answer, HARDWARE_H264_DECODER), "video"));
+        // Nothing decodable left, the section is not emptied.
+        assertEquals("m=video 9 UDP/TLS/RTP/SAVPF 100 101", mLine(pruner.prune(answer, SOFTWARE_DECODERS), "video"));
+    }
+
+    @Test
+    public void keepsTelephoneEventAndComfortNoise() throws Exception {
+        String pruned = pruner.prune(SdpFixtures.load(SdpFixtures.OFFER), SOFTWARE_DECODERS);
+        assertEquals("m=audio 9 UDP/TLS/RTP/SAVPF 111 106 105 13 110 112 113 126", mLine(pruned, "audio"));
+        assertTrue(pruned.contains("a=rtpmap:126 telephone-event/8000\r\n"));
+        assertTrue(pruned.contains("a=rtpmap:13 CN/8000\r\n"));
+        assertFalse(pruned.contains("ISAC"));
+        assertFalse(pruned.contains("PCMU"));
+    }
+
+    @Test
+    public void auxiliaryCodecsAloneDoNotKeepSection() throws Exception {
+        // Opus missing: PCMU, PCMA, CN and telephone-event must all stay.
+        String answer = SdpFixtures.load(SdpFixtures.ANSWER_H264)
+                .replace("m=audio 9 UDP/TLS/RTP/SAVPF 111 0 8 13 126", "m=audio 9 UDP/TLS/RTP/SAVPF 0 8 13 126")
+                .replace("a=rtpmap:111 opus/48000/2\r\na=rtcp-fb:111 transport-cc\r\na=fmtp:111 minptime=10;useinbandfec=1\r\n", "");
+        assertNull(SdpPruner.validate(answer));
+        assertEquals("m=audio 9 UDP/TLS/RTP/SAVPF 0 8 13 126", mLine(pruner.prune(answer, HARDWARE_H264_DECODER), "audio"));
+    }
+
+    @Test
+    public void configuredVideoCodecsOverrideDecodable() throws Exception {
+        SdpPruner.Config config = new SdpPruner.Config();
+        config.videoCodecs = new HashSet<>(Collections.singletonList(PeerConnectionClient.VIDEO_CODEC_VP8));
+        config.dropVideoFec = false;
+        String pruned = new SdpPruner(config).prune(SdpFixtures.load(SdpFixtures.OFFER), HARDWARE_H264_DECODER);
+        assertNull(SdpPruner.validate(pruned));
+        assertEquals("m=video 9 UDP/TLS/RTP/SAVPF 96 97 127 124 125", mLine(pruned, "video"));
+    }
+
+    @Test
+    public void dropsExtensionsAndFeedback() throws Exception {
+        SdpPruner.Config config = new SdpPruner.Config();
+        config.droppedFeedback.add("goog-remb");
+        String pruned = new SdpPruner(config).prune(SdpFixtures.load(SdpFixtures.OFFER), SOFTWARE_DECODERS);
+        assertFalse(pruned.contains("goog-remb"));
+        assertTrue(pruned.contains("a=rtcp-fb:96 transport-cc\r\n"));
+        assertFalse(pruned.contains("urn:ietf:params:rtp-hdrext:toffset"));
+        assertFalse(pruned.contains("playout-delay"));
+        assertFalse(pruned.contains("video-timing"));
+        assertTrue(pruned.contains("a=extmap:3 http://www.webrtc.org/experiments/rtp-hdrext/abs-send-time\r\n"));
+    }
+
+    @Test
+    public void leavesOtherLinesAlone() throws Exception {
+        String offer = SdpFixtures.load(SdpFixtures.OFFER);
+        String pruned = pruner.prune(offer, SOFTWARE_DECODERS);
+        assertTrue(pruned.endsWith("m=application 9 DTLS/SCTP 5000\r\nc=IN IP4 0.0.0.0\r\n"
+                + "a=ice-ufrag:Xk3n\r\na=ice-pwd:4vDj5lQ0Yq8yH6kRxAa7WmNs\r\na=ice-options:trickle renomination\r\n"
+                + "a=fingerprint:sha-256 7B:8B:F0:65:5F:78:E2:51:3B:AC:6F:F3:3F:46:1B:35:DC:B8:5F:64:1A:24:C2:43:F0:A1:58:D0:A1:2C:19:08\r\n"
+                + "a=setup:actpass\r\na=mid:data\r\na=sctpmap:5000 webrtc-datachannel 1024\r\n"));
+        assertTrue(pruned.contains("a=ssrc-group:FID 2231627014 632943048\r\n"));
+        assertTrue(pruned.length() < offer.length());
+    }
+
+    @Test
+    public void validateReportsInconsistencies() throws Exception {
+        String offer = SdpFixtures.load(SdpFixtures.OFFER);
+        assertEquals("no v=0", SdpPruner.validate(offer.substring(5)));
+        assertEquals("no rtpmap for 98", SdpPruner.validate(offer.replace("a=rtpmap:98 VP9/90000\r\n", "")));
+        assertEquals("rtx for missing payload type 100", SdpPruner.validate(
+                offer.replace(" 99 100 101 ", " 99 101 ").replaceAll("a=(rtpmap|rtcp-fb|fmtp):100 [^\r]*\r\n", "")));
+        assertEquals("payload type 125 not on m=video 9 UDP/TLS/RTP/SAVPF 96 97 98 99 100 101 127 124",
+                SdpPruner.validate(offer.replace(" 124 125\r\n", " 124\r\n")));
+        assertEquals("short m-line: m=video 9 UDP/TLS/RTP/SAVPF ",
+                SdpPruner.validate("v=0\r\nm=video 9 UDP/TLS/RTP/SAVPF \r\n"));
+    }
+
+    @Test
+    public void returnsOriginalWhenPruningBreaksIt() throws Exception {
+        // rtx whose codec is not on the m-line makes any pruning invalid.
+        String broken = SdpFixtures.load(SdpFixtures.OFFER).replace("a=fmtp:97 apt=96", "a=fmtp:97 apt=95");
+        assertEquals(broken, pruner.prune(broken, SOFTWARE_DECODERS));
+    }
+
+    private static String mLine(String sdp, String media) {
+        for (String line : sdp.split("\r\n")) {
+            if (line.startsWith("m=" + media + " ")) {
+                return line;
+            }
+        }
+        return null;
+    }
+}
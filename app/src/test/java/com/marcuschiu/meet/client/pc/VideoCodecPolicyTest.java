@@ -0,0 +1,31 @@
+package com.marcuschiu.meet.client.pc;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+public class VideoCodecPolicyTest {
+    @Test
+    public void softwareOnlyDevice() {
+        VideoCodecPolicy policy = new VideoCodecPolicy(0);
+        assertEquals(Arrays.asList("VP8", "VP9"), policy.getPreferredCodecs());
+        assertEquals(Arrays.asList("VP8", "VP9"), policy.getDecodableCodecs());
+    }
+
+    @Test
+    public void decodesH264WithoutEncoder() {
+        VideoCodecPolicy policy = new VideoCodecPolicy(VideoCodecPolicy.HW_DECODER_H264);
+        assertEquals(Arrays.asList("VP8", "VP9"), policy.getPreferredCodecs());
+        assertEquals(Arrays.asList("H264 High", "H264 Baseline", "VP8", "VP9"), policy.getDecodableCodecs());
+    }
+
+    @Test
+    public void prefersHardwareCodecs() {
+        VideoCodecPolicy policy = new VideoCodecPolicy(VideoCodecPolicy.HW_ENCODER_H264 | VideoCodecPolicy.HW_DECODER_H264
+                | VideoCodecPolicy.HW_ENCODER_VP8);
+        assertEquals(Arrays.asList("H264 Baseline", "VP8", "VP9"), policy.getPreferredCodecs());
+        assertEquals(Arrays.asList("H264 High", "H264 Baseline", "VP8", "VP9"), policy.getDecodableCodecs());
+    }
+}
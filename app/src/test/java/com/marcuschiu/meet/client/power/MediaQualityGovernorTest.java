@@ -0,0 +1,130 @@
+package com.marcuschiu.meet.client.power;
+
+import com.marcuschiu.meet.client.pc.VideoQuality;
+import com.marcuschiu.meet.client.util.CallMetrics;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class MediaQualityGovernorTest {
+    private static class FakePowerSource implements PowerSource {
+        Listener listener;
+        boolean stopped;
+
+        @Override
+        public void start(Listener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public void stop() {
+            stopped = true;
+        }
+    }
+
+    private final FakePowerSource source = new FakePowerSource();
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    private final CallMetrics metrics = new CallMetrics();
+    private final BlockingQueue<VideoQuality> qualities = new LinkedBlockingQueue<>();
+    private MediaQualityGovernor governor;
+
+    @Before
+    public void setUp() {
+        QualityPolicy.Config config = new QualityPolicy.Config();
+        // Every evaluation after the first that allows it steps up.
+        config.stepUpDelayMs = 0;
+        governor = new MediaQualityGovernor(source, config, executor, metrics, qualities::add);
+        governor.start();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private VideoQuality nextQuality() throws InterruptedException {
+        VideoQuality quality = qualities.poll(5, TimeUnit.SECONDS);
+        assertNotNull("No quality change", quality);
+        return quality;
+    }
+
+    // Waits for the events posted so far.
+    private Map<String, CallMetrics.Metric> settle() throws Exception {
+        executor.submit(() -> {
+        }).get(5, TimeUnit.SECONDS);
+        return metrics.snapshot();
+    }
+
+    @Test
+    public void stepsDownWhenHot() throws Exception {
+        source.listener.onThermalStatusChanged(PowerSource.ThermalStatus.SEVERE);
+        assertSame(VideoQuality.LADDER[2], nextQuality());
+
+        Map<String, CallMetrics.Metric> snapshot = settle();
+        assertEquals(PowerSource.ThermalStatus.SEVERE.ordinal(), snapshot.get("thermal_status").last);
+        assertEquals(2, snapshot.get("quality_level").last);
+        assertEquals(1, snapshot.get("quality_steps_down").count);
+        assertFalse(snapshot.containsKey("quality_steps_up"));
+    }
+
+    @Test
+    public void stepsBackUpOneLevelAtATime() throws Exception {
+        source.listener.onThermalStatusChanged(PowerSource.ThermalStatus.SEVERE);
+        assertSame(VideoQuality.LADDER[2], nextQuality());
+        // Cooled down: the first evaluation starts the delay, each later one steps up.
+        source.listener.onThermalStatusChanged(PowerSource.ThermalStatus.NONE);
+        source.listener.onBatteryChanged(80, true);
+        assertSame(VideoQuality.LADDER[1], nextQuality());
+        source.listener.onBatteryChanged(80, true);
+        assertSame(VideoQuality.LADDER[0], nextQuality());
+
+        Map<String, CallMetrics.Metric> snapshot = settle();
+        assertEquals(2, snapshot.get("quality_steps_up").count);
+        assertEquals(0, snapshot.get("quality_level").last);
+        // Unchanged battery levels are recorded once.
+        assertEquals(1, snapshot.get("battery_percent").count);
+    }
+
+    @Test
+    public void lowBatteryStepsDown() throws Exception {
+        source.listener.onBatteryChanged(50, false);
+        source.listener.onBatteryChanged(14, false);
+        assertSame(VideoQuality.LADDER[2], nextQuality());
+        assertEquals(2, settle().get("battery_percent").count);
+        // Plugging in lifts the battery limit.
+        source.listener.onBatteryChanged(14, true);
+        source.listener.onBatteryChanged(14, true);
+        assertSame(VideoQuality.LADDER[1], nextQuality());
+    }
+
+    @Test
+    public void quietWithoutChanges() throws Exception {
+        source.listener.onThermalStatusChanged(PowerSource.ThermalStatus.LIGHT);
+        source.listener.onBatteryChanged(90, false);
+        settle();
+        assertNull(qualities.poll());
+        assertFalse(metrics.snapshot().containsKey("quality_level"));
+    }
+
+    @Test
+    public void stopStopsSource() throws Exception {
+        governor.stop();
+        settle();
+        assertTrue(source.stopped);
+    }
+}
@@ -0,0 +1,146 @@
+package com.marcuschiu.meet.client.power;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays thermal and battery sequences through QualityPolicy on simulated
+ * time, evaluated once per second like MediaQualityGovernor does.
+ */
+public class QualityPolicyTest {
+    private static final long STEP_MS = 1000;
+
+    private static class Sample {
+        final long timeMs;
+        final PowerSource.ThermalStatus status;
+        final int batteryPercent;
+        final boolean charging;
+
+        Sample(long timeMs, PowerSource.ThermalStatus status, int batteryPercent, boolean charging) {
+            this.timeMs = timeMs;
+            this.status = status;
+            this.batteryPercent = batteryPercent;
+            this.charging = charging;
+        }
+    }
+
+    // "<second>s <from>-><to>" for every level change.
+    private static List<String> replay(List<Sample> samples, long durationMs) {
+        QualityPolicy policy = new QualityPolicy(new QualityPolicy.Config());
+        List<String> changes = new ArrayList<>();
+        int next = 0;
+        for (long now = 0; now < durationMs; now += STEP_MS) {
+            while (next < samples.size() && samples.get(next).timeMs <= now) {
+                Sample sample = samples.get(next++);
+                policy.onThermalStatusChanged(sample.status);
+                policy.onBatteryChanged(sample.batteryPercent, sample.charging);
+            }
+            int previous = policy.getLevel();
+            int level = policy.evaluate(now);
+            if (level != previous) {
+                changes.add(now / 1000 + "s " + previous + "->" + level);
+            }
+        }
+        return changes;
+    }
+
+    @Test
+    public void stepsDownAtOnceAndUpOneLevelPerMinute() {
+        QualityPolicy policy = new QualityPolicy(new QualityPolicy.Config());
+        assertEquals(0, policy.evaluate(0));
+        policy.onThermalStatusChanged(PowerSource.ThermalStatus.CRITICAL);
+        assertEquals(3, policy.evaluate(1000));
+        policy.onThermalStatusChanged(PowerSource.ThermalStatus.NONE);
+        assertEquals(3, policy.evaluate(2000));
+        assertEquals(3, policy.evaluate(61999));
+        assertEquals(2, policy.evaluate(62000));
+        assertEquals(2, policy.evaluate(121999));
+        assertEquals(1, policy.evaluate(122000));
+        assertEquals(0, policy.evaluate(182000));
+        assertEquals(0, policy.evaluate(300000));
+    }
+
+    @Test
+    public void heatWave() {
+        List<Sample> samples = new ArrayList<>();
+        PowerSource.ThermalStatus[] course = {
+                PowerSource.ThermalStatus.NONE, PowerSource.ThermalStatus.LIGHT, PowerSource.ThermalStatus.MODERATE,
+                PowerSource.ThermalStatus.SEVERE, PowerSource.ThermalStatus.CRITICAL, PowerSource.ThermalStatus.SEVERE,
+                PowerSource.ThermalStatus.MODERATE, PowerSource.ThermalStatus.LIGHT, PowerSource.ThermalStatus.NONE};
+        for (int i = 0; i < course.length; i++) {
+            samples.add(new Sample(i * 120000L, course[i], 80, true));
+        }
+        assertEquals(Arrays.asList("240s 0->1", "360s 1->2", "480s 2->3", "660s 3->2", "780s 2->1", "900s 1->0"),
+                replay(samples, 1200000));
+    }
+
+    @Test
+    public void flappingStepsUpOnlyAfterAQuietMinute() {
+        Random random = new Random(1);
+        List<Sample> samples = new ArrayList<>();
+        for (long time = 0; time < 600000; time += 2000 + random.nextInt(20000)) {
+            PowerSource.ThermalStatus status = random.nextBoolean()
+                    ? PowerSource.ThermalStatus.LIGHT : PowerSource.ThermalStatus.MODERATE;
+            samples.add(new Sample(time, status, 80, true));
+        }
+        List<String> changes = replay(samples, 600000);
+        int moderate = 0;
+        for (Sample sample : samples) {
+            moderate += sample.status == PowerSource.ThermalStatus.MODERATE ? 1 : 0;
+        }
+        assertTrue(changes.toString(), changes.size() < moderate);
+        for (String change : changes) {
+            if (!change.endsWith("1->0")) {
+                continue;
+            }
+            long timeMs = Long.parseLong(change.substring(0, change.indexOf('s'))) * 1000;
+            for (Sample sample : samples) {
+                boolean inLastMinute = sample.timeMs > timeMs - 60000 && sample.timeMs <= timeMs;
+                assertTrue(change, !inLastMinute || sample.status == PowerSource.ThermalStatus.LIGHT);
+            }
+        }
+    }
+
+    @Test
+    public void batteryDrainThenCharger() {
+        List<Sample> samples = new ArrayList<>();
+        long time = 0;
+        for (int percent = 40; percent >= 10; percent--, time += 20000) {
+            samples.add(new Sample(time, PowerSource.ThermalStatus.NONE, percent, false));
+        }
+        samples.add(new Sample(time, PowerSource.ThermalStatus.NONE, 10, true));
+        // 30% at 200 s, 15% at 500 s, charging from 620 s.
+        assertEquals(Arrays.asList("200s 0->1", "500s 1->2", "680s 2->1", "740s 1->0"), replay(samples, 900000));
+    }
+
+    @Test
+    public void batteryHysteresis() {
+        QualityPolicy policy = new QualityPolicy(new QualityPolicy.Config());
+        policy.onBatteryChanged(30, false);
+        assertEquals(1, policy.evaluate(0));
+        // Within 5% of the threshold the level holds.
+        policy.onBatteryChanged(34, false);
+        assertEquals(1, policy.evaluate(1000));
+        assertEquals(1, policy.evaluate(100000));
+        policy.onBatteryChanged(35, false);
+        assertEquals(1, policy.evaluate(101000));
+        assertEquals(0, policy.evaluate(161000));
+    }
+
+    @Test
+    public void thermalAndBatteryTakeTheWorse() {
+        QualityPolicy policy = new QualityPolicy(new QualityPolicy.Config());
+        policy.onThermalStatusChanged(PowerSource.ThermalStatus.MODERATE);
+        policy.onBatteryChanged(12, false);
+        assertEquals(2, policy.evaluate(0));
+        policy.onThermalStatusChanged(PowerSource.ThermalStatus.EMERGENCY);
+        assertEquals(3, policy.evaluate(1000));
+    }
+}
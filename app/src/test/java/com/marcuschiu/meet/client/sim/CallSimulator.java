@@ -0,0 +1,214 @@
+package com.marcuschiu.meet.client.sim;
+
+import com.marcuschiu.meet.client.SignalingCodec;
+import com.marcuschiu.meet.client.pc.Negotiator;
+
+import org.json.JSONException;
+import org.webrtc.IceCandidate;
+import org.webrtc.MediaConstraints;
+import org.webrtc.SessionDescription;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Runs offer/answer/trickle call setups between two headless clients on a
+ * VirtualClock. Each client pairs the app's Negotiator with a
+ * FakePeerConnectionEngine and exchanges SignalingCodec messages over lossy,
+ * reordering SignalingLinks, the way CallActivity glues PeerConnectionClient
+ * to the signaling client. Some flows restart ICE once connected.
+ * CallSimulatorTest runs the scenarios.
+ */
+public class CallSimulator {
+    public static class Config {
+        public final SignalingLink.Config link = new SignalingLink.Config();
+        public double iceRestartRate = 0.2;
+        public long flowTimeoutMs = 30000;
+    }
+
+    public static class Result {
+        public int flows;
+        public int completed;
+        public int stalled;
+        public int errors;
+        public long messages;
+        public long wallNanos;
+        public final Map<String, Integer> violations = new LinkedHashMap<>();
+        // Simulated setup time of each completed flow.
+        public final List<Long> setupTimesMs = new ArrayList<>();
+
+        public long setupPercentileMs(int percentile) {
+            if (setupTimesMs.isEmpty()) {
+                return -1;
+            }
+            List<Long> sorted = new ArrayList<>(setupTimesMs);
+            Collections.sort(sorted);
+            return sorted.get(Math.min(sorted.size() - 1, sorted.size() * percentile / 100));
+        }
+
+        @Override
+        public String toString() {
+            double seconds = wallNanos / 1e9;
+            return "flows=" + flows + " completed=" + completed + " stalled=" + stalled + " errors=" + errors
+                    + " messages=" + messages
+                    + String.format(" flows/s=%.0f", seconds > 0 ? flows / seconds : 0.0)
+                    + " setup p50=" + setupPercentileMs(50) + "ms p95=" + setupPercentileMs(95) + "ms"
+                    + " violations=" + violations;
+        }
+    }
+
+    private static final Negotiator.SdpMunger NO_MUNGING = new Negotiator.SdpMunger() {
+        @Override
+        public String mungeLocal(String sdp) {
+            return sdp;
+        }
+
+        @Override
+        public String mungeRemote(String sdp) {
+            return sdp;
+        }
+    };
+
+    private final Config config;
+    private final Random random;
+
+    public CallSimulator(Config config, long seed) {
+        this.config = config;
+        this.random = new Random(seed);
+    }
+
+    public Result run(int flows) {
+        Result result = new Result();
+        long startNanos = System.nanoTime();
+        for (int i = 0; i < flows; i++) {
+            new Flow().run(result);
+        }
+        result.wallNanos = System.nanoTime() - startNanos;
+        return result;
+    }
+
+    private class Flow {
+        private final VirtualClock clock = new VirtualClock();
+        private final Client caller = new Client("caller", clock, this);
+        private final Client callee = new Client("callee", clock, this);
+        private final boolean iceRestart = random.nextDouble() < config.iceRestartRate;
+        private boolean restarted;
+        private long completedAtMs = -1;
+
+        void run(Result result) {
+            caller.link = new SignalingLink(clock, random, config.link, callee::onMessage);
+            callee.link = new SignalingLink(clock, random, config.link, caller::onMessage);
+            clock.execute(() -> caller.negotiator.createOffer(new MediaConstraints()));
+            clock.runUntilIdle(config.flowTimeoutMs);
+
+            result.flows++;
+            result.messages += caller.link.getSent() + callee.link.getSent();
+            if (caller.error != null || callee.error != null) {
+                result.errors++;
+            } else if (completedAtMs >= 0) {
+                result.completed++;
+                result.setupTimesMs.add(completedAtMs);
+            } else {
+                result.stalled++;
+            }
+            merge(result.violations, caller.engine.getViolations());
+            merge(result.violations, callee.engine.getViolations());
+        }
+
+        void onConnected() {
+            if (!caller.engine.isConnected() || !callee.engine.isConnected()) {
+                return;
+            }
+            if (iceRestart && !restarted) {
+                if (caller.negotiator.isStable()) {
+                    // Same steps as PeerConnectionClient.sendIceRestartOffer().
+                    restarted = true;
+                    MediaConstraints constraints = new MediaConstraints();
+                    constraints.mandatory.add(new MediaConstraints.KeyValuePair(FakePeerConnectionEngine.ICE_RESTART_CONSTRAINT, "true"));
+                    caller.negotiator.holdRemoteCandidates();
+                    caller.negotiator.createOffer(constraints);
+                }
+                return;
+            }
+            if (completedAtMs < 0) {
+                completedAtMs = clock.now();
+            }
+        }
+    }
+
+    private static class Client implements Negotiator.Listener, FakePeerConnectionEngine.Listener {
+        final SignalingCodec codec = new SignalingCodec();
+        final SignalingCodec.Message message = new SignalingCodec.Message();
+        final FakePeerConnectionEngine engine;
+        final Negotiator negotiator;
+        final Flow flow;
+        SignalingLink link;
+        String error;
+
+        Client(String name, VirtualClock clock, Flow flow) {
+            this.flow = flow;
+            engine = new FakePeerConnectionEngine(name, clock, this);
+            negotiator = new Negotiator(engine, clock, NO_MUNGING, this);
+        }
+
+        // Mirrors CallActivity's handling of signaling events.
+        void onMessage(String text) {
+            try {
+                codec.readMessage(text, message);
+            } catch (JSONException e) {
+                onNegotiationError("Bad message: " + e.getMessage());
+                return;
+            }
+            switch (message.type) {
+                case SignalingCodec.TYPE_OFFER:
+                    negotiator.setRemoteDescription(new SessionDescription(SessionDescription.Type.OFFER, message.sdp));
+                    negotiator.createAnswer(new MediaConstraints());
+                    break;
+                case SignalingCodec.TYPE_ANSWER:
+                    negotiator.setRemoteDescription(new SessionDescription(SessionDescription.Type.ANSWER, message.sdp));
+                    break;
+                case SignalingCodec.TYPE_CANDIDATE:
+                    negotiator.addRemoteIceCandidate(message.candidates.get(0));
+                    break;
+                case SignalingCodec.TYPE_REMOVE_CANDIDATES:
+                    negotiator.removeRemoteIceCandidates(message.candidates.toArray(new IceCandidate[0]));
+                    break;
+                default:
+                    onNegotiationError("Unexpected message: " + message.type);
+            }
+        }
+
+        @Override
+        public void onLocalDescription(SessionDescription sdp) {
+            link.send(codec.description(sdp.type.canonicalForm(), sdp.description, true));
+        }
+
+        @Override
+        public void onNegotiationError(String description) {
+            if (error == null) {
+                error = description;
+            }
+        }
+
+        @Override
+        public void onIceCandidate(IceCandidate candidate) {
+            link.send(codec.candidate(candidate));
+        }
+
+        @Override
+        public void onConnected() {
+            flow.onConnected();
+        }
+    }
+
+    private static void merge(Map<String, Integer> into, Map<String, Integer> from) {
+        for (Map.Entry<String, Integer> entry : from.entrySet()) {
+            Integer count = into.get(entry.getKey());
+            into.put(entry.getKey(), count == null ? entry.getValue() : count + entry.getValue());
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.marcuschiu.meet.client.sim;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Call setups between two Negotiators over simulated signaling links, see
+ * CallSimulator.
+ */
+public class CallSimulatorTest {
+    private static final int FLOWS = 500;
+    private static final int THROUGHPUT_FLOWS = 5000;
+    // Well below what a laptop does, so slow CI machines pass too.
+    private static final int MIN_FLOWS_PER_SECOND = 500;
+
+    private static CallSimulator.Result run(CallSimulator.Config config, long seed) {
+        return new CallSimulator(config, seed).run(FLOWS);
+    }
+
+    private static void assertAllCompleted(CallSimulator.Result result) {
+        assertEquals(result.toString(), FLOWS, result.flows);
+        assertEquals(result.toString(), FLOWS, result.completed);
+        assertTrue(result.toString(), result.violations.isEmpty());
+    }
+
+    @Test
+    public void completesOverPerfectLinks() {
+        CallSimulator.Config config = new CallSimulator.Config();
+        config.link.jitterMs = 0;
+        config.link.reorderRate = 0;
+        config.link.duplicateRate = 0;
+        config.iceRestartRate = 0;
+        CallSimulator.Result result = run(config, 1);
+        assertAllCompleted(result);
+        // Offer, answer and a few candidates each way, nothing else.
+        assertEquals(result.toString(), FLOWS * 8, result.messages);
+    }
+
+    @Test
+    public void completesDespiteReorderingAndDuplicates() {
+        CallSimulator.Config config = new CallSimulator.Config();
+        config.link.reorderRate = 0.3;
+        config.link.duplicateRate = 0.1;
+        assertAllCompleted(run(config, 2));
+    }
+
+    @Test
+    public void completesIceRestarts() {
+        CallSimulator.Config config = new CallSimulator.Config();
+        config.iceRestartRate = 1;
+        config.link.reorderRate = 0.2;
+        assertAllCompleted(run(config, 3));
+    }
+
+    @Test
+    public void lostMessagesStallButNeverFail() {
+        CallSimulator.Config config = new CallSimulator.Config();
+        config.link.lossRate = 0.1;
+        CallSimulator.Result result = run(config, 4);
+        assertEquals(result.toString(), 0, result.errors);
+        assertEquals(result.toString(), FLOWS, result.completed + result.stalled);
+        assertTrue(result.toString(), result.stalled > 0);
+        assertTrue(result.toString(), result.violations.isEmpty());
+    }
+
+    @Test
+    public void setupTakesAFewRoundTrips() {
+        CallSimulator.Config config = new CallSimulator.Config();
+        config.iceRestartRate = 0;
+        config.link.reorderRate = 0;
+        config.link.duplicateRate = 0;
+        CallSimulator.Result result = run(config, 5);
+        assertAllCompleted(result);
+        // 40-60 ms one way: offer, answer and a candidate, plus gathering and checks.
+        assertTrue(result.toString(), result.setupPercentileMs(50) >= 100);
+        assertTrue(result.toString(), result.setupPercentileMs(95) <= 300);
+    }
+
+    /**
+     * Prints how many call setups per second the simulator gets through with
+     * the default links, and fails if it drops to where the suites above
+     * would take more than a few seconds each.
+     */
+    @Test
+    public void reportsThroughput() {
+        CallSimulator.Config config = new CallSimulator.Config();
+        // Warms up the JIT first.
+        run(config, 7);
+        CallSimulator.Result result = new CallSimulator(config, 8).run(THROUGHPUT_FLOWS);
+        double flowsPerSecond = result.flows / (result.wallNanos / 1e9);
+        System.out.println("CallSimulator throughput: " + result);
+        assertEquals(result.toString(), THROUGHPUT_FLOWS, result.flows);
+        assertTrue(result.toString(), flowsPerSecond >= MIN_FLOWS_PER_SECOND);
+    }
+
+    @Test
+    public void isDeterministicPerSeed() {
+        CallSimulator.Config config = new CallSimulator.Config();
+        config.link.lossRate = 0.05;
+        CallSimulator.Result first = run(config, 6);
+        CallSimulator.Result second = run(config, 6);
+        assertEquals(first.completed, second.completed);
+        assertEquals(first.stalled, second.stalled);
+        assertEquals(first.messages, second.messages);
+        assertEquals(first.setupTimesMs, second.setupTimesMs);
+    }
+}
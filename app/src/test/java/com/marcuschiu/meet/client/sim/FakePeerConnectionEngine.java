@@ -0,0 +1,243 @@
+package com.marcuschiu.meet.client.sim;
+
+import com.marcuschiu.meet.client.pc.PeerConnectionEngine;
+
+import org.webrtc.IceCandidate;
+import org.webrtc.MediaConstraints;
+import org.webrtc.PeerConnection;
+import org.webrtc.SdpObserver;
+import org.webrtc.SessionDescription;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * PeerConnectionEngine that follows the JSEP signaling states without any
+ * media. Descriptions carry only ICE credentials; setting a local description
+ * with new credentials trickles a few host candidates, and the engine counts
+ * as connected once it is stable with a remote candidate for the current
+ * remote credentials. Calls that libwebrtc would reject fail the same way;
+ * misuse it silently tolerates is counted in getViolations().
+ */
+public class FakePeerConnectionEngine implements PeerConnectionEngine {
+    public interface Listener {
+        void onIceCandidate(IceCandidate candidate);
+
+        void onConnected();
+    }
+
+    public static final String ICE_RESTART_CONSTRAINT = "IceRestart";
+
+    private static final int OPERATION_DELAY_MS = 1;
+    private static final int CANDIDATES_PER_GATHERING = 3;
+    private static final int GATHER_INTERVAL_MS = 10;
+    private static final int CONNECT_DELAY_MS = 20;
+
+    private final String name;
+    private final VirtualClock clock;
+    private final Listener listener;
+    private final Map<String, Integer> violations = new LinkedHashMap<>();
+    // Remote candidates added per ufrag, they may arrive before their description.
+    private final Map<String, Integer> remoteCandidates = new HashMap<>();
+    private PeerConnection.SignalingState state = PeerConnection.SignalingState.STABLE;
+    private int generation;
+    private int sessionVersion;
+    private String localUfrag;
+    private String remoteUfrag;
+    private String answeredUfrag;
+    private String connectedKey;
+
+    public FakePeerConnectionEngine(String name, VirtualClock clock, Listener listener) {
+        this.name = name;
+        this.clock = clock;
+        this.listener = listener;
+    }
+
+    public boolean isConnected() {
+        return connectedKey != null && connectedKey.equals(currentKey());
+    }
+
+    public Map<String, Integer> getViolations() {
+        return violations;
+    }
+
+    @Override
+    public PeerConnection.SignalingState signalingState() {
+        return state;
+    }
+
+    @Override
+    public void createOffer(SdpObserver observer, MediaConstraints constraints) {
+        if (state != PeerConnection.SignalingState.STABLE && state != PeerConnection.SignalingState.HAVE_LOCAL_OFFER) {
+            clock.schedule(OPERATION_DELAY_MS, () -> observer.onCreateFailure("createOffer in state " + state));
+            return;
+        }
+        String ufrag = localUfrag == null || isIceRestart(constraints) ? newUfrag() : localUfrag;
+        SessionDescription sdp = new SessionDescription(SessionDescription.Type.OFFER, description(ufrag, "actpass"));
+        clock.schedule(OPERATION_DELAY_MS, () -> observer.onCreateSuccess(sdp));
+    }
+
+    @Override
+    public void createAnswer(SdpObserver observer, MediaConstraints constraints) {
+        if (state != PeerConnection.SignalingState.HAVE_REMOTE_OFFER) {
+            clock.schedule(OPERATION_DELAY_MS, () -> observer.onCreateFailure("createAnswer in state " + state));
+            return;
+        }
+        // Answers to a restart offer get new credentials as well.
+        String ufrag = localUfrag == null || !remoteUfrag.equals(answeredUfrag) ? newUfrag() : localUfrag;
+        answeredUfrag = remoteUfrag;
+        SessionDescription sdp = new SessionDescription(SessionDescription.Type.ANSWER, description(ufrag, "active"));
+        clock.schedule(OPERATION_DELAY_MS, () -> observer.onCreateSuccess(sdp));
+    }
+
+    @Override
+    public void setLocalDescription(SdpObserver observer, SessionDescription sdp) {
+        PeerConnection.SignalingState next = nextState(sdp.type, true);
+        if (next == null) {
+            clock.schedule(OPERATION_DELAY_MS, () -> observer.onSetFailure("local " + sdp.type + " in state " + state));
+            return;
+        }
+        state = next;
+        String ufrag = parseUfrag(sdp.description, "a=ice-ufrag:");
+        if (!ufrag.equals(localUfrag)) {
+            localUfrag = ufrag;
+            gather(ufrag);
+        }
+        clock.schedule(OPERATION_DELAY_MS, observer::onSetSuccess);
+        checkConnected();
+    }
+
+    @Override
+    public void setRemoteDescription(SdpObserver observer, SessionDescription sdp) {
+        PeerConnection.SignalingState next = nextState(sdp.type, false);
+        if (next == null) {
+            clock.schedule(OPERATION_DELAY_MS, () -> observer.onSetFailure("remote " + sdp.type + " in state " + state));
+            return;
+        }
+        state = next;
+        remoteUfrag = parseUfrag(sdp.description, "a=ice-ufrag:");
+        clock.schedule(OPERATION_DELAY_MS, observer::onSetSuccess);
+        checkConnected();
+    }
+
+    @Override
+    public boolean addIceCandidate(IceCandidate candidate) {
+        if (remoteUfrag == null) {
+            // libwebrtc drops these and returns false, the candidate is lost.
+            violation("candidate added before remote description");
+            return false;
+        }
+        String ufrag = parseUfrag(candidate.sdp, " ufrag ");
+        Integer count = remoteCandidates.get(ufrag);
+        remoteCandidates.put(ufrag, count == null ? 1 : count + 1);
+        checkConnected();
+        return true;
+    }
+
+    @Override
+    public boolean removeIceCandidates(IceCandidate[] candidates) {
+        if (remoteUfrag == null) {
+            violation("candidates removed before remote description");
+            return false;
+        }
+        return true;
+    }
+
+    private PeerConnection.SignalingState nextState(SessionDescription.Type type, boolean local) {
+        if (type == SessionDescription.Type.OFFER) {
+            PeerConnection.SignalingState offering = local
+                    ? PeerConnection.SignalingState.HAVE_LOCAL_OFFER : PeerConnection.SignalingState.HAVE_REMOTE_OFFER;
+            return state == PeerConnection.SignalingState.STABLE || state == offering ? offering : null;
+        }
+        if (type == SessionDescription.Type.ANSWER) {
+            PeerConnection.SignalingState offered = local
+                    ? PeerConnection.SignalingState.HAVE_REMOTE_OFFER : PeerConnection.SignalingState.HAVE_LOCAL_OFFER;
+            return state == offered ? PeerConnection.SignalingState.STABLE : null;
+        }
+        return null;
+    }
+
+    private void gather(String ufrag) {
+        for (int i = 0; i < CANDIDATES_PER_GATHERING; i++) {
+            String sdp = "candidate:" + i + " 1 udp 2122260223 10.0.0." + (i + 1) + " " + (50000 + i)
+                    + " typ host generation 0 ufrag " + ufrag + " network-id 1";
+            clock.schedule(GATHER_INTERVAL_MS * (i + 1), () -> {
+                // Credentials replaced since, the session gathering for them is gone.
+                if (ufrag.equals(localUfrag)) {
+                    listener.onIceCandidate(new IceCandidate("audio", 0, sdp));
+                }
+            });
+        }
+    }
+
+    private void checkConnected() {
+        String key = currentKey();
+        if (key == null || key.equals(connectedKey) || !remoteCandidates.containsKey(remoteUfrag)) {
+            return;
+        }
+        clock.schedule(CONNECT_DELAY_MS, () -> {
+            if (key.equals(currentKey()) && !key.equals(connectedKey)) {
+                connectedKey = key;
+                listener.onConnected();
+            }
+        });
+    }
+
+    // Null unless stable with both credentials known.
+    private String currentKey() {
+        if (state != PeerConnection.SignalingState.STABLE || localUfrag == null || remoteUfrag == null) {
+            return null;
+        }
+        return localUfrag + "/" + remoteUfrag;
+    }
+
+    private String newUfrag() {
+        return name + ++generation;
+    }
+
+    private String description(String ufrag, String setup) {
+        return "v=0\r\n"
+                + "o=- " + name.hashCode() + " " + ++sessionVersion + " IN IP4 127.0.0.1\r\n"
+                + "s=-\r\n"
+                + "t=0 0\r\n"
+                + "a=group:BUNDLE audio\r\n"
+                + "m=audio 9 UDP/TLS/RTP/SAVPF 111\r\n"
+                + "c=IN IP4 0.0.0.0\r\n"
+                + "a=ice-ufrag:" + ufrag + "\r\n"
+                + "a=ice-pwd:" + ufrag + "-password-0000000\r\n"
+                + "a=ice-options:trickle\r\n"
+                + "a=setup:" + setup + "\r\n"
+                + "a=mid:audio\r\n"
+                + "a=sendrecv\r\n"
+                + "a=rtcp-mux\r\n"
+                + "a=rtpmap:111 opus/48000/2\r\n";
+    }
+
+    private void violation(String kind) {
+        Integer count = violations.get(kind);
+        violations.put(kind, count == null ? 1 : count + 1);
+    }
+
+    private static boolean isIceRestart(MediaConstraints constraints) {
+        for (MediaConstraints.KeyValuePair pair : constraints.mandatory) {
+            if (pair.getKey().equals(ICE_RESTART_CONSTRAINT) && pair.getValue().equals("true")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String parseUfrag(String text, String prefix) {
+        int start = text.indexOf(prefix);
+        if (start < 0) {
+            return "";
+        }
+        start += prefix.length();
+        int end = start;
+        while (end < text.length() && !Character.isWhitespace(text.charAt(end))) {
+            end++;
+        }
+        return text.substring(start, end);
+    }
+}
@@ -0,0 +1,63 @@
+package com.marcuschiu.meet.client.sim;
+
+import java.util.Random;
+import java.util.function.Consumer;
+
+/**
+ * One direction of the signaling path between two simulated clients. Each
+ * message gets a base delay plus jitter and may be lost, held back long
+ * enough to overtake later ones, or delivered twice the way a reconnecting
+ * WebSocket replays it.
+ */
+public class SignalingLink {
+    public static class Config {
+        public int delayMs = 40;
+        public int jitterMs = 20;
+        public double lossRate = 0;
+        public double reorderRate = 0.05;
+        public int reorderDelayMs = 150;
+        public double duplicateRate = 0.01;
+    }
+
+    private final VirtualClock clock;
+    private final Random random;
+    private final Config config;
+    private final Consumer<String> receiver;
+    private int sent;
+    private int lost;
+
+    public SignalingLink(VirtualClock clock, Random random, Config config, Consumer<String> receiver) {
+        this.clock = clock;
+        this.random = random;
+        this.config = config;
+        this.receiver = receiver;
+    }
+
+    public void send(String message) {
+        sent++;
+        if (random.nextDouble() < config.lossRate) {
+            lost++;
+            return;
+        }
+        deliver(message);
+        if (random.nextDouble() < config.duplicateRate) {
+            deliver(message);
+        }
+    }
+
+    private void deliver(String message) {
+        long delayMs = config.delayMs + (config.jitterMs > 0 ? random.nextInt(config.jitterMs + 1) : 0);
+        if (random.nextDouble() < config.reorderRate) {
+            delayMs += config.reorderDelayMs;
+        }
+        clock.schedule(delayMs, () -> receiver.accept(message));
+    }
+
+    public int getSent() {
+        return sent;
+    }
+
+    public int getLost() {
+        return lost;
+    }
+}
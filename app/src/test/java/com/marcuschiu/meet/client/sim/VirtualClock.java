@@ -0,0 +1,67 @@
+package com.marcuschiu.meet.client.sim;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * Single-threaded event loop on simulated time. Tasks run in order of due
+ * time, ties in the order they were scheduled, and time jumps straight to the
+ * next task.
+ */
+public class VirtualClock implements Executor {
+    private static class Task implements Comparable<Task> {
+        final long dueMs;
+        final long sequence;
+        final Runnable runnable;
+
+        Task(long dueMs, long sequence, Runnable runnable) {
+            this.dueMs = dueMs;
+            this.sequence = sequence;
+            this.runnable = runnable;
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            if (dueMs != other.dueMs) {
+                return Long.compare(dueMs, other.dueMs);
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+
+    private final PriorityQueue<Task> tasks = new PriorityQueue<>();
+    private long nowMs;
+    private long sequence;
+
+    public long now() {
+        return nowMs;
+    }
+
+    public void schedule(long delayMs, Runnable runnable) {
+        tasks.add(new Task(nowMs + Math.max(0, delayMs), sequence++, runnable));
+    }
+
+    /**
+     * Runs |runnable| after the tasks already due, like posting to a handler.
+     */
+    @Override
+    public void execute(Runnable runnable) {
+        schedule(0, runnable);
+    }
+
+    /**
+     * Runs tasks until none is left or the next one is due after |limitMs|.
+     * Returns whether the loop went idle.
+     */
+    public boolean runUntilIdle(long limitMs) {
+        while (!tasks.isEmpty()) {
+            if (tasks.peek().dueMs > limitMs) {
+                return false;
+            }
+            Task task = tasks.poll();
+            nowMs = task.dueMs;
+            task.runnable.run();
+        }
+        return true;
+    }
+}
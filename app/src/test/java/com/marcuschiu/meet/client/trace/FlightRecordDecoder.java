@@ -0,0 +1,67 @@
+package com.marcuschiu.meet.client.trace;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Prints flight recordings pulled off a device, e.g. with
+ * {@code adb shell run-as com.marcuschiu.meet cat files/flight/call-<ms>.frec}.
+ * Each record is shown with its offset from the start of the call, followed
+ * by a summary.
+ *
+ * <p>Lives with the unit tests so it stays out of the app, and runs on a
+ * plain JVM from their classpath:
+ * {@code FlightRecordDecoder [--errors] file...} where --errors only prints
+ * ERROR and STATE records.
+ */
+public class FlightRecordDecoder {
+    private final PrintStream out;
+    private final boolean errorsOnly;
+
+    public FlightRecordDecoder(PrintStream out, boolean errorsOnly) {
+        this.out = out;
+        this.errorsOnly = errorsOnly;
+    }
+
+    public void print(FlightRecording recording) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.US);
+        out.println("Call " + recording.label + " started " + format.format(new Date(recording.startMs)));
+        Map<FlightRecording.Kind, Integer> counts = new EnumMap<>(FlightRecording.Kind.class);
+        for (FlightRecording.Entry entry : recording.entries) {
+            Integer count = counts.get(entry.kind);
+            counts.put(entry.kind, count == null ? 1 : count + 1);
+            if (errorsOnly && entry.kind != FlightRecording.Kind.ERROR && entry.kind != FlightRecording.Kind.STATE) {
+                continue;
+            }
+            out.println(String.format(Locale.US, "%10.3f %-6s %s = %d",
+                    (entry.timeMs - recording.startMs) / 1000.0, entry.kind, entry.text, entry.value));
+        }
+        out.println(recording.entries.size() + " records " + counts + ", " + recording.overwritten()
+                + " overwritten, " + recording.tornSlots + " torn, " + recording.slotCount + " slots");
+    }
+
+    public static void main(String[] args) throws IOException {
+        boolean errorsOnly = false;
+        FlightRecordDecoder decoder = null;
+        for (String arg : args) {
+            if (arg.equals("--errors")) {
+                errorsOnly = true;
+                continue;
+            }
+            if (decoder == null) {
+                decoder = new FlightRecordDecoder(System.out, errorsOnly);
+            }
+            decoder.print(FlightRecording.read(new File(arg)));
+        }
+        if (decoder == null) {
+            System.err.println("Usage: FlightRecordDecoder [--errors] file...");
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package com.marcuschiu.meet.client.trace;
+
+import com.marcuschiu.meet.client.util.CallMetrics;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FlightRecorderTest {
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+
+    private FlightRecorder create(int slotCount) throws IOException {
+        file = folder.newFile("call.frec");
+        return new FlightRecorder(file, slotCount, "room-42");
+    }
+
+    @Test
+    public void readsBackRecords() throws Exception {
+        long before = System.currentTimeMillis();
+        FlightRecorder recorder = create(8);
+        recorder.record(FlightRecording.Kind.STATE, "CONNECTING", "CONNECTED", 1200);
+        recorder.record(FlightRecording.Kind.STATS, "ssrc_1234_send", "packetsLost", 3);
+        recorder.record(FlightRecording.Kind.METRIC, "bitrate_kbps", null, -1);
+
+        FlightRecording recording = FlightRecording.read(file);
+        assertEquals("room-42", recording.label);
+        assertEquals(8, recording.slotCount);
+        assertTrue(recording.startMs >= before);
+        assertEquals(0, recording.overwritten());
+        assertEquals(0, recording.tornSlots);
+        assertEquals(3, recording.entries.size());
+        assertEntry(recording.entries.get(0), 0, FlightRecording.Kind.STATE, "CONNECTING CONNECTED", 1200);
+        assertEntry(recording.entries.get(1), 1, FlightRecording.Kind.STATS, "ssrc_1234_send packetsLost", 3);
+        assertEntry(recording.entries.get(2), 2, FlightRecording.Kind.METRIC, "bitrate_kbps", -1);
+        assertTrue(recording.entries.get(0).timeMs >= recording.startMs);
+    }
+
+    @Test
+    public void capturesMetricsAsListener() throws Exception {
+        FlightRecorder recorder = create(8);
+        CallMetrics metrics = new CallMetrics();
+        metrics.setListener(recorder);
+        metrics.record("rtt_ms", 85);
+        metrics.recordError("PeerConnectionClient", "ICE failed");
+        metrics.setListener(null);
+        metrics.record("rtt_ms", 90);
+
+        FlightRecording recording = FlightRecording.read(file);
+        assertEquals(3, recording.entries.size());
+        assertEntry(recording.entries.get(0), 0, FlightRecording.Kind.METRIC, "rtt_ms", 85);
+        // Errors are counted, then described.
+        assertEntry(recording.entries.get(1), 1, FlightRecording.Kind.METRIC, "errors", 1);
+        assertEntry(recording.entries.get(2), 2, FlightRecording.Kind.ERROR, "PeerConnectionClient ICE failed", 0);
+    }
+
+    @Test
+    public void cutsTextToSlot() throws Exception {
+        FlightRecorder recorder = create(4);
+        char[] longText = new char[300];
+        Arrays.fill(longText, 'x');
+        recorder.record(FlightRecording.Kind.ERROR, new String(longText), "lost", 0);
+        recorder.record(FlightRecording.Kind.ERROR, "café", "会議", 0);
+
+        FlightRecording recording = FlightRecording.read(file);
+        assertEquals(new String(longText, 0, FlightRecording.TEXT_CAPACITY), recording.entries.get(0).text);
+        // Latin-1 is kept, the rest becomes '?'.
+        assertEquals("café ??", recording.entries.get(1).text);
+    }
+
+    @Test
+    public void keepsNewestRecordsAfterWrapAround() throws Exception {
+        FlightRecorder recorder = create(4);
+        for (int i = 0; i < 11; i++) {
+            recorder.record(FlightRecording.Kind.METRIC, "n", null, i);
+        }
+
+        FlightRecording recording = FlightRecording.read(file);
+        assertEquals(7, recording.overwritten());
+        assertEquals(4, recording.entries.size());
+        for (int i = 0; i < 4; i++) {
+            assertEntry(recording.entries.get(i), 7 + i, FlightRecording.Kind.METRIC, "n", 7 + i);
+        }
+        assertEquals(0, recording.tornSlots);
+    }
+
+    @Test
+    public void skipsTornSlots() throws Exception {
+        FlightRecorder recorder = create(4);
+        for (int i = 0; i < 6; i++) {
+            recorder.record(FlightRecording.Kind.METRIC, "n", null, i);
+        }
+        // Record 5 in slot 1 cut off after its first stamp, as if the
+        // process died while writing it.
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(FlightRecording.SLOT_SIZE * 2 + FlightRecording.STAMP_END);
+            raf.writeLong(2);
+            // Record 3 in slot 3 with a stamp that belongs to another slot.
+            raf.seek(FlightRecording.SLOT_SIZE * 4 + FlightRecording.STAMP);
+            raf.writeLong(3);
+            raf.seek(FlightRecording.SLOT_SIZE * 4 + FlightRecording.STAMP_END);
+            raf.writeLong(3);
+        }
+
+        FlightRecording recording = FlightRecording.read(file);
+        assertEquals(2, recording.tornSlots);
+        assertEquals(2, recording.entries.size());
+        assertEquals(2, recording.entries.get(0).sequence);
+        assertEquals(4, recording.entries.get(1).sequence);
+    }
+
+    @Test
+    public void readsTruncatedFile() throws Exception {
+        FlightRecorder recorder = create(4);
+        for (int i = 0; i < 3; i++) {
+            recorder.record(FlightRecording.Kind.METRIC, "n", null, i);
+        }
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        File truncated = folder.newFile("truncated.frec");
+        // The header and the first two slots, plus part of the third.
+        Files.write(truncated.toPath(), Arrays.copyOf(bytes, FlightRecording.SLOT_SIZE * 3 + 40));
+
+        FlightRecording recording = FlightRecording.read(truncated);
+        assertEquals(2, recording.slotCount);
+        assertEquals(2, recording.entries.size());
+        assertEquals(0, recording.tornSlots);
+    }
+
+    @Test
+    public void rejectsOtherFiles() throws Exception {
+        File other = folder.newFile("other.frec");
+        Files.write(other.toPath(), new byte[FlightRecording.SLOT_SIZE * 2]);
+        try {
+            FlightRecording.read(other);
+            fail();
+        } catch (IOException expected) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void decoderPrintsRecordsAndSummary() throws Exception {
+        FlightRecorder recorder = create(4);
+        recorder.record(FlightRecording.Kind.METRIC, "rtt_ms", null, 85);
+        recorder.record(FlightRecording.Kind.ERROR, "PeerConnectionClient", "ICE failed", 0);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new FlightRecordDecoder(new PrintStream(out, true, "UTF-8"), true).print(FlightRecording.read(file));
+        String printed = out.toString("UTF-8");
+        assertTrue(printed, printed.startsWith("Call room-42 started "));
+        assertFalse(printed, printed.contains("rtt_ms"));
+        assertTrue(printed, printed.contains("ERROR  PeerConnectionClient ICE failed = 0"));
+        assertTrue(printed, printed.contains("2 records {METRIC=1, ERROR=1}, 0 overwritten, 0 torn, 4 slots"));
+    }
+
+    private static void assertEntry(FlightRecording.Entry entry, long sequence, FlightRecording.Kind kind, String text, long value) {
+        assertEquals(sequence, entry.sequence);
+        assertEquals(kind, entry.kind);
+        assertEquals(text, entry.text);
+        assertEquals(value, entry.value);
+    }
+}
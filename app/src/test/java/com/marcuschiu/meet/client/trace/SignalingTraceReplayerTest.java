@@ -0,0 +1,283 @@
+package com.marcuschiu.meet.client.trace;
+
+import com.marcuschiu.meet.client.AppRTCClient;
+import com.marcuschiu.meet.client.SignalingCodec;
+import com.marcuschiu.meet.client.WebSocketRTCClient;
+import com.marcuschiu.meet.client.WebSocketTransport;
+import com.marcuschiu.meet.client.util.AsyncHttpURLConnection;
+import com.marcuschiu.meet.client.util.CallMetrics;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.webrtc.IceCandidate;
+import org.webrtc.SessionDescription;
+
+import java.io.File;
+import java.net.URI;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Records a scripted session of WebSocketRTCClient, reads the trace back and
+ * replays it into a fresh client.
+ */
+public class SignalingTraceReplayerTest {
+    private static final String CLIENT_ID = "31415926";
+    private static final String OFFER = "v=0\r\no=- 4611731400430051336 2 IN IP4 127.0.0.1\r\ns=-\r\nt=0 0\r\n";
+    private static final String ANSWER = "v=0\r\no=- 7595655801978680453 2 IN IP4 127.0.0.1\r\ns=-\r\nt=0 0\r\n";
+    private static final IceCandidate CANDIDATE = new IceCandidate("0", 0,
+            "candidate:1467250027 1 udp 2122260223 192.168.1.23 52301 typ host generation 0");
+    // Between the messages the scripted server sends after register.
+    private static final long MESSAGE_GAP_MS = 100;
+    private static final List<String> EXPECTED_EVENTS = Arrays.asList(
+            "connected " + CLIENT_ID + " initiator=false offer=true",
+            "candidate " + CANDIDATE.sdp,
+            "removed 1",
+            "renegotiate");
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final ScheduledExecutorService network = Executors.newSingleThreadScheduledExecutor();
+
+    @After
+    public void tearDown() {
+        network.shutdownNow();
+    }
+
+    private static class RecordingEvents implements AppRTCClient.SignalingEvents {
+        final BlockingQueue<String> events = new LinkedBlockingQueue<>();
+
+        @Override
+        public void onConnectedToRoom(AppRTCClient.SignalingParameters params) {
+            events.add("connected " + params.clientId + " initiator=" + params.initiator + " offer=" + (params.offerSdp != null));
+        }
+
+        @Override
+        public void onRemoteDescription(SessionDescription sdp) {
+            events.add("description " + sdp.type);
+        }
+
+        @Override
+        public void onRemoteIceCandidate(IceCandidate candidate) {
+            events.add("candidate " + candidate.sdp);
+        }
+
+        @Override
+        public void onRemoteIceCandidatesRemoved(IceCandidate[] candidates) {
+            events.add("removed " + candidates.length);
+        }
+
+        @Override
+        public void onRemoteVideoPaused(boolean paused) {
+            events.add("paused " + paused);
+        }
+
+        @Override
+        public void onRemoteRenegotiationRequest() {
+            events.add("renegotiate");
+        }
+
+        @Override
+        public void onChannelClose() {
+            events.add("close");
+        }
+
+        @Override
+        public void onChannelError(String description) {
+            events.add("error " + description);
+        }
+
+        List<String> take(int count) throws InterruptedException {
+            List<String> taken = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                String event = events.poll(5, TimeUnit.SECONDS);
+                assertNotNull("Only got " + taken, event);
+                taken.add(event);
+            }
+            return taken;
+        }
+    }
+
+    /**
+     * A room server and WebSocket server that answer the join and, once
+     * registered, push a few messages MESSAGE_GAP_MS apart.
+     */
+    private class ScriptedNetwork implements AsyncHttpURLConnection.Sender, WebSocketTransport.Factory {
+        private final SignalingCodec codec = new SignalingCodec();
+
+        @Override
+        public void send(String method, String url, String message, AsyncHttpURLConnection.AsyncHttpEvents events) {
+            network.execute(() -> {
+                try {
+                    events.onHttpComplete(url.contains("/join/") ? joinResponse() : "{\"result\":\"SUCCESS\"}");
+                } catch (Exception e) {
+                    events.onHttpError(e.toString());
+                }
+            });
+        }
+
+        private String joinResponse() throws Exception {
+            JSONObject params = new JSONObject()
+                    .put("client_id", CLIENT_ID)
+                    .put("wss_url", "wss://ws.example.org/ws")
+                    .put("wss_post_url", "https://ws.example.org")
+                    .put("is_initiator", "false")
+                    .put("messages", new JSONArray().put(codec.description(SignalingCodec.TYPE_OFFER, OFFER, false)).toString())
+                    .put("pc_config", "{\"iceServers\":[]}");
+            return new JSONObject().put("result", "SUCCESS").put("params", params.toString()).toString();
+        }
+
+        @Override
+        public WebSocketTransport create() {
+            return new WebSocketTransport() {
+                private Observer observer;
+
+                @Override
+                public void connect(URI uri, Observer observer) {
+                    this.observer = observer;
+                    network.execute(observer::onOpen);
+                }
+
+                @Override
+                public void sendTextMessage(String message) {
+                    if (!message.contains("\"cmd\":\"register\"")) {
+                        return;
+                    }
+                    List<String> messages = Arrays.asList(
+                            codec.candidate(CANDIDATE),
+                            codec.removeCandidates(new IceCandidate[]{CANDIDATE}),
+                            codec.renegotiate());
+                    for (int i = 0; i < messages.size(); i++) {
+                        final String envelope = new JSONObject().put("msg", messages.get(i)).put("error", "").toString();
+                        network.schedule(() -> observer.onTextMessage(envelope), (i + 1) * MESSAGE_GAP_MS, TimeUnit.MILLISECONDS);
+                    }
+                }
+
+                @Override
+                public void sendPing(byte[] payload) {
+                }
+
+                @Override
+                public void disconnect() {
+                    network.execute(() -> observer.onClose("Closed by client"));
+                }
+            };
+        }
+    }
+
+    private File record() throws Exception {
+        File file = folder.newFile("session.sgtr");
+        SignalingTraceRecorder recorder = new SignalingTraceRecorder(file);
+        ScriptedNetwork scripted = new ScriptedNetwork();
+        RecordingEvents events = new RecordingEvents();
+        WebSocketRTCClient client = new WebSocketRTCClient(events, new CallMetrics(),
+                recorder.wrap((AsyncHttpURLConnection.Sender) scripted), recorder.wrap((WebSocketTransport.Factory) scripted));
+        client.connectToRoom("room");
+        assertEquals(EXPECTED_EVENTS, events.take(EXPECTED_EVENTS.size()));
+        client.sendAnswerSdp(new SessionDescription(SessionDescription.Type.ANSWER, ANSWER));
+        // Lets the answer reach the transport.
+        Thread.sleep(MESSAGE_GAP_MS);
+        recorder.close();
+        client.disconnectFromRoom().get(5, TimeUnit.SECONDS);
+        return file;
+    }
+
+    private static List<SignalingTrace.Kind> kinds(List<SignalingTrace.Event> events) {
+        List<SignalingTrace.Kind> kinds = new ArrayList<>();
+        for (SignalingTrace.Event event : events) {
+            kinds.add(event.kind);
+        }
+        return kinds;
+    }
+
+    private SignalingTraceReplayer.Stats replay(List<SignalingTrace.Event> trace, double speed) throws Exception {
+        SignalingTraceReplayer replayer = new SignalingTraceReplayer(trace, speed);
+        RecordingEvents events = new RecordingEvents();
+        new WebSocketRTCClient(events, new CallMetrics(), replayer, replayer).connectToRoom("room");
+        assertEquals(EXPECTED_EVENTS, events.take(EXPECTED_EVENTS.size()));
+        SignalingTraceReplayer.Stats stats = replayer.finished().get(5, TimeUnit.SECONDS);
+        assertTrue(events.events.isEmpty());
+        return stats;
+    }
+
+    @Test
+    public void recordsSession() throws Exception {
+        List<SignalingTrace.Event> trace = SignalingTrace.read(record());
+        assertEquals(Arrays.asList(
+                SignalingTrace.Kind.HTTP_REQUEST,
+                SignalingTrace.Kind.HTTP_RESPONSE,
+                SignalingTrace.Kind.WS_CONNECT,
+                SignalingTrace.Kind.WS_OPEN,
+                SignalingTrace.Kind.WS_SEND,
+                SignalingTrace.Kind.WS_MESSAGE,
+                SignalingTrace.Kind.WS_MESSAGE,
+                SignalingTrace.Kind.WS_MESSAGE,
+                SignalingTrace.Kind.WS_SEND), kinds(trace));
+        assertEquals("POST https://appr.tc/join/room", trace.get(0).head());
+        assertEquals("https://appr.tc/join/room", trace.get(1).head());
+        assertEquals("wss://ws.example.org/ws", trace.get(2).payload);
+        assertTrue(trace.get(4).payload.contains("\"clientid\":\"" + CLIENT_ID + "\""));
+        assertTrue(trace.get(8).payload.contains("answer"));
+        for (int i = 1; i < trace.size(); i++) {
+            assertTrue(trace.get(i).timeUs >= trace.get(i - 1).timeUs);
+        }
+        // The scripted gaps show in the timeline.
+        assertTrue(trace.get(7).timeUs - trace.get(5).timeUs >= 2 * MESSAGE_GAP_MS * 1000 * 9 / 10);
+    }
+
+    @Test
+    public void readsUpToTruncatedEvent() throws Exception {
+        File file = record();
+        List<SignalingTrace.Event> trace = SignalingTrace.read(file);
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        File truncated = folder.newFile("truncated.sgtr");
+        // Cut into the payload of the last event.
+        Files.write(truncated.toPath(), Arrays.copyOf(bytes, bytes.length - 5));
+
+        List<SignalingTrace.Event> read = SignalingTrace.read(truncated);
+        assertEquals(trace.size() - 1, read.size());
+        for (int i = 0; i < read.size(); i++) {
+            assertEquals(trace.get(i).toString(), read.get(i).toString());
+        }
+    }
+
+    @Test
+    public void replaysAtOnce() throws Exception {
+        List<SignalingTrace.Event> trace = SignalingTrace.read(record());
+        SignalingTraceReplayer.Stats stats = replay(trace, 0);
+        // The join response, open and three messages.
+        assertEquals(5, stats.delivered);
+        assertEquals(0, stats.unmatched);
+        assertEquals(1, stats.requests);
+        assertTrue("elapsed " + stats.elapsedMs, stats.elapsedMs < 2 * MESSAGE_GAP_MS);
+    }
+
+    @Test
+    public void replaysWithRecordedTiming() throws Exception {
+        List<SignalingTrace.Event> trace = SignalingTrace.read(record());
+        SignalingTraceReplayer.Stats stats = replay(trace, 1);
+        assertEquals(5, stats.delivered);
+        assertEquals(0, stats.unmatched);
+        assertEquals(1, stats.requests);
+        // Register went out while the messages were still coming.
+        assertTrue(stats.messagesSent >= 1);
+        long recordedMs = (trace.get(7).timeUs - trace.get(0).timeUs) / 1000;
+        assertTrue("elapsed " + stats.elapsedMs + " of " + recordedMs, stats.elapsedMs >= recordedMs * 9 / 10);
+    }
+}
@@ -0,0 +1,447 @@
+package com.marcuschiu.meet.client.ws;
+
+import com.marcuschiu.meet.client.WebSocketTransport;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyStore;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SNIMatcher;
+import javax.net.ssl.SNIServerName;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs NioWebSocketTransport against a local server that scripts each frame,
+ * covering the RFC 6455 and RFC 7692 cases the signaling channel relies on.
+ */
+public class NioWebSocketTransportTest {
+    private static final int FIN = 0x80;
+    private static final int RSV1 = 0x40;
+    private static final int TEXT = WebSocketCodec.OPCODE_TEXT;
+    private static final int CONTINUATION = WebSocketCodec.OPCODE_CONTINUATION;
+    private static final int CLOSE = WebSocketCodec.OPCODE_CLOSE;
+    private static final int PING = WebSocketCodec.OPCODE_PING;
+    private static final int PONG = WebSocketCodec.OPCODE_PONG;
+
+    private static class RecordingObserver implements WebSocketTransport.Observer {
+        final BlockingQueue<String> events = new LinkedBlockingQueue<>();
+
+        @Override
+        public void onOpen() {
+            events.add("open");
+        }
+
+        @Override
+        public void onClose(String reason) {
+            events.add("close:" + reason);
+        }
+
+        @Override
+        public void onTextMessage(String payload) {
+            events.add("text:" + payload);
+        }
+
+        @Override
+        public void onPong(byte[] payload) {
+            events.add("pong:" + new String(payload, StandardCharsets.UTF_8));
+        }
+
+        String next() throws InterruptedException {
+            String event = events.poll(5, TimeUnit.SECONDS);
+            assertNotNull("No event", event);
+            return event;
+        }
+    }
+
+    private WebSocketSelectorThread io;
+    private ScriptedWebSocketServer server;
+    private NioWebSocketTransport transport;
+    private final RecordingObserver observer = new RecordingObserver();
+
+    @Before
+    public void setUp() throws Exception {
+        io = new WebSocketSelectorThread("WebSocketTest");
+        transport = new NioWebSocketTransport(io);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        transport.disconnect();
+        if (server != null) {
+            server.close();
+        }
+    }
+
+    private Map<String, String> open(String extensions) throws Exception {
+        server = new ScriptedWebSocketServer();
+        transport.connect(server.uri("ws"), observer);
+        Map<String, String> request = server.accept(extensions);
+        assertEquals("open", observer.next());
+        return request;
+    }
+
+    private void assertClosedWith(int code) throws Exception {
+        ScriptedWebSocketServer.Frame frame = server.readFrame();
+        assertEquals(CLOSE, frame.opcode);
+        assertTrue(frame.masked);
+        assertEquals(code, frame.closeCode());
+        assertTrue(server.readEof());
+        assertTrue(observer.next().startsWith("close:"));
+    }
+
+    @Test
+    public void sendsUpgradeRequest() throws Exception {
+        Map<String, String> request = open(null);
+        assertEquals("GET /ws?room=1 HTTP/1.1", request.get(""));
+        assertEquals("websocket", request.get("upgrade"));
+        assertEquals("13", request.get("sec-websocket-version"));
+        assertEquals(16, Base64.getDecoder().decode(request.get("sec-websocket-key")).length);
+        // No window size is offered, java.util.zip cannot honor one.
+        assertEquals("permessage-deflate", request.get("sec-websocket-extensions"));
+    }
+
+    @Test
+    public void masksEveryClientFrame() throws Exception {
+        open(null);
+        String message = "{\"cmd\":\"send\",\"msg\":\"masked payload long enough to see the key repeat\"}";
+        transport.sendTextMessage(message);
+        ScriptedWebSocketServer.Frame frame = server.readFrame();
+        assertTrue(frame.fin);
+        assertFalse(frame.rsv1);
+        assertEquals(TEXT, frame.opcode);
+        assertTrue(frame.masked);
+        assertEquals(message, frame.text());
+        assertFalse(Arrays.equals(frame.payload, frame.wirePayload));
+    }
+
+    @Test
+    public void reassemblesFragments() throws Exception {
+        open(null);
+        server.sendText(TEXT, "Hel");
+        server.sendText(CONTINUATION, "lo ");
+        server.sendText(FIN | CONTINUATION, "world");
+        assertEquals("text:Hello world", observer.next());
+    }
+
+    @Test
+    public void reassemblesCharacterSplitAcrossFragments() throws Exception {
+        open(null);
+        byte[] euro = "€".getBytes(StandardCharsets.UTF_8);
+        server.send(TEXT, Arrays.copyOfRange(euro, 0, 1));
+        server.send(FIN | CONTINUATION, Arrays.copyOfRange(euro, 1, 3));
+        assertEquals("text:€", observer.next());
+    }
+
+    @Test
+    public void answersPingBetweenFragments() throws Exception {
+        open(null);
+        server.sendText(TEXT, "frag");
+        server.sendText(FIN | PING, "p1");
+        server.sendText(FIN | PONG, "unsolicited");
+        server.sendText(FIN | CONTINUATION, "ment");
+        assertEquals("pong:unsolicited", observer.next());
+        assertEquals("text:fragment", observer.next());
+        ScriptedWebSocketServer.Frame pong = server.readFrame();
+        assertEquals(PONG, pong.opcode);
+        assertTrue(pong.masked);
+        assertEquals("p1", pong.text());
+    }
+
+    @Test
+    public void sendsPingAndReportsPong() throws Exception {
+        open(null);
+        transport.sendTextMessage("before");
+        transport.sendPing("7".getBytes(StandardCharsets.UTF_8));
+        assertEquals("before", server.readFrame().text());
+        ScriptedWebSocketServer.Frame ping = server.readFrame();
+        assertEquals(PING, ping.opcode);
+        assertTrue(ping.masked);
+        assertEquals("7", ping.text());
+        server.send(FIN | PONG, ping.payload);
+        assertEquals("pong:7", observer.next());
+    }
+
+    @Test
+    public void closesWith1002OnMaskedServerFrame() throws Exception {
+        open(null);
+        server.send(FIN | TEXT, "masked".getBytes(StandardCharsets.UTF_8), true);
+        assertClosedWith(WebSocketProtocolException.PROTOCOL_ERROR);
+    }
+
+    @Test
+    public void closesWith1002OnReservedBits() throws Exception {
+        open(null);
+        server.sendText(FIN | 0x20 | TEXT, "rsv2");
+        assertClosedWith(WebSocketProtocolException.PROTOCOL_ERROR);
+    }
+
+    @Test
+    public void closesWith1002OnCompressedFrameWithoutExtension() throws Exception {
+        open(null);
+        server.sendText(FIN | RSV1 | TEXT, "rsv1");
+        assertClosedWith(WebSocketProtocolException.PROTOCOL_ERROR);
+    }
+
+    @Test
+    public void closesWith1002OnContinuationWithoutStart() throws Exception {
+        open(null);
+        server.sendText(FIN | CONTINUATION, "orphan");
+        assertClosedWith(WebSocketProtocolException.PROTOCOL_ERROR);
+    }
+
+    @Test
+    public void closesWith1002OnNewMessageInsideFragments() throws Exception {
+        open(null);
+        server.sendText(TEXT, "first");
+        server.sendText(FIN | TEXT, "second");
+        assertClosedWith(WebSocketProtocolException.PROTOCOL_ERROR);
+    }
+
+    @Test
+    public void closesWith1002OnFragmentedControlFrame() throws Exception {
+        open(null);
+        server.sendText(PING, "no fin");
+        assertClosedWith(WebSocketProtocolException.PROTOCOL_ERROR);
+    }
+
+    @Test
+    public void closesWith1002OnOversizedControlFrame() throws Exception {
+        open(null);
+        server.send(FIN | PING, new byte[126]);
+        assertClosedWith(WebSocketProtocolException.PROTOCOL_ERROR);
+    }
+
+    @Test
+    public void closesWith1002OnUnknownOpcode() throws Exception {
+        open(null);
+        server.sendText(FIN | 0x3, "reserved");
+        assertClosedWith(WebSocketProtocolException.PROTOCOL_ERROR);
+    }
+
+    @Test
+    public void closesWith1002OnReservedCloseCode() throws Exception {
+        open(null);
+        server.send(FIN | CLOSE, new byte[]{0x03, (byte) 0xed});
+        assertClosedWith(WebSocketProtocolException.PROTOCOL_ERROR);
+    }
+
+    @Test
+    public void closesWith1007OnInvalidUtf8() throws Exception {
+        open(null);
+        server.send(FIN | TEXT, new byte[]{'o', 'k', (byte) 0xc3, 0x28});
+        assertClosedWith(WebSocketProtocolException.INVALID_DATA);
+    }
+
+    @Test
+    public void closesWith1007OnTruncatedUtf8AtMessageEnd() throws Exception {
+        open(null);
+        server.send(TEXT, new byte[]{'o', 'k'});
+        server.send(FIN | CONTINUATION, new byte[]{(byte) 0xe2, (byte) 0x82});
+        assertClosedWith(WebSocketProtocolException.INVALID_DATA);
+    }
+
+    @Test
+    public void closesWith1007OnInvalidUtf8CloseReason() throws Exception {
+        open(null);
+        server.send(FIN | CLOSE, new byte[]{0x03, (byte) 0xe8, (byte) 0xff});
+        assertClosedWith(WebSocketProtocolException.INVALID_DATA);
+    }
+
+    @Test
+    public void closesWith1009OnOversizedFrame() throws Exception {
+        open(null);
+        // Only the header of a 2 MB frame, the client must not wait for the rest.
+        server.sendRaw(new byte[]{(byte) (FIN | TEXT), 127, 0, 0, 0, 0, 0, 0x20, 0, 0});
+        assertClosedWith(WebSocketProtocolException.MESSAGE_TOO_BIG);
+    }
+
+    @Test
+    public void closesWith1009OnOversizedFragmentedMessage() throws Exception {
+        open(null);
+        byte[] chunk = new byte[600 * 1024];
+        Arrays.fill(chunk, (byte) 'a');
+        server.send(TEXT, chunk);
+        server.send(FIN | CONTINUATION, chunk);
+        assertClosedWith(WebSocketProtocolException.MESSAGE_TOO_BIG);
+    }
+
+    @Test
+    public void echoesServerClose() throws Exception {
+        open(null);
+        server.send(FIN | CLOSE, new byte[]{0x03, (byte) 0xe8, 'b', 'y', 'e'});
+        ScriptedWebSocketServer.Frame echo = server.readFrame();
+        assertEquals(CLOSE, echo.opcode);
+        assertEquals(WebSocketProtocolException.NORMAL, echo.closeCode());
+        assertEquals("close:1000: bye", observer.next());
+    }
+
+    @Test
+    public void sendsCloseOnDisconnect() throws Exception {
+        open(null);
+        transport.disconnect();
+        ScriptedWebSocketServer.Frame close = server.readFrame();
+        assertEquals(CLOSE, close.opcode);
+        assertEquals(WebSocketProtocolException.NORMAL, close.closeCode());
+        server.send(FIN | CLOSE, new byte[]{0x03, (byte) 0xe8});
+        assertEquals("close:Closed by client", observer.next());
+    }
+
+    @Test
+    public void negotiatesPerMessageDeflate() throws Exception {
+        open("permessage-deflate; server_no_context_takeover; client_no_context_takeover");
+        String text = "{\"type\":\"candidate\",\"label\":0,\"id\":\"0\",\"candidate\":\"candidate:1 1 udp 2122260223 "
+                + "192.168.1.2 54321 typ host generation 0 ufrag abcd network-id 1 network-cost 10\"}";
+
+        // Server to client, compressed with the deflate tail left off.
+        server.send(FIN | RSV1 | TEXT, deflate(text));
+        assertEquals("text:" + text, observer.next());
+        // Without context takeover a second message inflates on its own.
+        server.send(FIN | RSV1 | TEXT, deflate(text));
+        assertEquals("text:" + text, observer.next());
+
+        transport.sendTextMessage(text);
+        ScriptedWebSocketServer.Frame frame = server.readFrame();
+        assertTrue(frame.rsv1);
+        assertTrue(frame.payload.length < text.length());
+        assertEquals(text, inflate(frame.payload));
+
+        // Short messages go out uncompressed.
+        transport.sendTextMessage("{}");
+        frame = server.readFrame();
+        assertFalse(frame.rsv1);
+        assertEquals("{}", frame.text());
+    }
+
+    @Test
+    public void acceptsServerMaxWindowBits() throws Exception {
+        open("permessage-deflate; server_max_window_bits=10");
+        server.send(FIN | RSV1 | TEXT, deflate("windowed"));
+        assertEquals("text:windowed", observer.next());
+    }
+
+    @Test
+    public void rejectsUnsolicitedClientMaxWindowBits() throws Exception {
+        server = new ScriptedWebSocketServer();
+        transport.connect(server.uri("ws"), observer);
+        server.accept("permessage-deflate; client_max_window_bits=10");
+        String event = observer.next();
+        assertTrue(event, event.startsWith("close:") && event.contains("client_max_window_bits"));
+        assertTrue(server.readEof());
+    }
+
+    @Test
+    public void closesWith1007OnBadDeflateData() throws Exception {
+        open("permessage-deflate");
+        server.send(FIN | RSV1 | TEXT, new byte[]{(byte) 0xff, (byte) 0xff, (byte) 0xff});
+        assertClosedWith(WebSocketProtocolException.INVALID_DATA);
+    }
+
+    @Test
+    public void rejectsBadAcceptKey() throws Exception {
+        server = new ScriptedWebSocketServer();
+        transport.connect(server.uri("ws"), observer);
+        // A response for a different key.
+        server.serverSocket().accept().getOutputStream().write(("HTTP/1.1 101 Switching Protocols\r\n"
+                + "Upgrade: websocket\r\nConnection: Upgrade\r\n"
+                + "Sec-WebSocket-Accept: s3pPLMBiTxaQ9kYGzzhZRbK+xOo=\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        assertEquals("close:Bad Sec-WebSocket-Accept", observer.next());
+    }
+
+    @Test
+    public void connectsOverTlsWithSni() throws Exception {
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        try (InputStream in = getClass().getResourceAsStream("/ws/localhost.p12")) {
+            keyStore.load(in, "password".toCharArray());
+        }
+        KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keys.init(keyStore, "password".toCharArray());
+        TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trust.init(keyStore);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keys.getKeyManagers(), trust.getTrustManagers(), null);
+
+        SSLContext previous = SSLContext.getDefault();
+        SSLContext.setDefault(context);
+        try {
+            server = new ScriptedWebSocketServer(context);
+            AtomicReference<String> serverName = new AtomicReference<>();
+            SSLServerSocket socket = (SSLServerSocket) server.serverSocket();
+            SSLParameters params = socket.getSSLParameters();
+            params.setSNIMatchers(Collections.singletonList(new SNIMatcher(0) {
+                @Override
+                public boolean matches(SNIServerName name) {
+                    serverName.set(((SNIHostName) name).getAsciiName());
+                    return true;
+                }
+            }));
+            socket.setSSLParameters(params);
+
+            transport.connect(server.uri("wss"), observer);
+            server.accept(null);
+            assertEquals("open", observer.next());
+            assertEquals("localhost", serverName.get());
+
+            // Large enough to span several TLS records.
+            char[] big = new char[40000];
+            Arrays.fill(big, 'x');
+            server.sendText(FIN | TEXT, new String(big));
+            assertEquals("text:" + new String(big), observer.next());
+            transport.sendTextMessage("over tls");
+            assertEquals("over tls", server.readFrame().text());
+        } finally {
+            SSLContext.setDefault(previous);
+        }
+    }
+
+    private static byte[] deflate(String text) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        deflater.setInput(text.getBytes(StandardCharsets.UTF_8));
+        byte[] buffer = new byte[4096];
+        int length = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+        deflater.end();
+        // Drop the 00 00 ff ff tail, RFC 7692 section 7.2.1.
+        return Arrays.copyOf(buffer, length - 4);
+    }
+
+    private static String inflate(byte[] payload) throws Exception {
+        Inflater inflater = new Inflater(true);
+        byte[] input = Arrays.copyOf(payload, payload.length + 4);
+        input[payload.length + 2] = (byte) 0xff;
+        input[payload.length + 3] = (byte) 0xff;
+        inflater.setInput(input);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = inflater.inflate(buffer)) > 0) {
+            out.write(buffer, 0, n);
+        }
+        inflater.end();
+        return out.toString("UTF-8");
+    }
+}
@@ -0,0 +1,228 @@
+package com.marcuschiu.meet.client.ws;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.net.ssl.SSLContext;
+
+/**
+ * A local WebSocket server the test drives frame by frame, so it can send
+ * what a well-behaved server never would. Serves one connection at a time,
+ * accept() again after drop() for the next.
+ */
+public final class ScriptedWebSocketServer implements Closeable {
+    private static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final int READ_TIMEOUT_MS = 5000;
+
+    public static final class Frame {
+        public final boolean fin;
+        public final boolean rsv1;
+        public final int opcode;
+        public final boolean masked;
+        // Unmasked.
+        public final byte[] payload;
+        public final byte[] wirePayload;
+
+        Frame(boolean fin, boolean rsv1, int opcode, boolean masked, byte[] payload, byte[] wirePayload) {
+            this.fin = fin;
+            this.rsv1 = rsv1;
+            this.opcode = opcode;
+            this.masked = masked;
+            this.payload = payload;
+            this.wirePayload = wirePayload;
+        }
+
+        public String text() {
+            return new String(payload, StandardCharsets.UTF_8);
+        }
+
+        public int closeCode() {
+            return ((payload[0] & 0xff) << 8) | (payload[1] & 0xff);
+        }
+    }
+
+    private final ServerSocket server;
+    private Socket socket;
+    private DataInputStream in;
+    private OutputStream out;
+
+    public ScriptedWebSocketServer() throws IOException {
+        this(new ServerSocket(0, 1, InetAddress.getLoopbackAddress()));
+    }
+
+    /**
+     * A wss:// server, see serverSocket() for its TLS parameters.
+     */
+    public ScriptedWebSocketServer(SSLContext context) throws IOException {
+        this(context.getServerSocketFactory().createServerSocket(0, 1, InetAddress.getLoopbackAddress()));
+    }
+
+    private ScriptedWebSocketServer(ServerSocket server) throws IOException {
+        this.server = server;
+        server.setSoTimeout(READ_TIMEOUT_MS);
+    }
+
+    public ServerSocket serverSocket() {
+        return server;
+    }
+
+    public URI uri(String scheme) {
+        return URI.create(scheme + "://localhost:" + server.getLocalPort() + "/ws?room=1");
+    }
+
+    /**
+     * Accepts the connection and answers its upgrade request, with
+     * |extensions| as Sec-WebSocket-Extensions unless null. Returns the
+     * request line and headers, names lower case.
+     */
+    public Map<String, String> accept(String extensions) throws Exception {
+        socket = server.accept();
+        socket.setSoTimeout(READ_TIMEOUT_MS);
+        in = new DataInputStream(socket.getInputStream());
+        out = socket.getOutputStream();
+
+        Map<String, String> headers = new HashMap<>();
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        String requestLine = null;
+        while (true) {
+            int b = in.read();
+            if (b < 0) {
+                throw new IOException("Request cut off");
+            }
+            if (b != '\n') {
+                if (b != '\r') {
+                    line.write(b);
+                }
+                continue;
+            }
+            String text = line.toString("ISO-8859-1");
+            line.reset();
+            if (text.isEmpty()) {
+                break;
+            }
+            if (requestLine == null) {
+                requestLine = text;
+                headers.put("", text);
+            } else {
+                int colon = text.indexOf(':');
+                headers.put(text.substring(0, colon).trim().toLowerCase(), text.substring(colon + 1).trim());
+            }
+        }
+
+        byte[] digest = MessageDigest.getInstance("SHA-1")
+                .digest((headers.get("sec-websocket-key") + ACCEPT_GUID).getBytes(StandardCharsets.ISO_8859_1));
+        String response = "HTTP/1.1 101 Switching Protocols\r\n"
+                + "Upgrade: websocket\r\n"
+                + "Connection: Upgrade\r\n"
+                + "Sec-WebSocket-Accept: " + Base64.getEncoder().encodeToString(digest) + "\r\n"
+                + (extensions != null ? "Sec-WebSocket-Extensions: " + extensions + "\r\n" : "")
+                + "\r\n";
+        out.write(response.getBytes(StandardCharsets.ISO_8859_1));
+        out.flush();
+        return headers;
+    }
+
+    /**
+     * Sends an unmasked frame whose first byte is |b0|, FIN, RSV and opcode.
+     */
+    public void send(int b0, byte[] payload) throws IOException {
+        send(b0, payload, false);
+    }
+
+    public void send(int b0, byte[] payload, boolean masked) throws IOException {
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        frame.write(b0);
+        int maskBit = masked ? 0x80 : 0;
+        if (payload.length <= 125) {
+            frame.write(maskBit | payload.length);
+        } else if (payload.length <= 0xffff) {
+            frame.write(maskBit | 126);
+            frame.write(payload.length >>> 8);
+            frame.write(payload.length);
+        } else {
+            frame.write(maskBit | 127);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                frame.write((int) ((long) payload.length >>> shift));
+            }
+        }
+        byte[] mask = {1, 2, 3, 4};
+        if (masked) {
+            frame.write(mask);
+        }
+        for (int i = 0; i < payload.length; i++) {
+            frame.write(masked ? payload[i] ^ mask[i & 3] : payload[i]);
+        }
+        sendRaw(frame.toByteArray());
+    }
+
+    public void sendText(int b0, String text) throws IOException {
+        send(b0, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public void sendRaw(byte[] bytes) throws IOException {
+        out.write(bytes);
+        out.flush();
+    }
+
+    /**
+     * Reads the next frame the client sent.
+     */
+    public Frame readFrame() throws IOException {
+        int b0 = in.readUnsignedByte();
+        int b1 = in.readUnsignedByte();
+        long length = b1 & 0x7f;
+        if (length == 126) {
+            length = in.readUnsignedShort();
+        } else if (length == 127) {
+            length = in.readLong();
+        }
+        boolean masked = (b1 & 0x80) != 0;
+        byte[] mask = new byte[4];
+        if (masked) {
+            in.readFully(mask);
+        }
+        byte[] wire = new byte[(int) length];
+        in.readFully(wire);
+        byte[] payload = wire.clone();
+        if (masked) {
+            for (int i = 0; i < payload.length; i++) {
+                payload[i] ^= mask[i & 3];
+            }
+        }
+        return new Frame((b0 & 0x80) != 0, (b0 & 0x40) != 0, b0 & 0x0f, masked, payload, wire);
+    }
+
+    /**
+     * Returns true once the client closed the TCP connection.
+     */
+    public boolean readEof() throws IOException {
+        return in.read() < 0;
+    }
+
+    /**
+     * Closes the connection without a close frame, like a lost network.
+     */
+    public void drop() throws IOException {
+        socket.close();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (socket != null) {
+            socket.close();
+        }
+        server.close();
+    }
+}